@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2009 Stephen Tu <stephen_tu@berkeley.edu>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.protobuf.netty;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.protobuf.Message;
+import com.googlecode.protobuf.netty.NettyRpcChannel.ResponsePrototypeRpcCallback;
+import com.googlecode.protobuf.netty.benchmark.Payloads;
+import com.googlecode.protobuf.netty.example.Calculator.CalcResponse;
+
+/**
+ * Measures the client's bookkeeping for a call: registering its callback
+ * in {@link NettyRpcClientChannelUpstreamHandler}, then matching the
+ * response to it, parsing the response message and completing the future.
+ * A fixed number of calls stay outstanding; every operation registers a new
+ * call and answers the oldest one.
+ * <p>
+ * Lives in the library's package because the handler's call registry is
+ * package-private.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ClientDispatchBenchmark {
+
+	@Param({"1", "64", "1024"})
+	public int outstanding;
+	
+	@Param({"0", "1024", "65536"})
+	public int payloadSize;
+	
+	private NettyRpcClientChannelUpstreamHandler handler;
+	private DecoderEmbedder<Object> pipeline;
+	private ChannelBuffer payload;
+	private int[] ids;
+	private int next;
+	
+	@Setup(Level.Trial)
+	public void setUp() {
+		handler = new NettyRpcClientChannelUpstreamHandler();
+		pipeline = new DecoderEmbedder<Object>(handler);
+		payload = ChannelBuffers.wrappedBuffer(Payloads.paddedResponse(42, payloadSize).toByteArray());
+		ids = new int[outstanding];
+		for (int i = 0; i < outstanding; i++) {
+			ids[i] = register();
+		}
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		pipeline.finish();
+	}
+	
+	private int register() {
+		DefaultRpcFuture<Message> future = new DefaultRpcFuture<Message>();
+		return handler.registerCallback(new ResponsePrototypeRpcCallback(
+				new NettyRpcController(), CalcResponse.getDefaultInstance(), future), 0);
+	}
+	
+	@Benchmark
+	public int registerAndComplete() {
+		int slot = next;
+		next = (slot + 1 == ids.length) ? 0 : slot + 1;
+		pipeline.offer(new RpcResponseEnvelope(ids[slot], payload.duplicate(), null, null));
+		ids[slot] = register();
+		return ids[slot];
+	}
+	
+}
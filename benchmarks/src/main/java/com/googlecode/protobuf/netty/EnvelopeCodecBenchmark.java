@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2009 Stephen Tu <stephen_tu@berkeley.edu>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.protobuf.netty;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.googlecode.protobuf.netty.example.Calculator.CalcService;
+
+/**
+ * Measures the envelope codec of the pipeline built by
+ * {@link NettyRpcPipelineFactory}: encoding request and response envelopes
+ * into length-prefixed frames, and decoding the frames the frame decoder
+ * passes on. Payloads are opaque bytes, as the codec only copies them.
+ * <p>
+ * Lives in the library's package because the codec is package-private.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EnvelopeCodecBenchmark {
+
+	// Length prefix written by the encoder and stripped by the frame decoder
+	private static final int LENGTH_FIELD_LENGTH = 4;
+	
+	@Param({"16", "1024", "65536"})
+	public int payloadSize;
+	
+	private RpcRequestEnvelope request;
+	private RpcResponseEnvelope response;
+	private ChannelBuffer requestFrame;
+	private ChannelBuffer responseFrame;
+	
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		byte[] bytes = new byte[payloadSize];
+		new Random(42).nextBytes(bytes);
+		ChannelBuffer payload = ChannelBuffers.wrappedBuffer(bytes);
+		
+		request = new RpcRequestEnvelope(true, 12345, CalcService.getDescriptor().getFullName(), 
+				"Add", false, payload);
+		response = new RpcResponseEnvelope(12345, payload, null, null);
+		requestFrame = stripLength(NettyRpcEnvelopeEncoder.encodeRequest(request));
+		responseFrame = stripLength(NettyRpcEnvelopeEncoder.encodeResponse(response));
+	}
+	
+	private static ChannelBuffer stripLength(ChannelBuffer frame) {
+		return frame.slice(LENGTH_FIELD_LENGTH, frame.readableBytes() - LENGTH_FIELD_LENGTH);
+	}
+	
+	@Benchmark
+	public ChannelBuffer encodeRequest() throws Exception {
+		return NettyRpcEnvelopeEncoder.encodeRequest(request);
+	}
+	
+	@Benchmark
+	public RpcRequestEnvelope decodeRequest() throws Exception {
+		// The decoder reads from the frame, so give it fresh indexes
+		return NettyRpcEnvelopeDecoder.decodeRequest(requestFrame.duplicate());
+	}
+	
+	@Benchmark
+	public ChannelBuffer encodeResponse() throws Exception {
+		return NettyRpcEnvelopeEncoder.encodeResponse(response);
+	}
+	
+	@Benchmark
+	public RpcResponseEnvelope decodeResponse() throws Exception {
+		return NettyRpcEnvelopeDecoder.decodeResponse(responseFrame.duplicate());
+	}
+	
+}
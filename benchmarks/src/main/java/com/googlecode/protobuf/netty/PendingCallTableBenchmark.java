@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2009 Stephen Tu <stephen_tu@berkeley.edu>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.protobuf.netty;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the pending-call table of the client handler with the map it
+ * replaced: a shared AtomicInteger for ids and a synchronized
+ * containsKey/put on a ConcurrentHashMap of boxed ids. Each thread keeps a
+ * fixed number of calls outstanding; every operation registers a new call
+ * and completes the oldest one.
+ * <p>
+ * Lives in the library's package because the table is package-private.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+public class PendingCallTableBenchmark {
+
+	public enum Implementation { SLOT_TABLE, SYNCHRONIZED_MAP }
+	
+	interface PendingCalls {
+		int add(Object callback);
+		Object remove(int id);
+	}
+	
+	@State(Scope.Benchmark)
+	public static class Shared {
+		
+		@Param({"SLOT_TABLE", "SYNCHRONIZED_MAP"})
+		public Implementation implementation;
+		
+		PendingCalls calls;
+		
+		@Setup(Level.Trial)
+		public void setUp() {
+			if (implementation == Implementation.SLOT_TABLE) {
+				final PendingCallTable<Object> table = new PendingCallTable<Object>();
+				calls = new PendingCalls() {
+					public int add(Object callback) {
+						return table.add(callback);
+					}
+					public Object remove(int id) {
+						return table.remove(id);
+					}
+				};
+			} else {
+				calls = new SynchronizedMap();
+			}
+		}
+		
+	}
+	
+	@State(Scope.Thread)
+	public static class Outstanding {
+		
+		@Param({"64"})
+		public int outstanding;
+		
+		final Object callback = new Object();
+		int[] ids;
+		int next;
+		
+		@Setup(Level.Iteration)
+		public void setUp(Shared shared) {
+			if (ids != null) {
+				for (int id : ids) {
+					shared.calls.remove(id);
+				}
+			}
+			ids = new int[outstanding];
+			for (int i = 0; i < outstanding; i++) {
+				ids[i] = shared.calls.add(callback);
+			}
+			next = 0;
+		}
+		
+	}
+	
+	@Benchmark
+	public Object registerAndComplete(Shared shared, Outstanding outstanding) {
+		int slot = outstanding.next;
+		outstanding.next = (slot + 1 == outstanding.ids.length) ? 0 : slot + 1;
+		Object completed = shared.calls.remove(outstanding.ids[slot]);
+		outstanding.ids[slot] = shared.calls.add(outstanding.callback);
+		return completed;
+	}
+	
+	/**
+	 * How the client handler tracked calls before the slot table.
+	 */
+	static class SynchronizedMap implements PendingCalls {
+		
+		private final AtomicInteger seqNum = new AtomicInteger(0);
+		private final Map<Integer, Object> callbackMap = new ConcurrentHashMap<Integer, Object>();
+		
+		public int add(Object callback) {
+			int seqId = seqNum.getAndIncrement();
+			register(seqId, callback);
+			return seqId;
+		}
+		
+		private synchronized void register(int seqId, Object callback) {
+			if (callbackMap.containsKey(seqId)) {
+				throw new IllegalArgumentException("Callback already registered");
+			}
+			callbackMap.put(seqId, callback);
+		}
+		
+		public Object remove(int id) {
+			return callbackMap.remove(id);
+		}
+		
+	}
+	
+}
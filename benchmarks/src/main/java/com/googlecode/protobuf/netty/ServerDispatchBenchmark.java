@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2009 Stephen Tu <stephen_tu@berkeley.edu>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.protobuf.netty;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.googlecode.protobuf.netty.benchmark.Payloads;
+import com.googlecode.protobuf.netty.example.CalculatorServiceImpl;
+import com.googlecode.protobuf.netty.example.Calculator.CalcService;
+
+/**
+ * Measures how the server turns a decoded request envelope into a response
+ * envelope: call tracking, service and method lookup, parsing the request,
+ * invoking CalcService and writing the answer. There is no socket and no
+ * executor; the handlers run in an embedded pipeline that collects what
+ * they write.
+ * <p>
+ * Lives in the library's package because the handlers' setup is
+ * package-private.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ServerDispatchBenchmark {
+
+	public enum Kind { SERVICE, BLOCKING_SERVICE }
+	
+	@Param({"SERVICE", "BLOCKING_SERVICE"})
+	public Kind kind;
+	
+	@Param({"0", "1024", "65536"})
+	public int payloadSize;
+	
+	private final String serviceName = CalcService.getDescriptor().getFullName();
+	private DecoderEmbedder<RpcResponseEnvelope> pipeline;
+	private ChannelBuffer payload;
+	private int nextId;
+	
+	@Setup(Level.Trial)
+	public void setUp() {
+		NettyRpcServerCallTracker callTracker = new NettyRpcServerCallTracker();
+		NettyRpcServerChannelUpstreamHandler handler = new NettyRpcServerChannelUpstreamHandler(
+				new DefaultChannelGroup(), callTracker);
+		CalculatorServiceImpl calculator = new CalculatorServiceImpl();
+		handler.registerService(CalcService.newReflectiveService(calculator));
+		handler.registerBlockingService(CalcService.newReflectiveBlockingService(calculator));
+		pipeline = new DecoderEmbedder<RpcResponseEnvelope>(callTracker, handler);
+		payload = ChannelBuffers.wrappedBuffer(Payloads.paddedRequest(6, 7, payloadSize).toByteArray());
+		
+		if (dispatch().getResponseMessage() == null) {
+			throw new IllegalStateException("CalcService did not answer");
+		}
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		pipeline.finish();
+	}
+	
+	@Benchmark
+	public RpcResponseEnvelope dispatch() {
+		// Envelopes carry per-call state, so each call needs a new one as
+		// the decoder would produce
+		RpcRequestEnvelope request = new RpcRequestEnvelope(true, nextId++, serviceName, "Add", 
+				kind == Kind.BLOCKING_SERVICE, payload.duplicate());
+		pipeline.offer(request);
+		return pipeline.poll();
+	}
+	
+}
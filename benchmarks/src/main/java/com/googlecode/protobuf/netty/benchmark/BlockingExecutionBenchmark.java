@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2009 Stephen Tu <stephen_tu@berkeley.edu>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.protobuf.netty.benchmark;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.protobuf.RpcController;
+import com.google.protobuf.ServiceException;
+import com.googlecode.protobuf.netty.NettyRpcChannel;
+import com.googlecode.protobuf.netty.NettyRpcClient;
+import com.googlecode.protobuf.netty.NettyRpcServer;
+import com.googlecode.protobuf.netty.example.Calculator.CalcRequest;
+import com.googlecode.protobuf.netty.example.Calculator.CalcResponse;
+import com.googlecode.protobuf.netty.example.Calculator.CalcService;
+
+/**
+ * Compares BlockingService throughput when each call runs on a fixed pool of
+ * platform threads against one virtual thread per call. The service sleeps
+ * to simulate a blocking JDBC or file I/O call, and enough client threads
+ * are used to keep far more calls in flight than the fixed pool can run.
+ * 
+ * The VIRTUAL_THREADS case needs a Java 21 or later runtime.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@Threads(256)
+public class BlockingExecutionBenchmark {
+
+	public enum Execution { FIXED_POOL, VIRTUAL_THREADS }
+	
+	@Param({"FIXED_POOL", "VIRTUAL_THREADS"})
+	public Execution execution;
+	
+	@Param({"64"})
+	public int poolSize;
+	
+	@Param({"5"})
+	public int ioMillis;
+	
+	private NettyRpcServer server;
+	private ExecutorService pool;
+	private NettyRpcClient client;
+	private NettyRpcChannel channel;
+	private CalcService.BlockingInterface calcService;
+	
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		InetSocketAddress address = new InetSocketAddress("localhost", freePort());
+		server = new NettyRpcServer(new NioServerSocketChannelFactory(
+				Executors.newCachedThreadPool(), 
+				Executors.newCachedThreadPool()));
+		server.registerBlockingService(CalcService.newReflectiveBlockingService(new SlowCalcService(ioMillis)));
+		if (execution == Execution.FIXED_POOL) {
+			pool = Executors.newFixedThreadPool(poolSize);
+			server.setBlockingServiceExecutor(pool);
+		} else {
+			server.useVirtualThreadsForBlockingServices();
+		}
+		server.serve(address);
+		
+		client = new NettyRpcClient(new NioClientSocketChannelFactory(
+				Executors.newCachedThreadPool(), 
+				Executors.newCachedThreadPool()));
+		channel = client.blockingConnect(address);
+		calcService = CalcService.newBlockingStub(channel);
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		channel.close();
+		client.shutdown();
+		server.shutdown();
+		if (pool != null) {
+			pool.shutdownNow();
+		}
+	}
+	
+	@Benchmark
+	public int blockingCall() throws ServiceException {
+		CalcRequest request = CalcRequest.newBuilder().setOp1(6).setOp2(7).build();
+		return calcService.multiply(channel.newRpcController(), request).getResult();
+	}
+	
+	static int freePort() throws IOException {
+		ServerSocket socket = new ServerSocket(0);
+		try {
+			return socket.getLocalPort();
+		} finally {
+			socket.close();
+		}
+	}
+	
+	/**
+	 * CalcService whose methods block for a fixed time before answering.
+	 */
+	static class SlowCalcService implements CalcService.BlockingInterface {
+		
+		private final long sleepMillis;
+		
+		SlowCalcService(long sleepMillis) {
+			this.sleepMillis = sleepMillis;
+		}
+		
+		private CalcResponse respond(int result) throws ServiceException {
+			try {
+				Thread.sleep(sleepMillis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new ServiceException("Interrupted");
+			}
+			return CalcResponse.newBuilder().setResult(result).build();
+		}
+		
+		public CalcResponse add(RpcController controller, CalcRequest request) throws ServiceException {
+			return respond(request.getOp1() + request.getOp2());
+		}
+		
+		public CalcResponse subtract(RpcController controller, CalcRequest request) throws ServiceException {
+			return respond(request.getOp1() - request.getOp2());
+		}
+		
+		public CalcResponse multiply(RpcController controller, CalcRequest request) throws ServiceException {
+			return respond(request.getOp1() * request.getOp2());
+		}
+		
+		public CalcResponse divide(RpcController controller, CalcRequest request) throws ServiceException {
+			if (request.getOp2() == 0) {
+				throw new ServiceException("Cannot divide by zero");
+			}
+			return respond(request.getOp1() / request.getOp2());
+		}
+		
+	}
+	
+}
@@ -0,0 +1,453 @@
+/*
+ * Copyright (c) 2009 Stephen Tu <stephen_tu@berkeley.edu>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.protobuf.netty.benchmark;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+
+import com.google.protobuf.DynamicMessage;
+import com.google.protobuf.Message;
+import com.google.protobuf.TextFormat;
+import com.google.protobuf.Descriptors.MethodDescriptor;
+import com.google.protobuf.Descriptors.ServiceDescriptor;
+import com.googlecode.protobuf.netty.NettyRpcChannel;
+import com.googlecode.protobuf.netty.NettyRpcClient;
+import com.googlecode.protobuf.netty.NettyRpcController;
+import com.googlecode.protobuf.netty.NettyRpcServer;
+import com.googlecode.protobuf.netty.RpcFuture;
+import com.googlecode.protobuf.netty.RpcFutureListener;
+import com.googlecode.protobuf.netty.NettyRpcProto.ErrorCode;
+import com.googlecode.protobuf.netty.example.CalculatorServiceImpl;
+import com.googlecode.protobuf.netty.example.Calculator.CalcService;
+
+/**
+ * Drives a service through NettyRpcClient at a fixed request rate, however
+ * slowly the server answers, and reports throughput and latency.
+ * <p>
+ * Calls are sent on a fixed schedule. The latency of a call is measured
+ * from the time the schedule says it should have been sent, so time the
+ * generator spends stuck behind a slow server counts against the server
+ * rather than going unrecorded (coordinated omission). Calls that time out
+ * are counted in it too, with the time they waited, so that a server that
+ * stops answering does not drop out of the latency. The latency from the
+ * actual send is reported too, as service time, and that of all failed
+ * calls on its own.
+ * <p>
+ * Any service whose generated class is on the classpath can be targeted;
+ * requests are given in protobuf text format. With <code>-serve</code> the
+ * generator also starts the example CalculatorServer in-process.
+ */
+public class LoadGenerator {
+
+	private static final String USAGE = 
+		"Options:\n" +
+		"  -host HOST          server to call (localhost)\n" +
+		"  -port PORT          port of the server (8080)\n" +
+		"  -serve              start a CalculatorServer on PORT in this process\n" +
+		"  -service CLASS      generated service class (" + CalcService.class.getName() + ")\n" +
+		"  -call M[:W[:P]]     call method M with weight W and P bytes of padding;\n" +
+		"                      may be repeated to mix calls (Add:1:0)\n" +
+		"  -request M=TEXT     request of method M in text format (op1: 6 op2: 7)\n" +
+		"  -blocking           call the service as a BlockingService\n" +
+		"  -rate N             calls per second (1000)\n" +
+		"  -duration S         seconds to measure (30)\n" +
+		"  -warmup S           seconds to run before measuring (5)\n" +
+		"  -connections N      connections to spread the calls over (1)\n" +
+		"  -timeout MS         timeout of each call (10000)\n" +
+		"  -hgrm FILE          write the latency percentiles to FILE\n";
+	
+	private static final String DEFAULT_REQUEST = "op1: 6 op2: 7";
+	
+	// Histograms record microseconds
+	private static final double MICROS_PER_MILLI = 1000.0;
+	
+	private String host = "localhost";
+	private int port = 8080;
+	private boolean serve;
+	private String serviceClass = CalcService.class.getName();
+	private final List<String> calls = new ArrayList<String>();
+	private final Map<String, String> requests = new LinkedHashMap<String, String>();
+	private boolean blocking;
+	private int rate = 1000;
+	private int durationSeconds = 30;
+	private int warmupSeconds = 5;
+	private int connections = 1;
+	private long timeoutMillis = 10000;
+	private String hgrmFile;
+	
+	private final Recorder warmupLatency = new Recorder(3);
+	private final Recorder latency = new Recorder(3);
+	private final Recorder serviceTime = new Recorder(3);
+	private final Recorder errorLatency = new Recorder(3);
+	private final AtomicLong completed = new AtomicLong();
+	private final ConcurrentMap<String, AtomicLong> errors = new ConcurrentHashMap<String, AtomicLong>();
+	
+	public static void main(String[] args) throws Exception {
+		LoadGenerator generator = new LoadGenerator();
+		try {
+			generator.parse(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.print(USAGE);
+			System.exit(1);
+		}
+		generator.run();
+		System.exit(0);
+	}
+	
+	private void parse(String[] args) {
+		for (int i = 0; i < args.length; i++) {
+			String option = args[i];
+			if (option.equals("-help")) {
+				throw new IllegalArgumentException("Usage: LoadGenerator [options]");
+			} else if (option.equals("-serve")) {
+				serve = true;
+				continue;
+			} else if (option.equals("-blocking")) {
+				blocking = true;
+				continue;
+			}
+			if (i + 1 == args.length) {
+				throw new IllegalArgumentException("Missing value for " + option);
+			}
+			String value = args[++i];
+			if (option.equals("-host")) {
+				host = value;
+			} else if (option.equals("-port")) {
+				port = parseInt(option, value, 1);
+			} else if (option.equals("-service")) {
+				serviceClass = value;
+			} else if (option.equals("-call")) {
+				calls.add(value);
+			} else if (option.equals("-request")) {
+				int eq = value.indexOf('=');
+				if (eq < 0) {
+					throw new IllegalArgumentException("Expected METHOD=TEXT for -request: " + value);
+				}
+				requests.put(value.substring(0, eq), value.substring(eq + 1));
+			} else if (option.equals("-rate")) {
+				rate = parseInt(option, value, 1);
+			} else if (option.equals("-duration")) {
+				durationSeconds = parseInt(option, value, 1);
+			} else if (option.equals("-warmup")) {
+				warmupSeconds = parseInt(option, value, 0);
+			} else if (option.equals("-connections")) {
+				connections = parseInt(option, value, 1);
+			} else if (option.equals("-timeout")) {
+				timeoutMillis = parseInt(option, value, 1);
+			} else if (option.equals("-hgrm")) {
+				hgrmFile = value;
+			} else {
+				throw new IllegalArgumentException("Unknown option " + option);
+			}
+		}
+		if (calls.isEmpty()) {
+			calls.add("Add");
+		}
+	}
+	
+	private static int parseInt(String option, String value, int min) {
+		int result;
+		try {
+			result = Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Not a number for " + option + ": " + value);
+		}
+		if (result < min) {
+			throw new IllegalArgumentException(option + " must be at least " + min);
+		}
+		return result;
+	}
+	
+	/**
+	 * One kind of call in the mix.
+	 */
+	static class Call {
+		
+		final MethodDescriptor method;
+		final Message request;
+		final Message responsePrototype;
+		
+		Call(MethodDescriptor method, Message request) {
+			this.method = method;
+			this.request = request;
+			this.responsePrototype = DynamicMessage.getDefaultInstance(method.getOutputType());
+		}
+		
+	}
+	
+	/**
+	 * Returns the calls to make, each repeated as often as its weight.
+	 */
+	private Call[] buildMix() throws Exception {
+		ServiceDescriptor service = (ServiceDescriptor) Class.forName(serviceClass)
+				.getMethod("getDescriptor").invoke(null);
+		List<Call> mix = new ArrayList<Call>();
+		for (String call : calls) {
+			String[] parts = call.split(":");
+			if (parts.length > 3) {
+				throw new IllegalArgumentException("Expected METHOD[:WEIGHT[:PADDING]] for -call: " + call);
+			}
+			MethodDescriptor method = service.findMethodByName(parts[0]);
+			if (method == null) {
+				throw new IllegalArgumentException(service.getFullName() + " has no method " + parts[0]);
+			}
+			int weight = (parts.length > 1) ? parseInt("-call", parts[1], 1) : 1;
+			int padding = (parts.length > 2) ? parseInt("-call", parts[2], 0) : 0;
+			
+			String text = requests.get(method.getName());
+			DynamicMessage.Builder request = DynamicMessage.newBuilder(method.getInputType());
+			TextFormat.merge((text == null) ? DEFAULT_REQUEST : text, request);
+			request.setUnknownFields(Payloads.padding(padding));
+			Call c = new Call(method, request.build());
+			for (int i = 0; i < weight; i++) {
+				mix.add(c);
+			}
+		}
+		return mix.toArray(new Call[mix.size()]);
+	}
+	
+	private void run() throws Exception {
+		Call[] mix;
+		try {
+			mix = buildMix();
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.print(USAGE);
+			return;
+		}
+		InetSocketAddress address = new InetSocketAddress(host, port);
+		
+		NettyRpcServer server = null;
+		if (serve) {
+			server = new NettyRpcServer(new NioServerSocketChannelFactory(
+					Executors.newCachedThreadPool(), 
+					Executors.newCachedThreadPool()));
+			server.registerService(CalcService.newReflectiveService(new CalculatorServiceImpl()));
+			server.registerBlockingService(CalcService.newReflectiveBlockingService(new CalculatorServiceImpl()));
+			server.serve(new InetSocketAddress(port));
+		}
+		
+		NettyRpcClient client = new NettyRpcClient(new NioClientSocketChannelFactory(
+				Executors.newCachedThreadPool(), 
+				Executors.newCachedThreadPool()));
+		NettyRpcChannel[] channels = new NettyRpcChannel[connections];
+		for (int i = 0; i < connections; i++) {
+			channels[i] = client.blockingConnect(address);
+		}
+		
+		System.out.println("Calling " + address + " at " + rate + " calls/s over " + connections + 
+				" connection(s) for " + warmupSeconds + " s of warmup and " + durationSeconds + " s");
+		
+		final Histogram totalLatency = new Histogram(3);
+		final Histogram totalServiceTime = new Histogram(3);
+		final Histogram totalErrorLatency = new Histogram(3);
+		ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+		final long start = System.nanoTime();
+		final long measureFrom = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+		reporter.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				report(System.nanoTime() >= measureFrom, totalLatency, totalServiceTime, totalErrorLatency, start);
+			}
+		}, 1, 1, TimeUnit.SECONDS);
+		
+		long end = measureFrom + TimeUnit.SECONDS.toNanos(durationSeconds);
+		long sent = send(mix, channels, start, measureFrom, end);
+		
+		// Wait for the answers to the last calls
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis) + TimeUnit.SECONDS.toNanos(1);
+		while (completed.get() + errorCount() < sent && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		long answeredBy = System.nanoTime();
+		reporter.shutdown();
+		reporter.awaitTermination(10, TimeUnit.SECONDS);
+		report(true, totalLatency, totalServiceTime, totalErrorLatency, start);
+		
+		summarize(sent, end - measureFrom, answeredBy - measureFrom, totalLatency, totalServiceTime, totalErrorLatency);
+		
+		for (NettyRpcChannel channel : channels) {
+			channel.close();
+		}
+		client.shutdown();
+		if (server != null) {
+			server.shutdown();
+		}
+	}
+	
+	/**
+	 * Sends calls on schedule until <code>end</code>, and returns how many
+	 * were sent after warmup.
+	 */
+	private long send(Call[] mix, NettyRpcChannel[] channels, long start, long measureFrom, long end) {
+		Random random = new Random();
+		double intervalNanos = TimeUnit.SECONDS.toNanos(1) / (double) rate;
+		long sent = 0;
+		for (long i = 0; ; i++) {
+			final long intended = start + (long) (i * intervalNanos);
+			if (intended >= end) {
+				return sent;
+			}
+			long now;
+			while ((now = System.nanoTime()) < intended) {
+				LockSupport.parkNanos(intended - now);
+			}
+			final boolean measured = intended >= measureFrom;
+			if (measured) {
+				sent++;
+			}
+			Call call = mix[random.nextInt(mix.length)];
+			NettyRpcChannel channel = channels[(int) (i % channels.length)];
+			final NettyRpcController controller = (NettyRpcController) channel.newRpcController();
+			controller.setTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
+			final long sentAt = System.nanoTime();
+			RpcFuture<Message> future = blocking 
+					? channel.callBlockingMethodAsync(call.method, controller, call.request, call.responsePrototype)
+					: channel.callMethod(call.method, controller, call.request, call.responsePrototype);
+			future.addListener(new RpcFutureListener<Message>() {
+				public void operationComplete(RpcFuture<Message> future) {
+					long now = System.nanoTime();
+					if (!measured) {
+						if (future.isSuccess()) {
+							warmupLatency.recordValue(TimeUnit.NANOSECONDS.toMicros(now - intended));
+						}
+						return;
+					}
+					if (future.isSuccess()) {
+						latency.recordValue(TimeUnit.NANOSECONDS.toMicros(now - intended));
+						serviceTime.recordValue(TimeUnit.NANOSECONDS.toMicros(now - sentAt));
+						completed.incrementAndGet();
+					} else {
+						long waited = TimeUnit.NANOSECONDS.toMicros(now - intended);
+						if (controller.getErrorCode() == ErrorCode.TIMEOUT) {
+							// Fast failures are left out, as they would make
+							// the latency look better than it is
+							latency.recordValue(waited);
+						}
+						errorLatency.recordValue(waited);
+						String reason = (controller.getErrorCode() != null) 
+								? controller.getErrorCode().name() : String.valueOf(future.getCause());
+						AtomicLong count = errors.get(reason);
+						if (count == null) {
+							AtomicLong existing = errors.putIfAbsent(reason, count = new AtomicLong());
+							if (existing != null) {
+								count = existing;
+							}
+						}
+						count.incrementAndGet();
+					}
+				}
+			});
+		}
+	}
+	
+	private long errorCount() {
+		long count = 0;
+		for (AtomicLong errorCount : errors.values()) {
+			count += errorCount.get();
+		}
+		return count;
+	}
+	
+	private synchronized void report(boolean measuring, Histogram totalLatency, Histogram totalServiceTime, 
+			Histogram totalErrorLatency, long start) {
+		double elapsed = (System.nanoTime() - start) / 1e9;
+		Histogram warmup = warmupLatency.getIntervalHistogram();
+		if (warmup.getTotalCount() > 0) {
+			printInterval(elapsed, "warm", warmup);
+		}
+		if (measuring) {
+			Histogram interval = latency.getIntervalHistogram();
+			// A sender that has fallen behind may still be on warmup calls
+			if (interval.getTotalCount() > 0 || warmup.getTotalCount() == 0) {
+				printInterval(elapsed, "    ", interval);
+			}
+			totalLatency.add(interval);
+			totalServiceTime.add(serviceTime.getIntervalHistogram());
+			totalErrorLatency.add(errorLatency.getIntervalHistogram());
+		}
+	}
+	
+	private static void printInterval(double elapsed, String phase, Histogram interval) {
+		System.out.println(String.format("%5.1f s %s %8d calls  p50 %8.3f  p99 %8.3f  max %8.3f ms", 
+				elapsed, phase, interval.getTotalCount(),
+				interval.getValueAtPercentile(50) / MICROS_PER_MILLI, 
+				interval.getValueAtPercentile(99) / MICROS_PER_MILLI, 
+				interval.getMaxValue() / MICROS_PER_MILLI));
+	}
+	
+	private void summarize(long sent, long scheduledNanos, long answeredNanos, 
+			Histogram totalLatency, Histogram totalServiceTime, Histogram totalErrorLatency) throws IOException {
+		System.out.println();
+		System.out.println(String.format("Sent %d calls, %d succeeded, %d failed", 
+				sent, completed.get(), errorCount()));
+		for (Map.Entry<String, AtomicLong> error : errors.entrySet()) {
+			System.out.println(String.format("  %-30s %d", error.getKey(), error.getValue().get()));
+		}
+		System.out.println(String.format("Throughput: %.1f calls/s requested, %.1f calls/s answered", 
+				sent / (scheduledNanos / 1e9), completed.get() / (answeredNanos / 1e9)));
+		System.out.println("Latency from the scheduled send, including timeouts (ms):");
+		printPercentiles(totalLatency);
+		System.out.println("Service time from the actual send (ms):");
+		printPercentiles(totalServiceTime);
+		if (totalErrorLatency.getTotalCount() > 0) {
+			System.out.println("Latency of failed calls from the scheduled send (ms):");
+			printPercentiles(totalErrorLatency);
+		}
+		if (hgrmFile != null) {
+			PrintStream out = new PrintStream(new FileOutputStream(hgrmFile));
+			try {
+				totalLatency.outputPercentileDistribution(out, MICROS_PER_MILLI);
+			} finally {
+				out.close();
+			}
+		}
+	}
+	
+	private static void printPercentiles(Histogram histogram) {
+		System.out.println(String.format("  p50 %.3f  p99 %.3f  p99.9 %.3f  max %.3f", 
+				histogram.getValueAtPercentile(50) / MICROS_PER_MILLI, 
+				histogram.getValueAtPercentile(99) / MICROS_PER_MILLI, 
+				histogram.getValueAtPercentile(99.9) / MICROS_PER_MILLI, 
+				histogram.getMaxValue() / MICROS_PER_MILLI));
+	}
+	
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2009 Stephen Tu <stephen_tu@berkeley.edu>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.protobuf.netty.benchmark;
+
+import java.util.Random;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnknownFieldSet;
+import com.googlecode.protobuf.netty.example.Calculator.CalcRequest;
+import com.googlecode.protobuf.netty.example.Calculator.CalcResponse;
+
+/**
+ * Builds messages of a given size.
+ */
+public final class Payloads {
+
+	// Not a field of the Calculator messages, so it is parsed and ignored
+	private static final int PADDING_FIELD_NUMBER = 15;
+	
+	private Payloads() {
+	}
+	
+	/**
+	 * Returns a request whose operands are followed by
+	 * <code>paddingBytes</code> random bytes in an unknown field.
+	 */
+	public static CalcRequest paddedRequest(int op1, int op2, int paddingBytes) {
+		return CalcRequest.newBuilder().setOp1(op1).setOp2(op2)
+				.setUnknownFields(padding(paddingBytes)).build();
+	}
+	
+	/**
+	 * Returns a response whose result is followed by
+	 * <code>paddingBytes</code> random bytes in an unknown field.
+	 */
+	public static CalcResponse paddedResponse(int result, int paddingBytes) {
+		return CalcResponse.newBuilder().setResult(result)
+				.setUnknownFields(padding(paddingBytes)).build();
+	}
+	
+	/**
+	 * Returns an unknown field holding <code>paddingBytes</code> random
+	 * bytes, or no fields for zero.
+	 */
+	public static UnknownFieldSet padding(int paddingBytes) {
+		if (paddingBytes == 0) {
+			return UnknownFieldSet.getDefaultInstance();
+		}
+		byte[] padding = new byte[paddingBytes];
+		new Random(42).nextBytes(padding);
+		return UnknownFieldSet.newBuilder()
+				.addField(PADDING_FIELD_NUMBER, UnknownFieldSet.Field.newBuilder()
+						.addLengthDelimited(ByteString.copyFrom(padding))
+						.build())
+				.build();
+	}
+	
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2009 Stephen Tu <stephen_tu@berkeley.edu>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.protobuf.netty.benchmark;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.channel.local.DefaultLocalClientChannelFactory;
+import org.jboss.netty.channel.local.DefaultLocalServerChannelFactory;
+import org.jboss.netty.channel.local.LocalAddress;
+import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.protobuf.Descriptors.MethodDescriptor;
+import com.googlecode.protobuf.netty.NettyRpcChannel;
+import com.googlecode.protobuf.netty.NettyRpcClient;
+import com.googlecode.protobuf.netty.NettyRpcServer;
+import com.googlecode.protobuf.netty.RpcFuture;
+import com.googlecode.protobuf.netty.example.CalculatorServiceImpl;
+import com.googlecode.protobuf.netty.example.Calculator.CalcRequest;
+import com.googlecode.protobuf.netty.example.Calculator.CalcResponse;
+import com.googlecode.protobuf.netty.example.Calculator.CalcService;
+
+/**
+ * Measures complete CalcService calls from a NettyRpcClient to a
+ * NettyRpcServer, over TCP on the loopback interface and over Netty's
+ * in-JVM local transport. Each benchmark thread keeps a fixed number of
+ * calls in flight on one shared channel; every operation waits for the
+ * oldest call and sends a new one.
+ * <p>
+ * Requests are padded with a field the server skips, so only the request
+ * grows with <code>payloadSize</code>.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class RoundTripBenchmark {
+
+	public enum Transport { LOOPBACK, LOCAL }
+	
+	private static final MethodDescriptor ADD = CalcService.getDescriptor().findMethodByName("Add");
+	
+	@State(Scope.Benchmark)
+	public static class Connection {
+		
+		@Param({"LOOPBACK", "LOCAL"})
+		public Transport transport;
+		
+		@Param({"0", "1024", "65536"})
+		public int payloadSize;
+		
+		private NettyRpcServer server;
+		private NettyRpcClient client;
+		NettyRpcChannel channel;
+		CalcRequest request;
+		
+		@Setup(Level.Trial)
+		public void setUp() throws IOException {
+			SocketAddress address;
+			if (transport == Transport.LOOPBACK) {
+				address = new InetSocketAddress("localhost", BlockingExecutionBenchmark.freePort());
+				server = new NettyRpcServer(new NioServerSocketChannelFactory(
+						Executors.newCachedThreadPool(), 
+						Executors.newCachedThreadPool()));
+				client = new NettyRpcClient(new NioClientSocketChannelFactory(
+						Executors.newCachedThreadPool(), 
+						Executors.newCachedThreadPool()));
+			} else {
+				address = new LocalAddress(LocalAddress.EPHEMERAL);
+				server = new NettyRpcServer(new DefaultLocalServerChannelFactory());
+				client = new NettyRpcClient(new DefaultLocalClientChannelFactory());
+			}
+			server.registerService(CalcService.newReflectiveService(new CalculatorServiceImpl()));
+			server.serve(address);
+			channel = client.blockingConnect(address);
+			request = Payloads.paddedRequest(6, 7, payloadSize);
+		}
+		
+		@TearDown(Level.Trial)
+		public void tearDown() {
+			channel.close();
+			client.shutdown();
+			server.shutdown();
+		}
+		
+		RpcFuture<CalcResponse> call() {
+			return channel.callMethod(ADD, channel.newRpcController(), request, 
+					CalcResponse.getDefaultInstance());
+		}
+		
+	}
+	
+	@State(Scope.Thread)
+	public static class InFlight {
+		
+		@Param({"1", "16", "128"})
+		public int concurrency;
+		
+		RpcFuture<CalcResponse>[] calls;
+		int next;
+		
+		@Setup(Level.Iteration)
+		@SuppressWarnings("unchecked")
+		public void setUp(Connection connection) {
+			calls = new RpcFuture[concurrency];
+			for (int i = 0; i < concurrency; i++) {
+				calls[i] = connection.call();
+			}
+			next = 0;
+		}
+		
+		@TearDown(Level.Iteration)
+		public void tearDown() throws InterruptedException, ExecutionException {
+			for (RpcFuture<CalcResponse> call : calls) {
+				call.get();
+			}
+		}
+		
+	}
+	
+	@Benchmark
+	public int add(Connection connection, InFlight inFlight) throws InterruptedException, ExecutionException {
+		int slot = inFlight.next;
+		inFlight.next = (slot + 1 == inFlight.calls.length) ? 0 : slot + 1;
+		int result = inFlight.calls[slot].get().getResult();
+		inFlight.calls[slot] = connection.call();
+		return result;
+	}
+	
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2009 Stephen Tu <stephen_tu@berkeley.edu>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.protobuf.netty;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Limits how many calls run at once, and adapts the limit to the observed
+ * latency with additive increase, multiplicative decrease (AIMD).
+ * <p>
+ * The lowest recent latency is taken as the latency of an idle server.
+ * While calls complete within twice that, the limit grows by about one
+ * per round of calls, as long as the calls use at least half of it. A
+ * slower call means calls are queueing somewhere, and the limit shrinks by
+ * 10%, at most once per round trip. The baseline creeps up by 10% every
+ * 1000 calls so that it follows lasting changes in the service.
+ * <p>
+ * The latencies fed to a limit must come from calls of one kind: with a
+ * cheap and a slow method behind one baseline, every slow call would look
+ * like queueing.
+ */
+class AdaptiveConcurrencyLimit {
+
+	private static final double TOLERANCE = 2.0;
+	private static final double BACKOFF = 0.9;
+	private static final int BASELINE_DECAY_CALLS = 1000;
+	
+	private final AtomicInteger inFlight = new AtomicInteger();
+	
+	private volatile int limit;
+	
+	// Guarded by this
+	private double exactLimit;
+	private int minLimit;
+	private int maxLimit;
+	private long baselineNanos = Long.MAX_VALUE;
+	private long lastDecreaseNanos;
+	private int calls;
+	
+	AdaptiveConcurrencyLimit(int initialLimit, int minLimit, int maxLimit) {
+		configure(initialLimit, minLimit, maxLimit);
+	}
+	
+	synchronized void configure(int initialLimit, int minLimit, int maxLimit) {
+		if (minLimit < 1 || initialLimit < minLimit || maxLimit < initialLimit) {
+			throw new IllegalArgumentException("Need 0 < min <= initial <= max");
+		}
+		this.minLimit = minLimit;
+		this.maxLimit = maxLimit;
+		this.exactLimit = initialLimit;
+		this.limit = initialLimit;
+	}
+	
+	int getLimit() {
+		return limit;
+	}
+	
+	int getInFlight() {
+		return inFlight.get();
+	}
+	
+	/**
+	 * Takes a slot for a call, or returns false if the limit is reached.
+	 */
+	boolean tryAcquire() {
+		while (true) {
+			int current = inFlight.get();
+			if (current >= limit) {
+				return false;
+			} else if (inFlight.compareAndSet(current, current + 1)) {
+				return true;
+			}
+		}
+	}
+	
+	/**
+	 * Gives back a slot, and adjusts the limit if the call completed
+	 * normally. Calls that were canceled or dropped say nothing about the
+	 * latency, so they pass a negative value.
+	 */
+	void release(long latencyNanos) {
+		int current = inFlight.getAndDecrement();
+		if (latencyNanos >= 0) {
+			update(latencyNanos, current);
+		}
+	}
+	
+	private synchronized void update(long latencyNanos, int inFlight) {
+		if (++calls >= BASELINE_DECAY_CALLS) {
+			calls = 0;
+			if (baselineNanos != Long.MAX_VALUE) {
+				baselineNanos += baselineNanos / 10;
+			}
+		}
+		baselineNanos = Math.min(baselineNanos, Math.max(1, latencyNanos));
+		long now = System.nanoTime();
+		if (latencyNanos > baselineNanos * TOLERANCE) {
+			if (now - lastDecreaseNanos > latencyNanos) {
+				exactLimit = Math.max(minLimit, exactLimit * BACKOFF);
+				lastDecreaseNanos = now;
+			}
+		} else if (inFlight * 2 >= exactLimit) {
+			exactLimit = Math.min(maxLimit, exactLimit + 1 / exactLimit);
+		}
+		limit = (int) exactLimit;
+	}
+	
+	/**
+	 * The slots a call holds in its method's and its service's limit.
+	 * Released once, whichever way the call ends. Only the method's limit
+	 * adapts to the call's latency; the service's is a fixed cap.
+	 */
+	static class Permit {
+		
+		private final AdaptiveConcurrencyLimit serviceLimit;
+		private final AdaptiveConcurrencyLimit methodLimit;
+		private final long startNanos = System.nanoTime();
+		private final AtomicBoolean released = new AtomicBoolean();
+		
+		Permit(AdaptiveConcurrencyLimit serviceLimit, AdaptiveConcurrencyLimit methodLimit) {
+			this.serviceLimit = serviceLimit;
+			this.methodLimit = methodLimit;
+		}
+		
+		/**
+		 * Takes a slot in both limits, or returns null if either is full.
+		 */
+		static Permit acquire(AdaptiveConcurrencyLimit serviceLimit, AdaptiveConcurrencyLimit methodLimit) {
+			if (!serviceLimit.tryAcquire()) {
+				return null;
+			} else if (!methodLimit.tryAcquire()) {
+				serviceLimit.release(-1);
+				return null;
+			}
+			return new Permit(serviceLimit, methodLimit);
+		}
+		
+		/**
+		 * @param completed true if the call ran to the end, so that its
+		 * latency can be used to adjust the method's limit
+		 */
+		void release(boolean completed) {
+			if (released.compareAndSet(false, true)) {
+				methodLimit.release(completed ? System.nanoTime() - startNanos : -1);
+				serviceLimit.release(-1);
+			}
+		}
+		
+	}
+	
+}
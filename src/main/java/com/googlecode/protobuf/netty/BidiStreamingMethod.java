@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2009 Stephen Tu <stephen_tu@berkeley.edu>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.protobuf.netty;
+
+import com.google.protobuf.Message;
+
+/**
+ * Implements a method that receives a stream of request messages under a
+ * single call, and answers with a stream of its own. A method that takes a
+ * stream and gives one answer emits a single response and completes.
+ * Registered with
+ * {@link NettyRpcServer#registerBidiStreamingMethod(com.google.protobuf.Descriptors.MethodDescriptor, Message, BidiStreamingMethod)}
+ * and called with
+ * {@link NettyRpcChannel#callBidiStreamingMethod(com.google.protobuf.Descriptors.MethodDescriptor, com.google.protobuf.RpcController, Message, RpcStreamListener)}
+ * or
+ * {@link NettyRpcChannel#callClientStreamingMethod(com.google.protobuf.Descriptors.MethodDescriptor, com.google.protobuf.RpcController, Message, com.google.protobuf.RpcCallback)}.
+ */
+public interface BidiStreamingMethod<Req extends Message, Resp extends Message> {
+
+	/**
+	 * Starts the call, and returns the listener for its requests. The
+	 * listener's <code>onCompleted</code> runs when the client has sent its
+	 * last request; the responses may still follow after that. The method
+	 * must end the response stream with {@link RpcStreamEmitter#complete()}
+	 * or {@link RpcStreamEmitter#fail(String)}, after which further requests
+	 * are dropped. An exception thrown from here or from the listener fails
+	 * the stream.
+	 * <p>
+	 * This and the listener run on the server's executor if it has one, and
+	 * on the connection's I/O thread otherwise. The client gets more credit
+	 * for requests as the listener returns.
+	 */
+	RpcStreamListener<Req> call(NettyRpcController controller, RpcStreamEmitter<Resp> responses) throws Exception;
+	
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2009 Stephen Tu <stephen_tu@berkeley.edu>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.protobuf.netty;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.log4j.Logger;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.handler.execution.ChannelEventRunnable;
+
+import com.googlecode.protobuf.netty.NettyRpcProto.Priority;
+
+/**
+ * Wraps an arbitrary {@link Executor} so that events belonging to the same
+ * {@link Channel} run one at a time and in the order they were submitted,
+ * while events of different channels still run in parallel.
+ * <p>
+ * A channel's events are handed to the wrapped executor as one task, which
+ * takes the priority of the event that started it. Over a
+ * {@link PriorityOrderedExecutor} that task runs a single event and then
+ * requeues itself with the priority of the next one, so channels whose next
+ * call is urgent are served first instead of waiting for busy channels to
+ * drain.
+ */
+class ChannelOrderedExecutor implements Executor {
+
+	private static final Logger logger = Logger.getLogger(ChannelOrderedExecutor.class);
+	
+	private final Executor executor;
+	private final boolean yieldEachEvent;
+	private final ConcurrentMap<Channel, ChildExecutor> childExecutors = new ConcurrentHashMap<Channel, ChildExecutor>();
+	
+	ChannelOrderedExecutor(Executor executor) {
+		if (executor == null) {
+			throw new IllegalArgumentException("Must provide executor");
+		}
+		this.executor = executor;
+		this.yieldEachEvent = executor instanceof PriorityOrderedExecutor;
+	}
+	
+	public void execute(Runnable task) {
+		if (task instanceof ChannelEventRunnable) {
+			getChildExecutor(((ChannelEventRunnable) task).getEvent().getChannel()).execute(task);
+		} else {
+			executor.execute(task);
+		}
+	}
+	
+	private ChildExecutor getChildExecutor(final Channel channel) {
+		ChildExecutor child = childExecutors.get(channel);
+		if (child == null) {
+			child = new ChildExecutor();
+			ChildExecutor existing = childExecutors.putIfAbsent(channel, child);
+			if (existing != null) {
+				return existing;
+			}
+			channel.getCloseFuture().addListener(new ChannelFutureListener() {
+				public void operationComplete(ChannelFuture future) {
+					childExecutors.remove(channel);
+				}
+			});
+		}
+		return child;
+	}
+	
+	private final class ChildExecutor implements Executor, PriorityOrderedExecutor.PrioritizedTask {
+		
+		private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+		private final AtomicBoolean running = new AtomicBoolean();
+		private volatile Priority priority = Priority.NORMAL;
+		
+		public void execute(Runnable task) {
+			tasks.add(task);
+			if (running.compareAndSet(false, true)) {
+				schedule();
+			}
+		}
+		
+		private void schedule() {
+			Runnable next = tasks.peek();
+			if (next != null) {
+				priority = PriorityOrderedExecutor.priorityOf(next);
+			}
+			executor.execute(this);
+		}
+		
+		public Priority getPriority() {
+			return priority;
+		}
+		
+		public void run() {
+			for (;;) {
+				Runnable task;
+				while ((task = tasks.poll()) != null) {
+					try {
+						task.run();
+					} catch (RuntimeException e) {
+						logger.warn("Unexpected exception from channel event", e);
+					}
+					if (yieldEachEvent && !tasks.isEmpty()) {
+						// Still marked running, so nobody else schedules us.
+						schedule();
+						return;
+					}
+				}
+				running.set(false);
+				// A task may have been queued after the last poll but before
+				// the flag was cleared; pick it up unless another thread did.
+				if (tasks.isEmpty() || !running.compareAndSet(false, true)) {
+					return;
+				}
+				if (yieldEachEvent) {
+					schedule();
+					return;
+				}
+			}
+		}
+		
+	}
+	
+}
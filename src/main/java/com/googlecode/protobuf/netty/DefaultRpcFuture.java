@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2009 Stephen Tu <stephen_tu@berkeley.edu>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.protobuf.netty;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.log4j.Logger;
+
+import com.google.protobuf.Message;
+
+class DefaultRpcFuture<T extends Message> implements RpcFuture<T> {
+
+	private static final Logger logger = Logger.getLogger(DefaultRpcFuture.class);
+	
+	private T response;
+	private Throwable cause;
+	private boolean done;
+	private boolean cancelled;
+	private List<RpcFutureListener<T>> listeners;
+	
+	public void addListener(RpcFutureListener<T> listener) {
+		synchronized (this) {
+			if (!done) {
+				if (listeners == null) {
+					listeners = new ArrayList<RpcFutureListener<T>>(1);
+				}
+				listeners.add(listener);
+				return;
+			}
+		}
+		notifyListener(listener);
+	}
+	
+	public synchronized void removeListener(RpcFutureListener<T> listener) {
+		if (listeners != null) {
+			listeners.remove(listener);
+		}
+	}
+	
+	public synchronized boolean isDone() {
+		return done;
+	}
+	
+	public synchronized boolean isCancelled() {
+		return cancelled;
+	}
+	
+	public synchronized boolean isSuccess() {
+		return done && cause == null;
+	}
+	
+	public synchronized T getResponse() {
+		return response;
+	}
+	
+	public synchronized Throwable getCause() {
+		return cause;
+	}
+	
+	/**
+	 * Stops waiting for the response. For calls made through a
+	 * NettyRpcChannel, the server is asked to stop the call.
+	 */
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return complete(null, new CancellationException(), true);
+	}
+	
+	public T get() throws InterruptedException, ExecutionException {
+		synchronized (this) {
+			while (!done) {
+				wait();
+			}
+		}
+		return getResult();
+	}
+	
+	public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		synchronized (this) {
+			while (!done) {
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0) {
+					throw new TimeoutException();
+				}
+				TimeUnit.NANOSECONDS.timedWait(this, remaining);
+			}
+		}
+		return getResult();
+	}
+	
+	/**
+	 * @return false if the future had already completed
+	 */
+	@SuppressWarnings("unchecked")
+	boolean setSuccess(Message response) {
+		return complete((T) response, null, false);
+	}
+	
+	/**
+	 * @return false if the future had already completed
+	 */
+	boolean setFailure(Throwable cause) {
+		return complete(null, cause, false);
+	}
+	
+	private synchronized T getResult() throws ExecutionException {
+		if (cancelled) {
+			throw new CancellationException();
+		} else if (cause != null) {
+			throw new ExecutionException(cause);
+		}
+		return response;
+	}
+	
+	private boolean complete(T response, Throwable cause, boolean cancelled) {
+		List<RpcFutureListener<T>> listeners;
+		synchronized (this) {
+			if (done) {
+				return false;
+			}
+			this.response = response;
+			this.cause = cause;
+			this.cancelled = cancelled;
+			done = true;
+			notifyAll();
+			listeners = this.listeners;
+			this.listeners = null;
+		}
+		if (listeners != null) {
+			for (RpcFutureListener<T> listener : listeners) {
+				notifyListener(listener);
+			}
+		}
+		return true;
+	}
+	
+	private void notifyListener(RpcFutureListener<T> listener) {
+		try {
+			listener.operationComplete(this);
+		} catch (Throwable t) {
+			logger.warn("An exception was thrown by an RpcFutureListener", t);
+		}
+	}
+	
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2009 Stephen Tu <stephen_tu@berkeley.edu>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.protobuf.netty;
+
+import java.util.Arrays;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+
+/**
+ * Compresses and decompresses the LZ4 block format in plain Java.
+ * <p>
+ * The compressor is the greedy single-pass LZ4 algorithm with a 4K entry
+ * hash table, which trades some ratio for speed. The decompressor checks
+ * every length and offset, so that malformed input from the network fails
+ * with an exception instead of reading or writing out of bounds.
+ */
+final class Lz4BlockCodec {
+
+	private static final int MIN_MATCH = 4;
+	private static final int MAX_OFFSET = 65535;
+	// The format requires the last 5 bytes to be literals, and the last
+	// match to start at least 12 bytes before the end
+	private static final int LAST_LITERALS = 5;
+	private static final int MF_LIMIT = 12;
+	private static final int HASH_LOG = 12;
+	// Skips ahead faster the longer no match is found
+	private static final int SKIP_STRENGTH = 6;
+	
+	private static final ThreadLocal<int[]> hashTables = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			return new int[1 << HASH_LOG];
+		}
+	};
+	
+	private Lz4BlockCodec() {
+	}
+	
+	static int maxCompressedLength(int length) {
+		return length + length / 255 + 16;
+	}
+	
+	/**
+	 * Compresses <code>src[srcOff, srcOff + srcLen)</code> into
+	 * <code>dst</code>, which must have room for
+	 * {@link #maxCompressedLength(int)} bytes from <code>dstOff</code>.
+	 * 
+	 * @return the compressed length
+	 */
+	static int compress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff) {
+		int srcEnd = srcOff + srcLen;
+		int anchor = srcOff;
+		int dp = dstOff;
+		if (srcLen >= MF_LIMIT + 1) {
+			int[] table = hashTables.get();
+			// Positions are stored relative to srcOff, plus one so that zero
+			// means empty
+			Arrays.fill(table, 0);
+			int matchLimit = srcEnd - LAST_LITERALS;
+			int mfLimit = srcEnd - MF_LIMIT;
+			int ip = srcOff + 1;
+			int misses = 1 << SKIP_STRENGTH;
+			while (ip < mfLimit) {
+				int sequence = readInt(src, ip);
+				int h = hash(sequence);
+				int ref = table[h] - 1 + srcOff;
+				table[h] = ip - srcOff + 1;
+				if (ref < srcOff || ip - ref > MAX_OFFSET || readInt(src, ref) != sequence) {
+					ip += misses++ >>> SKIP_STRENGTH;
+					continue;
+				}
+				misses = 1 << SKIP_STRENGTH;
+				while (ip > anchor && ref > srcOff && src[ip - 1] == src[ref - 1]) {
+					ip--;
+					ref--;
+				}
+				int matchLength = MIN_MATCH;
+				while (ip + matchLength < matchLimit && src[ip + matchLength] == src[ref + matchLength]) {
+					matchLength++;
+				}
+				dp = writeSequence(src, anchor, ip - anchor, ip - ref, matchLength, dst, dp);
+				ip += matchLength;
+				anchor = ip;
+				if (ip < mfLimit) {
+					// Lets a match start right where this one left off
+					table[hash(readInt(src, ip - 2))] = ip - 2 - srcOff + 1;
+				}
+			}
+		}
+		return writeLastLiterals(src, anchor, srcEnd - anchor, dst, dp) - dstOff;
+	}
+	
+	/**
+	 * Decompresses a block into exactly <code>dstLen</code> bytes.
+	 * 
+	 * @throws InvalidProtocolBufferException if the block is malformed or
+	 * does not decompress to <code>dstLen</code> bytes
+	 */
+	static void decompress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int dstLen) 
+			throws InvalidProtocolBufferException {
+		int sp = srcOff;
+		int srcEnd = srcOff + srcLen;
+		int dp = dstOff;
+		int dstEnd = dstOff + dstLen;
+		while (sp < srcEnd) {
+			int token = src[sp++] & 0xFF;
+			int literalLength = token >>> 4;
+			if (literalLength == 15) {
+				int b;
+				do {
+					if (sp >= srcEnd) {
+						throw malformed();
+					}
+					b = src[sp++] & 0xFF;
+					literalLength += b;
+					if (literalLength < 0) {
+						// Overflowed on a long run of 255s
+						throw malformed();
+					}
+				} while (b == 255);
+			}
+			if (literalLength > srcEnd - sp || literalLength > dstEnd - dp) {
+				throw malformed();
+			}
+			System.arraycopy(src, sp, dst, dp, literalLength);
+			sp += literalLength;
+			dp += literalLength;
+			if (sp == srcEnd) {
+				// The last sequence has no match
+				break;
+			}
+			if (srcEnd - sp < 2) {
+				throw malformed();
+			}
+			int offset = (src[sp] & 0xFF) | ((src[sp + 1] & 0xFF) << 8);
+			sp += 2;
+			int matchLength = token & 0x0F;
+			if (matchLength == 15) {
+				int b;
+				do {
+					if (sp >= srcEnd) {
+						throw malformed();
+					}
+					b = src[sp++] & 0xFF;
+					matchLength += b;
+					if (matchLength < 0) {
+						// Overflowed on a long run of 255s
+						throw malformed();
+					}
+				} while (b == 255);
+			}
+			matchLength += MIN_MATCH;
+			int ref = dp - offset;
+			if (offset == 0 || ref < dstOff || matchLength < 0 || matchLength > dstEnd - dp) {
+				throw malformed();
+			}
+			if (offset >= matchLength) {
+				System.arraycopy(dst, ref, dst, dp, matchLength);
+				dp += matchLength;
+			} else {
+				// The match overlaps the bytes it produces, e.g. a run
+				int matchEnd = dp + matchLength;
+				while (dp < matchEnd) {
+					dst[dp++] = dst[ref++];
+				}
+			}
+		}
+		if (dp != dstEnd) {
+			throw malformed();
+		}
+	}
+	
+	private static int writeSequence(byte[] src, int literalOff, int literalLength, int offset, int matchLength, 
+			byte[] dst, int dp) {
+		int tokenPos = dp++;
+		int token = (literalLength >= 15) ? 0xF0 : literalLength << 4;
+		if (literalLength >= 15) {
+			dp = writeLength(literalLength - 15, dst, dp);
+		}
+		System.arraycopy(src, literalOff, dst, dp, literalLength);
+		dp += literalLength;
+		dst[dp++] = (byte) offset;
+		dst[dp++] = (byte) (offset >>> 8);
+		int extra = matchLength - MIN_MATCH;
+		if (extra >= 15) {
+			token |= 0x0F;
+			dp = writeLength(extra - 15, dst, dp);
+		} else {
+			token |= extra;
+		}
+		dst[tokenPos] = (byte) token;
+		return dp;
+	}
+	
+	private static int writeLastLiterals(byte[] src, int literalOff, int literalLength, byte[] dst, int dp) {
+		if (literalLength >= 15) {
+			dst[dp++] = (byte) 0xF0;
+			dp = writeLength(literalLength - 15, dst, dp);
+		} else {
+			dst[dp++] = (byte) (literalLength << 4);
+		}
+		System.arraycopy(src, literalOff, dst, dp, literalLength);
+		return dp + literalLength;
+	}
+	
+	private static int writeLength(int length, byte[] dst, int dp) {
+		while (length >= 255) {
+			dst[dp++] = (byte) 255;
+			length -= 255;
+		}
+		dst[dp++] = (byte) length;
+		return dp;
+	}
+	
+	private static int readInt(byte[] buf, int i) {
+		return (buf[i] & 0xFF) | ((buf[i + 1] & 0xFF) << 8) | ((buf[i + 2] & 0xFF) << 16) | (buf[i + 3] << 24);
+	}
+	
+	private static int hash(int sequence) {
+		return (sequence * -1640531535) >>> (32 - HASH_LOG);
+	}
+	
+	private static InvalidProtocolBufferException malformed() {
+		return new InvalidProtocolBufferException("Malformed LZ4 block");
+	}
+	
+}
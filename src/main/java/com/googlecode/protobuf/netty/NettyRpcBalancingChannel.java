@@ -0,0 +1,257 @@
+/*
+ * Copyright (c) 2009 Stephen Tu <stephen_tu@berkeley.edu>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.protobuf.netty;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import com.google.protobuf.BlockingRpcChannel;
+import com.google.protobuf.Message;
+import com.google.protobuf.RpcCallback;
+import com.google.protobuf.RpcChannel;
+import com.google.protobuf.RpcController;
+import com.google.protobuf.ServiceException;
+import com.google.protobuf.Descriptors.MethodDescriptor;
+
+/**
+ * Spreads calls over connections to several servers.
+ * <p>
+ * Each call picks two servers at random and goes to the one with the lower
+ * cost, where the cost is the observed latency times the number of
+ * outstanding calls, divided by the server's weight. A failed call counts
+ * as a slow one, so that a server that fails fast does not attract more
+ * calls. Until both servers
+ * have answered a call, and when their costs are equal, the call goes to
+ * the next server in weighted round-robin order instead.
+ */
+public class NettyRpcBalancingChannel implements RpcChannel, BlockingRpcChannel {
+
+	private volatile Endpoint[] endpoints = new Endpoint[0];
+	
+	/**
+	 * Adds a server. A server with weight 2 gets about twice the calls of a
+	 * server with weight 1, all else being equal.
+	 */
+	public synchronized void addChannel(NettyRpcChannel channel, int weight) {
+		if (weight < 1) {
+			throw new IllegalArgumentException("weight must be at least 1");
+		}
+		Endpoint[] newEndpoints = new Endpoint[endpoints.length + 1];
+		System.arraycopy(endpoints, 0, newEndpoints, 0, endpoints.length);
+		newEndpoints[endpoints.length] = new Endpoint(channel, weight);
+		endpoints = newEndpoints;
+	}
+	
+	public int size() {
+		return endpoints.length;
+	}
+	
+	/**
+	 * Returns the server the next call would go to.
+	 */
+	public NettyRpcChannel select() {
+		return selectEndpoint().channel;
+	}
+	
+	private Endpoint selectEndpoint() {
+		Endpoint[] endpoints = this.endpoints;
+		if (endpoints.length == 0) {
+			throw new IllegalStateException("No channels to balance over");
+		} else if (endpoints.length == 1) {
+			return endpoints[0];
+		}
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		int i = random.nextInt(endpoints.length);
+		int j = random.nextInt(endpoints.length - 1);
+		if (j >= i) {
+			j++;
+		}
+		Endpoint a = endpoints[i];
+		Endpoint b = endpoints[j];
+		if (a.isConnected() != b.isConnected()) {
+			return a.isConnected() ? a : b;
+		}
+		double costA = a.cost();
+		double costB = b.cost();
+		if (costA < 0 || costB < 0 || costA == costB) {
+			return nextWeighted(endpoints);
+		}
+		return (costA < costB) ? a : b;
+	}
+	
+	/**
+	 * Smooth weighted round-robin: every connected server gains its weight, and
+	 * the one with the most credit is picked and pays back the total.
+	 */
+	private synchronized Endpoint nextWeighted(Endpoint[] endpoints) {
+		Endpoint best = null;
+		int total = 0;
+		for (Endpoint endpoint : endpoints) {
+			if (!endpoint.isConnected()) {
+				continue;
+			}
+			endpoint.credit += endpoint.weight;
+			total += endpoint.weight;
+			if (best == null || endpoint.credit > best.credit) {
+				best = endpoint;
+			}
+		}
+		if (best == null) {
+			// No server is connected, the channel queues or fails the call
+			return endpoints[0];
+		}
+		best.credit -= total;
+		return best;
+	}
+	
+	/**
+	 * @see NettyRpcChannel#setDefaultTimeout(long, TimeUnit)
+	 */
+	public void setDefaultTimeout(long timeout, TimeUnit unit) {
+		for (Endpoint endpoint : endpoints) {
+			endpoint.channel.setDefaultTimeout(timeout, unit);
+		}
+	}
+	
+	public RpcController newRpcController() {
+		return new NettyRpcController();
+	}
+	
+	public void callMethod(MethodDescriptor method, RpcController controller,
+			Message request, Message responsePrototype, final RpcCallback<Message> done) {
+		if (done == null) {
+			selectEndpoint().channel.callMethod(method, controller, request, responsePrototype, null);
+			return;
+		}
+		callMethod(method, controller, request, responsePrototype).addListener(new RpcFutureListener<Message>() {
+			public void operationComplete(RpcFuture<Message> future) {
+				done.run(future.getResponse());
+			}
+		});
+	}
+	
+	/**
+	 * @see NettyRpcChannel#callMethod(MethodDescriptor, RpcController, Message, Message)
+	 */
+	public <T extends Message> RpcFuture<T> callMethod(MethodDescriptor method, 
+			RpcController controller, Message request, T responsePrototype) {
+		Endpoint endpoint = selectEndpoint();
+		return endpoint.track(endpoint.channel.callMethod(method, controller, request, responsePrototype));
+	}
+	
+	/**
+	 * @see NettyRpcChannel#callBlockingMethodAsync(MethodDescriptor, RpcController, Message, Message)
+	 */
+	public <T extends Message> RpcFuture<T> callBlockingMethodAsync(MethodDescriptor method, 
+			RpcController controller, Message request, T responsePrototype) {
+		Endpoint endpoint = selectEndpoint();
+		return endpoint.track(endpoint.channel.callBlockingMethodAsync(method, controller, request, responsePrototype));
+	}
+	
+	public Message callBlockingMethod(MethodDescriptor method,
+			RpcController controller, Message request, Message responsePrototype)
+			throws ServiceException {
+		Endpoint endpoint = selectEndpoint();
+		long start = System.nanoTime();
+		Message response;
+		try {
+			response = endpoint.channel.callBlockingMethod(method, controller, request, responsePrototype);
+		} catch (ServiceException e) {
+			endpoint.recordFailure(System.nanoTime() - start);
+			throw e;
+		}
+		endpoint.recordLatency(System.nanoTime() - start);
+		return response;
+	}
+	
+	public void close() {
+		for (Endpoint endpoint : endpoints) {
+			endpoint.channel.close();
+		}
+	}
+	
+	private static class Endpoint {
+		
+		// A failed call counts as this many times the average latency, up to
+		// a second, or a second while the latency is not known
+		private static final int FAILURE_PENALTY = 8;
+		private static final long MAX_FAILURE_NANOS = TimeUnit.SECONDS.toNanos(1);
+		
+		final NettyRpcChannel channel;
+		final int weight;
+		
+		// Guarded by the balancing channel
+		int credit;
+		
+		// Moving average of the call latency, 0 until the first call returns.
+		// Racing updates may lose a sample, which is fine for an estimate.
+		private volatile long latencyNanos;
+		
+		Endpoint(NettyRpcChannel channel, int weight) {
+			this.channel = channel;
+			this.weight = weight;
+		}
+		
+		boolean isConnected() {
+			return channel.isConnected();
+		}
+		
+		/**
+		 * Returns the expected wait for a new call, or -1 if unknown.
+		 */
+		double cost() {
+			long latency = latencyNanos;
+			if (latency == 0) {
+				return -1;
+			}
+			return (double) latency * (channel.getOutstandingCalls() + 1) / weight;
+		}
+		
+		void recordLatency(long nanos) {
+			long latency = latencyNanos;
+			// Weights the new sample by 1/8
+			latencyNanos = Math.max(1, (latency == 0) ? nanos : latency + (nanos - latency) / 8);
+		}
+		
+		void recordFailure(long nanos) {
+			long latency = latencyNanos;
+			long penalty = (latency == 0) ? MAX_FAILURE_NANOS : Math.min(latency * FAILURE_PENALTY, MAX_FAILURE_NANOS);
+			recordLatency(Math.max(nanos, penalty));
+		}
+		
+		<T extends Message> RpcFuture<T> track(RpcFuture<T> future) {
+			final long start = System.nanoTime();
+			future.addListener(new RpcFutureListener<T>() {
+				public void operationComplete(RpcFuture<T> future) {
+					if (future.isSuccess()) {
+						recordLatency(System.nanoTime() - start);
+					} else if (!future.isCancelled()) {
+						recordFailure(System.nanoTime() - start);
+					}
+				}
+			});
+			return future;
+		}
+		
+	}
+	
+}
@@ -21,10 +21,26 @@
  */
 package com.googlecode.protobuf.netty;
 
+import java.net.SocketAddress;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.apache.log4j.Logger;
+import org.jboss.netty.bootstrap.ClientBootstrap;
 import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
 
 import com.google.protobuf.BlockingRpcChannel;
+import com.google.protobuf.DynamicMessage;
 import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.Message;
 import com.google.protobuf.RpcCallback;
@@ -32,115 +48,883 @@ import com.google.protobuf.RpcChannel;
 import com.google.protobuf.RpcController;
 import com.google.protobuf.ServiceException;
 import com.google.protobuf.Descriptors.MethodDescriptor;
-import com.googlecode.protobuf.netty.NettyRpcProto.RpcRequest;
-import com.googlecode.protobuf.netty.NettyRpcProto.RpcResponse;
+import com.googlecode.protobuf.netty.NettyRpcProto.ErrorCode;
+import com.googlecode.protobuf.netty.NettyRpcProto.Priority;
+import com.googlecode.protobuf.netty.NettyRpcProto.RpcControl;
 
 public class NettyRpcChannel implements RpcChannel, BlockingRpcChannel {
 
 	private static final Logger logger = Logger.getLogger(NettyRpcChannel.class);
 	
-	private final Channel channel;
-	private final NettyRpcClientChannelUpstreamHandler handler;
+	/**
+	 * What a call does when the channel is full.
+	 */
+	public enum OverloadPolicy {
+		/** Wait for room, at most for the call's timeout */
+		BLOCK,
+		/** Fail the call with {@link ErrorCode#CHANNEL_FULL} */
+		FAIL
+	}
+	
+	// Null while reconnecting
+	private volatile Connection connection;
+	private volatile long defaultTimeoutMillis;
+	private final AtomicInteger outstandingCalls = new AtomicInteger();
+	
+	private volatile int maxOutstandingCalls;
+	private volatile OverloadPolicy overloadPolicy = OverloadPolicy.BLOCK;
+	private volatile int streamWindow = 32;
+	// Set by NettyRpcClient; calls are not measured without it
+	private volatile NettyRpcMetrics metrics;
+	
+	// Callers blocked for room wait on this
+	private final Object capacityLock = new Object();
+	private final AtomicInteger waitingCallers = new AtomicInteger();
+	private final Queue<Runnable> capacityListeners = new ConcurrentLinkedQueue<Runnable>();
+	
+	// Only set for channels that reconnect, see enableReconnect
+	private ClientBootstrap bootstrap;
+	private SocketAddress address;
+	private Timer timer;
+	
+	private volatile long minBackoffMillis = 10;
+	private volatile long maxBackoffMillis = 1000;
+	private volatile int maxQueuedCalls = 1024;
+	
+	// Guarded by this
+	private long backoffMillis;
+	private boolean closed;
+	private final Queue<QueuedCall<?>> queuedCalls = new ArrayDeque<QueuedCall<?>>();
 	
 	public NettyRpcChannel(Channel channel) {
-		this.channel = channel;
-		this.handler = channel.getPipeline().get(NettyRpcClientChannelUpstreamHandler.class);
-		if (handler == null) {
-			throw new IllegalArgumentException("Channel does not have proper handler");
+		this.connection = newConnection(channel);
+	}
+	
+	/**
+	 * Makes the channel connect again, through the given bootstrap, whenever
+	 * its connection is lost.
+	 */
+	synchronized void enableReconnect(ClientBootstrap bootstrap, SocketAddress address, Timer timer) {
+		this.bootstrap = bootstrap;
+		this.address = address;
+		this.timer = timer;
+		watch(connection);
+	}
+	
+	/**
+	 * Sets how long to wait between attempts to reconnect. The wait starts
+	 * at <code>min</code> and doubles after each failed attempt, up to
+	 * <code>max</code>. A random part is taken off each wait so that many
+	 * clients do not all reconnect at the same time.
+	 */
+	public void setReconnectBackoff(long min, long max, TimeUnit unit) {
+		if (min < 1 || max < min) {
+			throw new IllegalArgumentException("Need 0 < min <= max");
+		}
+		this.minBackoffMillis = Math.max(1, unit.toMillis(min));
+		this.maxBackoffMillis = Math.max(minBackoffMillis, unit.toMillis(max));
+	}
+	
+	/**
+	 * Sets how many calls are held while reconnecting. They are sent once
+	 * the channel is connected again. Calls beyond the limit fail right away
+	 * with {@link ErrorCode#IO_ERROR}. The default is 1024.
+	 */
+	public void setMaxQueuedCalls(int maxQueuedCalls) {
+		this.maxQueuedCalls = maxQueuedCalls;
+	}
+	
+	/**
+	 * Limits the number of calls waiting for a response. Zero (the default)
+	 * means no limit.
+	 * 
+	 * @see #setOverloadPolicy(OverloadPolicy)
+	 */
+	public void setMaxOutstandingCalls(int maxOutstandingCalls) {
+		this.maxOutstandingCalls = maxOutstandingCalls;
+		capacityChanged();
+	}
+	
+	/**
+	 * Sets what calls do when the channel is full: when the limit on
+	 * outstanding calls is reached, or when more data is queued for writing
+	 * than the channel's high water mark. The channel has room again once
+	 * the queued data drops below the low water mark. Blocks by default.
+	 * <p>
+	 * Calls made from a response callback never block, since the thread
+	 * they run on is the one that drains the channel.
+	 * 
+	 * @see #notifyOnCapacity(Runnable)
+	 */
+	public void setOverloadPolicy(OverloadPolicy overloadPolicy) {
+		if (overloadPolicy == null) {
+			throw new NullPointerException("overloadPolicy");
+		}
+		this.overloadPolicy = overloadPolicy;
+	}
+	
+	/**
+	 * Returns true if a call made now would not find the channel full.
+	 */
+	public boolean hasCapacity() {
+		int max = maxOutstandingCalls;
+		return isWritable() && (max <= 0 || outstandingCalls.get() < max);
+	}
+	
+	/**
+	 * Runs the task once the channel has room for another call, right away
+	 * if it has room now. Lets callers stop producing without blocking.
+	 */
+	public void notifyOnCapacity(Runnable task) {
+		capacityListeners.add(task);
+		if (hasCapacity()) {
+			capacityChanged();
 		}
 	}
 	
+	/**
+	 * Fails calls that get no response within the given time, unless their
+	 * controller sets its own timeout. Zero (the default) means wait forever.
+	 */
+	public void setDefaultTimeout(long timeout, TimeUnit unit) {
+		this.defaultTimeoutMillis = unit.toMillis(timeout);
+	}
+	
+	/**
+	 * Sets how many messages of a response stream the server may send ahead
+	 * of what has been consumed. The default is 32. Only affects streaming
+	 * calls started after the call.
+	 */
+	public void setStreamWindow(int messages) {
+		if (messages < 1) {
+			throw new IllegalArgumentException("messages must be positive");
+		}
+		this.streamWindow = messages;
+	}
+	
+	/**
+	 * Returns the number of calls that are waiting for a response.
+	 */
+	public int getOutstandingCalls() {
+		return outstandingCalls.get();
+	}
+	
+	/**
+	 * Returns true while the channel is connected to the server.
+	 */
+	public boolean isConnected() {
+		Connection connection = this.connection;
+		return connection != null && connection.channel.isConnected();
+	}
+	
+	void setMetrics(NettyRpcMetrics metrics) {
+		this.metrics = metrics;
+	}
+	
 	public RpcController newRpcController() {
 		return new NettyRpcController();
 	}
 	
 	public void callMethod(MethodDescriptor method, RpcController controller,
-			Message request, Message responsePrototype, RpcCallback<Message> done) {
-		int nextSeqId = (done == null) ? -1 : handler.getNextSeqId();
-		Message rpcRequest = buildRequest(done != null, nextSeqId, false, method, request);
-		if (done != null) {
-			handler.registerCallback(nextSeqId, new ResponsePrototypeRpcCallback(controller, responsePrototype, done));
+			Message request, Message responsePrototype, final RpcCallback<Message> done) {
+		if (done == null) {
+			// No ID is sent, so the server does not reply
+			NettyRpcMetrics metrics = this.metrics;
+			RpcMethodMetrics methodMetrics = (metrics == null) ? null : metrics.forMethod(method);
+			long startNanos = System.nanoTime();
+			if (methodMetrics != null) {
+				methodMetrics.started(request.getSerializedSize());
+			}
+			if (!acquire(false, null, defaultTimeoutMillis)) {
+				logger.warn("Dropping call to " + method.getFullName() + ", the channel is full");
+				if (methodMetrics != null) {
+					methodMetrics.failed(startNanos, ErrorCode.CHANNEL_FULL);
+				}
+				return;
+			}
+			Connection connection = this.connection;
+			if (connection == null) {
+				logger.warn("Dropping call to " + method.getFullName() + " while reconnecting");
+				if (methodMetrics != null) {
+					methodMetrics.failed(startNanos, ErrorCode.IO_ERROR);
+				}
+			} else {
+				RpcRequestEnvelope rpcRequest = buildRequest(false, -1, false, method, request);
+				rpcRequest.setPriority(priorityOf(controller));
+				connection.channel.write(rpcRequest);
+				if (methodMetrics != null) {
+					methodMetrics.succeeded(startNanos);
+				}
+			}
+			return;
 		}
-		channel.write(rpcRequest);
+		call(false, method, controller, request, responsePrototype).addListener(new RpcFutureListener<Message>() {
+			public void operationComplete(RpcFuture<Message> future) {
+				done.run(future.getResponse());
+			}
+		});
+	}
+	
+	/**
+	 * Calls a method of a {@link com.google.protobuf.Service} without
+	 * blocking. Many calls can be outstanding at once; use listeners on the
+	 * returned futures to act on them as they complete.
+	 */
+	public <T extends Message> RpcFuture<T> callMethod(MethodDescriptor method, 
+			RpcController controller, Message request, T responsePrototype) {
+		return call(false, method, controller, request, responsePrototype);
+	}
+	
+	/**
+	 * Like {@link #callMethod(MethodDescriptor, RpcController, Message, Message)},
+	 * for a method of a {@link com.google.protobuf.BlockingService} on the
+	 * server.
+	 */
+	public <T extends Message> RpcFuture<T> callBlockingMethodAsync(MethodDescriptor method, 
+			RpcController controller, Message request, T responsePrototype) {
+		return call(true, method, controller, request, responsePrototype);
 	}
 
 	public Message callBlockingMethod(MethodDescriptor method,
 			RpcController controller, Message request, Message responsePrototype)
 			throws ServiceException {
 		logger.debug("calling blocking method: " + method.getFullName());
-		BlockingRpcCallback callback = new BlockingRpcCallback();
-		ResponsePrototypeRpcCallback rpcCallback = new ResponsePrototypeRpcCallback(controller, responsePrototype, callback);
-		int nextSeqId = handler.getNextSeqId();
-		Message rpcRequest = buildRequest(true, nextSeqId, true, method, request);
-		handler.registerCallback(nextSeqId, rpcCallback);
-		channel.write(rpcRequest);
-		synchronized(callback) {
-			while(!callback.isDone()) {
+		RpcFuture<Message> future = call(true, method, controller, request, responsePrototype);
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			future.cancel(false);
+			Thread.currentThread().interrupt();
+			throw new ServiceException("Interrupted while waiting for response");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof ServiceException) {
+				throw (ServiceException) e.getCause();
+			}
+			throw new ServiceException(String.valueOf(e.getCause()));
+		}
+	}
+	
+	/**
+	 * Calls a method whose response is a stream of messages, served by a
+	 * {@link ServerStreamingMethod}. The listener receives the messages as
+	 * they arrive, and the server sends at most the stream window ahead of
+	 * it, see {@link #setStreamWindow(int)}.
+	 * <p>
+	 * Cancel the stream with {@link RpcController#startCancel()}. Only a
+	 * timeout set on a {@link NettyRpcController} applies, to the whole
+	 * stream; the channel's default timeout does not, as streams may run
+	 * for a long time.
+	 */
+	public <T extends Message> void callStreamingMethod(MethodDescriptor method, RpcController controller, 
+			Message request, T responsePrototype, RpcStreamListener<T> listener) {
+		stream(method, controller, request, responsePrototype, listener, true);
+	}
+	
+	/**
+	 * Like {@link #callStreamingMethod(MethodDescriptor, RpcController, Message, Message, RpcStreamListener)},
+	 * returning an iterator over the messages instead. The server is given
+	 * more credit as the iterator advances, so at most the stream window of
+	 * messages are held in memory.
+	 */
+	public <T extends Message> RpcStreamIterator<T> callStreamingMethod(MethodDescriptor method, 
+			RpcController controller, Message request, T responsePrototype) {
+		RpcStreamIterator<T> iterator = new RpcStreamIterator<T>();
+		iterator.setCall(stream(method, controller, request, responsePrototype, iterator.listener(), false));
+		return iterator;
+	}
+	
+	/**
+	 * Calls a method that takes a stream of requests, served by a
+	 * {@link BidiStreamingMethod}. Send the requests with the returned
+	 * emitter and end them with {@link RpcStreamEmitter#complete()}. The
+	 * emitter sends as the server gives credit, see
+	 * {@link NettyRpcServer#setStreamWindow(int)}. The listener receives the
+	 * responses as with
+	 * {@link #callStreamingMethod(MethodDescriptor, RpcController, Message, Message, RpcStreamListener)},
+	 * which also describes cancellation and timeouts.
+	 * <p>
+	 * The whole stream is one call: the method, the call id and the
+	 * dispatch on the server are paid for once, and each request costs a
+	 * small frame holding little more than the message.
+	 */
+	@SuppressWarnings("unchecked")
+	public <Req extends Message, T extends Message> RpcStreamEmitter<Req> callBidiStreamingMethod(MethodDescriptor method, 
+			RpcController controller, T responsePrototype, RpcStreamListener<T> listener) {
+		DefaultRpcFuture<Message> future = new DefaultRpcFuture<Message>();
+		BidiStreamCallback<T> callback = new BidiStreamCallback<T>(controller, responsePrototype, future, listener, 
+				streamWindow);
+		start(false, method, controller, DynamicMessage.getDefaultInstance(method.getInputType()), callback, future, 
+				streamTimeoutMillis(controller));
+		return (RpcStreamEmitter<Req>) callback.requests;
+	}
+	
+	/**
+	 * Like {@link #callBidiStreamingMethod(MethodDescriptor, RpcController, Message, RpcStreamListener)},
+	 * for a method that answers its requests with a single response. That
+	 * is passed to <code>done</code> once the method has completed, or null
+	 * if the call failed.
+	 */
+	public <Req extends Message, T extends Message> RpcStreamEmitter<Req> callClientStreamingMethod(MethodDescriptor method, 
+			RpcController controller, T responsePrototype, final RpcCallback<T> done) {
+		return callBidiStreamingMethod(method, controller, responsePrototype, new RpcStreamListener<T>() {
+			
+			private volatile T response;
+			
+			public void onMessage(T message) {
+				response = message;
+			}
+			
+			public void onCompleted() {
+				done.run(response);
+			}
+			
+			public void onFailed(ServiceException cause) {
+				done.run(null);
+			}
+			
+		});
+	}
+	
+	private <T extends Message> RpcFuture<T> call(boolean isBlocking, MethodDescriptor method, 
+			RpcController controller, Message request, T responsePrototype) {
+		DefaultRpcFuture<T> future = new DefaultRpcFuture<T>();
+		long timeoutMillis = defaultTimeoutMillis;
+		if (controller instanceof NettyRpcController && ((NettyRpcController) controller).getTimeoutMillis() > 0) {
+			timeoutMillis = ((NettyRpcController) controller).getTimeoutMillis();
+		}
+		start(isBlocking, method, controller, request, 
+				new ResponsePrototypeRpcCallback(controller, responsePrototype, future), future, timeoutMillis);
+		return future;
+	}
+	
+	private <T extends Message> StreamCallback<T> stream(MethodDescriptor method, RpcController controller, 
+			Message request, T responsePrototype, RpcStreamListener<T> listener, boolean creditOnDelivery) {
+		DefaultRpcFuture<Message> future = new DefaultRpcFuture<Message>();
+		StreamCallback<T> callback = new StreamCallback<T>(controller, responsePrototype, future, listener, 
+				streamWindow, creditOnDelivery);
+		start(false, method, controller, request, callback, future, streamTimeoutMillis(controller));
+		return callback;
+	}
+	
+	private static Priority priorityOf(RpcController controller) {
+		if (controller instanceof NettyRpcController) {
+			return ((NettyRpcController) controller).getPriority();
+		}
+		return Priority.NORMAL;
+	}
+	
+	/**
+	 * Streams only time out when their controller says so.
+	 */
+	private static long streamTimeoutMillis(RpcController controller) {
+		if (controller instanceof NettyRpcController) {
+			return ((NettyRpcController) controller).getTimeoutMillis();
+		}
+		return 0;
+	}
+	
+	private <T extends Message> void start(boolean isBlocking, MethodDescriptor method, RpcController controller, 
+			Message request, final ResponsePrototypeRpcCallback callback, DefaultRpcFuture<T> future, long timeoutMillis) {
+		NettyRpcMetrics metrics = this.metrics;
+		final RpcMethodMetrics methodMetrics = (metrics == null) ? null : metrics.forMethod(method);
+		final long startNanos = System.nanoTime();
+		if (methodMetrics != null) {
+			methodMetrics.started(request.getSerializedSize());
+			callback.metrics = methodMetrics;
+		}
+		if (!acquire(true, callback, timeoutMillis)) {
+			if (methodMetrics != null) {
+				methodMetrics.failed(startNanos, callback.errorCode);
+			}
+			return;
+		}
+		future.addListener(new RpcFutureListener<T>() {
+			public void operationComplete(RpcFuture<T> future) {
+				outstandingCalls.decrementAndGet();
+				capacityChanged();
+				if (methodMetrics == null) {
+					return;
+				} else if (future.isCancelled()) {
+					methodMetrics.dropped();
+				} else if (future.isSuccess()) {
+					methodMetrics.succeeded(startNanos);
+				} else {
+					methodMetrics.failed(startNanos, callback.errorCode);
+				}
+			}
+		});
+		Connection connection = this.connection;
+		if (connection != null) {
+			send(connection, isBlocking, method, request, callback, future, timeoutMillis);
+		} else {
+			queue(new QueuedCall<T>(isBlocking, method, request, callback, future, timeoutMillis));
+		}
+		if (controller instanceof NettyRpcController) {
+			((NettyRpcController) controller).setCall(future);
+		}
+	}
+	
+	/**
+	 * Makes room for a call, counting it as outstanding if
+	 * <code>counted</code>. If the channel is full, waits or fails the
+	 * call according to the overload policy.
+	 * 
+	 * @return false if the call was failed
+	 */
+	private boolean acquire(boolean counted, ResponsePrototypeRpcCallback callback, long timeoutMillis) {
+		if (tryAcquire(counted)) {
+			return true;
+		} else if (overloadPolicy == OverloadPolicy.FAIL) {
+			fail(callback, ErrorCode.CHANNEL_FULL, "Channel is full: " + outstandingCalls.get() + " calls outstanding");
+			return false;
+		} else if (NettyRpcClientChannelUpstreamHandler.isDispatching()) {
+			// Blocking here would stop the channel from draining
+			return tryAcquire(counted) || forceAcquire(counted);
+		}
+		long deadline = (timeoutMillis > 0) ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis) : 0;
+		synchronized (capacityLock) {
+			waitingCallers.incrementAndGet();
+			try {
+				while (!tryAcquire(counted)) {
+					long waitMillis = 0;
+					if (deadline != 0) {
+						long remaining = deadline - System.nanoTime();
+						if (remaining <= 0) {
+							fail(callback, ErrorCode.TIMEOUT, "Channel stayed full for " + timeoutMillis + " ms");
+							return false;
+						}
+						waitMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining));
+					}
+					try {
+						capacityLock.wait(waitMillis);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						fail(callback, ErrorCode.CHANNEL_FULL, "Interrupted while waiting for room on the channel");
+						return false;
+					}
+				}
+				return true;
+			} finally {
+				waitingCallers.decrementAndGet();
+			}
+		}
+	}
+	
+	private boolean tryAcquire(boolean counted) {
+		if (!isWritable()) {
+			return false;
+		} else if (!counted) {
+			return true;
+		}
+		int max = maxOutstandingCalls;
+		while (true) {
+			int calls = outstandingCalls.get();
+			if (max > 0 && calls >= max) {
+				return false;
+			} else if (outstandingCalls.compareAndSet(calls, calls + 1)) {
+				return true;
+			}
+		}
+	}
+	
+	private boolean forceAcquire(boolean counted) {
+		if (counted) {
+			outstandingCalls.incrementAndGet();
+		}
+		return true;
+	}
+	
+	/**
+	 * Returns false while more data is queued than the high water mark.
+	 * Calls on a channel that is down are let through, to be queued or
+	 * failed.
+	 */
+	private boolean isWritable() {
+		Connection connection = this.connection;
+		return connection == null || !connection.channel.isOpen() || connection.channel.isWritable();
+	}
+	
+	/**
+	 * Wakes up callers waiting for room, and runs the capacity listeners if
+	 * there is room now.
+	 */
+	private void capacityChanged() {
+		if (waitingCallers.get() > 0) {
+			synchronized (capacityLock) {
+				capacityLock.notifyAll();
+			}
+		}
+		if (!capacityListeners.isEmpty() && hasCapacity()) {
+			Runnable task;
+			while ((task = capacityListeners.poll()) != null) {
 				try {
-					callback.wait();
-				} catch (InterruptedException e) {
-					logger.warn("Interrupted while blocking", e);
-					/* Ignore */
+					task.run();
+				} catch (RuntimeException e) {
+					logger.warn("Capacity listener threw an exception", e);
+				}
+			}
+		}
+	}
+	
+	private static void fail(ResponsePrototypeRpcCallback callback, ErrorCode errorCode, String reason) {
+		if (callback != null) {
+			callback.fail(errorCode, reason);
+		}
+	}
+	
+	private Connection newConnection(Channel channel) {
+		Connection connection = new Connection(channel);
+		connection.handler.setWritabilityListener(new Runnable() {
+			public void run() {
+				capacityChanged();
+			}
+		});
+		// Calls waiting for room go ahead and fail, or get queued
+		channel.getCloseFuture().addListener(new ChannelFutureListener() {
+			public void operationComplete(ChannelFuture future) {
+				capacityChanged();
+			}
+		});
+		return connection;
+	}
+	
+	private <T extends Message> void send(final Connection connection, boolean isBlocking, MethodDescriptor method, 
+			Message request, final ResponsePrototypeRpcCallback callback, DefaultRpcFuture<T> future, long timeoutMillis) {
+		final int seqId = connection.handler.registerCallback(callback, timeoutMillis);
+		if (seqId < 0) {
+			callback.fail(ErrorCode.CHANNEL_FULL, "Too many calls pending on the connection");
+			return;
+		}
+		future.addListener(new RpcFutureListener<T>() {
+			public void operationComplete(RpcFuture<T> future) {
+				// Calls that were canceled, or failed here while the server
+				// still works on them, e.g. a stream that could not be read
+				if (!future.isSuccess() && connection.handler.removeCallback(seqId) && 
+						(callback instanceof StreamCallback || connection.handler.acceptsCancel())) {
+					// Tell the server to stop working on the call. Servers
+					// that take streams read cancels; others must say so.
+					connection.channel.write(RpcControl.newBuilder().setId(seqId).setCancel(true).build());
+				}
+			}
+		});
+		RpcRequestEnvelope rpcRequest = buildRequest(true, seqId, isBlocking, method, request);
+		rpcRequest.setPriority(priorityOf(callback.controller));
+		callback.sending(rpcRequest, connection.channel);
+		if (timeoutMillis > 0) {
+			// Lets the server skip the call once we have stopped waiting
+			rpcRequest.setTimeout((int) Math.min(timeoutMillis, Integer.MAX_VALUE), System.nanoTime());
+		}
+		connection.channel.write(rpcRequest).addListener(new ChannelFutureListener() {
+			public void operationComplete(ChannelFuture writeFuture) {
+				if (!writeFuture.isSuccess() && connection.handler.removeCallback(seqId)) {
+					callback.fail(ErrorCode.IO_ERROR, "Could not send request: " + writeFuture.getCause());
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Holds a call until the channel has reconnected, or fails it if the
+	 * channel does not reconnect or too many calls are held already.
+	 */
+	private synchronized <T extends Message> void queue(final QueuedCall<T> call) {
+		if (connection != null) {
+			// Reconnected in the meantime
+			call.send(connection);
+			return;
+		}
+		if (bootstrap == null || closed) {
+			call.callback.fail(ErrorCode.IO_ERROR, "Channel is closed");
+			return;
+		} else if (queuedCalls.size() >= maxQueuedCalls) {
+			call.callback.fail(ErrorCode.IO_ERROR, "Not connected, and " + queuedCalls.size() + " calls are queued already");
+			return;
+		}
+		queuedCalls.add(call);
+		if (call.timeoutMillis > 0) {
+			call.callback.setTimeout(timer.newTimeout(new TimerTask() {
+				public void run(Timeout timeout) {
+					if (dequeue(call)) {
+						call.callback.fail(ErrorCode.TIMEOUT, "Not connected within " + call.timeoutMillis + " ms");
+					}
+				}
+			}, call.timeoutMillis, TimeUnit.MILLISECONDS));
+		}
+		call.future.addListener(new RpcFutureListener<T>() {
+			public void operationComplete(RpcFuture<T> future) {
+				if (future.isCancelled()) {
+					dequeue(call);
 				}
 			}
+		});
+	}
+	
+	private synchronized boolean dequeue(QueuedCall<?> call) {
+		return queuedCalls.remove(call);
+	}
+	
+	private void watch(final Connection connection) {
+		connection.channel.getCloseFuture().addListener(new ChannelFutureListener() {
+			public void operationComplete(ChannelFuture future) {
+				connectionLost(connection);
+			}
+		});
+	}
+	
+	private synchronized void connectionLost(Connection lost) {
+		if (connection == lost) {
+			connection = null;
 		}
-		if (rpcCallback.getRpcResponse() != null && rpcCallback.getRpcResponse().hasErrorCode()) {
-			// TODO: should we only throw this if the error code matches the 
-			// case where the server call threw a ServiceException?
-			throw new ServiceException(rpcCallback.getRpcResponse().getErrorMessage());
+		if (!closed) {
+			logger.info("Connection to " + address + " lost, reconnecting");
+			scheduleReconnect();
 		}
-		return callback.getMessage();
 	}
 	
+	/**
+	 * Waits a random time between half and all of the current backoff,
+	 * then tries to connect.
+	 */
+	private synchronized void scheduleReconnect() {
+		backoffMillis = (backoffMillis == 0) ? minBackoffMillis : Math.min(maxBackoffMillis, backoffMillis * 2);
+		long delay = backoffMillis / 2 + ThreadLocalRandom.current().nextLong(backoffMillis / 2 + 1);
+		try {
+			timer.newTimeout(new TimerTask() {
+				public void run(Timeout timeout) {
+					reconnect();
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		} catch (IllegalStateException e) {
+			// The client was shut down
+			giveUp();
+		}
+	}
+	
+	private synchronized void reconnect() {
+		if (closed) {
+			return;
+		}
+		ChannelFuture connectFuture;
+		try {
+			connectFuture = bootstrap.connect(address);
+		} catch (RuntimeException e) {
+			logger.warn("Could not reconnect to " + address, e);
+			giveUp();
+			return;
+		}
+		connectFuture.addListener(new ChannelFutureListener() {
+			public void operationComplete(ChannelFuture future) {
+				if (future.isSuccess()) {
+					connected(newConnection(future.getChannel()));
+				} else {
+					logger.debug("Could not reconnect to " + address + ": " + future.getCause());
+					synchronized (NettyRpcChannel.this) {
+						if (!closed) {
+							scheduleReconnect();
+						}
+					}
+				}
+			}
+		});
+	}
+	
+	private synchronized void connected(Connection newConnection) {
+		if (closed) {
+			newConnection.channel.close();
+			return;
+		}
+		logger.info("Reconnected to " + address);
+		backoffMillis = 0;
+		// Queued calls go out before any new call, as new calls wait for the
+		// lock until the connection is published
+		QueuedCall<?> call;
+		while ((call = queuedCalls.poll()) != null) {
+			call.callback.cancelTimeout();
+			call.send(newConnection);
+		}
+		connection = newConnection;
+		watch(newConnection);
+	}
+	
+	private synchronized void giveUp() {
+		closed = true;
+		failQueuedCalls("Channel is closed");
+	}
+	
+	private void failQueuedCalls(String reason) {
+		QueuedCall<?> call;
+		while ((call = queuedCalls.poll()) != null) {
+			call.callback.cancelTimeout();
+			call.callback.fail(ErrorCode.IO_ERROR, reason);
+		}
+	}
+	
+	/**
+	 * Closes the connection and stops reconnecting. Calls still waiting for
+	 * a response fail with {@link ErrorCode#IO_ERROR}.
+	 */
 	public void close() {
-		channel.close().awaitUninterruptibly();
+		Connection connection;
+		synchronized (this) {
+			closed = true;
+			failQueuedCalls("Channel is closed");
+			connection = this.connection;
+		}
+		if (connection != null) {
+			connection.channel.close().awaitUninterruptibly();
+		}
 	}
 
-	private Message buildRequest(boolean hasSequence, int seqId, boolean isBlocking, MethodDescriptor method, Message request) {
-		RpcRequest.Builder requestBuilder = RpcRequest.newBuilder();
-		if (hasSequence) {
-			requestBuilder.setId(seqId);
+	private RpcRequestEnvelope buildRequest(boolean hasSequence, int seqId, boolean isBlocking, MethodDescriptor method, Message request) {
+		// The request message is serialized by the encoder, directly into the
+		// outbound frame
+		return new RpcRequestEnvelope(hasSequence, seqId,
+				method.getService().getFullName(), method.getName(),
+				isBlocking, request);
+	}
+	
+	private static class Connection {
+		
+		final Channel channel;
+		final NettyRpcClientChannelUpstreamHandler handler;
+		
+		Connection(Channel channel) {
+			this.channel = channel;
+			this.handler = channel.getPipeline().get(NettyRpcClientChannelUpstreamHandler.class);
+			if (handler == null) {
+				throw new IllegalArgumentException("Channel does not have proper handler");
+			}
 		}
-		return requestBuilder
-			.setIsBlockingService(isBlocking)
-			.setServiceName(method.getService().getFullName())
-			.setMethodName(method.getName())
-			.setRequestMessage(request.toByteString())
-			.build();
+		
 	}
 	
-	static class ResponsePrototypeRpcCallback implements RpcCallback<RpcResponse> {
+	/**
+	 * A call made while reconnecting.
+	 */
+	private class QueuedCall<T extends Message> {
 		
-		private final RpcController controller;
-		private final Message responsePrototype;
-		private final RpcCallback<Message> callback; 
+		final boolean isBlocking;
+		final MethodDescriptor method;
+		final Message request;
+		final ResponsePrototypeRpcCallback callback;
+		final DefaultRpcFuture<T> future;
+		final long timeoutMillis;
+		final long queuedNanos = System.nanoTime();
+		
+		QueuedCall(boolean isBlocking, MethodDescriptor method, Message request, 
+				ResponsePrototypeRpcCallback callback, DefaultRpcFuture<T> future, long timeoutMillis) {
+			this.isBlocking = isBlocking;
+			this.method = method;
+			this.request = request;
+			this.callback = callback;
+			this.future = future;
+			this.timeoutMillis = timeoutMillis;
+		}
+		
+		void send(Connection connection) {
+			if (future.isDone()) {
+				return;
+			}
+			long remainingMillis = timeoutMillis;
+			if (timeoutMillis > 0) {
+				// Time spent queued counts against the timeout
+				remainingMillis = Math.max(1, timeoutMillis - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - queuedNanos));
+			}
+			NettyRpcChannel.this.send(connection, isBlocking, method, request, callback, future, remainingMillis);
+		}
 		
-		private RpcResponse rpcResponse;
+	}
+	
+	/**
+	 * Completes the future of a call with the parsed response, or fails it
+	 * with a ServiceException.
+	 */
+	static class ResponsePrototypeRpcCallback implements RpcCallback<RpcResponseEnvelope> {
 		
-		public ResponsePrototypeRpcCallback(RpcController controller, Message responsePrototype, RpcCallback<Message> callback) {
+		private final RpcController controller;
+		final Message responsePrototype;
+		final DefaultRpcFuture<?> future; 
+		private volatile Timeout timeout;
+		// Null when the call is not measured
+		volatile RpcMethodMetrics metrics;
+		// Why the call failed, if known
+		volatile ErrorCode errorCode;
+		
+		public ResponsePrototypeRpcCallback(RpcController controller, Message responsePrototype, DefaultRpcFuture<?> future) {
 			if (responsePrototype == null) {
 				throw new IllegalArgumentException("Must provide response prototype");
-			} else if (callback == null) {
-				throw new IllegalArgumentException("Must provide callback");
+			} else if (future == null) {
+				throw new IllegalArgumentException("Must provide future");
 			}
 			this.controller = controller;
 			this.responsePrototype = responsePrototype;
-			this.callback = callback;
+			this.future = future;
+		}
+		
+		void setTimeout(Timeout timeout) {
+			this.timeout = timeout;
+		}
+		
+		void cancelTimeout() {
+			Timeout timeout = this.timeout;
+			if (timeout != null) {
+				timeout.cancel();
+			}
+		}
+		
+		/**
+		 * Returns true if the response completes the call.
+		 */
+		boolean isLast(RpcResponseEnvelope response) {
+			return true;
+		}
+		
+		/**
+		 * Called with each response envelope the server sends for the call,
+		 * before it is run.
+		 */
+		void received(RpcResponseEnvelope response) {
+			RpcMethodMetrics metrics = this.metrics;
+			if (metrics != null) {
+				metrics.addResponseBytes(RpcMethodMetrics.sizeOf(response.getPayload()));
+			}
+		}
+		
+		/**
+		 * Called with the request of the call just before it is written.
+		 */
+		void sending(RpcRequestEnvelope request, Channel channel) {
+		}
+		
+		/**
+		 * Called with the control messages the server sends about the call.
+		 */
+		void control(RpcControl control) {
+		}
+		
+		/**
+		 * Fails the call without a response from the server.
+		 */
+		void fail(ErrorCode errorCode, String reason) {
+			setControllerFailed(errorCode, reason);
+			future.setFailure(new ServiceException(reason));
 		}
 		
-		public void run(RpcResponse message) {
-			rpcResponse = message;
+		public void run(RpcResponseEnvelope message) {
+			if (message != null && message.hasErrorCode()) {
+				setControllerFailed(message.getErrorCode(), message.getErrorMessage());
+			}
+			if (message == null || message.getPayload() == null) {
+				String errorMessage = (message == null) ? null : message.getErrorMessage();
+				future.setFailure(new ServiceException(errorMessage));
+				return;
+			}
 			try {
-				Message response = (message == null || !message.hasResponseMessage()) ? 
-						null : 
-						responsePrototype.newBuilderForType().mergeFrom(message.getResponseMessage()).build();
-				callback.run(response);
+				future.setSuccess(NettyRpcEnvelopeDecoder.parseMessage(responsePrototype, message.getPayload()));
 			} catch (InvalidProtocolBufferException e) {
 				logger.warn("Could not marshall into response", e);
-				if (controller != null) {
-					controller.setFailed("Received invalid response type from server");
-				}
-				callback.run(null);
+				setControllerFailed(ErrorCode.BAD_RESPONSE_PROTO, "Received invalid response type from server");
+				future.setFailure(new ServiceException("Received invalid response type from server"));
 			}
 		}
 		
@@ -148,31 +932,141 @@ public class NettyRpcChannel implements RpcChannel, BlockingRpcChannel {
 			return controller;
 		}
 		
-		public RpcResponse getRpcResponse() {
-			return rpcResponse;
+		private void setControllerFailed(ErrorCode errorCode, String reason) {
+			this.errorCode = errorCode;
+			if (controller instanceof NettyRpcController) {
+				((NettyRpcController) controller).setFailed(errorCode, reason);
+			} else if (controller != null) {
+				controller.setFailed(reason);
+			}
 		}
 		
 	}
 	
-	private static class BlockingRpcCallback implements RpcCallback<Message> {
-
-		private boolean done = false;
-		private Message message;
+	/**
+	 * Delivers the messages of a response stream to a listener, and gives
+	 * the server more credit as they are consumed: once half a window has
+	 * been consumed, so that the server rarely runs dry.
+	 */
+	static class StreamCallback<T extends Message> extends ResponsePrototypeRpcCallback {
+		
+		private final RpcStreamListener<T> listener;
+		private final int window;
+		private final boolean creditOnDelivery;
+		private final AtomicInteger consumed = new AtomicInteger();
+		private volatile Channel channel;
+		private volatile int seqId;
 		
-		public void run(Message message) {
-			this.message = message;
-			synchronized(this) {
-				done = true;
-				notify();
+		StreamCallback(RpcController controller, T responsePrototype, DefaultRpcFuture<Message> future, 
+				final RpcStreamListener<T> listener, int window, boolean creditOnDelivery) {
+			super(controller, responsePrototype, future);
+			this.listener = listener;
+			this.window = window;
+			this.creditOnDelivery = creditOnDelivery;
+			future.addListener(new RpcFutureListener<Message>() {
+				public void operationComplete(RpcFuture<Message> future) {
+					if (future.isSuccess()) {
+						listener.onCompleted();
+					} else if (future.isCancelled()) {
+						listener.onFailed(new ServiceException("Stream canceled"));
+					} else if (future.getCause() instanceof ServiceException) {
+						listener.onFailed((ServiceException) future.getCause());
+					} else {
+						listener.onFailed(new ServiceException(String.valueOf(future.getCause())));
+					}
+				}
+			});
+		}
+		
+		@Override
+		boolean isLast(RpcResponseEnvelope response) {
+			return response.isEndOfStream() || response.hasErrorCode();
+		}
+		
+		@Override
+		void sending(RpcRequestEnvelope request, Channel channel) {
+			request.setStreamWindow(window);
+			this.seqId = request.getId();
+			this.channel = channel;
+		}
+		
+		@Override
+		@SuppressWarnings("unchecked")
+		public void run(RpcResponseEnvelope message) {
+			if (message == null || message.hasErrorCode()) {
+				super.run(message);
+				return;
+			} else if (message.isEndOfStream()) {
+				future.setSuccess(null);
+				return;
+			} else if (future.isDone() || message.getPayload() == null) {
+				return;
+			}
+			T response;
+			try {
+				response = (T) NettyRpcEnvelopeDecoder.parseMessage(responsePrototype, message.getPayload());
+			} catch (InvalidProtocolBufferException e) {
+				logger.warn("Could not marshall into response", e);
+				// Also cancels the stream on the server
+				fail(ErrorCode.BAD_RESPONSE_PROTO, "Received invalid response type from server");
+				return;
+			}
+			try {
+				listener.onMessage(response);
+			} catch (RuntimeException e) {
+				logger.warn("Stream listener threw an exception", e);
+			}
+			if (creditOnDelivery) {
+				consumed(1);
 			}
 		}
 		
-		public Message getMessage() {
-			return message;
+		/**
+		 * Counts messages taken off the stream.
+		 */
+		void consumed(int messages) {
+			if (consumed.addAndGet(messages) < Math.max(1, window / 2)) {
+				return;
+			}
+			int credit = consumed.getAndSet(0);
+			Channel channel = this.channel;
+			if (credit > 0 && channel != null && !future.isDone()) {
+				channel.write(RpcControl.newBuilder().setId(seqId).setStreamCredit(credit).build());
+			}
+		}
+		
+		void cancel() {
+			future.cancel(false);
 		}
 		
-		public boolean isDone() {
-			return done;
+	}
+	
+	/**
+	 * A response stream whose call also streams its requests, which are sent
+	 * as the server gives credit for them.
+	 */
+	static class BidiStreamCallback<T extends Message> extends StreamCallback<T> {
+		
+		final NettyRpcClientStream requests;
+		
+		BidiStreamCallback(RpcController controller, T responsePrototype, DefaultRpcFuture<Message> future, 
+				RpcStreamListener<T> listener, int window) {
+			super(controller, responsePrototype, future, listener, window, true);
+			this.requests = new NettyRpcClientStream(this, future);
+		}
+		
+		@Override
+		void sending(RpcRequestEnvelope request, Channel channel) {
+			super.sending(request, channel);
+			request.setClientStream(true);
+			requests.start(channel, request.getId());
+		}
+		
+		@Override
+		void control(RpcControl control) {
+			if (control.hasStreamCredit()) {
+				requests.addCredit(control.getStreamCredit());
+			}
 		}
 		
 	}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2009 Stephen Tu <stephen_tu@berkeley.edu>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.protobuf.netty;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.protobuf.BlockingRpcChannel;
+import com.google.protobuf.Message;
+import com.google.protobuf.RpcCallback;
+import com.google.protobuf.RpcChannel;
+import com.google.protobuf.RpcController;
+import com.google.protobuf.ServiceException;
+import com.google.protobuf.Descriptors.MethodDescriptor;
+
+/**
+ * Spreads calls over several connections to the same server. Each call goes
+ * to the live connection with the fewest outstanding calls.
+ */
+public class NettyRpcChannelPool implements RpcChannel, BlockingRpcChannel {
+
+	private final NettyRpcChannel[] channels;
+	
+	// Where the search for the least loaded channel starts, so that ties do
+	// not always go to the first connection
+	private final AtomicInteger next = new AtomicInteger();
+	
+	public NettyRpcChannelPool(List<NettyRpcChannel> channels) {
+		if (channels.isEmpty()) {
+			throw new IllegalArgumentException("Must provide at least one channel");
+		}
+		this.channels = channels.toArray(new NettyRpcChannel[channels.size()]);
+	}
+	
+	public int size() {
+		return channels.length;
+	}
+	
+	/**
+	 * Returns the connection the next call would go to.
+	 */
+	public NettyRpcChannel select() {
+		int start = (next.getAndIncrement() & Integer.MAX_VALUE) % channels.length;
+		NettyRpcChannel best = null;
+		int bestCalls = Integer.MAX_VALUE;
+		for (int i = 0; i < channels.length; i++) {
+			NettyRpcChannel channel = channels[(start + i) % channels.length];
+			if (!channel.isConnected()) {
+				continue;
+			}
+			int calls = channel.getOutstandingCalls();
+			if (calls < bestCalls) {
+				best = channel;
+				bestCalls = calls;
+				if (calls == 0) {
+					break;
+				}
+			}
+		}
+		// No connection is up, the channel queues or fails the call
+		return (best != null) ? best : channels[start];
+	}
+	
+	/**
+	 * @see NettyRpcChannel#setDefaultTimeout(long, TimeUnit)
+	 */
+	public void setDefaultTimeout(long timeout, TimeUnit unit) {
+		for (NettyRpcChannel channel : channels) {
+			channel.setDefaultTimeout(timeout, unit);
+		}
+	}
+	
+	public RpcController newRpcController() {
+		return new NettyRpcController();
+	}
+	
+	public void callMethod(MethodDescriptor method, RpcController controller,
+			Message request, Message responsePrototype, RpcCallback<Message> done) {
+		select().callMethod(method, controller, request, responsePrototype, done);
+	}
+	
+	/**
+	 * @see NettyRpcChannel#callMethod(MethodDescriptor, RpcController, Message, Message)
+	 */
+	public <T extends Message> RpcFuture<T> callMethod(MethodDescriptor method, 
+			RpcController controller, Message request, T responsePrototype) {
+		return select().callMethod(method, controller, request, responsePrototype);
+	}
+	
+	/**
+	 * @see NettyRpcChannel#callBlockingMethodAsync(MethodDescriptor, RpcController, Message, Message)
+	 */
+	public <T extends Message> RpcFuture<T> callBlockingMethodAsync(MethodDescriptor method, 
+			RpcController controller, Message request, T responsePrototype) {
+		return select().callBlockingMethodAsync(method, controller, request, responsePrototype);
+	}
+	
+	public Message callBlockingMethod(MethodDescriptor method,
+			RpcController controller, Message request, Message responsePrototype)
+			throws ServiceException {
+		return select().callBlockingMethod(method, controller, request, responsePrototype);
+	}
+	
+	public void close() {
+		for (NettyRpcChannel channel : channels) {
+			channel.close();
+		}
+	}
+	
+}
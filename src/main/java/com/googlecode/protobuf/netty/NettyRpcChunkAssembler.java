@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2009 Stephen Tu <stephen_tu@berkeley.edu>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.protobuf.netty;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipelineCoverage;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+
+import com.googlecode.protobuf.netty.NettyRpcProto.ErrorCode;
+import com.googlecode.protobuf.netty.NettyRpcProto.RpcControl;
+
+/**
+ * Puts frames that {@link NettyRpcChunker} sent as RpcChunk pieces back
+ * together. The pieces are kept as slices of the frames they arrived in, and
+ * once the last piece is in, the whole frame is passed on as a composite
+ * buffer without being copied.
+ * <p>
+ * The pieces held for one connection may take up at most a given number of
+ * bytes. A frame that would go over the limit is dropped, and its call fails
+ * with {@link ErrorCode#MESSAGE_TOO_LARGE}. A server answers the call with
+ * that error, and stops the call if it is already running. A client fails
+ * the call and cancels it on the server.
+ */
+@ChannelPipelineCoverage("one")
+class NettyRpcChunkAssembler extends SimpleChannelUpstreamHandler {
+
+	private static final Logger logger = Logger.getLogger(NettyRpcChunkAssembler.class);
+	
+	static final long DEFAULT_MAX_REASSEMBLY_BYTES = 256L * 1024 * 1024;
+	
+	static final class Chunk {
+		
+		final int transfer;
+		final ChannelBuffer data;
+		final boolean last;
+		
+		Chunk(int transfer, ChannelBuffer data, boolean last) {
+			this.transfer = transfer;
+			this.data = data;
+			this.last = last;
+		}
+		
+	}
+	
+	private static class Partial {
+		
+		// The call the frame belongs to, or -1 if it has none
+		final int callId;
+		final List<ChannelBuffer> parts = new ArrayList<ChannelBuffer>();
+		long size;
+		boolean dropped;
+		
+		Partial(int callId) {
+			this.callId = callId;
+		}
+		
+	}
+	
+	private final long maxBytes;
+	private final boolean server;
+	
+	// Only used by the I/O thread of the channel
+	private final Map<Integer, Partial> partials = new HashMap<Integer, Partial>();
+	private long heldBytes;
+	
+	/**
+	 * @param maxBytes how many bytes of unfinished frames may be held
+	 * @param server true on the side that receives requests
+	 */
+	NettyRpcChunkAssembler(long maxBytes, boolean server) {
+		this.maxBytes = maxBytes;
+		this.server = server;
+	}
+	
+	@Override
+	public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+		Object message = e.getMessage();
+		if (!(message instanceof ChannelBuffer) || !NettyRpcEnvelopeDecoder.isChunk((ChannelBuffer) message)) {
+			super.messageReceived(ctx, e);
+			return;
+		}
+		Chunk chunk = NettyRpcEnvelopeDecoder.decodeChunk((ChannelBuffer) message);
+		Partial partial = partials.get(chunk.transfer);
+		if (partial == null) {
+			partial = new Partial(NettyRpcEnvelopeDecoder.peekCallId(chunk.data));
+			partials.put(chunk.transfer, partial);
+		}
+		if (!partial.dropped) {
+			int length = chunk.data.readableBytes();
+			if (heldBytes + length > maxBytes) {
+				drop(ctx, e, partial);
+			} else {
+				partial.parts.add(chunk.data);
+				partial.size += length;
+				heldBytes += length;
+			}
+		}
+		if (chunk.last) {
+			partials.remove(chunk.transfer);
+			if (!partial.dropped) {
+				heldBytes -= partial.size;
+				ChannelBuffer frame = ChannelBuffers.wrappedBuffer(
+						partial.parts.toArray(new ChannelBuffer[partial.parts.size()]));
+				Channels.fireMessageReceived(ctx, frame, e.getRemoteAddress());
+			}
+		}
+	}
+	
+	@Override
+	public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+		partials.clear();
+		heldBytes = 0;
+		super.channelClosed(ctx, e);
+	}
+	
+	private void drop(ChannelHandlerContext ctx, MessageEvent e, Partial partial) throws Exception {
+		heldBytes -= partial.size;
+		partial.parts.clear();
+		partial.size = 0;
+		partial.dropped = true;
+		
+		int id = partial.callId;
+		String reason = "Message is larger than the " + maxBytes + " bytes the " + 
+				(server ? "server" : "client") + " can reassemble";
+		if (id < 0) {
+			logger.warn("Dropping a frame with no call ID: " + reason);
+			return;
+		}
+		logger.warn("Failing call " + id + ": " + reason);
+		RpcControl cancel = RpcControl.newBuilder().setId(id).setCancel(true).build();
+		RpcResponseEnvelope response = new RpcResponseEnvelope(id, ErrorCode.MESSAGE_TOO_LARGE, reason);
+		if (server) {
+			// Stops the call if it has started, as for a request stream
+			Channels.fireMessageReceived(ctx, cancel, e.getRemoteAddress());
+			Channels.write(ctx, Channels.future(e.getChannel()), NettyRpcEnvelopeEncoder.encodeResponse(response));
+		} else {
+			Channels.write(ctx, Channels.future(e.getChannel()), NettyRpcEnvelopeEncoder.encodeMessage(cancel));
+			Channels.fireMessageReceived(ctx, response, e.getRemoteAddress());
+		}
+	}
+	
+}
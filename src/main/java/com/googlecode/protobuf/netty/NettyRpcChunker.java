@@ -0,0 +1,335 @@
+/*
+ * Copyright (c) 2009 Stephen Tu <stephen_tu@berkeley.edu>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.protobuf.netty;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipelineCoverage;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.DownstreamMessageEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelHandler;
+
+import com.googlecode.protobuf.netty.NettyRpcProto.RpcControl;
+
+/**
+ * Sends frames larger than the chunk size as a series of RpcChunk frames,
+ * so that one large message does not hold up the frames of all other calls
+ * on the connection until its last byte is written.
+ * <p>
+ * Only {@link #MAX_CHUNKS_IN_FLIGHT} chunks are handed to the transport at a
+ * time, and the next one is written once an earlier one has been, taking
+ * turns between the frames being sent. Frames of other calls go straight
+ * out in between, so they wait for at most a few chunks. Frames of a call
+ * whose earlier frame is still being sent in chunks wait for it, so that
+ * each call's frames keep their order. The write of a chunked frame
+ * completes when its last chunk has been written.
+ * <p>
+ * The negotiation works like that of {@link NettyRpcCompressionHandler}: the
+ * client sends an RpcControl with accept_chunks set, and the server answers
+ * it. A side only sends chunks once its peer has said it can reassemble
+ * them, with {@link NettyRpcChunkAssembler}.
+ * <p>
+ * The lock of this handler is never held while writing, as write futures
+ * may complete on the calling thread while the {@link NettyRpcWriteCoalescer}
+ * lock is held.
+ */
+@ChannelPipelineCoverage("one")
+class NettyRpcChunker extends SimpleChannelHandler {
+
+	private static final Logger logger = Logger.getLogger(NettyRpcChunker.class);
+	
+	static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+	
+	// Leaves room for the call ID in the first chunk
+	static final int MIN_CHUNK_SIZE = 1024;
+	
+	// One chunk being written and one waiting keep the socket busy
+	static final int MAX_CHUNKS_IN_FLIGHT = 2;
+	
+	private static class Transfer {
+		
+		final int id;
+		// The call the frame belongs to, or -1 if it has none
+		final int callId;
+		final MessageEvent event;
+		// The part of the frame not sent yet, without its length prefix
+		final ChannelBuffer body;
+		// Later frames of the same call, which wait for this one
+		List<MessageEvent> followers = new ArrayList<MessageEvent>();
+		
+		Transfer(int id, int callId, MessageEvent event, ChannelBuffer body) {
+			this.id = id;
+			this.callId = callId;
+			this.event = event;
+			this.body = body;
+		}
+		
+	}
+	
+	private final int chunkSize;
+	private final boolean client;
+	private volatile boolean peerAccepts;
+	
+	// All guarded by this
+	private final Map<Integer, Transfer> callTransfers = new HashMap<Integer, Transfer>();
+	// Transfers with chunks left to send, in turn
+	private final LinkedList<Transfer> sending = new LinkedList<Transfer>();
+	// Sent transfers whose followers are being written
+	private final List<Transfer> releasing = new ArrayList<Transfer>();
+	private int nextTransfer;
+	private int chunksInFlight;
+	private boolean pumping;
+	private boolean closed;
+	
+	/**
+	 * @param chunkSize the largest frame body sent in one piece, or 0 to
+	 * only take part in the negotiation
+	 * @param client true on the side that opens the negotiation
+	 */
+	NettyRpcChunker(int chunkSize, boolean client) {
+		this.chunkSize = chunkSize;
+		this.client = client;
+	}
+	
+	@Override
+	public void channelConnected(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+		if (client) {
+			Channels.write(ctx, Channels.future(e.getChannel()), NettyRpcEnvelopeEncoder.encodeMessage(newAccept()));
+		}
+		super.channelConnected(ctx, e);
+	}
+	
+	@Override
+	public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+		Object message = e.getMessage();
+		if (message instanceof RpcControl && ((RpcControl) message).getAcceptChunks()) {
+			peerAccepts = true;
+			if (!client) {
+				Channels.write(ctx, Channels.future(e.getChannel()), NettyRpcEnvelopeEncoder.encodeMessage(newAccept()));
+			}
+			logger.debug("Peer accepts chunks" + (chunkSize > 0 ? ", sending chunks of " + chunkSize + " bytes" : ""));
+			return;
+		}
+		super.messageReceived(ctx, e);
+	}
+	
+	@Override
+	public void writeRequested(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+		if (!(e.getMessage() instanceof ChannelBuffer)) {
+			ctx.sendDownstream(e);
+			return;
+		}
+		boolean large = isLarge(e);
+		synchronized (this) {
+			if (large && closed) {
+				// Fails as any other write would
+				large = false;
+			} else if (large || !callTransfers.isEmpty()) {
+				int callId = NettyRpcEnvelopeDecoder.peekCallId(body(e));
+				Transfer current = (callId < 0) ? null : callTransfers.get(callId);
+				if (current != null) {
+					current.followers.add(e);
+					return;
+				}
+				if (large) {
+					start(e, callId);
+				}
+			}
+		}
+		if (large) {
+			pump(ctx);
+		} else {
+			ctx.sendDownstream(e);
+		}
+	}
+	
+	@Override
+	public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+		failAll(new ClosedChannelException());
+		super.channelClosed(ctx, e);
+	}
+	
+	private static RpcControl newAccept() {
+		return RpcControl.newBuilder().setId(0).setAcceptChunks(true).build();
+	}
+	
+	private static ChannelBuffer body(MessageEvent e) {
+		ChannelBuffer frame = (ChannelBuffer) e.getMessage();
+		return frame.slice(frame.readerIndex() + NettyRpcEnvelopeEncoder.LENGTH_FIELD_LENGTH, 
+				frame.readableBytes() - NettyRpcEnvelopeEncoder.LENGTH_FIELD_LENGTH);
+	}
+	
+	private boolean isLarge(MessageEvent e) {
+		return chunkSize > 0 && peerAccepts && e.getMessage() instanceof ChannelBuffer && 
+				((ChannelBuffer) e.getMessage()).readableBytes() > NettyRpcEnvelopeEncoder.LENGTH_FIELD_LENGTH + chunkSize;
+	}
+	
+	private Transfer start(MessageEvent e, int callId) {
+		Transfer transfer = new Transfer(nextTransfer++, callId, e, body(e));
+		if (callId >= 0) {
+			callTransfers.put(callId, transfer);
+		}
+		sending.add(transfer);
+		return transfer;
+	}
+	
+	/**
+	 * Writes what can be written now. Only one thread does so at a time, which
+	 * keeps the chunks and followers in order; the others leave the work to it.
+	 */
+	private void pump(ChannelHandlerContext ctx) throws IOException {
+		synchronized (this) {
+			if (pumping) {
+				return;
+			}
+			pumping = true;
+		}
+		List<MessageEvent> writes = new ArrayList<MessageEvent>();
+		boolean more = true;
+		try {
+			while (more) {
+				synchronized (this) {
+					more = nextWrites(ctx, writes);
+					pumping = more;
+				}
+				for (MessageEvent write : writes) {
+					ctx.sendDownstream(write);
+				}
+				writes.clear();
+			}
+		} finally {
+			if (more) {
+				synchronized (this) {
+					pumping = false;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Picks the next frames to write: the followers of sent transfers, or
+	 * else one chunk of the transfer whose turn it is. Called with the lock
+	 * held.
+	 * 
+	 * @return false if there is nothing to write now
+	 */
+	private boolean nextWrites(ChannelHandlerContext ctx, List<MessageEvent> writes) throws IOException {
+		for (Iterator<Transfer> it = releasing.iterator(); it.hasNext();) {
+			Transfer transfer = it.next();
+			if (transfer.followers.isEmpty()) {
+				// Only removed once all followers are written, so that no
+				// later frame of the call can pass them
+				it.remove();
+				callTransfers.remove(transfer.callId);
+				continue;
+			}
+			List<MessageEvent> followers = transfer.followers;
+			transfer.followers = new ArrayList<MessageEvent>();
+			for (int i = 0; i < followers.size(); i++) {
+				MessageEvent follower = followers.get(i);
+				if (isLarge(follower) && !closed) {
+					it.remove();
+					Transfer next = start(follower, transfer.callId);
+					next.followers.addAll(followers.subList(i + 1, followers.size()));
+					break;
+				}
+				writes.add(follower);
+			}
+		}
+		if (!writes.isEmpty()) {
+			return true;
+		}
+		if (chunksInFlight >= MAX_CHUNKS_IN_FLIGHT || sending.isEmpty()) {
+			return false;
+		}
+		final Transfer transfer = sending.removeFirst();
+		ChannelBuffer data = transfer.body.readSlice(Math.min(chunkSize, transfer.body.readableBytes()));
+		final boolean last = !transfer.body.readable();
+		if (last) {
+			if (transfer.callId >= 0) {
+				releasing.add(transfer);
+			}
+		} else {
+			sending.addLast(transfer);
+		}
+		chunksInFlight++;
+		
+		ChannelFuture future = Channels.future(ctx.getChannel());
+		future.addListener(new ChannelFutureListener() {
+			public void operationComplete(ChannelFuture future) throws Exception {
+				synchronized (NettyRpcChunker.this) {
+					chunksInFlight--;
+				}
+				if (!future.isSuccess()) {
+					transfer.event.getFuture().setFailure(future.getCause());
+					failAll(future.getCause());
+					return;
+				}
+				if (last) {
+					transfer.event.getFuture().setSuccess();
+				}
+				pump(ctx);
+			}
+		});
+		writes.add(new DownstreamMessageEvent(ctx.getChannel(), future, 
+				NettyRpcEnvelopeEncoder.encodeChunk(transfer.id, data, last), transfer.event.getRemoteAddress()));
+		return true;
+	}
+	
+	/**
+	 * Fails the writes of all frames not yet handed to the transport.
+	 */
+	private void failAll(Throwable cause) {
+		List<MessageEvent> failed = new ArrayList<MessageEvent>();
+		synchronized (this) {
+			closed = true;
+			for (Transfer transfer : sending) {
+				failed.add(transfer.event);
+			}
+			// Only transfers of a call have followers
+			for (Transfer transfer : callTransfers.values()) {
+				failed.addAll(transfer.followers);
+			}
+			sending.clear();
+			callTransfers.clear();
+			releasing.clear();
+		}
+		for (MessageEvent e : failed) {
+			e.getFuture().setFailure(cause);
+		}
+	}
+	
+}
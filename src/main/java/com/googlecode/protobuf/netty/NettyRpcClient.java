@@ -22,38 +22,258 @@
 package com.googlecode.protobuf.netty;
 
 import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import org.jboss.netty.bootstrap.ClientBootstrap;
 import org.jboss.netty.channel.ChannelFactory;
-import org.jboss.netty.channel.ChannelPipelineFactory;
 import org.jboss.netty.channel.ChannelUpstreamHandler;
+import org.jboss.netty.util.HashedWheelTimer;
+
+import com.googlecode.protobuf.netty.NettyRpcProto.Compression;
+import com.googlecode.protobuf.netty.NettyRpcProto.ErrorCode;
 
 public class NettyRpcClient {
 
 	private final ClientBootstrap bootstrap;
 
+	// Expires calls that time out and schedules reconnects. 10ms ticks are
+	// fine grained enough for both; the timer thread only starts once a
+	// timeout is scheduled.
+	private final HashedWheelTimer timer = new HashedWheelTimer(10, TimeUnit.MILLISECONDS);
+	
 	private final ChannelUpstreamHandlerFactory handlerFactory = new ChannelUpstreamHandlerFactory() {
 		public ChannelUpstreamHandler getChannelUpstreamHandler() {
-			return new NettyRpcClientChannelUpstreamHandler();
+			return new NettyRpcClientChannelUpstreamHandler(timer, cancelCalls);
 		}
 	};
 	
-	private final ChannelPipelineFactory pipelineFactory = new NettyRpcPipelineFactory(
+	private volatile long defaultTimeoutMillis;
+	private volatile boolean cancelCalls;
+	private volatile boolean reconnect = true;
+	private volatile long minBackoffMillis = 10;
+	private volatile long maxBackoffMillis = 1000;
+	private volatile int maxQueuedCalls = 1024;
+	private volatile int maxOutstandingCalls;
+	private volatile NettyRpcChannel.OverloadPolicy overloadPolicy = NettyRpcChannel.OverloadPolicy.BLOCK;
+	
+	private final NettyRpcMetrics metrics = new NettyRpcMetrics("Client");
+	
+	private final NettyRpcPipelineFactory pipelineFactory = new NettyRpcPipelineFactory(
 			handlerFactory, 
-			NettyRpcProto.RpcResponse.getDefaultInstance());
+			NettyRpcEnvelopeDecoder.forResponses());
 	
 	public NettyRpcClient(ChannelFactory channelFactory) {
 		bootstrap = new ClientBootstrap(channelFactory);
 		bootstrap.setPipelineFactory(pipelineFactory);
+		// Small frames such as stream credit must not wait for delayed ACKs;
+		// the write coalescer does the batching
+		bootstrap.setOption("tcpNoDelay", true);
+	}
+	
+	/**
+	 * Holds requests for up to the given time so that calls made close
+	 * together from different threads go out in a single write. A zero
+	 * window (the default) writes each request immediately. Only affects
+	 * connections made after the call.
+	 */
+	public void setWriteCoalescingWindow(long window, TimeUnit unit) {
+		pipelineFactory.setWriteWindow(unit.toNanos(window));
+	}
+	
+	/**
+	 * Sends requests that are queued at the same time as a single RpcBatch
+	 * frame, so the server decodes and dispatches them in one pass. Only use
+	 * this with servers that understand RpcBatch. Works best together with
+	 * {@link #setWriteCoalescingWindow(long, TimeUnit)}. Only affects
+	 * connections made after the call.
+	 */
+	public void setBatchRequests(boolean batchRequests) {
+		pipelineFactory.setBatchWrites(batchRequests);
+	}
+	
+	/**
+	 * Compresses request messages of at least <code>minBytes</code> with the
+	 * given codec, on connections to servers that can decode it. Also lets
+	 * the server compress its responses, if it is set up to. Pass
+	 * {@link Compression#NONE} to turn compression off (the default). Only
+	 * affects connections made after the call.
+	 */
+	public void setCompression(Compression codec, int minBytes) {
+		if (minBytes < 0) {
+			throw new IllegalArgumentException("minBytes must not be negative");
+		}
+		pipelineFactory.setCompression(codec, minBytes);
+	}
+	
+	/**
+	 * Sends request frames larger than <code>bytes</code> in pieces of that
+	 * size, interleaved with the frames of other calls, so that a large
+	 * request does not hold up the calls behind it. Also lets the server do
+	 * the same with its responses. Pieces are only sent to servers that can
+	 * reassemble them. Pass 0 to turn chunking off (the default). Only
+	 * affects connections made after the call.
+	 */
+	public void setChunkSize(int bytes) {
+		if (bytes != 0 && bytes < NettyRpcChunker.MIN_CHUNK_SIZE) {
+			throw new IllegalArgumentException("bytes must be 0 or at least " + NettyRpcChunker.MIN_CHUNK_SIZE);
+		}
+		pipelineFactory.setChunkSize(bytes);
+	}
+	
+	/**
+	 * Tells the server to stop working on calls that are canceled, time out
+	 * or fail on the client, on connections to servers that act on cancel.
+	 * Off by default, as asking the server sends a message that servers
+	 * which predate cancellation cannot read. Streaming calls are canceled
+	 * on the server either way. Only affects connections made after the
+	 * call.
+	 */
+	public void setCancelCalls(boolean cancelCalls) {
+		this.cancelCalls = cancelCalls;
+	}
+	
+	/**
+	 * Limits how many bytes of responses that arrive in pieces are held for
+	 * each connection until their last piece arrives (256 MB by default).
+	 * Calls whose response would go over fail with
+	 * {@link ErrorCode#MESSAGE_TOO_LARGE}. Also limits the size a compressed
+	 * response may expand to. Only affects connections made after the call.
+	 */
+	public void setMaxReassemblyBytes(long bytes) {
+		if (bytes < 1) {
+			throw new IllegalArgumentException("bytes must be positive");
+		}
+		pipelineFactory.setMaxReassemblyBytes(bytes);
+	}
+	
+	/**
+	 * Sets the default call timeout of channels connected after this call.
+	 * 
+	 * @see NettyRpcChannel#setDefaultTimeout(long, TimeUnit)
+	 */
+	public void setDefaultTimeout(long timeout, TimeUnit unit) {
+		this.defaultTimeoutMillis = unit.toMillis(timeout);
+	}
+	
+	/**
+	 * Sets whether channels connected after this call reconnect by
+	 * themselves when their connection is lost. On by default.
+	 */
+	public void setReconnect(boolean reconnect) {
+		this.reconnect = reconnect;
+	}
+	
+	/**
+	 * @see NettyRpcChannel#setReconnectBackoff(long, long, TimeUnit)
+	 */
+	public void setReconnectBackoff(long min, long max, TimeUnit unit) {
+		if (min < 1 || max < min) {
+			throw new IllegalArgumentException("Need 0 < min <= max");
+		}
+		this.minBackoffMillis = unit.toMillis(min);
+		this.maxBackoffMillis = unit.toMillis(max);
+	}
+	
+	/**
+	 * @see NettyRpcChannel#setMaxQueuedCalls(int)
+	 */
+	public void setMaxQueuedCalls(int maxQueuedCalls) {
+		this.maxQueuedCalls = maxQueuedCalls;
+	}
+	
+	/**
+	 * @see NettyRpcChannel#setMaxOutstandingCalls(int)
+	 */
+	public void setMaxOutstandingCalls(int maxOutstandingCalls) {
+		this.maxOutstandingCalls = maxOutstandingCalls;
+	}
+	
+	/**
+	 * @see NettyRpcChannel#setOverloadPolicy(NettyRpcChannel.OverloadPolicy)
+	 */
+	public void setOverloadPolicy(NettyRpcChannel.OverloadPolicy overloadPolicy) {
+		if (overloadPolicy == null) {
+			throw new NullPointerException("overloadPolicy");
+		}
+		this.overloadPolicy = overloadPolicy;
+	}
+	
+	/**
+	 * Sets how much data may be queued for writing on a connection before
+	 * calls find the channel full (<code>high</code>), and how far it has to
+	 * drain before they go ahead again (<code>low</code>). Netty's defaults
+	 * are 64 KB and 32 KB.
+	 */
+	public void setWriteBufferWaterMarks(int low, int high) {
+		if (low < 0 || high < low) {
+			throw new IllegalArgumentException("Need 0 <= low <= high");
+		}
+		bootstrap.setOption("writeBufferHighWaterMark", high);
+		bootstrap.setOption("writeBufferLowWaterMark", low);
 	}
 	
 	public NettyRpcChannel blockingConnect(SocketAddress sa) {
-		return new NettyRpcChannel(
+		NettyRpcChannel channel = new NettyRpcChannel(
 				bootstrap.connect(sa).awaitUninterruptibly().getChannel());
+		channel.setDefaultTimeout(defaultTimeoutMillis, TimeUnit.MILLISECONDS);
+		channel.setMaxOutstandingCalls(maxOutstandingCalls);
+		channel.setOverloadPolicy(overloadPolicy);
+		channel.setMetrics(metrics);
+		if (reconnect) {
+			channel.setReconnectBackoff(minBackoffMillis, maxBackoffMillis, TimeUnit.MILLISECONDS);
+			channel.setMaxQueuedCalls(maxQueuedCalls);
+			channel.enableReconnect(bootstrap, sa, timer);
+		}
+		return channel;
+	}
+	
+	/**
+	 * Opens the given number of connections to the same server, and returns
+	 * a channel that sends each call over the least busy of them.
+	 */
+	public NettyRpcChannelPool blockingConnect(SocketAddress sa, int connections) {
+		if (connections < 1) {
+			throw new IllegalArgumentException("connections must be at least 1");
+		}
+		List<NettyRpcChannel> channels = new ArrayList<NettyRpcChannel>(connections);
+		for (int i = 0; i < connections; i++) {
+			channels.add(blockingConnect(sa));
+		}
+		return new NettyRpcChannelPool(channels);
+	}
+	
+	/**
+	 * Connects to each of the given servers, and returns a channel that
+	 * balances calls over them. All servers get the same weight.
+	 */
+	public NettyRpcBalancingChannel blockingConnect(List<? extends SocketAddress> addresses) {
+		NettyRpcBalancingChannel balancer = new NettyRpcBalancingChannel();
+		for (SocketAddress sa : addresses) {
+			balancer.addChannel(blockingConnect(sa), 1);
+		}
+		return balancer;
+	}
+	
+	/**
+	 * Sets the name the metrics of this client's calls are published under
+	 * in JMX, as
+	 * <code>com.googlecode.protobuf.netty:type=Client,name=NAME,service=...,method=...</code>.
+	 * Each method called has an {@link RpcMethodMetricsMXBean} with its
+	 * call, error and in-flight counts, message sizes and latencies. The
+	 * default name is <code>client-N</code>, numbered in order of creation.
+	 */
+	public void setMetricsName(String name) {
+		metrics.setName(name);
 	}
 	
 	public void shutdown() {
+		// Stopped first so that channels do not try to reconnect
+		timer.stop();
 		bootstrap.releaseExternalResources();
+		pipelineFactory.releaseExternalResources();
+		metrics.close();
 	}
 	
 }
@@ -21,77 +21,227 @@
  */
 package com.googlecode.protobuf.netty;
 
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Logger;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.ChannelPipelineCoverage;
 import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
 import org.jboss.netty.channel.ExceptionEvent;
 import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
 
 import com.googlecode.protobuf.netty.NettyRpcChannel.ResponsePrototypeRpcCallback;
-import com.googlecode.protobuf.netty.NettyRpcProto.RpcResponse;
+import com.googlecode.protobuf.netty.NettyRpcProto.ErrorCode;
+import com.googlecode.protobuf.netty.NettyRpcProto.RpcControl;
 
 @ChannelPipelineCoverage("one")
 public class NettyRpcClientChannelUpstreamHandler extends SimpleChannelUpstreamHandler {
 
 	private static final Logger logger = Logger.getLogger(NettyRpcClientChannelUpstreamHandler.class);
 	
-	private final AtomicInteger seqNum = new AtomicInteger(0);
+	private final PendingCallTable<ResponsePrototypeRpcCallback> pendingCalls = new PendingCallTable<ResponsePrototypeRpcCallback>();
 	
-	private final Map<Integer, ResponsePrototypeRpcCallback> callbackMap = new ConcurrentHashMap<Integer, ResponsePrototypeRpcCallback>();
+	// Set while this thread runs response callbacks
+	private static final ThreadLocal<Boolean> dispatching = new ThreadLocal<Boolean>();
 	
-	public int getNextSeqId() {
-		return seqNum.getAndIncrement();
+	private final Timer timer;
+	private final boolean cancelCalls;
+	
+	private volatile Runnable writabilityListener;
+	private volatile boolean peerAcceptsCancel;
+	
+	public NettyRpcClientChannelUpstreamHandler() {
+		this(null);
+	}
+	
+	/**
+	 * @param timer used to expire calls that have a timeout
+	 */
+	public NettyRpcClientChannelUpstreamHandler(Timer timer) {
+		this(timer, false);
+	}
+	
+	/**
+	 * @param timer used to expire calls that have a timeout
+	 * @param cancelCalls true to ask the server whether it acts on cancel
+	 */
+	public NettyRpcClientChannelUpstreamHandler(Timer timer, boolean cancelCalls) {
+		this.timer = timer;
+		this.cancelCalls = cancelCalls;
+	}
+	
+	/**
+	 * Sets the task to run whenever the channel becomes writable or stops
+	 * being writable.
+	 */
+	void setWritabilityListener(Runnable writabilityListener) {
+		this.writabilityListener = writabilityListener;
+	}
+	
+	/**
+	 * Registers the callback for a call and returns the id to send the call
+	 * with. The call fails with {@link ErrorCode#TIMEOUT} if no response
+	 * arrives within <code>timeoutMillis</code>. Zero means no timeout.
+	 * 
+	 * @return -1 if too many calls are pending on the connection
+	 */
+	int registerCallback(ResponsePrototypeRpcCallback callback, final long timeoutMillis) {
+		if (timeoutMillis > 0 && timer == null) {
+			throw new IllegalStateException("No timer available for call timeouts");
+		}
+		final int seqId = pendingCalls.add(callback);
+		if (seqId < 0) {
+			return -1;
+		} else if (timeoutMillis > 0) {
+			callback.setTimeout(timer.newTimeout(new TimerTask() {
+				public void run(Timeout timeout) {
+					ResponsePrototypeRpcCallback callback = pendingCalls.remove(seqId);
+					if (callback != null) {
+						callback.fail(ErrorCode.TIMEOUT, "No response received within " + timeoutMillis + " ms");
+					}
+				}
+			}, timeoutMillis, TimeUnit.MILLISECONDS));
+		}
+		return seqId;
 	}
 	
-	public synchronized void registerCallback(int seqId, ResponsePrototypeRpcCallback callback) {
-		if (callbackMap.containsKey(seqId)) {
-			throw new IllegalArgumentException("Callback already registered");
+	/**
+	 * Forgets a call whose response is no longer wanted.
+	 * 
+	 * @return false if the call had already completed
+	 */
+	boolean removeCallback(int seqId) {
+		ResponsePrototypeRpcCallback callback = pendingCalls.remove(seqId);
+		if (callback != null) {
+			callback.cancelTimeout();
 		}
-		callbackMap.put(seqId, callback);
+		return callback != null;
+	}
+	
+	/**
+	 * Returns true once the server has said that it acts on cancel. Servers
+	 * that predate cancellation cannot read it.
+	 */
+	boolean acceptsCancel() {
+		return peerAcceptsCancel;
 	}
 	
 	@Override
 	public void channelConnected(ChannelHandlerContext ctx, ChannelStateEvent e) {
 		logger.info("Channel connected");
+		if (cancelCalls) {
+			Channels.write(ctx, Channels.future(e.getChannel()), 
+					RpcControl.newBuilder().setId(0).setAcceptCancel(true).build());
+		}
 	}
 
+	/**
+	 * Returns true if the current thread is running response callbacks.
+	 */
+	static boolean isDispatching() {
+		return dispatching.get() != null;
+	}
+	
 	@Override
 	public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
-		
-		RpcResponse response = (RpcResponse) e.getMessage();
-		
-		if (!response.hasId()) {
-			logger.debug("Should never receive response without seqId");
+		dispatching.set(Boolean.TRUE);
+		try {
+			dispatch(e.getMessage());
+		} finally {
+			dispatching.remove();
+		}
+	}
+	
+	private void dispatch(Object message) {
+		if (message instanceof List) {
+			for (Object response : (List<?>) message) {
+				handleResponse((RpcResponseEnvelope) response);
+			}
+		} else if (message instanceof RpcControl) {
+			handleControl((RpcControl) message);
+		} else {
+			handleResponse((RpcResponseEnvelope) message);
+		}
+	}
+	
+	private void handleControl(RpcControl control) {
+		if (control.getAcceptCancel()) {
+			peerAcceptsCancel = true;
+			logger.debug("Peer accepts cancel");
 			return;
 		}
-		
+		ResponsePrototypeRpcCallback callback = pendingCalls.get(control.getId());
+		if (callback == null) {
+			logger.debug("Ignoring control message for call " + control.getId() + ", which is not pending");
+		} else {
+			callback.control(control);
+		}
+	}
+	
+	private void handleResponse(RpcResponseEnvelope response) {
 		int seqId = response.getId();
-		ResponsePrototypeRpcCallback callback = callbackMap.remove(seqId);
-		
-		if (response.hasErrorCode() && callback != null && callback.getRpcController() != null) {
-			callback.getRpcController().setFailed(response.getErrorMessage());
+		ResponsePrototypeRpcCallback callback = pendingCalls.get(seqId);
+		if (callback != null && !callback.isLast(response)) {
+			// One message of a stream, which stays pending until it ends
+			callback.received(response);
+			callback.run(response);
+			return;
 		}
+		callback = pendingCalls.remove(seqId);
 		
 		if (callback == null) {
 			logger.debug("Received response with no callback registered");
 		} else {
 			logger.debug("Invoking callback with response");
+			callback.cancelTimeout();
+			callback.received(response);
 			callback.run(response);
 		}
-		
+	}
+	
+	@Override
+	public void channelInterestChanged(ChannelHandlerContext ctx, ChannelStateEvent e) {
+		Runnable writabilityListener = this.writabilityListener;
+		if (writabilityListener != null) {
+			writabilityListener.run();
+		}
+	}
+	
+	/**
+	 * Fails the calls still waiting for a response with
+	 * {@link ErrorCode#IO_ERROR}, as no response can arrive any more.
+	 */
+	@Override
+	public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) {
+		dispatching.set(Boolean.TRUE);
+		try {
+			failPendingCalls(ErrorCode.IO_ERROR, "Connection closed");
+		} finally {
+			dispatching.remove();
+		}
 	}
 	
 	@Override
 	public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) throws Exception {
 		logger.error("Unhandled exception in handler", e.getCause());
+		// Closing fails the pending calls, see channelClosed
 		e.getChannel().close();
-		throw new Exception(e.getCause());
+	}
+	
+	void failPendingCalls(ErrorCode errorCode, String reason) {
+		List<ResponsePrototypeRpcCallback> callbacks = new ArrayList<ResponsePrototypeRpcCallback>();
+		pendingCalls.drainTo(callbacks);
+		for (ResponsePrototypeRpcCallback callback : callbacks) {
+			callback.cancelTimeout();
+			callback.fail(errorCode, reason);
+		}
 	}
 	
 }
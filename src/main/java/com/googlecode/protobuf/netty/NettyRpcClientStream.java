@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2009 Stephen Tu <stephen_tu@berkeley.edu>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.protobuf.netty;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.log4j.Logger;
+import org.jboss.netty.channel.Channel;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Message;
+import com.googlecode.protobuf.netty.NettyRpcProto.RpcControl;
+
+/**
+ * The requests of a client streaming call. Each message goes out as an
+ * RpcControl.stream_message with the call's id, and the end of the requests
+ * as an RpcControl with end_of_stream set.
+ * <p>
+ * Nothing is sent before the server has given credit, which it does once
+ * it has started the call. Messages emitted on the I/O thread while there
+ * is no credit are held back and sent, in order, as credit arrives.
+ */
+class NettyRpcClientStream implements RpcStreamEmitter<Message> {
+
+	private static final Logger logger = Logger.getLogger(NettyRpcClientStream.class);
+	
+	private final NettyRpcChannel.ResponsePrototypeRpcCallback call;
+	private final Queue<Runnable> readyListeners = new ConcurrentLinkedQueue<Runnable>();
+	
+	// Guarded by this, like the writes, so that messages keep their order
+	private Channel channel;
+	private int id;
+	private int credit;
+	// Set with the first credit: the server has started the call
+	private boolean accepted;
+	private final Queue<Message> held = new ArrayDeque<Message>();
+	private boolean ended;
+	private boolean endSent;
+	
+	NettyRpcClientStream(NettyRpcChannel.ResponsePrototypeRpcCallback call, DefaultRpcFuture<Message> future) {
+		this.call = call;
+		future.addListener(new RpcFutureListener<Message>() {
+			public void operationComplete(RpcFuture<Message> future) {
+				closed();
+			}
+		});
+	}
+	
+	/**
+	 * Sets the connection and id the call is sent with.
+	 */
+	synchronized void start(Channel channel, int id) {
+		this.channel = channel;
+		this.id = id;
+	}
+	
+	public boolean emit(Message message) {
+		if (message == null) {
+			throw new NullPointerException("message");
+		}
+		synchronized (this) {
+			if (isClosed()) {
+				return false;
+			} else if (NettyRpcClientChannelUpstreamHandler.isDispatching()) {
+				if (credit <= 0 || !held.isEmpty()) {
+					held.add(message);
+					return true;
+				}
+			} else {
+				while ((credit <= 0 || !held.isEmpty()) && !isClosed()) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return false;
+					}
+				}
+				if (isClosed()) {
+					return false;
+				}
+			}
+			send(message);
+		}
+		return true;
+	}
+	
+	public synchronized boolean isReady() {
+		return credit > 0 && held.isEmpty() && !isClosed();
+	}
+	
+	public void notifyOnReady(Runnable task) {
+		readyListeners.add(task);
+		if (isReady() || isClosed()) {
+			runReadyListeners();
+		}
+	}
+	
+	/**
+	 * Sends the end of the requests, after any that are held back. The
+	 * responses may still follow.
+	 */
+	public void complete() {
+		synchronized (this) {
+			if (ended) {
+				return;
+			}
+			ended = true;
+			notifyAll();
+			sendEnd();
+		}
+		runReadyListeners();
+	}
+	
+	/**
+	 * Cancels the call. The listener of the responses fails with the given
+	 * reason; the server sees the call canceled.
+	 */
+	public void fail(String reason) {
+		synchronized (this) {
+			ended = true;
+		}
+		call.fail(NettyRpcProto.ErrorCode.RPC_FAILED, reason);
+	}
+	
+	/**
+	 * Returns true once the requests have ended, or the call has.
+	 */
+	public synchronized boolean isClosed() {
+		return ended || call.future.isDone() || (channel != null && !channel.isOpen());
+	}
+	
+	/**
+	 * Lets the stream send <code>messages</code> more requests, starting
+	 * with those held back.
+	 */
+	void addCredit(int messages) {
+		synchronized (this) {
+			accepted = true;
+			credit = (int) Math.min(Integer.MAX_VALUE, (long) credit + messages);
+			while (credit > 0 && !held.isEmpty()) {
+				send(held.poll());
+			}
+			sendEnd();
+			notifyAll();
+		}
+		runReadyListeners();
+	}
+	
+	private void closed() {
+		synchronized (this) {
+			held.clear();
+			notifyAll();
+		}
+		runReadyListeners();
+	}
+	
+	// Both called with the lock held
+	
+	private void send(Message message) {
+		credit--;
+		ByteString bytes = message.toByteString();
+		RpcMethodMetrics metrics = call.metrics;
+		if (metrics != null) {
+			metrics.addRequestBytes(bytes.size());
+		}
+		channel.write(RpcControl.newBuilder().setId(id).setStreamMessage(bytes).build());
+	}
+	
+	private void sendEnd() {
+		if (ended && !endSent && accepted && held.isEmpty() && !call.future.isDone()) {
+			endSent = true;
+			channel.write(RpcControl.newBuilder().setId(id).setEndOfStream(true).build());
+		}
+	}
+	
+	private void runReadyListeners() {
+		Runnable task;
+		while ((task = readyListeners.poll()) != null) {
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				logger.warn("Stream ready listener threw an exception", e);
+			}
+		}
+	}
+	
+}
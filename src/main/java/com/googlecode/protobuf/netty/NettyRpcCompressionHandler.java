@@ -0,0 +1,313 @@
+/*
+ * Copyright (c) 2009 Stephen Tu <stephen_tu@berkeley.edu>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.protobuf.netty;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.log4j.Logger;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipelineCoverage;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelHandler;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+import com.googlecode.protobuf.netty.NettyRpcProto.Compression;
+import com.googlecode.protobuf.netty.NettyRpcProto.RpcControl;
+
+/**
+ * Negotiates payload compression for one connection, compresses outbound
+ * request or response messages of at least a minimum size, and decompresses
+ * inbound ones.
+ * <p>
+ * The client opens the negotiation by sending an RpcControl listing the
+ * codecs it can decode, and the server answers with its own list. A side
+ * only compresses once the peer has listed its codec, so peers without
+ * compression support never see a compressed payload. A message is sent
+ * uncompressed if compressing it does not make it smaller.
+ * <p>
+ * A compressed payload starts with the uncompressed size as a varint, so
+ * that it is decompressed into a buffer of exactly the right size. Sizes
+ * larger than the codec can produce from the payload, or than the largest
+ * message the connection takes, are rejected before anything is
+ * allocated.
+ */
+@ChannelPipelineCoverage("one")
+class NettyRpcCompressionHandler extends SimpleChannelHandler {
+
+	private static final Logger logger = Logger.getLogger(NettyRpcCompressionHandler.class);
+	
+	private static final List<Compression> DECODABLE = Arrays.asList(Compression.LZ4, Compression.DEFLATE);
+	
+	// Upper bounds on how much each codec can expand its input, which keep a
+	// bogus uncompressed size from allocating a huge buffer
+	private static final int MAX_LZ4_RATIO = 256;
+	private static final int MAX_DEFLATE_RATIO = 1032;
+	
+	private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+		@Override
+		protected Deflater initialValue() {
+			return new Deflater(Deflater.BEST_SPEED, true);
+		}
+	};
+	
+	private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+		@Override
+		protected Inflater initialValue() {
+			return new Inflater(true);
+		}
+	};
+	
+	private final Compression codec;
+	private final int minBytes;
+	private final boolean client;
+	private final long maxBytes;
+	private volatile boolean peerAccepts;
+	
+	/**
+	 * @param codec the codec to compress with, or {@link Compression#NONE} to
+	 * only decompress
+	 * @param minBytes the smallest serialized message that is compressed
+	 * @param client true on the side that opens the negotiation
+	 * @param maxBytes the largest size a payload may decompress to
+	 */
+	NettyRpcCompressionHandler(Compression codec, int minBytes, boolean client, long maxBytes) {
+		this.codec = codec;
+		this.minBytes = minBytes;
+		this.client = client;
+		this.maxBytes = maxBytes;
+	}
+	
+	@Override
+	public void channelConnected(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+		if (client) {
+			Channels.write(ctx, Channels.future(e.getChannel()), newAccept());
+		}
+		super.channelConnected(ctx, e);
+	}
+	
+	@Override
+	public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+		Object message = e.getMessage();
+		if (message instanceof RpcControl && ((RpcControl) message).getAcceptCompressionCount() > 0) {
+			RpcControl control = (RpcControl) message;
+			peerAccepts = codec != Compression.NONE && control.getAcceptCompressionList().contains(codec);
+			if (!client) {
+				Channels.write(ctx, Channels.future(e.getChannel()), newAccept());
+			}
+			logger.debug("Peer accepts " + control.getAcceptCompressionList() + 
+					(peerAccepts ? ", compressing with " + codec : ""));
+			return;
+		}
+		Object decompressed = decompress(message, maxBytes);
+		if (decompressed != message) {
+			Channels.fireMessageReceived(ctx, decompressed, e.getRemoteAddress());
+			return;
+		}
+		super.messageReceived(ctx, e);
+	}
+	
+	@Override
+	public void writeRequested(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+		if (peerAccepts) {
+			Object message = e.getMessage();
+			Object compressed = compress(message);
+			if (compressed != message) {
+				Channels.write(ctx, e.getFuture(), compressed, e.getRemoteAddress());
+				return;
+			}
+		}
+		super.writeRequested(ctx, e);
+	}
+	
+	private static RpcControl newAccept() {
+		return RpcControl.newBuilder().setId(0).addAllAcceptCompression(DECODABLE).build();
+	}
+	
+	/**
+	 * @return the compressed envelope, or <code>message</code> if it is left
+	 * as is
+	 */
+	private Object compress(Object message) {
+		if (message instanceof RpcRequestEnvelope) {
+			RpcRequestEnvelope request = (RpcRequestEnvelope) message;
+			ChannelBuffer payload = compress(request.getRequestMessage());
+			return (payload == null) ? request : request.withPayload(payload, codec);
+		} else if (message instanceof RpcResponseEnvelope) {
+			RpcResponseEnvelope response = (RpcResponseEnvelope) message;
+			ChannelBuffer payload = compress(response.getResponseMessage());
+			return (payload == null) ? response : response.withPayload(payload, codec);
+		}
+		return message;
+	}
+	
+	/**
+	 * @return the compressed payload, or null if the message is too small or
+	 * does not compress
+	 */
+	private ChannelBuffer compress(Message message) {
+		if (message == null || message.getSerializedSize() < minBytes) {
+			return null;
+		}
+		byte[] raw = message.toByteArray();
+		int headerSize = CodedOutputStream.computeRawVarint32Size(raw.length);
+		byte[] compressed;
+		int length;
+		if (codec == Compression.LZ4) {
+			compressed = new byte[headerSize + Lz4BlockCodec.maxCompressedLength(raw.length)];
+			length = headerSize + Lz4BlockCodec.compress(raw, 0, raw.length, compressed, headerSize);
+		} else {
+			// Output that does not fit in the input's size is not worth sending
+			compressed = new byte[raw.length];
+			Deflater deflater = deflaters.get();
+			deflater.reset();
+			deflater.setInput(raw);
+			deflater.finish();
+			length = headerSize + deflater.deflate(compressed, headerSize, compressed.length - headerSize);
+			if (!deflater.finished()) {
+				return null;
+			}
+		}
+		if (length >= raw.length) {
+			return null;
+		}
+		writeRawVarint32(compressed, raw.length);
+		return ChannelBuffers.wrappedBuffer(compressed, 0, length);
+	}
+	
+	/**
+	 * @return the decompressed envelope or envelopes, or <code>message</code>
+	 * if nothing was compressed
+	 */
+	private static Object decompress(Object message, long maxBytes) throws InvalidProtocolBufferException {
+		if (message instanceof RpcRequestEnvelope) {
+			RpcRequestEnvelope request = (RpcRequestEnvelope) message;
+			if (request.getCompression() != null) {
+				return request.withPayload(decompress(request.getCompression(), request.getPayload(), maxBytes), null);
+			}
+		} else if (message instanceof RpcResponseEnvelope) {
+			RpcResponseEnvelope response = (RpcResponseEnvelope) message;
+			if (response.getCompression() != null && response.getPayload() != null) {
+				return response.withPayload(decompress(response.getCompression(), response.getPayload(), maxBytes), null);
+			}
+		} else if (message instanceof List) {
+			List<?> batch = (List<?>) message;
+			List<Object> decompressed = null;
+			for (int i = 0; i < batch.size(); i++) {
+				Object element = decompress(batch.get(i), maxBytes);
+				if (element != batch.get(i) && decompressed == null) {
+					decompressed = new ArrayList<Object>(batch.subList(0, i));
+				}
+				if (decompressed != null) {
+					decompressed.add(element);
+				}
+			}
+			if (decompressed != null) {
+				return decompressed;
+			}
+		}
+		return message;
+	}
+	
+	static ChannelBuffer decompress(Compression codec, ChannelBuffer payload, long maxBytes) 
+			throws InvalidProtocolBufferException {
+		byte[] src;
+		int offset;
+		int length = payload.readableBytes();
+		if (payload.hasArray()) {
+			src = payload.array();
+			offset = payload.arrayOffset() + payload.readerIndex();
+		} else {
+			src = new byte[length];
+			payload.getBytes(payload.readerIndex(), src);
+			offset = 0;
+		}
+		CodedInputStream input = CodedInputStream.newInstance(src, offset, length);
+		int size;
+		try {
+			size = input.readRawVarint32();
+		} catch (InvalidProtocolBufferException e) {
+			throw e;
+		} catch (IOException e) {
+			throw new InvalidProtocolBufferException(e.getMessage());
+		}
+		int headerSize = CodedOutputStream.computeRawVarint32Size(size);
+		offset += headerSize;
+		length -= headerSize;
+		long maxSize = (long) length * ((codec == Compression.LZ4) ? MAX_LZ4_RATIO : MAX_DEFLATE_RATIO) + 64;
+		if (size < 0 || size > maxSize) {
+			throw new InvalidProtocolBufferException("Compressed payload claims an impossible size of " + size);
+		} else if (size > maxBytes) {
+			throw new InvalidProtocolBufferException("Compressed payload expands to " + size + 
+					" bytes, more than the " + maxBytes + " bytes allowed");
+		}
+		byte[] dst = new byte[size];
+		if (codec == Compression.LZ4) {
+			Lz4BlockCodec.decompress(src, offset, length, dst, 0, size);
+		} else {
+			inflate(src, offset, length, dst);
+		}
+		return ChannelBuffers.wrappedBuffer(dst);
+	}
+	
+	private static void inflate(byte[] src, int offset, int length, byte[] dst) throws InvalidProtocolBufferException {
+		Inflater inflater = inflaters.get();
+		inflater.reset();
+		inflater.setInput(src, offset, length);
+		try {
+			int n = inflater.inflate(dst);
+			if (!inflater.finished() && inflater.needsInput()) {
+				// Without the zlib wrapper, the inflater may need an extra
+				// dummy byte to see the end of the stream
+				inflater.setInput(new byte[1]);
+				n += inflater.inflate(dst, n, dst.length - n);
+			}
+			if (n != dst.length || !inflater.finished()) {
+				throw new InvalidProtocolBufferException("Malformed deflate payload");
+			}
+		} catch (DataFormatException e) {
+			throw new InvalidProtocolBufferException("Malformed deflate payload: " + e.getMessage());
+		}
+	}
+	
+	private static void writeRawVarint32(byte[] buf, int value) {
+		int i = 0;
+		while ((value & ~0x7F) != 0) {
+			buf[i++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		buf[i] = (byte) value;
+	}
+	
+}
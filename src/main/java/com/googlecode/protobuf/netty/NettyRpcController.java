@@ -21,20 +21,49 @@
  */
 package com.googlecode.protobuf.netty;
 
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
 import com.google.protobuf.RpcCallback;
 import com.google.protobuf.RpcController;
+import com.googlecode.protobuf.netty.NettyRpcProto.ErrorCode;
+import com.googlecode.protobuf.netty.NettyRpcProto.Priority;
 
 public class NettyRpcController implements RpcController {
 
 	private String reason;
+	private ErrorCode errorCode;
 	private boolean failed;
-	private boolean canceled;
-	@SuppressWarnings("unused")
+	private volatile boolean canceled;
 	private RpcCallback<Object> callback;
+	private volatile Future<?> call;
+	private long timeoutMillis;
+	private boolean hasDeadline;
+	private long deadlineNanos;
+	private Priority priority = Priority.NORMAL;
+	
+	// Server side: the call's slots in the concurrency limits
+	private volatile AdaptiveConcurrencyLimit.Permit permit;
+	
+	// Server side: the responses of a streaming call
+	private volatile NettyRpcServerStream stream;
+	
+	// Server side: the metrics of the called method, and when the call
+	// arrived
+	private volatile RpcMethodMetrics metrics;
+	private volatile long receivedNanos;
 	
 	public String errorText() {
 		return reason;
 	}
+	
+	/**
+	 * @return why the call failed, or null if it has not failed or the
+	 * reason is not known
+	 */
+	public ErrorCode getErrorCode() {
+		return errorCode;
+	}
 
 	public boolean failed() {
 		return failed;
@@ -44,24 +73,212 @@ public class NettyRpcController implements RpcController {
 		return canceled;
 	}
 
+	/**
+	 * On the server, registers a callback to run if the client cancels the
+	 * call or disconnects. It runs immediately if that has already happened.
+	 */
 	public void notifyOnCancel(RpcCallback<Object> callback) {
-		this.callback = callback;
+		synchronized (this) {
+			this.callback = callback;
+			if (!canceled) {
+				return;
+			}
+		}
+		callback.run(null);
 	}
 
 	public void reset() {
 		reason = null;
+		errorCode = null;
 		failed = false;
 		canceled = false;
 		callback = null;
+		call = null;
+		timeoutMillis = 0;
+		hasDeadline = false;
+		priority = Priority.NORMAL;
+		permit = null;
+		stream = null;
+		metrics = null;
 	}
 
 	public void setFailed(String reason) {
 		this.reason = reason;
 		this.failed = true;
 	}
+	
+	void setFailed(ErrorCode errorCode, String reason) {
+		setFailed(reason);
+		this.errorCode = errorCode;
+	}
+	
+	/**
+	 * Fails the call with {@link ErrorCode#TIMEOUT} if no response has
+	 * arrived within the given time. Overrides the channel's default timeout;
+	 * zero means use the default.
+	 */
+	public void setTimeout(long timeout, TimeUnit unit) {
+		this.timeoutMillis = unit.toMillis(timeout);
+	}
+	
+	public long getTimeoutMillis() {
+		return timeoutMillis;
+	}
+	
+	/**
+	 * On the server, tells whether the caller set a timeout for this call.
+	 */
+	public boolean hasDeadline() {
+		return hasDeadline;
+	}
+	
+	/**
+	 * On the server, returns how long the caller will still wait for the
+	 * response: zero once it has given up, or Long.MAX_VALUE if it set no
+	 * timeout. Services can use this to skip work that would be too late,
+	 * or to bound calls they make to other servers.
+	 */
+	public long getRemainingTime(TimeUnit unit) {
+		if (!hasDeadline) {
+			return Long.MAX_VALUE;
+		}
+		long remaining = deadlineNanos - System.nanoTime();
+		return remaining <= 0 ? 0 : unit.convert(remaining, TimeUnit.NANOSECONDS);
+	}
+	
+	void setDeadline(long deadlineNanos) {
+		this.hasDeadline = true;
+		this.deadlineNanos = deadlineNanos;
+	}
+	
+	/**
+	 * Sets how urgent the call is. A busy server runs INTERACTIVE calls ahead
+	 * of NORMAL ones (the default), and BATCH calls last, without starving
+	 * any class.
+	 */
+	public void setPriority(Priority priority) {
+		if (priority == null) {
+			throw new IllegalArgumentException("Must provide priority");
+		}
+		this.priority = priority;
+	}
+	
+	/**
+	 * On the server, tells the priority the caller gave the call.
+	 */
+	public Priority getPriority() {
+		return priority;
+	}
 
+	/**
+	 * On the client, cancels the call made with this controller. The server
+	 * is told to stop the call and not to send a response, if the call
+	 * streams or the client is set to cancel calls on the server, and the
+	 * call completes without a response.
+	 * 
+	 * @see NettyRpcClient#setCancelCalls(boolean)
+	 */
 	public void startCancel() {
 		canceled = true;
+		Future<?> call = this.call;
+		if (call != null) {
+			call.cancel(false);
+		}
+	}
+	
+	/**
+	 * Links a client controller to its call, for {@link #startCancel()}.
+	 */
+	void setCall(Future<?> call) {
+		this.call = call;
+		if (canceled) {
+			call.cancel(false);
+		}
+	}
+	
+	void setPermit(AdaptiveConcurrencyLimit.Permit permit) {
+		this.permit = permit;
+	}
+	
+	/**
+	 * Releases the server call's slots in the concurrency limits, if it
+	 * holds any.
+	 */
+	void releasePermit(boolean completed) {
+		AdaptiveConcurrencyLimit.Permit permit = this.permit;
+		if (permit != null) {
+			permit.release(completed);
+		}
+	}
+	
+	void setReceivedNanos(long receivedNanos) {
+		this.receivedNanos = receivedNanos;
+	}
+	
+	/**
+	 * Counts the server call in the metrics of its method.
+	 */
+	void startMetrics(RpcMethodMetrics metrics, long requestBytes) {
+		metrics.started(requestBytes);
+		this.metrics = metrics;
+	}
+	
+	/**
+	 * @return the metrics the server call is counted in, or null
+	 */
+	RpcMethodMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * Records the answer the server sends to the call, null if it sends
+	 * none.
+	 */
+	void recordAnswer(Object response) {
+		RpcMethodMetrics metrics = this.metrics;
+		if (metrics != null) {
+			metrics.answered(receivedNanos, response);
+		}
+	}
+	
+	/**
+	 * Records that the server call ended without an answer.
+	 */
+	void recordDropped() {
+		RpcMethodMetrics metrics = this.metrics;
+		if (metrics != null) {
+			metrics.dropped();
+		}
+	}
+	
+	void setStream(NettyRpcServerStream stream) {
+		this.stream = stream;
+	}
+	
+	NettyRpcServerStream getStream() {
+		return stream;
+	}
+	
+	/**
+	 * Marks a server call as canceled by the client and runs the
+	 * {@link #notifyOnCancel(RpcCallback)} callback.
+	 */
+	void cancelByClient() {
+		RpcCallback<Object> callback;
+		synchronized (this) {
+			if (canceled) {
+				return;
+			}
+			canceled = true;
+			callback = this.callback;
+		}
+		if (callback != null) {
+			callback.run(null);
+		}
+		NettyRpcServerStream stream = this.stream;
+		if (stream != null) {
+			stream.canceled();
+		}
 	}
 
 }
@@ -0,0 +1,469 @@
+/*
+ * Copyright (c) 2009 Stephen Tu <stephen_tu@berkeley.edu>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.protobuf.netty;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferInputStream;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipelineCoverage;
+import org.jboss.netty.handler.codec.oneone.OneToOneDecoder;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+import com.googlecode.protobuf.netty.NettyRpcProto.Compression;
+import com.googlecode.protobuf.netty.NettyRpcProto.ErrorCode;
+import com.googlecode.protobuf.netty.NettyRpcProto.Priority;
+import com.googlecode.protobuf.netty.NettyRpcProto.RpcBatch;
+import com.googlecode.protobuf.netty.NettyRpcProto.RpcChunk;
+import com.googlecode.protobuf.netty.NettyRpcProto.RpcControl;
+import com.googlecode.protobuf.netty.NettyRpcProto.RpcRequest;
+import com.googlecode.protobuf.netty.NettyRpcProto.RpcResponse;
+
+/**
+ * Decodes RpcRequest or RpcResponse frames into {@link RpcRequestEnvelope}s or
+ * {@link RpcResponseEnvelope}s by reading the envelope fields in place. The
+ * embedded user message is not copied: the envelope keeps a slice of the
+ * frame, which is later parsed straight into the method's request or
+ * response type with {@link #parseMessage(Message, ChannelBuffer)}.
+ * <p>
+ * A frame holding an RpcBatch is decoded into a List of envelopes, which
+ * handlers receive as a single message. RpcControl frames are parsed into
+ * RpcControl messages. RpcChunk frames are put back together by
+ * {@link NettyRpcChunkAssembler} before they get here.
+ * <p>
+ * Compressed payloads are left compressed; the envelopes only record how.
+ * <p>
+ * Unknown fields are skipped, as the generated parsers would do.
+ */
+@ChannelPipelineCoverage("all")
+class NettyRpcEnvelopeDecoder extends OneToOneDecoder {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	
+	private static final int WIRETYPE_VARINT = 0;
+	private static final int WIRETYPE_FIXED64 = 1;
+	private static final int WIRETYPE_LENGTH_DELIMITED = 2;
+	private static final int WIRETYPE_FIXED32 = 5;
+	
+	private static final int REQUEST_ID_TAG = tag(RpcRequest.ID_FIELD_NUMBER, WIRETYPE_VARINT);
+	private static final int SERVICE_NAME_TAG = tag(RpcRequest.SERVICE_NAME_FIELD_NUMBER, WIRETYPE_LENGTH_DELIMITED);
+	private static final int METHOD_NAME_TAG = tag(RpcRequest.METHOD_NAME_FIELD_NUMBER, WIRETYPE_LENGTH_DELIMITED);
+	private static final int IS_BLOCKING_SERVICE_TAG = tag(RpcRequest.IS_BLOCKING_SERVICE_FIELD_NUMBER, WIRETYPE_VARINT);
+	private static final int REQUEST_MESSAGE_TAG = tag(RpcRequest.REQUEST_MESSAGE_FIELD_NUMBER, WIRETYPE_LENGTH_DELIMITED);
+	private static final int TIMEOUT_MS_TAG = tag(RpcRequest.TIMEOUT_MS_FIELD_NUMBER, WIRETYPE_VARINT);
+	private static final int REQUEST_COMPRESSION_TAG = tag(RpcRequest.COMPRESSION_FIELD_NUMBER, WIRETYPE_VARINT);
+	private static final int STREAM_WINDOW_TAG = tag(RpcRequest.STREAM_WINDOW_FIELD_NUMBER, WIRETYPE_VARINT);
+	private static final int CLIENT_STREAM_TAG = tag(RpcRequest.CLIENT_STREAM_FIELD_NUMBER, WIRETYPE_VARINT);
+	private static final int PRIORITY_TAG = tag(RpcRequest.PRIORITY_FIELD_NUMBER, WIRETYPE_VARINT);
+	
+	private static final int RESPONSE_ID_TAG = tag(RpcResponse.ID_FIELD_NUMBER, WIRETYPE_VARINT);
+	private static final int RESPONSE_MESSAGE_TAG = tag(RpcResponse.RESPONSE_MESSAGE_FIELD_NUMBER, WIRETYPE_LENGTH_DELIMITED);
+	private static final int ERROR_CODE_TAG = tag(RpcResponse.ERROR_CODE_FIELD_NUMBER, WIRETYPE_VARINT);
+	private static final int ERROR_MESSAGE_TAG = tag(RpcResponse.ERROR_MESSAGE_FIELD_NUMBER, WIRETYPE_LENGTH_DELIMITED);
+	private static final int RESPONSE_COMPRESSION_TAG = tag(RpcResponse.COMPRESSION_FIELD_NUMBER, WIRETYPE_VARINT);
+	private static final int END_OF_STREAM_TAG = tag(RpcResponse.END_OF_STREAM_FIELD_NUMBER, WIRETYPE_VARINT);
+	
+	private static final int BATCH_REQUEST_TAG = tag(RpcBatch.REQUEST_FIELD_NUMBER, WIRETYPE_LENGTH_DELIMITED);
+	private static final int BATCH_RESPONSE_TAG = tag(RpcBatch.RESPONSE_FIELD_NUMBER, WIRETYPE_LENGTH_DELIMITED);
+	
+	private static final int CONTROL_ID_TAG = tag(RpcControl.ID_FIELD_NUMBER, WIRETYPE_VARINT);
+	
+	private static final int CHUNK_TRANSFER_TAG = tag(RpcChunk.TRANSFER_FIELD_NUMBER, WIRETYPE_VARINT);
+	private static final int CHUNK_DATA_TAG = tag(RpcChunk.DATA_FIELD_NUMBER, WIRETYPE_LENGTH_DELIMITED);
+	private static final int CHUNK_LAST_TAG = tag(RpcChunk.LAST_FIELD_NUMBER, WIRETYPE_VARINT);
+	
+	private final boolean decodeRequests;
+	
+	private NettyRpcEnvelopeDecoder(boolean decodeRequests) {
+		this.decodeRequests = decodeRequests;
+	}
+	
+	/**
+	 * @return a decoder for the server side of a connection
+	 */
+	static NettyRpcEnvelopeDecoder forRequests() {
+		return new NettyRpcEnvelopeDecoder(true);
+	}
+	
+	/**
+	 * @return a decoder for the client side of a connection
+	 */
+	static NettyRpcEnvelopeDecoder forResponses() {
+		return new NettyRpcEnvelopeDecoder(false);
+	}
+	
+	/**
+	 * @return true if this decoder is on the side that receives requests
+	 */
+	boolean decodesRequests() {
+		return decodeRequests;
+	}
+	
+	@Override
+	protected Object decode(ChannelHandlerContext ctx, Channel channel, Object msg) throws Exception {
+		if (!(msg instanceof ChannelBuffer)) {
+			return msg;
+		}
+		ChannelBuffer frame = (ChannelBuffer) msg;
+		if (!isEnvelope(frame)) {
+			if (isBatch(frame)) {
+				return decodeBatch(frame, decodeRequests);
+			}
+			return parseMessage(RpcControl.getDefaultInstance(), frame);
+		}
+		return decodeRequests ? decodeRequest(frame) : decodeResponse(frame);
+	}
+	
+	/**
+	 * RpcRequest and RpcResponse always start with a field numbered below 16,
+	 * whose tag fits in one byte. A longer first tag means an RpcBatch or an
+	 * RpcControl.
+	 */
+	private static boolean isEnvelope(ChannelBuffer frame) {
+		return !frame.readable() || (frame.getByte(frame.readerIndex()) & 0x80) == 0;
+	}
+	
+	static boolean isBatch(ChannelBuffer frame) throws InvalidProtocolBufferException {
+		if (isEnvelope(frame)) {
+			return false;
+		}
+		int fieldNumber = readRawVarint32(frame.duplicate()) >>> 3;
+		return fieldNumber == RpcBatch.REQUEST_FIELD_NUMBER || fieldNumber == RpcBatch.RESPONSE_FIELD_NUMBER;
+	}
+	
+	/**
+	 * RpcChunk field numbers start at 32, above those of all other frames.
+	 */
+	static boolean isChunk(ChannelBuffer frame) throws InvalidProtocolBufferException {
+		if (isEnvelope(frame)) {
+			return false;
+		}
+		return (readRawVarint32(frame.duplicate()) >>> 3) >= RpcChunk.TRANSFER_FIELD_NUMBER;
+	}
+	
+	static NettyRpcChunkAssembler.Chunk decodeChunk(ChannelBuffer frame) throws InvalidProtocolBufferException {
+		boolean hasTransfer = false;
+		int transfer = 0;
+		ChannelBuffer data = null;
+		boolean last = false;
+		while (frame.readable()) {
+			int tag = readRawVarint32(frame);
+			if (tag == CHUNK_TRANSFER_TAG) {
+				hasTransfer = true;
+				transfer = readRawVarint32(frame);
+			} else if (tag == CHUNK_DATA_TAG) {
+				data = readBytes(frame);
+			} else if (tag == CHUNK_LAST_TAG) {
+				last = readRawVarint64(frame) != 0;
+			} else {
+				skipField(frame, tag);
+			}
+		}
+		if (!hasTransfer || data == null) {
+			throw new InvalidProtocolBufferException("RpcChunk is missing required fields");
+		}
+		return new NettyRpcChunkAssembler.Chunk(transfer, data, last);
+	}
+	
+	/**
+	 * Reads the call ID of an RpcRequest, RpcResponse or RpcControl frame
+	 * without consuming it. The encoders write the ID as the first field.
+	 * 
+	 * @param frame the frame without its length prefix
+	 * @return the ID, or -1 if the frame does not start with one
+	 */
+	static int peekCallId(ChannelBuffer frame) {
+		ChannelBuffer input = frame.duplicate();
+		try {
+			int tag = readRawVarint32(input);
+			if (tag == REQUEST_ID_TAG || tag == CONTROL_ID_TAG) {
+				int id = readRawVarint32(input);
+				return (id < 0) ? -1 : id;
+			}
+		} catch (InvalidProtocolBufferException e) {
+			// Not enough of the frame to tell
+		}
+		return -1;
+	}
+	
+	static List<Object> decodeBatch(ChannelBuffer frame, boolean requests) throws InvalidProtocolBufferException {
+		int elementTag = requests ? BATCH_REQUEST_TAG : BATCH_RESPONSE_TAG;
+		List<Object> envelopes = new ArrayList<Object>();
+		while (frame.readable()) {
+			int tag = readRawVarint32(frame);
+			if (tag == elementTag) {
+				ChannelBuffer element = readBytes(frame);
+				envelopes.add(requests ? decodeRequest(element) : decodeResponse(element));
+			} else {
+				skipField(frame, tag);
+			}
+		}
+		return envelopes;
+	}
+	
+	static RpcRequestEnvelope decodeRequest(ChannelBuffer frame) throws InvalidProtocolBufferException {
+		boolean hasId = false;
+		int id = 0;
+		String serviceName = null;
+		String methodName = null;
+		boolean hasIsBlockingService = false;
+		boolean isBlockingService = false;
+		ChannelBuffer payload = null;
+		boolean hasTimeout = false;
+		int timeoutMillis = 0;
+		Compression compression = null;
+		int streamWindow = 0;
+		boolean clientStream = false;
+		Priority priority = null;
+		while (frame.readable()) {
+			int tag = readRawVarint32(frame);
+			if (tag == REQUEST_ID_TAG) {
+				hasId = true;
+				id = readRawVarint32(frame);
+			} else if (tag == SERVICE_NAME_TAG) {
+				serviceName = readString(frame);
+			} else if (tag == METHOD_NAME_TAG) {
+				methodName = readString(frame);
+			} else if (tag == IS_BLOCKING_SERVICE_TAG) {
+				hasIsBlockingService = true;
+				isBlockingService = readRawVarint64(frame) != 0;
+			} else if (tag == REQUEST_MESSAGE_TAG) {
+				payload = readBytes(frame);
+			} else if (tag == TIMEOUT_MS_TAG) {
+				hasTimeout = true;
+				timeoutMillis = readRawVarint32(frame);
+			} else if (tag == REQUEST_COMPRESSION_TAG) {
+				compression = readCompression(frame);
+			} else if (tag == STREAM_WINDOW_TAG) {
+				streamWindow = readRawVarint32(frame);
+			} else if (tag == CLIENT_STREAM_TAG) {
+				clientStream = readRawVarint64(frame) != 0;
+			} else if (tag == PRIORITY_TAG) {
+				// Classes this side does not know are served as NORMAL
+				priority = Priority.valueOf(readRawVarint32(frame));
+			} else {
+				skipField(frame, tag);
+			}
+		}
+		if (serviceName == null || methodName == null || !hasIsBlockingService || payload == null) {
+			throw new InvalidProtocolBufferException("RpcRequest is missing required fields");
+		}
+		RpcRequestEnvelope request = new RpcRequestEnvelope(hasId, id, serviceName, methodName, isBlockingService, payload);
+		if (hasTimeout && timeoutMillis >= 0) {
+			// The budget is counted from when the request arrived, since the
+			// peers' clocks need not agree
+			request.setTimeout(timeoutMillis, System.nanoTime());
+		}
+		request.setCompression(compression);
+		if (streamWindow > 0) {
+			request.setStreamWindow(streamWindow);
+			request.setClientStream(clientStream);
+		}
+		if (priority != null) {
+			request.setPriority(priority);
+		}
+		return request;
+	}
+	
+	static RpcResponseEnvelope decodeResponse(ChannelBuffer frame) throws InvalidProtocolBufferException {
+		boolean hasId = false;
+		int id = 0;
+		ChannelBuffer payload = null;
+		ErrorCode errorCode = null;
+		String errorMessage = null;
+		Compression compression = null;
+		boolean endOfStream = false;
+		while (frame.readable()) {
+			int tag = readRawVarint32(frame);
+			if (tag == RESPONSE_ID_TAG) {
+				hasId = true;
+				id = readRawVarint32(frame);
+			} else if (tag == RESPONSE_MESSAGE_TAG) {
+				payload = readBytes(frame);
+			} else if (tag == ERROR_CODE_TAG) {
+				// Unknown values are dropped, as the generated parser would do
+				errorCode = ErrorCode.valueOf(readRawVarint32(frame));
+			} else if (tag == ERROR_MESSAGE_TAG) {
+				errorMessage = readString(frame);
+			} else if (tag == RESPONSE_COMPRESSION_TAG) {
+				compression = readCompression(frame);
+			} else if (tag == END_OF_STREAM_TAG) {
+				endOfStream = readRawVarint64(frame) != 0;
+			} else {
+				skipField(frame, tag);
+			}
+		}
+		if (!hasId) {
+			throw new InvalidProtocolBufferException("RpcResponse is missing required fields");
+		}
+		RpcResponseEnvelope response = new RpcResponseEnvelope(id, payload, errorCode, errorMessage);
+		response.setCompression(compression);
+		response.setEndOfStream(endOfStream);
+		return response;
+	}
+	
+	/**
+	 * Parses a serialized message held in a received frame without copying
+	 * it into an intermediate ByteString.
+	 */
+	static Message parseMessage(Message prototype, ChannelBuffer payload) throws InvalidProtocolBufferException {
+		Message.Builder builder = prototype.newBuilderForType();
+		if (payload.hasArray()) {
+			builder.mergeFrom(payload.array(), payload.arrayOffset() + payload.readerIndex(), payload.readableBytes());
+		} else {
+			CodedInputStream input = CodedInputStream.newInstance(new ChannelBufferInputStream(payload.duplicate()));
+			input.setSizeLimit(Integer.MAX_VALUE);
+			try {
+				builder.mergeFrom(input);
+			} catch (InvalidProtocolBufferException e) {
+				throw e;
+			} catch (IOException e) {
+				throw new InvalidProtocolBufferException(e.getMessage());
+			}
+		}
+		if (!builder.isInitialized()) {
+			throw new InvalidProtocolBufferException("Message of type " + 
+					prototype.getDescriptorForType().getFullName() + " is missing required fields");
+		}
+		return builder.build();
+	}
+	
+	private static int tag(int fieldNumber, int wireType) {
+		return (fieldNumber << 3) | wireType;
+	}
+	
+	private static byte readRawByte(ChannelBuffer buffer) throws InvalidProtocolBufferException {
+		if (!buffer.readable()) {
+			throw truncated();
+		}
+		return buffer.readByte();
+	}
+	
+	private static int readRawVarint32(ChannelBuffer buffer) throws InvalidProtocolBufferException {
+		// Negative int32 values are sign extended to ten bytes on the wire;
+		// the upper bytes are read and discarded.
+		int result = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			byte b = readRawByte(buffer);
+			if (shift < 32) {
+				result |= (b & 0x7F) << shift;
+			}
+			if (b >= 0) {
+				return result;
+			}
+		}
+		throw new InvalidProtocolBufferException("CodedInputStream encountered a malformed varint.");
+	}
+	
+	private static long readRawVarint64(ChannelBuffer buffer) throws InvalidProtocolBufferException {
+		long result = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			byte b = readRawByte(buffer);
+			result |= (long) (b & 0x7F) << shift;
+			if (b >= 0) {
+				return result;
+			}
+		}
+		throw new InvalidProtocolBufferException("CodedInputStream encountered a malformed varint.");
+	}
+	
+	private static int readLength(ChannelBuffer buffer) throws InvalidProtocolBufferException {
+		int length = readRawVarint32(buffer);
+		if (length < 0) {
+			throw new InvalidProtocolBufferException("Encountered an embedded string or message which claimed to have negative size.");
+		} else if (length > buffer.readableBytes()) {
+			throw truncated();
+		}
+		return length;
+	}
+	
+	/**
+	 * @return the codec, or null for {@link Compression#NONE}
+	 */
+	private static Compression readCompression(ChannelBuffer buffer) throws InvalidProtocolBufferException {
+		int number = readRawVarint32(buffer);
+		Compression compression = Compression.valueOf(number);
+		if (compression == null) {
+			// The payload cannot be read, unlike an unknown error code
+			throw new InvalidProtocolBufferException("Unsupported compression " + number);
+		}
+		return (compression == Compression.NONE) ? null : compression;
+	}
+	
+	private static String readString(ChannelBuffer buffer) throws InvalidProtocolBufferException {
+		int length = readLength(buffer);
+		String value = buffer.toString(buffer.readerIndex(), length, UTF_8);
+		buffer.skipBytes(length);
+		return value;
+	}
+	
+	private static ChannelBuffer readBytes(ChannelBuffer buffer) throws InvalidProtocolBufferException {
+		int length = readLength(buffer);
+		ChannelBuffer value = buffer.slice(buffer.readerIndex(), length);
+		buffer.skipBytes(length);
+		return value;
+	}
+	
+	private static void skipBytes(ChannelBuffer buffer, int length) throws InvalidProtocolBufferException {
+		if (length > buffer.readableBytes()) {
+			throw truncated();
+		}
+		buffer.skipBytes(length);
+	}
+	
+	private static void skipField(ChannelBuffer buffer, int tag) throws InvalidProtocolBufferException {
+		if ((tag >>> 3) == 0) {
+			throw new InvalidProtocolBufferException("Protocol message contained an invalid tag (zero).");
+		}
+		switch (tag & 0x7) {
+		case WIRETYPE_VARINT:
+			readRawVarint64(buffer);
+			break;
+		case WIRETYPE_FIXED64:
+			skipBytes(buffer, 8);
+			break;
+		case WIRETYPE_LENGTH_DELIMITED:
+			skipBytes(buffer, readLength(buffer));
+			break;
+		case WIRETYPE_FIXED32:
+			skipBytes(buffer, 4);
+			break;
+		default:
+			// Groups are not used by the RPC envelopes
+			throw new InvalidProtocolBufferException("Protocol message tag had invalid wire type.");
+		}
+	}
+	
+	private static InvalidProtocolBufferException truncated() {
+		return new InvalidProtocolBufferException(
+				"While parsing a protocol message, the input ended unexpectedly " +
+				"in the middle of a field.");
+	}
+	
+}
@@ -0,0 +1,312 @@
+/*
+ * Copyright (c) 2009 Stephen Tu <stephen_tu@berkeley.edu>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.protobuf.netty;
+
+import java.io.IOException;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipelineCoverage;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.handler.codec.oneone.OneToOneEncoder;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.MessageLite;
+import com.googlecode.protobuf.netty.NettyRpcProto.Priority;
+import com.googlecode.protobuf.netty.NettyRpcProto.RpcChunk;
+import com.googlecode.protobuf.netty.NettyRpcProto.RpcRequest;
+import com.googlecode.protobuf.netty.NettyRpcProto.RpcResponse;
+
+/**
+ * Encodes {@link RpcRequestEnvelope}s, {@link RpcResponseEnvelope}s and plain
+ * protobuf messages into complete length-prefixed frames.
+ * <p>
+ * The frame size is computed up front, so the envelope fields and the
+ * embedded user message are serialized directly into a single buffer of
+ * exactly the right size. The user message is never copied into an
+ * intermediate ByteString, and no separate length prefix buffer is needed.
+ * The bytes on the wire are identical to those of an equivalent
+ * RpcRequest/RpcResponse framed by a 4 byte LengthFieldPrepender.
+ * Envelopes that already hold a serialized payload, such as compressed
+ * ones, have it copied into the frame as is.
+ * <p>
+ * {@link #encodeBatch(ChannelBuffer[], int)} is used by
+ * {@link NettyRpcWriteCoalescer} to send queued frames as one RpcBatch, and
+ * {@link #encodeChunk(int, ChannelBuffer, boolean)} by {@link NettyRpcChunker}
+ * to send a large frame in pieces.
+ */
+@ChannelPipelineCoverage("all")
+class NettyRpcEnvelopeEncoder extends OneToOneEncoder {
+
+	static final int LENGTH_FIELD_LENGTH = 4;
+	
+	private static final int WIRETYPE_LENGTH_DELIMITED = 2;
+	
+	/**
+	 * Frames of calls with a priority other than NORMAL are passed on as
+	 * {@link NettyRpcWriteCoalescer.PrioritizedWrite}s, so that the coalescer
+	 * can order them.
+	 */
+	@Override
+	public void handleDownstream(ChannelHandlerContext ctx, ChannelEvent evt) throws Exception {
+		Priority priority = (evt instanceof MessageEvent) ? priorityOf(((MessageEvent) evt).getMessage()) : null;
+		if (priority == null || priority == Priority.NORMAL) {
+			super.handleDownstream(ctx, evt);
+			return;
+		}
+		MessageEvent e = (MessageEvent) evt;
+		ctx.sendDownstream(new NettyRpcWriteCoalescer.PrioritizedWrite(e.getChannel(), e.getFuture(), 
+				encode(ctx, e.getChannel(), e.getMessage()), e.getRemoteAddress(), priority));
+	}
+	
+	private static Priority priorityOf(Object msg) {
+		if (msg instanceof RpcRequestEnvelope) {
+			return ((RpcRequestEnvelope) msg).getPriority();
+		} else if (msg instanceof RpcResponseEnvelope) {
+			return ((RpcResponseEnvelope) msg).getPriority();
+		}
+		return null;
+	}
+	
+	@Override
+	protected Object encode(ChannelHandlerContext ctx, Channel channel, Object msg) throws Exception {
+		if (msg instanceof RpcRequestEnvelope) {
+			return encodeRequest((RpcRequestEnvelope) msg);
+		} else if (msg instanceof RpcResponseEnvelope) {
+			return encodeResponse((RpcResponseEnvelope) msg);
+		} else if (msg instanceof MessageLite) {
+			return encodeMessage((MessageLite) msg);
+		}
+		return msg;
+	}
+	
+	static ChannelBuffer encodeRequest(RpcRequestEnvelope request) throws Exception {
+		int size = 0;
+		if (request.hasId()) {
+			size += CodedOutputStream.computeInt32Size(RpcRequest.ID_FIELD_NUMBER, request.getId());
+		}
+		size += CodedOutputStream.computeStringSize(RpcRequest.SERVICE_NAME_FIELD_NUMBER, request.getServiceName());
+		size += CodedOutputStream.computeStringSize(RpcRequest.METHOD_NAME_FIELD_NUMBER, request.getMethodName());
+		size += CodedOutputStream.computeBoolSize(RpcRequest.IS_BLOCKING_SERVICE_FIELD_NUMBER, request.isBlockingService());
+		if (request.getRequestMessage() != null) {
+			size += CodedOutputStream.computeMessageSize(RpcRequest.REQUEST_MESSAGE_FIELD_NUMBER, request.getRequestMessage());
+		} else {
+			size += computeBytesSize(RpcRequest.REQUEST_MESSAGE_FIELD_NUMBER, request.getPayload());
+		}
+		if (request.hasTimeout()) {
+			size += CodedOutputStream.computeUInt32Size(RpcRequest.TIMEOUT_MS_FIELD_NUMBER, request.getTimeoutMillis());
+		}
+		if (request.getCompression() != null) {
+			size += CodedOutputStream.computeEnumSize(RpcRequest.COMPRESSION_FIELD_NUMBER, request.getCompression().getNumber());
+		}
+		if (request.isStreaming()) {
+			size += CodedOutputStream.computeUInt32Size(RpcRequest.STREAM_WINDOW_FIELD_NUMBER, request.getStreamWindow());
+		}
+		if (request.isClientStream()) {
+			size += CodedOutputStream.computeBoolSize(RpcRequest.CLIENT_STREAM_FIELD_NUMBER, true);
+		}
+		if (request.getPriority() != Priority.NORMAL) {
+			size += CodedOutputStream.computeEnumSize(RpcRequest.PRIORITY_FIELD_NUMBER, request.getPriority().getNumber());
+		}
+		
+		ChannelBuffer frame = newFrame(size);
+		CodedOutputStream output = newOutput(frame, size);
+		if (request.hasId()) {
+			output.writeInt32(RpcRequest.ID_FIELD_NUMBER, request.getId());
+		}
+		output.writeString(RpcRequest.SERVICE_NAME_FIELD_NUMBER, request.getServiceName());
+		output.writeString(RpcRequest.METHOD_NAME_FIELD_NUMBER, request.getMethodName());
+		output.writeBool(RpcRequest.IS_BLOCKING_SERVICE_FIELD_NUMBER, request.isBlockingService());
+		// An embedded message has the same wire format as a bytes field
+		// holding its serialized form.
+		if (request.getRequestMessage() != null) {
+			output.writeMessage(RpcRequest.REQUEST_MESSAGE_FIELD_NUMBER, request.getRequestMessage());
+		} else {
+			writeBytes(output, RpcRequest.REQUEST_MESSAGE_FIELD_NUMBER, request.getPayload());
+		}
+		if (request.hasTimeout()) {
+			output.writeUInt32(RpcRequest.TIMEOUT_MS_FIELD_NUMBER, request.getTimeoutMillis());
+		}
+		if (request.getCompression() != null) {
+			output.writeEnum(RpcRequest.COMPRESSION_FIELD_NUMBER, request.getCompression().getNumber());
+		}
+		if (request.isStreaming()) {
+			output.writeUInt32(RpcRequest.STREAM_WINDOW_FIELD_NUMBER, request.getStreamWindow());
+		}
+		if (request.isClientStream()) {
+			output.writeBool(RpcRequest.CLIENT_STREAM_FIELD_NUMBER, true);
+		}
+		if (request.getPriority() != Priority.NORMAL) {
+			output.writeEnum(RpcRequest.PRIORITY_FIELD_NUMBER, request.getPriority().getNumber());
+		}
+		return finishFrame(frame, output, size);
+	}
+	
+	static ChannelBuffer encodeResponse(RpcResponseEnvelope response) throws Exception {
+		int size = CodedOutputStream.computeInt32Size(RpcResponse.ID_FIELD_NUMBER, response.getId());
+		if (response.getResponseMessage() != null) {
+			size += CodedOutputStream.computeMessageSize(RpcResponse.RESPONSE_MESSAGE_FIELD_NUMBER, response.getResponseMessage());
+		} else if (response.getPayload() != null) {
+			size += computeBytesSize(RpcResponse.RESPONSE_MESSAGE_FIELD_NUMBER, response.getPayload());
+		}
+		if (response.getErrorCode() != null) {
+			size += CodedOutputStream.computeEnumSize(RpcResponse.ERROR_CODE_FIELD_NUMBER, response.getErrorCode().getNumber());
+		}
+		if (response.getErrorMessage() != null) {
+			size += CodedOutputStream.computeStringSize(RpcResponse.ERROR_MESSAGE_FIELD_NUMBER, response.getErrorMessage());
+		}
+		if (response.getCompression() != null) {
+			size += CodedOutputStream.computeEnumSize(RpcResponse.COMPRESSION_FIELD_NUMBER, response.getCompression().getNumber());
+		}
+		if (response.isEndOfStream()) {
+			size += CodedOutputStream.computeBoolSize(RpcResponse.END_OF_STREAM_FIELD_NUMBER, true);
+		}
+		
+		ChannelBuffer frame = newFrame(size);
+		CodedOutputStream output = newOutput(frame, size);
+		output.writeInt32(RpcResponse.ID_FIELD_NUMBER, response.getId());
+		if (response.getResponseMessage() != null) {
+			output.writeMessage(RpcResponse.RESPONSE_MESSAGE_FIELD_NUMBER, response.getResponseMessage());
+		} else if (response.getPayload() != null) {
+			writeBytes(output, RpcResponse.RESPONSE_MESSAGE_FIELD_NUMBER, response.getPayload());
+		}
+		if (response.getErrorCode() != null) {
+			output.writeEnum(RpcResponse.ERROR_CODE_FIELD_NUMBER, response.getErrorCode().getNumber());
+		}
+		if (response.getErrorMessage() != null) {
+			output.writeString(RpcResponse.ERROR_MESSAGE_FIELD_NUMBER, response.getErrorMessage());
+		}
+		if (response.getCompression() != null) {
+			output.writeEnum(RpcResponse.COMPRESSION_FIELD_NUMBER, response.getCompression().getNumber());
+		}
+		if (response.isEndOfStream()) {
+			output.writeBool(RpcResponse.END_OF_STREAM_FIELD_NUMBER, true);
+		}
+		return finishFrame(frame, output, size);
+	}
+	
+	static ChannelBuffer encodeMessage(MessageLite message) throws Exception {
+		int size = message.getSerializedSize();
+		ChannelBuffer frame = newFrame(size);
+		CodedOutputStream output = newOutput(frame, size);
+		message.writeTo(output);
+		return finishFrame(frame, output, size);
+	}
+	
+	/**
+	 * Joins complete frames into a single RpcBatch frame without copying
+	 * them: the length prefix of each frame is replaced by the tag and length
+	 * of a <code>fieldNumber</code> element.
+	 */
+	/**
+	 * Returns true if the frame holds an RpcRequest or RpcResponse, which can
+	 * go into a batch, as opposed to an RpcControl.
+	 */
+	static boolean isEnvelopeFrame(ChannelBuffer frame) {
+		return frame.readableBytes() <= LENGTH_FIELD_LENGTH || 
+				(frame.getByte(frame.readerIndex() + LENGTH_FIELD_LENGTH) & 0x80) == 0;
+	}
+	
+	static ChannelBuffer encodeBatch(ChannelBuffer[] frames, int fieldNumber) throws IOException {
+		ChannelBuffer[] parts = new ChannelBuffer[1 + frames.length * 2];
+		int size = 0;
+		for (int i = 0; i < frames.length; i++) {
+			ChannelBuffer frame = frames[i];
+			ChannelBuffer body = frame.slice(frame.readerIndex() + LENGTH_FIELD_LENGTH, 
+					frame.readableBytes() - LENGTH_FIELD_LENGTH);
+			int headerSize = CodedOutputStream.computeTagSize(fieldNumber) + 
+					CodedOutputStream.computeRawVarint32Size(body.readableBytes());
+			ChannelBuffer header = ChannelBuffers.buffer(headerSize);
+			CodedOutputStream output = newOutput(header, headerSize);
+			output.writeTag(fieldNumber, WIRETYPE_LENGTH_DELIMITED);
+			output.writeRawVarint32(body.readableBytes());
+			parts[1 + i * 2] = finishFrame(header, output, headerSize);
+			parts[2 + i * 2] = body;
+			size += headerSize + body.readableBytes();
+		}
+		ChannelBuffer prefix = ChannelBuffers.buffer(LENGTH_FIELD_LENGTH);
+		prefix.writeInt(size);
+		parts[0] = prefix;
+		return ChannelBuffers.wrappedBuffer(parts);
+	}
+	
+	/**
+	 * Frames a piece of a larger frame as an RpcChunk without copying
+	 * <code>data</code>.
+	 */
+	static ChannelBuffer encodeChunk(int transfer, ChannelBuffer data, boolean last) throws IOException {
+		int length = data.readableBytes();
+		int headerSize = CodedOutputStream.computeUInt32Size(RpcChunk.TRANSFER_FIELD_NUMBER, transfer) + 
+				CodedOutputStream.computeTagSize(RpcChunk.DATA_FIELD_NUMBER) + 
+				CodedOutputStream.computeRawVarint32Size(length);
+		if (last) {
+			headerSize += CodedOutputStream.computeBoolSize(RpcChunk.LAST_FIELD_NUMBER, true);
+		}
+		ChannelBuffer header = ChannelBuffers.buffer(LENGTH_FIELD_LENGTH + headerSize);
+		header.writeInt(headerSize + length);
+		CodedOutputStream output = newOutput(header, headerSize);
+		output.writeUInt32(RpcChunk.TRANSFER_FIELD_NUMBER, transfer);
+		if (last) {
+			output.writeBool(RpcChunk.LAST_FIELD_NUMBER, true);
+		}
+		output.writeTag(RpcChunk.DATA_FIELD_NUMBER, WIRETYPE_LENGTH_DELIMITED);
+		output.writeRawVarint32(length);
+		return ChannelBuffers.wrappedBuffer(finishFrame(header, output, headerSize), data);
+	}
+	
+	private static int computeBytesSize(int fieldNumber, ChannelBuffer payload) {
+		int length = payload.readableBytes();
+		return CodedOutputStream.computeTagSize(fieldNumber) + CodedOutputStream.computeRawVarint32Size(length) + length;
+	}
+	
+	private static void writeBytes(CodedOutputStream output, int fieldNumber, ChannelBuffer payload) throws IOException {
+		output.writeTag(fieldNumber, WIRETYPE_LENGTH_DELIMITED);
+		output.writeRawVarint32(payload.readableBytes());
+		if (payload.hasArray()) {
+			output.writeRawBytes(payload.array(), payload.arrayOffset() + payload.readerIndex(), payload.readableBytes());
+		} else {
+			byte[] bytes = new byte[payload.readableBytes()];
+			payload.getBytes(payload.readerIndex(), bytes);
+			output.writeRawBytes(bytes);
+		}
+	}
+	
+	private static ChannelBuffer newFrame(int size) {
+		ChannelBuffer frame = ChannelBuffers.buffer(LENGTH_FIELD_LENGTH + size);
+		frame.writeInt(size);
+		return frame;
+	}
+	
+	private static CodedOutputStream newOutput(ChannelBuffer frame, int size) {
+		return CodedOutputStream.newInstance(frame.array(), frame.arrayOffset() + frame.writerIndex(), size);
+	}
+	
+	private static ChannelBuffer finishFrame(ChannelBuffer frame, CodedOutputStream output, int size) throws IOException {
+		output.checkNoSpaceLeft();
+		frame.writerIndex(frame.writerIndex() + size);
+		return frame;
+	}
+	
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2009 Stephen Tu <stephen_tu@berkeley.edu>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.protobuf.netty;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+import com.google.protobuf.Descriptors.MethodDescriptor;
+
+/**
+ * The per-method metrics of one server or client. Each method's metrics are
+ * published in the platform MBean server as
+ * <code>com.googlecode.protobuf.netty:type=Server,name=server-1,service=...,method=...</code>
+ * once it is first called or served. Publishing is best effort: the
+ * metrics are kept even if the MBean server refuses them.
+ */
+class NettyRpcMetrics {
+
+	private static final Logger logger = Logger.getLogger(NettyRpcMetrics.class);
+	
+	static final String DOMAIN = "com.googlecode.protobuf.netty";
+	
+	private static final AtomicInteger servers = new AtomicInteger();
+	private static final AtomicInteger clients = new AtomicInteger();
+	
+	private final String type;
+	// Full method name -> metrics
+	private final ConcurrentMap<String, RpcMethodMetrics> methods = new ConcurrentHashMap<String, RpcMethodMetrics>();
+	
+	// Guarded by this
+	private String name;
+	private boolean published = true;
+	
+	/**
+	 * @param type "Server" or "Client"
+	 */
+	NettyRpcMetrics(String type) {
+		this.type = type;
+		AtomicInteger instances = "Server".equals(type) ? servers : clients;
+		this.name = type.toLowerCase() + "-" + instances.incrementAndGet();
+	}
+	
+	RpcMethodMetrics forMethod(MethodDescriptor method) {
+		RpcMethodMetrics metrics = methods.get(method.getFullName());
+		if (metrics == null) {
+			metrics = new RpcMethodMetrics(method.getService().getFullName(), method.getName());
+			RpcMethodMetrics existing = methods.putIfAbsent(method.getFullName(), metrics);
+			if (existing != null) {
+				return existing;
+			}
+			publish(metrics);
+		}
+		return metrics;
+	}
+	
+	/**
+	 * Republishes the metrics under the given name.
+	 */
+	synchronized void setName(String name) {
+		if (name == null || name.length() == 0) {
+			throw new IllegalArgumentException("Must provide a name");
+		}
+		for (RpcMethodMetrics metrics : methods.values()) {
+			unpublish(metrics);
+		}
+		this.name = name;
+		for (RpcMethodMetrics metrics : methods.values()) {
+			publish(metrics);
+		}
+	}
+	
+	/**
+	 * Removes the MBeans, for good.
+	 */
+	synchronized void close() {
+		published = false;
+		for (RpcMethodMetrics metrics : methods.values()) {
+			unpublish(metrics);
+		}
+	}
+	
+	private synchronized void publish(RpcMethodMetrics metrics) {
+		if (!published) {
+			return;
+		}
+		try {
+			mbeanServer().registerMBean(metrics, objectName(metrics));
+		} catch (JMException e) {
+			logger.warn("Could not publish metrics of " + metrics.getServiceName() + "." + metrics.getMethodName(), e);
+		} catch (SecurityException e) {
+			logger.warn("Not allowed to publish metrics", e);
+		}
+	}
+	
+	private synchronized void unpublish(RpcMethodMetrics metrics) {
+		try {
+			ObjectName objectName = objectName(metrics);
+			if (mbeanServer().isRegistered(objectName)) {
+				mbeanServer().unregisterMBean(objectName);
+			}
+		} catch (JMException e) {
+			logger.warn("Could not remove metrics of " + metrics.getServiceName() + "." + metrics.getMethodName(), e);
+		} catch (SecurityException e) {
+			logger.warn("Not allowed to remove metrics", e);
+		}
+	}
+	
+	private ObjectName objectName(RpcMethodMetrics metrics) throws JMException {
+		return new ObjectName(DOMAIN + ":type=" + type + ",name=" + quote(name) + 
+				",service=" + quote(metrics.getServiceName()) + ",method=" + quote(metrics.getMethodName()));
+	}
+	
+	private static String quote(String value) {
+		for (int i = 0; i < value.length(); i++) {
+			if (",=:\"*?\n".indexOf(value.charAt(i)) >= 0) {
+				return ObjectName.quote(value);
+			}
+		}
+		return value;
+	}
+	
+	private static MBeanServer mbeanServer() {
+		return ManagementFactory.getPlatformMBeanServer();
+	}
+	
+}
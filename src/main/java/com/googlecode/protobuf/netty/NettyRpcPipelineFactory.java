@@ -1,59 +1,193 @@
-/*
- * Copyright (c) 2009 Stephen Tu <stephen_tu@berkeley.edu>
- *
- * Permission is hereby granted, free of charge, to any person obtaining a copy
- * of this software and associated documentation files (the "Software"), to deal
- * in the Software without restriction, including without limitation the rights
- * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
- * copies of the Software, and to permit persons to whom the Software is
- * furnished to do so, subject to the following conditions:
- *
- * The above copyright notice and this permission notice shall be included in
- * all copies or substantial portions of the Software.
- *
- * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
- * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
- * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
- * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
- * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
- * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
- * THE SOFTWARE.
- */
-package com.googlecode.protobuf.netty;
-
-import org.jboss.netty.channel.ChannelPipeline;
-import org.jboss.netty.channel.ChannelPipelineFactory;
-import org.jboss.netty.channel.Channels;
-import org.jboss.netty.handler.codec.frame.LengthFieldBasedFrameDecoder;
-import org.jboss.netty.handler.codec.frame.LengthFieldPrepender;
-import org.jboss.netty.handler.codec.protobuf.ProtobufDecoder;
-import org.jboss.netty.handler.codec.protobuf.ProtobufEncoder;
-
-import com.google.protobuf.Message;
-
-class NettyRpcPipelineFactory implements ChannelPipelineFactory {
-
-	private final ChannelUpstreamHandlerFactory handlerFactory;
-	private final Message defaultInstance;
-
-	NettyRpcPipelineFactory(ChannelUpstreamHandlerFactory handlerFactory, Message defaultInstance) {
-		this.handlerFactory = handlerFactory;
-		this.defaultInstance = defaultInstance;
-	}
-
-	public ChannelPipeline getPipeline() throws Exception {
-		ChannelPipeline p = Channels.pipeline();
-		p.addLast("frameDecoder", new LengthFieldBasedFrameDecoder(MAX_FRAME_BYTES_LENGTH, 0, 4, 0, 4));
-		p.addLast("protobufDecoder", new ProtobufDecoder(defaultInstance));
-
-		p.addLast("frameEncoder", new LengthFieldPrepender(4));
-		p.addLast("protobufEncoder", new ProtobufEncoder());
-
-		p.addLast("handler", handlerFactory.getChannelUpstreamHandler());
-		return p;
-	}
-
-    // Since Netty 3.2.7.Final, it's safe to use Integer.MAX_VALUE
-    // For more information see: http://stackoverflow.com/questions/8065022/how-to-use-unlimited-frame-sizes-in-jboss-netty-without-wasting-memory
-	private static final int MAX_FRAME_BYTES_LENGTH = Integer.MAX_VALUE;
-}
+/*
+ * Copyright (c) 2009 Stephen Tu <stephen_tu@berkeley.edu>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.protobuf.netty;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.ChannelUpstreamHandler;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.handler.codec.frame.LengthFieldBasedFrameDecoder;
+import org.jboss.netty.handler.execution.ExecutionHandler;
+
+import com.googlecode.protobuf.netty.NettyRpcProto.Compression;
+import com.googlecode.protobuf.netty.NettyRpcProto.RpcBatch;
+
+class NettyRpcPipelineFactory implements ChannelPipelineFactory {
+
+	private final ChannelUpstreamHandlerFactory handlerFactory;
+	private final NettyRpcEnvelopeDecoder envelopeDecoder;
+	private final ChannelUpstreamHandler callTracker;
+	private volatile ExecutionHandler executionHandler;
+	private volatile long writeWindowNanos;
+	private volatile boolean batchWrites;
+	private volatile Compression compression = Compression.NONE;
+	private volatile int compressionMinBytes;
+	private volatile int chunkSize;
+	private volatile long maxReassemblyBytes = NettyRpcChunkAssembler.DEFAULT_MAX_REASSEMBLY_BYTES;
+	private ScheduledExecutorService flushScheduler;
+
+	NettyRpcPipelineFactory(ChannelUpstreamHandlerFactory handlerFactory, NettyRpcEnvelopeDecoder envelopeDecoder) {
+		this(handlerFactory, envelopeDecoder, null);
+	}
+	
+	/**
+	 * @param callTracker if not null, sees every decoded message before any
+	 * executor does
+	 */
+	NettyRpcPipelineFactory(ChannelUpstreamHandlerFactory handlerFactory, NettyRpcEnvelopeDecoder envelopeDecoder, 
+			ChannelUpstreamHandler callTracker) {
+		this.handlerFactory = handlerFactory;
+		this.envelopeDecoder = envelopeDecoder;
+		this.callTracker = callTracker;
+	}
+	
+	/**
+	 * Hands decoded messages to the given executor instead of running the
+	 * handler on the I/O worker thread. Pass null to handle them inline.
+	 * Only affects pipelines created after the call.
+	 */
+	void setExecutionHandler(ExecutionHandler executionHandler) {
+		this.executionHandler = executionHandler;
+	}
+
+	/**
+	 * Lets frames written outside a read be held for up to the given time so
+	 * they can be written together. Only affects pipelines created after the
+	 * call.
+	 */
+	synchronized void setWriteWindow(long windowNanos) {
+		if (windowNanos > 0 && flushScheduler == null) {
+			flushScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "NettyRpc write flusher");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		this.writeWindowNanos = windowNanos;
+	}
+	
+	/**
+	 * Sends queued frames as RpcBatch frames from the start of each
+	 * connection. Otherwise batching is only enabled on a connection once
+	 * its peer has sent a batch. Only affects pipelines created after the
+	 * call.
+	 */
+	void setBatchWrites(boolean batchWrites) {
+		this.batchWrites = batchWrites;
+	}
+	
+	/**
+	 * Compresses messages of at least <code>minBytes</code> with the given
+	 * codec on connections whose peer can decode it. Servers always take
+	 * part in the negotiation, so that they can decode compressed requests;
+	 * clients only do when compression is on. Only affects pipelines created
+	 * after the call.
+	 */
+	void setCompression(Compression compression, int minBytes) {
+		this.compressionMinBytes = minBytes;
+		this.compression = compression;
+	}
+	
+	/**
+	 * Sends frames larger than <code>chunkSize</code> in pieces on
+	 * connections whose peer can reassemble them. Servers always take part in
+	 * the negotiation, so that they can reassemble requests; clients only do
+	 * when chunking is on. Only affects pipelines created after the call.
+	 */
+	void setChunkSize(int chunkSize) {
+		this.chunkSize = chunkSize;
+	}
+	
+	/**
+	 * Limits how many bytes of frames received in pieces each connection
+	 * holds, and how large a compressed message may expand to. Only affects
+	 * pipelines created after the call.
+	 */
+	void setMaxReassemblyBytes(long maxReassemblyBytes) {
+		this.maxReassemblyBytes = maxReassemblyBytes;
+	}
+	
+	synchronized void releaseExternalResources() {
+		if (flushScheduler != null) {
+			flushScheduler.shutdown();
+			flushScheduler = null;
+		}
+	}
+
+	public ChannelPipeline getPipeline() throws Exception {
+		ChannelPipeline p = Channels.pipeline();
+		p.addLast("writeCoalescer", newWriteCoalescer());
+		p.addLast("frameDecoder", new LengthFieldBasedFrameDecoder(MAX_FRAME_BYTES_LENGTH, 0, 4, 0, 4));
+		
+		int chunkSize = this.chunkSize;
+		boolean chunking = chunkSize > 0 || envelopeDecoder.decodesRequests();
+		if (chunking) {
+			p.addLast("chunkAssembler", new NettyRpcChunkAssembler(maxReassemblyBytes, 
+					envelopeDecoder.decodesRequests()));
+		}
+		p.addLast("envelopeDecoder", envelopeDecoder);
+		if (chunking) {
+			// Sees encoded frames on their way out
+			p.addLast("chunker", new NettyRpcChunker(chunkSize, !envelopeDecoder.decodesRequests()));
+		}
+
+		p.addLast("envelopeEncoder", ENVELOPE_ENCODER);
+
+		Compression compression = this.compression;
+		if (compression != Compression.NONE || envelopeDecoder.decodesRequests()) {
+			// A message may not decompress to more than one that arrived in
+			// pieces could take up
+			p.addLast("compression", new NettyRpcCompressionHandler(compression, compressionMinBytes, 
+					!envelopeDecoder.decodesRequests(), Math.min(maxReassemblyBytes, MAX_FRAME_BYTES_LENGTH)));
+		}
+
+		if (callTracker != null) {
+			p.addLast("callTracker", callTracker);
+		}
+
+		ExecutionHandler executionHandler = this.executionHandler;
+		if (executionHandler != null) {
+			p.addLast("executor", executionHandler);
+		}
+		p.addLast("handler", handlerFactory.getChannelUpstreamHandler());
+		return p;
+	}
+
+	private synchronized NettyRpcWriteCoalescer newWriteCoalescer() {
+		int batchFieldNumber = envelopeDecoder.decodesRequests() ? 
+				RpcBatch.RESPONSE_FIELD_NUMBER : RpcBatch.REQUEST_FIELD_NUMBER;
+		return new NettyRpcWriteCoalescer(writeWindowNanos, flushScheduler, batchFieldNumber, batchWrites);
+	}
+
+    // Since Netty 3.2.7.Final, it's safe to use Integer.MAX_VALUE
+    // For more information see: http://stackoverflow.com/questions/8065022/how-to-use-unlimited-frame-sizes-in-jboss-netty-without-wasting-memory
+	private static final int MAX_FRAME_BYTES_LENGTH = Integer.MAX_VALUE;
+
+	// Writes the length prefix itself, so no LengthFieldPrepender is needed
+	private static final NettyRpcEnvelopeEncoder ENVELOPE_ENCODER = new NettyRpcEnvelopeEncoder();
+}
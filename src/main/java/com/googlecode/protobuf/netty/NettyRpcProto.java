@@ -41,6 +41,10 @@ public final class NettyRpcProto {
     BAD_RESPONSE_PROTO(7, 7),
     UNKNOWN_HOST(8, 8),
     IO_ERROR(9, 9),
+    TIMEOUT(10, 10),
+    CHANNEL_FULL(11, 11),
+    OVERLOADED(12, 12),
+    MESSAGE_TOO_LARGE(13, 13),
     ;
     
     
@@ -58,6 +62,10 @@ public final class NettyRpcProto {
         case 7: return BAD_RESPONSE_PROTO;
         case 8: return UNKNOWN_HOST;
         case 9: return IO_ERROR;
+        case 10: return TIMEOUT;
+        case 11: return CHANNEL_FULL;
+        case 12: return OVERLOADED;
+        case 13: return MESSAGE_TOO_LARGE;
         default: return null;
       }
     }
@@ -88,7 +96,7 @@ public final class NettyRpcProto {
     }
     
     private static final ErrorCode[] VALUES = {
-      BAD_REQUEST_DATA, BAD_REQUEST_PROTO, SERVICE_NOT_FOUND, METHOD_NOT_FOUND, RPC_ERROR, RPC_FAILED, INVALID_REQUEST_PROTO, BAD_RESPONSE_PROTO, UNKNOWN_HOST, IO_ERROR, 
+      BAD_REQUEST_DATA, BAD_REQUEST_PROTO, SERVICE_NOT_FOUND, METHOD_NOT_FOUND, RPC_ERROR, RPC_FAILED, INVALID_REQUEST_PROTO, BAD_RESPONSE_PROTO, UNKNOWN_HOST, IO_ERROR, TIMEOUT, CHANNEL_FULL, OVERLOADED, MESSAGE_TOO_LARGE, 
     };
     public static ErrorCode valueOf(
         com.google.protobuf.Descriptors.EnumValueDescriptor desc) {
@@ -110,6 +118,140 @@ public final class NettyRpcProto {
     }
   }
   
+  public enum Compression
+      implements com.google.protobuf.ProtocolMessageEnum {
+    NONE(0, 0),
+    LZ4(1, 1),
+    DEFLATE(2, 2),
+    ;
+    
+    
+    public final int getNumber() { return value; }
+    
+    public static Compression valueOf(int value) {
+      switch (value) {
+        case 0: return NONE;
+        case 1: return LZ4;
+        case 2: return DEFLATE;
+        default: return null;
+      }
+    }
+    
+    public static com.google.protobuf.Internal.EnumLiteMap<Compression>
+        internalGetValueMap() {
+      return internalValueMap;
+    }
+    private static com.google.protobuf.Internal.EnumLiteMap<Compression>
+        internalValueMap =
+          new com.google.protobuf.Internal.EnumLiteMap<Compression>() {
+            public Compression findValueByNumber(int number) {
+              return Compression.valueOf(number)
+    ;        }
+          };
+    
+    public final com.google.protobuf.Descriptors.EnumValueDescriptor
+        getValueDescriptor() {
+      return getDescriptor().getValues().get(index);
+    }
+    public final com.google.protobuf.Descriptors.EnumDescriptor
+        getDescriptorForType() {
+      return getDescriptor();
+    }
+    public static final com.google.protobuf.Descriptors.EnumDescriptor
+        getDescriptor() {
+      return com.googlecode.protobuf.netty.NettyRpcProto.getDescriptor().getEnumTypes().get(1);
+    }
+    
+    private static final Compression[] VALUES = {
+      NONE, LZ4, DEFLATE, 
+    };
+    public static Compression valueOf(
+        com.google.protobuf.Descriptors.EnumValueDescriptor desc) {
+      if (desc.getType() != getDescriptor()) {
+        throw new java.lang.IllegalArgumentException(
+          "EnumValueDescriptor is not for this type.");
+      }
+      return VALUES[desc.getIndex()];
+    }
+    private final int index;
+    private final int value;
+    private Compression(int index, int value) {
+      this.index = index;
+      this.value = value;
+    }
+    
+    static {
+      com.googlecode.protobuf.netty.NettyRpcProto.getDescriptor();
+    }
+  }
+  
+  public enum Priority
+      implements com.google.protobuf.ProtocolMessageEnum {
+    NORMAL(0, 0),
+    INTERACTIVE(1, 1),
+    BATCH(2, 2),
+    ;
+    
+    
+    public final int getNumber() { return value; }
+    
+    public static Priority valueOf(int value) {
+      switch (value) {
+        case 0: return NORMAL;
+        case 1: return INTERACTIVE;
+        case 2: return BATCH;
+        default: return null;
+      }
+    }
+    
+    public static com.google.protobuf.Internal.EnumLiteMap<Priority>
+        internalGetValueMap() {
+      return internalValueMap;
+    }
+    private static com.google.protobuf.Internal.EnumLiteMap<Priority>
+        internalValueMap =
+          new com.google.protobuf.Internal.EnumLiteMap<Priority>() {
+            public Priority findValueByNumber(int number) {
+              return Priority.valueOf(number)
+    ;        }
+          };
+    
+    public final com.google.protobuf.Descriptors.EnumValueDescriptor
+        getValueDescriptor() {
+      return getDescriptor().getValues().get(index);
+    }
+    public final com.google.protobuf.Descriptors.EnumDescriptor
+        getDescriptorForType() {
+      return getDescriptor();
+    }
+    public static final com.google.protobuf.Descriptors.EnumDescriptor
+        getDescriptor() {
+      return com.googlecode.protobuf.netty.NettyRpcProto.getDescriptor().getEnumTypes().get(2);
+    }
+    
+    private static final Priority[] VALUES = {
+      NORMAL, INTERACTIVE, BATCH, 
+    };
+    public static Priority valueOf(
+        com.google.protobuf.Descriptors.EnumValueDescriptor desc) {
+      if (desc.getType() != getDescriptor()) {
+        throw new java.lang.IllegalArgumentException(
+          "EnumValueDescriptor is not for this type.");
+      }
+      return VALUES[desc.getIndex()];
+    }
+    private final int index;
+    private final int value;
+    private Priority(int index, int value) {
+      this.index = index;
+      this.value = value;
+    }
+    
+    static {
+      com.googlecode.protobuf.netty.NettyRpcProto.getDescriptor();
+    }
+  }
+  
   public static final class RpcRequest extends
       com.google.protobuf.GeneratedMessage {
     // Use RpcRequest.newBuilder() to construct.
@@ -169,6 +311,41 @@ public final class NettyRpcProto {
     public boolean hasRequestMessage() { return hasRequestMessage; }
     public com.google.protobuf.ByteString getRequestMessage() { return requestMessage_; }
     
+    // optional uint32 timeout_ms = 6;
+    public static final int TIMEOUT_MS_FIELD_NUMBER = 6;
+    private boolean hasTimeoutMs;
+    private int timeoutMs_ = 0;
+    public boolean hasTimeoutMs() { return hasTimeoutMs; }
+    public int getTimeoutMs() { return timeoutMs_; }
+    
+    // optional .Compression compression = 7;
+    public static final int COMPRESSION_FIELD_NUMBER = 7;
+    private boolean hasCompression;
+    private com.googlecode.protobuf.netty.NettyRpcProto.Compression compression_ = com.googlecode.protobuf.netty.NettyRpcProto.Compression.NONE;
+    public boolean hasCompression() { return hasCompression; }
+    public com.googlecode.protobuf.netty.NettyRpcProto.Compression getCompression() { return compression_; }
+    
+    // optional uint32 stream_window = 8;
+    public static final int STREAM_WINDOW_FIELD_NUMBER = 8;
+    private boolean hasStreamWindow;
+    private int streamWindow_ = 0;
+    public boolean hasStreamWindow() { return hasStreamWindow; }
+    public int getStreamWindow() { return streamWindow_; }
+    
+    // optional bool client_stream = 9;
+    public static final int CLIENT_STREAM_FIELD_NUMBER = 9;
+    private boolean hasClientStream;
+    private boolean clientStream_ = false;
+    public boolean hasClientStream() { return hasClientStream; }
+    public boolean getClientStream() { return clientStream_; }
+    
+    // optional .Priority priority = 10;
+    public static final int PRIORITY_FIELD_NUMBER = 10;
+    private boolean hasPriority;
+    private com.googlecode.protobuf.netty.NettyRpcProto.Priority priority_ = com.googlecode.protobuf.netty.NettyRpcProto.Priority.NORMAL;
+    public boolean hasPriority() { return hasPriority; }
+    public com.googlecode.protobuf.netty.NettyRpcProto.Priority getPriority() { return priority_; }
+    
     public final boolean isInitialized() {
       if (!hasServiceName) return false;
       if (!hasMethodName) return false;
@@ -194,6 +371,21 @@ public final class NettyRpcProto {
       if (hasRequestMessage()) {
         output.writeBytes(5, getRequestMessage());
       }
+      if (hasTimeoutMs()) {
+        output.writeUInt32(6, getTimeoutMs());
+      }
+      if (hasCompression()) {
+        output.writeEnum(7, getCompression().getNumber());
+      }
+      if (hasStreamWindow()) {
+        output.writeUInt32(8, getStreamWindow());
+      }
+      if (hasClientStream()) {
+        output.writeBool(9, getClientStream());
+      }
+      if (hasPriority()) {
+        output.writeEnum(10, getPriority().getNumber());
+      }
       getUnknownFields().writeTo(output);
     }
     
@@ -223,6 +415,26 @@ public final class NettyRpcProto {
         size += com.google.protobuf.CodedOutputStream
           .computeBytesSize(5, getRequestMessage());
       }
+      if (hasTimeoutMs()) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeUInt32Size(6, getTimeoutMs());
+      }
+      if (hasCompression()) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeEnumSize(7, getCompression().getNumber());
+      }
+      if (hasStreamWindow()) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeUInt32Size(8, getStreamWindow());
+      }
+      if (hasClientStream()) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeBoolSize(9, getClientStream());
+      }
+      if (hasPriority()) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeEnumSize(10, getPriority().getNumber());
+      }
       size += getUnknownFields().getSerializedSize();
       memoizedSerializedSize = size;
       return size;
@@ -387,6 +599,21 @@ public final class NettyRpcProto {
         if (other.hasRequestMessage()) {
           setRequestMessage(other.getRequestMessage());
         }
+        if (other.hasTimeoutMs()) {
+          setTimeoutMs(other.getTimeoutMs());
+        }
+        if (other.hasCompression()) {
+          setCompression(other.getCompression());
+        }
+        if (other.hasStreamWindow()) {
+          setStreamWindow(other.getStreamWindow());
+        }
+        if (other.hasClientStream()) {
+          setClientStream(other.getClientStream());
+        }
+        if (other.hasPriority()) {
+          setPriority(other.getPriority());
+        }
         this.mergeUnknownFields(other.getUnknownFields());
         return this;
       }
@@ -432,6 +659,38 @@ public final class NettyRpcProto {
               setRequestMessage(input.readBytes());
               break;
             }
+            case 48: {
+              setTimeoutMs(input.readUInt32());
+              break;
+            }
+            case 56: {
+              int rawValue = input.readEnum();
+              com.googlecode.protobuf.netty.NettyRpcProto.Compression value = com.googlecode.protobuf.netty.NettyRpcProto.Compression.valueOf(rawValue);
+              if (value == null) {
+                unknownFields.mergeVarintField(7, rawValue);
+              } else {
+                setCompression(value);
+              }
+              break;
+            }
+            case 64: {
+              setStreamWindow(input.readUInt32());
+              break;
+            }
+            case 72: {
+              setClientStream(input.readBool());
+              break;
+            }
+            case 80: {
+              int rawValue = input.readEnum();
+              com.googlecode.protobuf.netty.NettyRpcProto.Priority value = com.googlecode.protobuf.netty.NettyRpcProto.Priority.valueOf(rawValue);
+              if (value == null) {
+                unknownFields.mergeVarintField(10, rawValue);
+              } else {
+                setPriority(value);
+              }
+              break;
+            }
           }
         }
       }
@@ -535,6 +794,102 @@ public final class NettyRpcProto {
         result.requestMessage_ = getDefaultInstance().getRequestMessage();
         return this;
       }
+      
+      // optional uint32 timeout_ms = 6;
+      public boolean hasTimeoutMs() {
+        return result.hasTimeoutMs();
+      }
+      public int getTimeoutMs() {
+        return result.getTimeoutMs();
+      }
+      public Builder setTimeoutMs(int value) {
+        result.hasTimeoutMs = true;
+        result.timeoutMs_ = value;
+        return this;
+      }
+      public Builder clearTimeoutMs() {
+        result.hasTimeoutMs = false;
+        result.timeoutMs_ = 0;
+        return this;
+      }
+      
+      // optional .Compression compression = 7;
+      public boolean hasCompression() {
+        return result.hasCompression();
+      }
+      public com.googlecode.protobuf.netty.NettyRpcProto.Compression getCompression() {
+        return result.getCompression();
+      }
+      public Builder setCompression(com.googlecode.protobuf.netty.NettyRpcProto.Compression value) {
+        if (value == null) {
+          throw new NullPointerException();
+        }
+        result.hasCompression = true;
+        result.compression_ = value;
+        return this;
+      }
+      public Builder clearCompression() {
+        result.hasCompression = false;
+        result.compression_ = com.googlecode.protobuf.netty.NettyRpcProto.Compression.NONE;
+        return this;
+      }
+      
+      // optional uint32 stream_window = 8;
+      public boolean hasStreamWindow() {
+        return result.hasStreamWindow();
+      }
+      public int getStreamWindow() {
+        return result.getStreamWindow();
+      }
+      public Builder setStreamWindow(int value) {
+        result.hasStreamWindow = true;
+        result.streamWindow_ = value;
+        return this;
+      }
+      public Builder clearStreamWindow() {
+        result.hasStreamWindow = false;
+        result.streamWindow_ = 0;
+        return this;
+      }
+      
+      // optional bool client_stream = 9;
+      public boolean hasClientStream() {
+        return result.hasClientStream();
+      }
+      public boolean getClientStream() {
+        return result.getClientStream();
+      }
+      public Builder setClientStream(boolean value) {
+        result.hasClientStream = true;
+        result.clientStream_ = value;
+        return this;
+      }
+      public Builder clearClientStream() {
+        result.hasClientStream = false;
+        result.clientStream_ = false;
+        return this;
+      }
+      
+      // optional .Priority priority = 10;
+      public boolean hasPriority() {
+        return result.hasPriority();
+      }
+      public com.googlecode.protobuf.netty.NettyRpcProto.Priority getPriority() {
+        return result.getPriority();
+      }
+      public Builder setPriority(com.googlecode.protobuf.netty.NettyRpcProto.Priority value) {
+        if (value == null) {
+          throw new NullPointerException();
+        }
+        result.hasPriority = true;
+        result.priority_ = value;
+        return this;
+      }
+      public Builder clearPriority() {
+        result.hasPriority = false;
+        result.priority_ = com.googlecode.protobuf.netty.NettyRpcProto.Priority.NORMAL;
+        return this;
+      }
     }
     
     static {
@@ -598,6 +953,20 @@ public final class NettyRpcProto {
     public boolean hasErrorMessage() { return hasErrorMessage; }
     public java.lang.String getErrorMessage() { return errorMessage_; }
     
+    // optional .Compression compression = 5;
+    public static final int COMPRESSION_FIELD_NUMBER = 5;
+    private boolean hasCompression;
+    private com.googlecode.protobuf.netty.NettyRpcProto.Compression compression_ = com.googlecode.protobuf.netty.NettyRpcProto.Compression.NONE;
+    public boolean hasCompression() { return hasCompression; }
+    public com.googlecode.protobuf.netty.NettyRpcProto.Compression getCompression() { return compression_; }
+    
+    // optional bool end_of_stream = 6;
+    public static final int END_OF_STREAM_FIELD_NUMBER = 6;
+    private boolean hasEndOfStream;
+    private boolean endOfStream_ = false;
+    public boolean hasEndOfStream() { return hasEndOfStream; }
+    public boolean getEndOfStream() { return endOfStream_; }
+    
     public final boolean isInitialized() {
       if (!hasId) return false;
       return true;
@@ -617,6 +986,12 @@ public final class NettyRpcProto {
       if (hasErrorMessage()) {
         output.writeString(4, getErrorMessage());
       }
+      if (hasCompression()) {
+        output.writeEnum(5, getCompression().getNumber());
+      }
+      if (hasEndOfStream()) {
+        output.writeBool(6, getEndOfStream());
+      }
       getUnknownFields().writeTo(output);
     }
     
@@ -642,6 +1017,14 @@ public final class NettyRpcProto {
         size += com.google.protobuf.CodedOutputStream
           .computeStringSize(4, getErrorMessage());
       }
+      if (hasCompression()) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeEnumSize(5, getCompression().getNumber());
+      }
+      if (hasEndOfStream()) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeBoolSize(6, getEndOfStream());
+      }
       size += getUnknownFields().getSerializedSize();
       memoizedSerializedSize = size;
       return size;
@@ -803,6 +1186,12 @@ public final class NettyRpcProto {
         if (other.hasErrorMessage()) {
           setErrorMessage(other.getErrorMessage());
         }
+        if (other.hasCompression()) {
+          setCompression(other.getCompression());
+        }
+        if (other.hasEndOfStream()) {
+          setEndOfStream(other.getEndOfStream());
+        }
         this.mergeUnknownFields(other.getUnknownFields());
         return this;
       }
@@ -850,6 +1239,20 @@ public final class NettyRpcProto {
               setErrorMessage(input.readString());
               break;
             }
+            case 40: {
+              int rawValue = input.readEnum();
+              com.googlecode.protobuf.netty.NettyRpcProto.Compression value = com.googlecode.protobuf.netty.NettyRpcProto.Compression.valueOf(rawValue);
+              if (value == null) {
+                unknownFields.mergeVarintField(5, rawValue);
+              } else {
+                setCompression(value);
+              }
+              break;
+            }
+            case 48: {
+              setEndOfStream(input.readBool());
+              break;
+            }
           }
         }
       }
@@ -935,6 +1338,45 @@ public final class NettyRpcProto {
         result.errorMessage_ = getDefaultInstance().getErrorMessage();
         return this;
       }
+      
+      // optional .Compression compression = 5;
+      public boolean hasCompression() {
+        return result.hasCompression();
+      }
+      public com.googlecode.protobuf.netty.NettyRpcProto.Compression getCompression() {
+        return result.getCompression();
+      }
+      public Builder setCompression(com.googlecode.protobuf.netty.NettyRpcProto.Compression value) {
+        if (value == null) {
+          throw new NullPointerException();
+        }
+        result.hasCompression = true;
+        result.compression_ = value;
+        return this;
+      }
+      public Builder clearCompression() {
+        result.hasCompression = false;
+        result.compression_ = com.googlecode.protobuf.netty.NettyRpcProto.Compression.NONE;
+        return this;
+      }
+      
+      // optional bool end_of_stream = 6;
+      public boolean hasEndOfStream() {
+        return result.hasEndOfStream();
+      }
+      public boolean getEndOfStream() {
+        return result.getEndOfStream();
+      }
+      public Builder setEndOfStream(boolean value) {
+        result.hasEndOfStream = true;
+        result.endOfStream_ = value;
+        return this;
+      }
+      public Builder clearEndOfStream() {
+        result.hasEndOfStream = false;
+        result.endOfStream_ = false;
+        return this;
+      }
     }
     
     static {
@@ -946,60 +1388,1457 @@ public final class NettyRpcProto {
     }
   }
   
-  private static com.google.protobuf.Descriptors.Descriptor
-    internal_static_RpcRequest_descriptor;
-  private static
-    com.google.protobuf.GeneratedMessage.FieldAccessorTable
-      internal_static_RpcRequest_fieldAccessorTable;
-  private static com.google.protobuf.Descriptors.Descriptor
-    internal_static_RpcResponse_descriptor;
-  private static
-    com.google.protobuf.GeneratedMessage.FieldAccessorTable
-      internal_static_RpcResponse_fieldAccessorTable;
-  
-  public static com.google.protobuf.Descriptors.FileDescriptor
-      getDescriptor() {
-    return descriptor;
-  }
-  private static com.google.protobuf.Descriptors.FileDescriptor
-      descriptor;
-  static {
-    java.lang.String[] descriptorData = {
-      "\n\016nettyrpc.proto\"y\n\nRpcRequest\022\n\n\002id\030\001 \001" +
-      "(\005\022\024\n\014service_name\030\002 \002(\t\022\023\n\013method_name\030" +
-      "\003 \002(\t\022\033\n\023is_blocking_service\030\004 \002(\010\022\027\n\017re" +
-      "quest_message\030\005 \002(\014\"j\n\013RpcResponse\022\n\n\002id" +
-      "\030\001 \002(\005\022\030\n\020response_message\030\002 \001(\014\022\036\n\nerro" +
-      "r_code\030\003 \001(\0162\n.ErrorCode\022\025\n\rerror_messag" +
-      "e\030\004 \001(\t*\327\001\n\tErrorCode\022\024\n\020BAD_REQUEST_DAT" +
-      "A\020\000\022\025\n\021BAD_REQUEST_PROTO\020\001\022\025\n\021SERVICE_NO" +
-      "T_FOUND\020\002\022\024\n\020METHOD_NOT_FOUND\020\003\022\r\n\tRPC_E" +
-      "RROR\020\004\022\016\n\nRPC_FAILED\020\005\022\031\n\025INVALID_REQUES",
-      "T_PROTO\020\006\022\026\n\022BAD_RESPONSE_PROTO\020\007\022\020\n\014UNK" +
-      "NOWN_HOST\020\010\022\014\n\010IO_ERROR\020\tB0\n\035com.googlec" +
-      "ode.protobuf.nettyB\rNettyRpcProtoH\001"
-    };
-    com.google.protobuf.Descriptors.FileDescriptor.InternalDescriptorAssigner assigner =
-      new com.google.protobuf.Descriptors.FileDescriptor.InternalDescriptorAssigner() {
-        public com.google.protobuf.ExtensionRegistry assignDescriptors(
-            com.google.protobuf.Descriptors.FileDescriptor root) {
-          descriptor = root;
-          internal_static_RpcRequest_descriptor =
-            getDescriptor().getMessageTypes().get(0);
-          internal_static_RpcRequest_fieldAccessorTable = new
-            com.google.protobuf.GeneratedMessage.FieldAccessorTable(
-              internal_static_RpcRequest_descriptor,
-              new java.lang.String[] { "Id", "ServiceName", "MethodName", "IsBlockingService", "RequestMessage", },
-              com.googlecode.protobuf.netty.NettyRpcProto.RpcRequest.class,
-              com.googlecode.protobuf.netty.NettyRpcProto.RpcRequest.Builder.class);
-          internal_static_RpcResponse_descriptor =
-            getDescriptor().getMessageTypes().get(1);
-          internal_static_RpcResponse_fieldAccessorTable = new
-            com.google.protobuf.GeneratedMessage.FieldAccessorTable(
-              internal_static_RpcResponse_descriptor,
-              new java.lang.String[] { "Id", "ResponseMessage", "ErrorCode", "ErrorMessage", },
-              com.googlecode.protobuf.netty.NettyRpcProto.RpcResponse.class,
-              com.googlecode.protobuf.netty.NettyRpcProto.RpcResponse.Builder.class);
+  public static final class RpcBatch extends
+      com.google.protobuf.GeneratedMessage {
+    // Use RpcBatch.newBuilder() to construct.
+    private RpcBatch() {}
+    
+    private static final RpcBatch defaultInstance = new RpcBatch();
+    public static RpcBatch getDefaultInstance() {
+      return defaultInstance;
+    }
+    
+    public RpcBatch getDefaultInstanceForType() {
+      return defaultInstance;
+    }
+    
+    public static final com.google.protobuf.Descriptors.Descriptor
+        getDescriptor() {
+      return com.googlecode.protobuf.netty.NettyRpcProto.internal_static_RpcBatch_descriptor;
+    }
+    
+    protected com.google.protobuf.GeneratedMessage.FieldAccessorTable
+        internalGetFieldAccessorTable() {
+      return com.googlecode.protobuf.netty.NettyRpcProto.internal_static_RpcBatch_fieldAccessorTable;
+    }
+    
+    // repeated .RpcRequest request = 16;
+    public static final int REQUEST_FIELD_NUMBER = 16;
+    private java.util.List<com.googlecode.protobuf.netty.NettyRpcProto.RpcRequest> request_ =
+      java.util.Collections.emptyList();
+    public java.util.List<com.googlecode.protobuf.netty.NettyRpcProto.RpcRequest> getRequestList() {
+      return request_;
+    }
+    public int getRequestCount() { return request_.size(); }
+    public com.googlecode.protobuf.netty.NettyRpcProto.RpcRequest getRequest(int index) {
+      return request_.get(index);
+    }
+    
+    // repeated .RpcResponse response = 17;
+    public static final int RESPONSE_FIELD_NUMBER = 17;
+    private java.util.List<com.googlecode.protobuf.netty.NettyRpcProto.RpcResponse> response_ =
+      java.util.Collections.emptyList();
+    public java.util.List<com.googlecode.protobuf.netty.NettyRpcProto.RpcResponse> getResponseList() {
+      return response_;
+    }
+    public int getResponseCount() { return response_.size(); }
+    public com.googlecode.protobuf.netty.NettyRpcProto.RpcResponse getResponse(int index) {
+      return response_.get(index);
+    }
+    
+    public final boolean isInitialized() {
+      for (com.googlecode.protobuf.netty.NettyRpcProto.RpcRequest element : getRequestList()) {
+        if (!element.isInitialized()) return false;
+      }
+      for (com.googlecode.protobuf.netty.NettyRpcProto.RpcResponse element : getResponseList()) {
+        if (!element.isInitialized()) return false;
+      }
+      return true;
+    }
+    
+    public void writeTo(com.google.protobuf.CodedOutputStream output)
+                        throws java.io.IOException {
+      for (com.googlecode.protobuf.netty.NettyRpcProto.RpcRequest element : getRequestList()) {
+        output.writeMessage(16, element);
+      }
+      for (com.googlecode.protobuf.netty.NettyRpcProto.RpcResponse element : getResponseList()) {
+        output.writeMessage(17, element);
+      }
+      getUnknownFields().writeTo(output);
+    }
+    
+    private int memoizedSerializedSize = -1;
+    public int getSerializedSize() {
+      int size = memoizedSerializedSize;
+      if (size != -1) return size;
+    
+      size = 0;
+      for (com.googlecode.protobuf.netty.NettyRpcProto.RpcRequest element : getRequestList()) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeMessageSize(16, element);
+      }
+      for (com.googlecode.protobuf.netty.NettyRpcProto.RpcResponse element : getResponseList()) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeMessageSize(17, element);
+      }
+      size += getUnknownFields().getSerializedSize();
+      memoizedSerializedSize = size;
+      return size;
+    }
+    
+    public static com.googlecode.protobuf.netty.NettyRpcProto.RpcBatch parseFrom(
+        com.google.protobuf.ByteString data)
+        throws com.google.protobuf.InvalidProtocolBufferException {
+      return newBuilder().mergeFrom(data).buildParsed();
+    }
+    public static com.googlecode.protobuf.netty.NettyRpcProto.RpcBatch parseFrom(
+        com.google.protobuf.ByteString data,
+        com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+        throws com.google.protobuf.InvalidProtocolBufferException {
+      return newBuilder().mergeFrom(data, extensionRegistry)
+               .buildParsed();
+    }
+    public static com.googlecode.protobuf.netty.NettyRpcProto.RpcBatch parseFrom(byte[] data)
+        throws com.google.protobuf.InvalidProtocolBufferException {
+      return newBuilder().mergeFrom(data).buildParsed();
+    }
+    public static com.googlecode.protobuf.netty.NettyRpcProto.RpcBatch parseFrom(
+        byte[] data,
+        com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+        throws com.google.protobuf.InvalidProtocolBufferException {
+      return newBuilder().mergeFrom(data, extensionRegistry)
+               .buildParsed();
+    }
+    public static com.googlecode.protobuf.netty.NettyRpcProto.RpcBatch parseFrom(java.io.InputStream input)
+        throws java.io.IOException {
+      return newBuilder().mergeFrom(input).buildParsed();
+    }
+    public static com.googlecode.protobuf.netty.NettyRpcProto.RpcBatch parseFrom(
+        java.io.InputStream input,
+        com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+        throws java.io.IOException {
+      return newBuilder().mergeFrom(input, extensionRegistry)
+               .buildParsed();
+    }
+    public static com.googlecode.protobuf.netty.NettyRpcProto.RpcBatch parseDelimitedFrom(java.io.InputStream input)
+        throws java.io.IOException {
+      return newBuilder().mergeDelimitedFrom(input).buildParsed();
+    }
+    public static com.googlecode.protobuf.netty.NettyRpcProto.RpcBatch parseDelimitedFrom(
+        java.io.InputStream input,
+        com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+        throws java.io.IOException {
+      return newBuilder().mergeDelimitedFrom(input, extensionRegistry)
+               .buildParsed();
+    }
+    public static com.googlecode.protobuf.netty.NettyRpcProto.RpcBatch parseFrom(
+        com.google.protobuf.CodedInputStream input)
+        throws java.io.IOException {
+      return newBuilder().mergeFrom(input).buildParsed();
+    }
+    public static com.googlecode.protobuf.netty.NettyRpcProto.RpcBatch parseFrom(
+        com.google.protobuf.CodedInputStream input,
+        com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+        throws java.io.IOException {
+      return newBuilder().mergeFrom(input, extensionRegistry)
+               .buildParsed();
+    }
+    
+    public static Builder newBuilder() { return Builder.create(); }
+    public Builder newBuilderForType() { return newBuilder(); }
+    public static Builder newBuilder(com.googlecode.protobuf.netty.NettyRpcProto.RpcBatch prototype) {
+      return newBuilder().mergeFrom(prototype);
+    }
+    public Builder toBuilder() { return newBuilder(this); }
+    
+    public static final class Builder extends
+        com.google.protobuf.GeneratedMessage.Builder<Builder> {
+      private com.googlecode.protobuf.netty.NettyRpcProto.RpcBatch result;
+      
+      // Construct using com.googlecode.protobuf.netty.NettyRpcProto.RpcBatch.newBuilder()
+      private Builder() {}
+      
+      private static Builder create() {
+        Builder builder = new Builder();
+        builder.result = new com.googlecode.protobuf.netty.NettyRpcProto.RpcBatch();
+        return builder;
+      }
+      
+      protected com.googlecode.protobuf.netty.NettyRpcProto.RpcBatch internalGetResult() {
+        return result;
+      }
+      
+      public Builder clear() {
+        if (result == null) {
+          throw new IllegalStateException(
+            "Cannot call clear() after build().");
+        }
+        result = new com.googlecode.protobuf.netty.NettyRpcProto.RpcBatch();
+        return this;
+      }
+      
+      public Builder clone() {
+        return create().mergeFrom(result);
+      }
+      
+      public com.google.protobuf.Descriptors.Descriptor
+          getDescriptorForType() {
+        return com.googlecode.protobuf.netty.NettyRpcProto.RpcBatch.getDescriptor();
+      }
+      
+      public com.googlecode.protobuf.netty.NettyRpcProto.RpcBatch getDefaultInstanceForType() {
+        return com.googlecode.protobuf.netty.NettyRpcProto.RpcBatch.getDefaultInstance();
+      }
+      
+      public boolean isInitialized() {
+        return result.isInitialized();
+      }
+      public com.googlecode.protobuf.netty.NettyRpcProto.RpcBatch build() {
+        if (result != null && !isInitialized()) {
+          throw newUninitializedMessageException(result);
+        }
+        return buildPartial();
+      }
+      
+      private com.googlecode.protobuf.netty.NettyRpcProto.RpcBatch buildParsed()
+          throws com.google.protobuf.InvalidProtocolBufferException {
+        if (!isInitialized()) {
+          throw newUninitializedMessageException(
+            result).asInvalidProtocolBufferException();
+        }
+        return buildPartial();
+      }
+      
+      public com.googlecode.protobuf.netty.NettyRpcProto.RpcBatch buildPartial() {
+        if (result == null) {
+          throw new IllegalStateException(
+            "build() has already been called on this Builder.");
+        }
+        if (result.request_ != java.util.Collections.EMPTY_LIST) {
+          result.request_ =
+            java.util.Collections.unmodifiableList(result.request_);
+        }
+        if (result.response_ != java.util.Collections.EMPTY_LIST) {
+          result.response_ =
+            java.util.Collections.unmodifiableList(result.response_);
+        }
+        com.googlecode.protobuf.netty.NettyRpcProto.RpcBatch returnMe = result;
+        result = null;
+        return returnMe;
+      }
+      
+      public Builder mergeFrom(com.google.protobuf.Message other) {
+        if (other instanceof com.googlecode.protobuf.netty.NettyRpcProto.RpcBatch) {
+          return mergeFrom((com.googlecode.protobuf.netty.NettyRpcProto.RpcBatch)other);
+        } else {
+          super.mergeFrom(other);
+          return this;
+        }
+      }
+      
+      public Builder mergeFrom(com.googlecode.protobuf.netty.NettyRpcProto.RpcBatch other) {
+        if (other == com.googlecode.protobuf.netty.NettyRpcProto.RpcBatch.getDefaultInstance()) return this;
+        if (!other.request_.isEmpty()) {
+          if (result.request_.isEmpty()) {
+            result.request_ = new java.util.ArrayList<com.googlecode.protobuf.netty.NettyRpcProto.RpcRequest>();
+          }
+          result.request_.addAll(other.request_);
+        }
+        if (!other.response_.isEmpty()) {
+          if (result.response_.isEmpty()) {
+            result.response_ = new java.util.ArrayList<com.googlecode.protobuf.netty.NettyRpcProto.RpcResponse>();
+          }
+          result.response_.addAll(other.response_);
+        }
+        this.mergeUnknownFields(other.getUnknownFields());
+        return this;
+      }
+      
+      public Builder mergeFrom(
+          com.google.protobuf.CodedInputStream input,
+          com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+          throws java.io.IOException {
+        com.google.protobuf.UnknownFieldSet.Builder unknownFields =
+          com.google.protobuf.UnknownFieldSet.newBuilder(
+            this.getUnknownFields());
+        while (true) {
+          int tag = input.readTag();
+          switch (tag) {
+            case 0:
+              this.setUnknownFields(unknownFields.build());
+              return this;
+            default: {
+              if (!parseUnknownField(input, unknownFields,
+                                     extensionRegistry, tag)) {
+                this.setUnknownFields(unknownFields.build());
+                return this;
+              }
+              break;
+            }
+            case 130: {
+              com.googlecode.protobuf.netty.NettyRpcProto.RpcRequest.Builder subBuilder = com.googlecode.protobuf.netty.NettyRpcProto.RpcRequest.newBuilder();
+              input.readMessage(subBuilder, extensionRegistry);
+              addRequest(subBuilder.buildPartial());
+              break;
+            }
+            case 138: {
+              com.googlecode.protobuf.netty.NettyRpcProto.RpcResponse.Builder subBuilder = com.googlecode.protobuf.netty.NettyRpcProto.RpcResponse.newBuilder();
+              input.readMessage(subBuilder, extensionRegistry);
+              addResponse(subBuilder.buildPartial());
+              break;
+            }
+          }
+        }
+      }
+      
+      
+      // repeated .RpcRequest request = 16;
+      public java.util.List<com.googlecode.protobuf.netty.NettyRpcProto.RpcRequest> getRequestList() {
+        return java.util.Collections.unmodifiableList(result.request_);
+      }
+      public int getRequestCount() {
+        return result.getRequestCount();
+      }
+      public com.googlecode.protobuf.netty.NettyRpcProto.RpcRequest getRequest(int index) {
+        return result.getRequest(index);
+      }
+      public Builder setRequest(int index, com.googlecode.protobuf.netty.NettyRpcProto.RpcRequest value) {
+        if (value == null) {
+          throw new NullPointerException();
+        }
+        result.request_.set(index, value);
+        return this;
+      }
+      public Builder setRequest(int index, com.googlecode.protobuf.netty.NettyRpcProto.RpcRequest.Builder builderForValue) {
+        result.request_.set(index, builderForValue.build());
+        return this;
+      }
+      public Builder addRequest(com.googlecode.protobuf.netty.NettyRpcProto.RpcRequest value) {
+        if (value == null) {
+          throw new NullPointerException();
+        }
+        if (result.request_.isEmpty()) {
+          result.request_ = new java.util.ArrayList<com.googlecode.protobuf.netty.NettyRpcProto.RpcRequest>();
+        }
+        result.request_.add(value);
+        return this;
+      }
+      public Builder addRequest(com.googlecode.protobuf.netty.NettyRpcProto.RpcRequest.Builder builderForValue) {
+        if (result.request_.isEmpty()) {
+          result.request_ = new java.util.ArrayList<com.googlecode.protobuf.netty.NettyRpcProto.RpcRequest>();
+        }
+        result.request_.add(builderForValue.build());
+        return this;
+      }
+      public Builder addAllRequest(
+          java.lang.Iterable<? extends com.googlecode.protobuf.netty.NettyRpcProto.RpcRequest> values) {
+        if (result.request_.isEmpty()) {
+          result.request_ = new java.util.ArrayList<com.googlecode.protobuf.netty.NettyRpcProto.RpcRequest>();
+        }
+        super.addAll(values, result.request_);
+        return this;
+      }
+      public Builder clearRequest() {
+        result.request_ = java.util.Collections.emptyList();
+        return this;
+      }
+      
+      // repeated .RpcResponse response = 17;
+      public java.util.List<com.googlecode.protobuf.netty.NettyRpcProto.RpcResponse> getResponseList() {
+        return java.util.Collections.unmodifiableList(result.response_);
+      }
+      public int getResponseCount() {
+        return result.getResponseCount();
+      }
+      public com.googlecode.protobuf.netty.NettyRpcProto.RpcResponse getResponse(int index) {
+        return result.getResponse(index);
+      }
+      public Builder setResponse(int index, com.googlecode.protobuf.netty.NettyRpcProto.RpcResponse value) {
+        if (value == null) {
+          throw new NullPointerException();
+        }
+        result.response_.set(index, value);
+        return this;
+      }
+      public Builder setResponse(int index, com.googlecode.protobuf.netty.NettyRpcProto.RpcResponse.Builder builderForValue) {
+        result.response_.set(index, builderForValue.build());
+        return this;
+      }
+      public Builder addResponse(com.googlecode.protobuf.netty.NettyRpcProto.RpcResponse value) {
+        if (value == null) {
+          throw new NullPointerException();
+        }
+        if (result.response_.isEmpty()) {
+          result.response_ = new java.util.ArrayList<com.googlecode.protobuf.netty.NettyRpcProto.RpcResponse>();
+        }
+        result.response_.add(value);
+        return this;
+      }
+      public Builder addResponse(com.googlecode.protobuf.netty.NettyRpcProto.RpcResponse.Builder builderForValue) {
+        if (result.response_.isEmpty()) {
+          result.response_ = new java.util.ArrayList<com.googlecode.protobuf.netty.NettyRpcProto.RpcResponse>();
+        }
+        result.response_.add(builderForValue.build());
+        return this;
+      }
+      public Builder addAllResponse(
+          java.lang.Iterable<? extends com.googlecode.protobuf.netty.NettyRpcProto.RpcResponse> values) {
+        if (result.response_.isEmpty()) {
+          result.response_ = new java.util.ArrayList<com.googlecode.protobuf.netty.NettyRpcProto.RpcResponse>();
+        }
+        super.addAll(values, result.response_);
+        return this;
+      }
+      public Builder clearResponse() {
+        result.response_ = java.util.Collections.emptyList();
+        return this;
+      }
+    }
+    
+    static {
+      com.googlecode.protobuf.netty.NettyRpcProto.getDescriptor();
+    }
+    
+    static {
+      com.googlecode.protobuf.netty.NettyRpcProto.internalForceInit();
+    }
+  }
+  
+  public static final class RpcControl extends
+      com.google.protobuf.GeneratedMessage {
+    // Use RpcControl.newBuilder() to construct.
+    private RpcControl() {}
+    
+    private static final RpcControl defaultInstance = new RpcControl();
+    public static RpcControl getDefaultInstance() {
+      return defaultInstance;
+    }
+    
+    public RpcControl getDefaultInstanceForType() {
+      return defaultInstance;
+    }
+    
+    public static final com.google.protobuf.Descriptors.Descriptor
+        getDescriptor() {
+      return com.googlecode.protobuf.netty.NettyRpcProto.internal_static_RpcControl_descriptor;
+    }
+    
+    protected com.google.protobuf.GeneratedMessage.FieldAccessorTable
+        internalGetFieldAccessorTable() {
+      return com.googlecode.protobuf.netty.NettyRpcProto.internal_static_RpcControl_fieldAccessorTable;
+    }
+    
+    // required int32 id = 18;
+    public static final int ID_FIELD_NUMBER = 18;
+    private boolean hasId;
+    private int id_ = 0;
+    public boolean hasId() { return hasId; }
+    public int getId() { return id_; }
+    
+    // optional bool cancel = 19;
+    public static final int CANCEL_FIELD_NUMBER = 19;
+    private boolean hasCancel;
+    private boolean cancel_ = false;
+    public boolean hasCancel() { return hasCancel; }
+    public boolean getCancel() { return cancel_; }
+    
+    // repeated .Compression accept_compression = 20;
+    public static final int ACCEPT_COMPRESSION_FIELD_NUMBER = 20;
+    private java.util.List<com.googlecode.protobuf.netty.NettyRpcProto.Compression> acceptCompression_ =
+      java.util.Collections.emptyList();
+    public java.util.List<com.googlecode.protobuf.netty.NettyRpcProto.Compression> getAcceptCompressionList() {
+      return acceptCompression_;
+    }
+    public int getAcceptCompressionCount() { return acceptCompression_.size(); }
+    public com.googlecode.protobuf.netty.NettyRpcProto.Compression getAcceptCompression(int index) {
+      return acceptCompression_.get(index);
+    }
+    
+    // optional uint32 stream_credit = 21;
+    public static final int STREAM_CREDIT_FIELD_NUMBER = 21;
+    private boolean hasStreamCredit;
+    private int streamCredit_ = 0;
+    public boolean hasStreamCredit() { return hasStreamCredit; }
+    public int getStreamCredit() { return streamCredit_; }
+    
+    // optional bytes stream_message = 22;
+    public static final int STREAM_MESSAGE_FIELD_NUMBER = 22;
+    private boolean hasStreamMessage;
+    private com.google.protobuf.ByteString streamMessage_ = com.google.protobuf.ByteString.EMPTY;
+    public boolean hasStreamMessage() { return hasStreamMessage; }
+    public com.google.protobuf.ByteString getStreamMessage() { return streamMessage_; }
+    
+    // optional bool end_of_stream = 23;
+    public static final int END_OF_STREAM_FIELD_NUMBER = 23;
+    private boolean hasEndOfStream;
+    private boolean endOfStream_ = false;
+    public boolean hasEndOfStream() { return hasEndOfStream; }
+    public boolean getEndOfStream() { return endOfStream_; }
+    
+    // optional bool accept_chunks = 24;
+    public static final int ACCEPT_CHUNKS_FIELD_NUMBER = 24;
+    private boolean hasAcceptChunks;
+    private boolean acceptChunks_ = false;
+    public boolean hasAcceptChunks() { return hasAcceptChunks; }
+    public boolean getAcceptChunks() { return acceptChunks_; }
+    
+    // optional bool accept_cancel = 25;
+    public static final int ACCEPT_CANCEL_FIELD_NUMBER = 25;
+    private boolean hasAcceptCancel;
+    private boolean acceptCancel_ = false;
+    public boolean hasAcceptCancel() { return hasAcceptCancel; }
+    public boolean getAcceptCancel() { return acceptCancel_; }
+    
+    public final boolean isInitialized() {
+      if (!hasId) return false;
+      return true;
+    }
+    
+    public void writeTo(com.google.protobuf.CodedOutputStream output)
+                        throws java.io.IOException {
+      if (hasId()) {
+        output.writeInt32(18, getId());
+      }
+      if (hasCancel()) {
+        output.writeBool(19, getCancel());
+      }
+      for (com.googlecode.protobuf.netty.NettyRpcProto.Compression element : getAcceptCompressionList()) {
+        output.writeEnum(20, element.getNumber());
+      }
+      if (hasStreamCredit()) {
+        output.writeUInt32(21, getStreamCredit());
+      }
+      if (hasStreamMessage()) {
+        output.writeBytes(22, getStreamMessage());
+      }
+      if (hasEndOfStream()) {
+        output.writeBool(23, getEndOfStream());
+      }
+      if (hasAcceptChunks()) {
+        output.writeBool(24, getAcceptChunks());
+      }
+      if (hasAcceptCancel()) {
+        output.writeBool(25, getAcceptCancel());
+      }
+      getUnknownFields().writeTo(output);
+    }
+    
+    private int memoizedSerializedSize = -1;
+    public int getSerializedSize() {
+      int size = memoizedSerializedSize;
+      if (size != -1) return size;
+    
+      size = 0;
+      if (hasId()) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeInt32Size(18, getId());
+      }
+      if (hasCancel()) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeBoolSize(19, getCancel());
+      }
+      for (com.googlecode.protobuf.netty.NettyRpcProto.Compression element : getAcceptCompressionList()) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeEnumSize(20, element.getNumber());
+      }
+      if (hasStreamCredit()) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeUInt32Size(21, getStreamCredit());
+      }
+      if (hasStreamMessage()) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeBytesSize(22, getStreamMessage());
+      }
+      if (hasEndOfStream()) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeBoolSize(23, getEndOfStream());
+      }
+      if (hasAcceptChunks()) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeBoolSize(24, getAcceptChunks());
+      }
+      if (hasAcceptCancel()) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeBoolSize(25, getAcceptCancel());
+      }
+      size += getUnknownFields().getSerializedSize();
+      memoizedSerializedSize = size;
+      return size;
+    }
+    
+    public static com.googlecode.protobuf.netty.NettyRpcProto.RpcControl parseFrom(
+        com.google.protobuf.ByteString data)
+        throws com.google.protobuf.InvalidProtocolBufferException {
+      return newBuilder().mergeFrom(data).buildParsed();
+    }
+    public static com.googlecode.protobuf.netty.NettyRpcProto.RpcControl parseFrom(
+        com.google.protobuf.ByteString data,
+        com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+        throws com.google.protobuf.InvalidProtocolBufferException {
+      return newBuilder().mergeFrom(data, extensionRegistry)
+               .buildParsed();
+    }
+    public static com.googlecode.protobuf.netty.NettyRpcProto.RpcControl parseFrom(byte[] data)
+        throws com.google.protobuf.InvalidProtocolBufferException {
+      return newBuilder().mergeFrom(data).buildParsed();
+    }
+    public static com.googlecode.protobuf.netty.NettyRpcProto.RpcControl parseFrom(
+        byte[] data,
+        com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+        throws com.google.protobuf.InvalidProtocolBufferException {
+      return newBuilder().mergeFrom(data, extensionRegistry)
+               .buildParsed();
+    }
+    public static com.googlecode.protobuf.netty.NettyRpcProto.RpcControl parseFrom(java.io.InputStream input)
+        throws java.io.IOException {
+      return newBuilder().mergeFrom(input).buildParsed();
+    }
+    public static com.googlecode.protobuf.netty.NettyRpcProto.RpcControl parseFrom(
+        java.io.InputStream input,
+        com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+        throws java.io.IOException {
+      return newBuilder().mergeFrom(input, extensionRegistry)
+               .buildParsed();
+    }
+    public static com.googlecode.protobuf.netty.NettyRpcProto.RpcControl parseDelimitedFrom(java.io.InputStream input)
+        throws java.io.IOException {
+      return newBuilder().mergeDelimitedFrom(input).buildParsed();
+    }
+    public static com.googlecode.protobuf.netty.NettyRpcProto.RpcControl parseDelimitedFrom(
+        java.io.InputStream input,
+        com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+        throws java.io.IOException {
+      return newBuilder().mergeDelimitedFrom(input, extensionRegistry)
+               .buildParsed();
+    }
+    public static com.googlecode.protobuf.netty.NettyRpcProto.RpcControl parseFrom(
+        com.google.protobuf.CodedInputStream input)
+        throws java.io.IOException {
+      return newBuilder().mergeFrom(input).buildParsed();
+    }
+    public static com.googlecode.protobuf.netty.NettyRpcProto.RpcControl parseFrom(
+        com.google.protobuf.CodedInputStream input,
+        com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+        throws java.io.IOException {
+      return newBuilder().mergeFrom(input, extensionRegistry)
+               .buildParsed();
+    }
+    
+    public static Builder newBuilder() { return Builder.create(); }
+    public Builder newBuilderForType() { return newBuilder(); }
+    public static Builder newBuilder(com.googlecode.protobuf.netty.NettyRpcProto.RpcControl prototype) {
+      return newBuilder().mergeFrom(prototype);
+    }
+    public Builder toBuilder() { return newBuilder(this); }
+    
+    public static final class Builder extends
+        com.google.protobuf.GeneratedMessage.Builder<Builder> {
+      private com.googlecode.protobuf.netty.NettyRpcProto.RpcControl result;
+      
+      // Construct using com.googlecode.protobuf.netty.NettyRpcProto.RpcControl.newBuilder()
+      private Builder() {}
+      
+      private static Builder create() {
+        Builder builder = new Builder();
+        builder.result = new com.googlecode.protobuf.netty.NettyRpcProto.RpcControl();
+        return builder;
+      }
+      
+      protected com.googlecode.protobuf.netty.NettyRpcProto.RpcControl internalGetResult() {
+        return result;
+      }
+      
+      public Builder clear() {
+        if (result == null) {
+          throw new IllegalStateException(
+            "Cannot call clear() after build().");
+        }
+        result = new com.googlecode.protobuf.netty.NettyRpcProto.RpcControl();
+        return this;
+      }
+      
+      public Builder clone() {
+        return create().mergeFrom(result);
+      }
+      
+      public com.google.protobuf.Descriptors.Descriptor
+          getDescriptorForType() {
+        return com.googlecode.protobuf.netty.NettyRpcProto.RpcControl.getDescriptor();
+      }
+      
+      public com.googlecode.protobuf.netty.NettyRpcProto.RpcControl getDefaultInstanceForType() {
+        return com.googlecode.protobuf.netty.NettyRpcProto.RpcControl.getDefaultInstance();
+      }
+      
+      public boolean isInitialized() {
+        return result.isInitialized();
+      }
+      public com.googlecode.protobuf.netty.NettyRpcProto.RpcControl build() {
+        if (result != null && !isInitialized()) {
+          throw newUninitializedMessageException(result);
+        }
+        return buildPartial();
+      }
+      
+      private com.googlecode.protobuf.netty.NettyRpcProto.RpcControl buildParsed()
+          throws com.google.protobuf.InvalidProtocolBufferException {
+        if (!isInitialized()) {
+          throw newUninitializedMessageException(
+            result).asInvalidProtocolBufferException();
+        }
+        return buildPartial();
+      }
+      
+      public com.googlecode.protobuf.netty.NettyRpcProto.RpcControl buildPartial() {
+        if (result == null) {
+          throw new IllegalStateException(
+            "build() has already been called on this Builder.");
+        }
+        if (result.acceptCompression_ != java.util.Collections.EMPTY_LIST) {
+          result.acceptCompression_ =
+            java.util.Collections.unmodifiableList(result.acceptCompression_);
+        }
+        com.googlecode.protobuf.netty.NettyRpcProto.RpcControl returnMe = result;
+        result = null;
+        return returnMe;
+      }
+      
+      public Builder mergeFrom(com.google.protobuf.Message other) {
+        if (other instanceof com.googlecode.protobuf.netty.NettyRpcProto.RpcControl) {
+          return mergeFrom((com.googlecode.protobuf.netty.NettyRpcProto.RpcControl)other);
+        } else {
+          super.mergeFrom(other);
+          return this;
+        }
+      }
+      
+      public Builder mergeFrom(com.googlecode.protobuf.netty.NettyRpcProto.RpcControl other) {
+        if (other == com.googlecode.protobuf.netty.NettyRpcProto.RpcControl.getDefaultInstance()) return this;
+        if (other.hasId()) {
+          setId(other.getId());
+        }
+        if (other.hasCancel()) {
+          setCancel(other.getCancel());
+        }
+        if (!other.acceptCompression_.isEmpty()) {
+          if (result.acceptCompression_.isEmpty()) {
+            result.acceptCompression_ = new java.util.ArrayList<com.googlecode.protobuf.netty.NettyRpcProto.Compression>();
+          }
+          result.acceptCompression_.addAll(other.acceptCompression_);
+        }
+        if (other.hasStreamCredit()) {
+          setStreamCredit(other.getStreamCredit());
+        }
+        if (other.hasStreamMessage()) {
+          setStreamMessage(other.getStreamMessage());
+        }
+        if (other.hasEndOfStream()) {
+          setEndOfStream(other.getEndOfStream());
+        }
+        if (other.hasAcceptChunks()) {
+          setAcceptChunks(other.getAcceptChunks());
+        }
+        if (other.hasAcceptCancel()) {
+          setAcceptCancel(other.getAcceptCancel());
+        }
+        this.mergeUnknownFields(other.getUnknownFields());
+        return this;
+      }
+      
+      public Builder mergeFrom(
+          com.google.protobuf.CodedInputStream input,
+          com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+          throws java.io.IOException {
+        com.google.protobuf.UnknownFieldSet.Builder unknownFields =
+          com.google.protobuf.UnknownFieldSet.newBuilder(
+            this.getUnknownFields());
+        while (true) {
+          int tag = input.readTag();
+          switch (tag) {
+            case 0:
+              this.setUnknownFields(unknownFields.build());
+              return this;
+            default: {
+              if (!parseUnknownField(input, unknownFields,
+                                     extensionRegistry, tag)) {
+                this.setUnknownFields(unknownFields.build());
+                return this;
+              }
+              break;
+            }
+            case 144: {
+              setId(input.readInt32());
+              break;
+            }
+            case 152: {
+              setCancel(input.readBool());
+              break;
+            }
+            case 160: {
+              int rawValue = input.readEnum();
+              com.googlecode.protobuf.netty.NettyRpcProto.Compression value = com.googlecode.protobuf.netty.NettyRpcProto.Compression.valueOf(rawValue);
+              if (value == null) {
+                unknownFields.mergeVarintField(20, rawValue);
+              } else {
+                addAcceptCompression(value);
+              }
+              break;
+            }
+            case 168: {
+              setStreamCredit(input.readUInt32());
+              break;
+            }
+            case 178: {
+              setStreamMessage(input.readBytes());
+              break;
+            }
+            case 184: {
+              setEndOfStream(input.readBool());
+              break;
+            }
+            case 192: {
+              setAcceptChunks(input.readBool());
+              break;
+            }
+            case 200: {
+              setAcceptCancel(input.readBool());
+              break;
+            }
+          }
+        }
+      }
+      
+      
+      // required int32 id = 18;
+      public boolean hasId() {
+        return result.hasId();
+      }
+      public int getId() {
+        return result.getId();
+      }
+      public Builder setId(int value) {
+        result.hasId = true;
+        result.id_ = value;
+        return this;
+      }
+      public Builder clearId() {
+        result.hasId = false;
+        result.id_ = 0;
+        return this;
+      }
+      
+      // optional bool cancel = 19;
+      public boolean hasCancel() {
+        return result.hasCancel();
+      }
+      public boolean getCancel() {
+        return result.getCancel();
+      }
+      public Builder setCancel(boolean value) {
+        result.hasCancel = true;
+        result.cancel_ = value;
+        return this;
+      }
+      public Builder clearCancel() {
+        result.hasCancel = false;
+        result.cancel_ = false;
+        return this;
+      }
+      
+      // repeated .Compression accept_compression = 20;
+      public java.util.List<com.googlecode.protobuf.netty.NettyRpcProto.Compression> getAcceptCompressionList() {
+        return java.util.Collections.unmodifiableList(result.acceptCompression_);
+      }
+      public int getAcceptCompressionCount() {
+        return result.getAcceptCompressionCount();
+      }
+      public com.googlecode.protobuf.netty.NettyRpcProto.Compression getAcceptCompression(int index) {
+        return result.getAcceptCompression(index);
+      }
+      public Builder setAcceptCompression(int index, com.googlecode.protobuf.netty.NettyRpcProto.Compression value) {
+        if (value == null) {
+          throw new NullPointerException();
+        }
+        result.acceptCompression_.set(index, value);
+        return this;
+      }
+      public Builder addAcceptCompression(com.googlecode.protobuf.netty.NettyRpcProto.Compression value) {
+        if (value == null) {
+          throw new NullPointerException();
+        }
+        if (result.acceptCompression_.isEmpty()) {
+          result.acceptCompression_ = new java.util.ArrayList<com.googlecode.protobuf.netty.NettyRpcProto.Compression>();
+        }
+        result.acceptCompression_.add(value);
+        return this;
+      }
+      public Builder addAllAcceptCompression(
+          java.lang.Iterable<? extends com.googlecode.protobuf.netty.NettyRpcProto.Compression> values) {
+        if (result.acceptCompression_.isEmpty()) {
+          result.acceptCompression_ = new java.util.ArrayList<com.googlecode.protobuf.netty.NettyRpcProto.Compression>();
+        }
+        super.addAll(values, result.acceptCompression_);
+        return this;
+      }
+      public Builder clearAcceptCompression() {
+        result.acceptCompression_ = java.util.Collections.emptyList();
+        return this;
+      }
+      
+      // optional uint32 stream_credit = 21;
+      public boolean hasStreamCredit() {
+        return result.hasStreamCredit();
+      }
+      public int getStreamCredit() {
+        return result.getStreamCredit();
+      }
+      public Builder setStreamCredit(int value) {
+        result.hasStreamCredit = true;
+        result.streamCredit_ = value;
+        return this;
+      }
+      public Builder clearStreamCredit() {
+        result.hasStreamCredit = false;
+        result.streamCredit_ = 0;
+        return this;
+      }
+      
+      // optional bytes stream_message = 22;
+      public boolean hasStreamMessage() {
+        return result.hasStreamMessage();
+      }
+      public com.google.protobuf.ByteString getStreamMessage() {
+        return result.getStreamMessage();
+      }
+      public Builder setStreamMessage(com.google.protobuf.ByteString value) {
+        if (value == null) {
+    throw new NullPointerException();
+  }
+  result.hasStreamMessage = true;
+        result.streamMessage_ = value;
+        return this;
+      }
+      public Builder clearStreamMessage() {
+        result.hasStreamMessage = false;
+        result.streamMessage_ = getDefaultInstance().getStreamMessage();
+        return this;
+      }
+      
+      // optional bool end_of_stream = 23;
+      public boolean hasEndOfStream() {
+        return result.hasEndOfStream();
+      }
+      public boolean getEndOfStream() {
+        return result.getEndOfStream();
+      }
+      public Builder setEndOfStream(boolean value) {
+        result.hasEndOfStream = true;
+        result.endOfStream_ = value;
+        return this;
+      }
+      public Builder clearEndOfStream() {
+        result.hasEndOfStream = false;
+        result.endOfStream_ = false;
+        return this;
+      }
+      
+      // optional bool accept_chunks = 24;
+      public boolean hasAcceptChunks() {
+        return result.hasAcceptChunks();
+      }
+      public boolean getAcceptChunks() {
+        return result.getAcceptChunks();
+      }
+      public Builder setAcceptChunks(boolean value) {
+        result.hasAcceptChunks = true;
+        result.acceptChunks_ = value;
+        return this;
+      }
+      public Builder clearAcceptChunks() {
+        result.hasAcceptChunks = false;
+        result.acceptChunks_ = false;
+        return this;
+      }
+      
+      // optional bool accept_cancel = 25;
+      public boolean hasAcceptCancel() {
+        return result.hasAcceptCancel();
+      }
+      public boolean getAcceptCancel() {
+        return result.getAcceptCancel();
+      }
+      public Builder setAcceptCancel(boolean value) {
+        result.hasAcceptCancel = true;
+        result.acceptCancel_ = value;
+        return this;
+      }
+      public Builder clearAcceptCancel() {
+        result.hasAcceptCancel = false;
+        result.acceptCancel_ = false;
+        return this;
+      }
+    }
+    
+    static {
+      com.googlecode.protobuf.netty.NettyRpcProto.getDescriptor();
+    }
+    
+    static {
+      com.googlecode.protobuf.netty.NettyRpcProto.internalForceInit();
+    }
+  }
+  
+  public static final class RpcChunk extends
+      com.google.protobuf.GeneratedMessage {
+    // Use RpcChunk.newBuilder() to construct.
+    private RpcChunk() {}
+    
+    private static final RpcChunk defaultInstance = new RpcChunk();
+    public static RpcChunk getDefaultInstance() {
+      return defaultInstance;
+    }
+    
+    public RpcChunk getDefaultInstanceForType() {
+      return defaultInstance;
+    }
+    
+    public static final com.google.protobuf.Descriptors.Descriptor
+        getDescriptor() {
+      return com.googlecode.protobuf.netty.NettyRpcProto.internal_static_RpcChunk_descriptor;
+    }
+    
+    protected com.google.protobuf.GeneratedMessage.FieldAccessorTable
+        internalGetFieldAccessorTable() {
+      return com.googlecode.protobuf.netty.NettyRpcProto.internal_static_RpcChunk_fieldAccessorTable;
+    }
+    
+    // required uint32 transfer = 32;
+    public static final int TRANSFER_FIELD_NUMBER = 32;
+    private boolean hasTransfer;
+    private int transfer_ = 0;
+    public boolean hasTransfer() { return hasTransfer; }
+    public int getTransfer() { return transfer_; }
+    
+    // required bytes data = 33;
+    public static final int DATA_FIELD_NUMBER = 33;
+    private boolean hasData;
+    private com.google.protobuf.ByteString data_ = com.google.protobuf.ByteString.EMPTY;
+    public boolean hasData() { return hasData; }
+    public com.google.protobuf.ByteString getData() { return data_; }
+    
+    // optional bool last = 34;
+    public static final int LAST_FIELD_NUMBER = 34;
+    private boolean hasLast;
+    private boolean last_ = false;
+    public boolean hasLast() { return hasLast; }
+    public boolean getLast() { return last_; }
+    
+    public final boolean isInitialized() {
+      if (!hasTransfer) return false;
+      if (!hasData) return false;
+      return true;
+    }
+    
+    public void writeTo(com.google.protobuf.CodedOutputStream output)
+                        throws java.io.IOException {
+      if (hasTransfer()) {
+        output.writeUInt32(32, getTransfer());
+      }
+      if (hasData()) {
+        output.writeBytes(33, getData());
+      }
+      if (hasLast()) {
+        output.writeBool(34, getLast());
+      }
+      getUnknownFields().writeTo(output);
+    }
+    
+    private int memoizedSerializedSize = -1;
+    public int getSerializedSize() {
+      int size = memoizedSerializedSize;
+      if (size != -1) return size;
+    
+      size = 0;
+      if (hasTransfer()) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeUInt32Size(32, getTransfer());
+      }
+      if (hasData()) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeBytesSize(33, getData());
+      }
+      if (hasLast()) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeBoolSize(34, getLast());
+      }
+      size += getUnknownFields().getSerializedSize();
+      memoizedSerializedSize = size;
+      return size;
+    }
+    
+    public static com.googlecode.protobuf.netty.NettyRpcProto.RpcChunk parseFrom(
+        com.google.protobuf.ByteString data)
+        throws com.google.protobuf.InvalidProtocolBufferException {
+      return newBuilder().mergeFrom(data).buildParsed();
+    }
+    public static com.googlecode.protobuf.netty.NettyRpcProto.RpcChunk parseFrom(
+        com.google.protobuf.ByteString data,
+        com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+        throws com.google.protobuf.InvalidProtocolBufferException {
+      return newBuilder().mergeFrom(data, extensionRegistry)
+               .buildParsed();
+    }
+    public static com.googlecode.protobuf.netty.NettyRpcProto.RpcChunk parseFrom(byte[] data)
+        throws com.google.protobuf.InvalidProtocolBufferException {
+      return newBuilder().mergeFrom(data).buildParsed();
+    }
+    public static com.googlecode.protobuf.netty.NettyRpcProto.RpcChunk parseFrom(
+        byte[] data,
+        com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+        throws com.google.protobuf.InvalidProtocolBufferException {
+      return newBuilder().mergeFrom(data, extensionRegistry)
+               .buildParsed();
+    }
+    public static com.googlecode.protobuf.netty.NettyRpcProto.RpcChunk parseFrom(java.io.InputStream input)
+        throws java.io.IOException {
+      return newBuilder().mergeFrom(input).buildParsed();
+    }
+    public static com.googlecode.protobuf.netty.NettyRpcProto.RpcChunk parseFrom(
+        java.io.InputStream input,
+        com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+        throws java.io.IOException {
+      return newBuilder().mergeFrom(input, extensionRegistry)
+               .buildParsed();
+    }
+    public static com.googlecode.protobuf.netty.NettyRpcProto.RpcChunk parseDelimitedFrom(java.io.InputStream input)
+        throws java.io.IOException {
+      return newBuilder().mergeDelimitedFrom(input).buildParsed();
+    }
+    public static com.googlecode.protobuf.netty.NettyRpcProto.RpcChunk parseDelimitedFrom(
+        java.io.InputStream input,
+        com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+        throws java.io.IOException {
+      return newBuilder().mergeDelimitedFrom(input, extensionRegistry)
+               .buildParsed();
+    }
+    public static com.googlecode.protobuf.netty.NettyRpcProto.RpcChunk parseFrom(
+        com.google.protobuf.CodedInputStream input)
+        throws java.io.IOException {
+      return newBuilder().mergeFrom(input).buildParsed();
+    }
+    public static com.googlecode.protobuf.netty.NettyRpcProto.RpcChunk parseFrom(
+        com.google.protobuf.CodedInputStream input,
+        com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+        throws java.io.IOException {
+      return newBuilder().mergeFrom(input, extensionRegistry)
+               .buildParsed();
+    }
+    
+    public static Builder newBuilder() { return Builder.create(); }
+    public Builder newBuilderForType() { return newBuilder(); }
+    public static Builder newBuilder(com.googlecode.protobuf.netty.NettyRpcProto.RpcChunk prototype) {
+      return newBuilder().mergeFrom(prototype);
+    }
+    public Builder toBuilder() { return newBuilder(this); }
+    
+    public static final class Builder extends
+        com.google.protobuf.GeneratedMessage.Builder<Builder> {
+      private com.googlecode.protobuf.netty.NettyRpcProto.RpcChunk result;
+      
+      // Construct using com.googlecode.protobuf.netty.NettyRpcProto.RpcChunk.newBuilder()
+      private Builder() {}
+      
+      private static Builder create() {
+        Builder builder = new Builder();
+        builder.result = new com.googlecode.protobuf.netty.NettyRpcProto.RpcChunk();
+        return builder;
+      }
+      
+      protected com.googlecode.protobuf.netty.NettyRpcProto.RpcChunk internalGetResult() {
+        return result;
+      }
+      
+      public Builder clear() {
+        if (result == null) {
+          throw new IllegalStateException(
+            "Cannot call clear() after build().");
+        }
+        result = new com.googlecode.protobuf.netty.NettyRpcProto.RpcChunk();
+        return this;
+      }
+      
+      public Builder clone() {
+        return create().mergeFrom(result);
+      }
+      
+      public com.google.protobuf.Descriptors.Descriptor
+          getDescriptorForType() {
+        return com.googlecode.protobuf.netty.NettyRpcProto.RpcChunk.getDescriptor();
+      }
+      
+      public com.googlecode.protobuf.netty.NettyRpcProto.RpcChunk getDefaultInstanceForType() {
+        return com.googlecode.protobuf.netty.NettyRpcProto.RpcChunk.getDefaultInstance();
+      }
+      
+      public boolean isInitialized() {
+        return result.isInitialized();
+      }
+      public com.googlecode.protobuf.netty.NettyRpcProto.RpcChunk build() {
+        if (result != null && !isInitialized()) {
+          throw newUninitializedMessageException(result);
+        }
+        return buildPartial();
+      }
+      
+      private com.googlecode.protobuf.netty.NettyRpcProto.RpcChunk buildParsed()
+          throws com.google.protobuf.InvalidProtocolBufferException {
+        if (!isInitialized()) {
+          throw newUninitializedMessageException(
+            result).asInvalidProtocolBufferException();
+        }
+        return buildPartial();
+      }
+      
+      public com.googlecode.protobuf.netty.NettyRpcProto.RpcChunk buildPartial() {
+        if (result == null) {
+          throw new IllegalStateException(
+            "build() has already been called on this Builder.");
+        }
+        com.googlecode.protobuf.netty.NettyRpcProto.RpcChunk returnMe = result;
+        result = null;
+        return returnMe;
+      }
+      
+      public Builder mergeFrom(com.google.protobuf.Message other) {
+        if (other instanceof com.googlecode.protobuf.netty.NettyRpcProto.RpcChunk) {
+          return mergeFrom((com.googlecode.protobuf.netty.NettyRpcProto.RpcChunk)other);
+        } else {
+          super.mergeFrom(other);
+          return this;
+        }
+      }
+      
+      public Builder mergeFrom(com.googlecode.protobuf.netty.NettyRpcProto.RpcChunk other) {
+        if (other == com.googlecode.protobuf.netty.NettyRpcProto.RpcChunk.getDefaultInstance()) return this;
+        if (other.hasTransfer()) {
+          setTransfer(other.getTransfer());
+        }
+        if (other.hasData()) {
+          setData(other.getData());
+        }
+        if (other.hasLast()) {
+          setLast(other.getLast());
+        }
+        this.mergeUnknownFields(other.getUnknownFields());
+        return this;
+      }
+      
+      public Builder mergeFrom(
+          com.google.protobuf.CodedInputStream input,
+          com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+          throws java.io.IOException {
+        com.google.protobuf.UnknownFieldSet.Builder unknownFields =
+          com.google.protobuf.UnknownFieldSet.newBuilder(
+            this.getUnknownFields());
+        while (true) {
+          int tag = input.readTag();
+          switch (tag) {
+            case 0:
+              this.setUnknownFields(unknownFields.build());
+              return this;
+            default: {
+              if (!parseUnknownField(input, unknownFields,
+                                     extensionRegistry, tag)) {
+                this.setUnknownFields(unknownFields.build());
+                return this;
+              }
+              break;
+            }
+            case 256: {
+              setTransfer(input.readUInt32());
+              break;
+            }
+            case 266: {
+              setData(input.readBytes());
+              break;
+            }
+            case 272: {
+              setLast(input.readBool());
+              break;
+            }
+          }
+        }
+      }
+      
+      
+      // required uint32 transfer = 32;
+      public boolean hasTransfer() {
+        return result.hasTransfer();
+      }
+      public int getTransfer() {
+        return result.getTransfer();
+      }
+      public Builder setTransfer(int value) {
+        result.hasTransfer = true;
+        result.transfer_ = value;
+        return this;
+      }
+      public Builder clearTransfer() {
+        result.hasTransfer = false;
+        result.transfer_ = 0;
+        return this;
+      }
+      
+      // required bytes data = 33;
+      public boolean hasData() {
+        return result.hasData();
+      }
+      public com.google.protobuf.ByteString getData() {
+        return result.getData();
+      }
+      public Builder setData(com.google.protobuf.ByteString value) {
+        if (value == null) {
+    throw new NullPointerException();
+  }
+  result.hasData = true;
+        result.data_ = value;
+        return this;
+      }
+      public Builder clearData() {
+        result.hasData = false;
+        result.data_ = getDefaultInstance().getData();
+        return this;
+      }
+      
+      // optional bool last = 34;
+      public boolean hasLast() {
+        return result.hasLast();
+      }
+      public boolean getLast() {
+        return result.getLast();
+      }
+      public Builder setLast(boolean value) {
+        result.hasLast = true;
+        result.last_ = value;
+        return this;
+      }
+      public Builder clearLast() {
+        result.hasLast = false;
+        result.last_ = false;
+        return this;
+      }
+    }
+    
+    static {
+      com.googlecode.protobuf.netty.NettyRpcProto.getDescriptor();
+    }
+    
+    static {
+      com.googlecode.protobuf.netty.NettyRpcProto.internalForceInit();
+    }
+  }
+  
+  private static com.google.protobuf.Descriptors.Descriptor
+    internal_static_RpcRequest_descriptor;
+  private static
+    com.google.protobuf.GeneratedMessage.FieldAccessorTable
+      internal_static_RpcRequest_fieldAccessorTable;
+  private static com.google.protobuf.Descriptors.Descriptor
+    internal_static_RpcResponse_descriptor;
+  private static
+    com.google.protobuf.GeneratedMessage.FieldAccessorTable
+      internal_static_RpcResponse_fieldAccessorTable;
+  private static com.google.protobuf.Descriptors.Descriptor
+    internal_static_RpcBatch_descriptor;
+  private static
+    com.google.protobuf.GeneratedMessage.FieldAccessorTable
+      internal_static_RpcBatch_fieldAccessorTable;
+  private static com.google.protobuf.Descriptors.Descriptor
+    internal_static_RpcControl_descriptor;
+  private static
+    com.google.protobuf.GeneratedMessage.FieldAccessorTable
+      internal_static_RpcControl_fieldAccessorTable;
+  private static com.google.protobuf.Descriptors.Descriptor
+    internal_static_RpcChunk_descriptor;
+  private static
+    com.google.protobuf.GeneratedMessage.FieldAccessorTable
+      internal_static_RpcChunk_fieldAccessorTable;
+  
+  public static com.google.protobuf.Descriptors.FileDescriptor
+      getDescriptor() {
+    return descriptor;
+  }
+  private static com.google.protobuf.Descriptors.FileDescriptor
+      descriptor;
+  static {
+    java.lang.String[] descriptorData = {
+      "\n\016nettyrpc.proto\"\373\001\n\nRpcRequest\022\n\n\002id\030\001 " +
+      "\001(\005\022\024\n\014service_name\030\002 \002(\t\022\023\n\013method_name" +
+      "\030\003 \002(\t\022\033\n\023is_blocking_service\030\004 \002(\010\022\027\n\017r" +
+      "equest_message\030\005 \002(\014\022\022\n\ntimeout_ms\030\006 \001(\r" +
+      "\022!\n\013compression\030\007 \001(\0162\014.Compression\022\025\n\rs" +
+      "tream_window\030\010 \001(\r\022\025\n\rclient_stream\030\t \001(" +
+      "\010\022\033\n\010priority\030\n \001(\0162\t.Priority\"\244\001\n\013RpcRe" +
+      "sponse\022\n\n\002id\030\001 \002(\005\022\030\n\020response_message\030\002" +
+      " \001(\014\022\036\n\nerror_code\030\003 \001(\0162\n.ErrorCode\022\025\n\r" +
+      "error_message\030\004 \001(\t\022!\n\013compression\030\005 \001(\016",
+      "2\014.Compression\022\025\n\rend_of_stream\030\006 \001(\010\"H\n" +
+      "\010RpcBatch\022\034\n\007request\030\020 \003(\0132\013.RpcRequest\022" +
+      "\036\n\010response\030\021 \003(\0132\014.RpcResponse\"\306\001\n\nRpcC" +
+      "ontrol\022\n\n\002id\030\022 \002(\005\022\016\n\006cancel\030\023 \001(\010\022(\n\022ac" +
+      "cept_compression\030\024 \003(\0162\014.Compression\022\025\n\r" +
+      "stream_credit\030\025 \001(\r\022\026\n\016stream_message\030\026 " +
+      "\001(\014\022\025\n\rend_of_stream\030\027 \001(\010\022\025\n\raccept_chu" +
+      "nks\030\030 \001(\010\022\025\n\raccept_cancel\030\031 \001(\010\"8\n\010RpcC" +
+      "hunk\022\020\n\010transfer\030  \002(\r\022\014\n\004data\030! \002(\014\022\014\n\004" +
+      "last\030\" \001(\010*\235\002\n\tErrorCode\022\024\n\020BAD_REQUEST_",
+      "DATA\020\000\022\025\n\021BAD_REQUEST_PROTO\020\001\022\025\n\021SERVICE" +
+      "_NOT_FOUND\020\002\022\024\n\020METHOD_NOT_FOUND\020\003\022\r\n\tRP" +
+      "C_ERROR\020\004\022\016\n\nRPC_FAILED\020\005\022\031\n\025INVALID_REQ" +
+      "UEST_PROTO\020\006\022\026\n\022BAD_RESPONSE_PROTO\020\007\022\020\n\014" +
+      "UNKNOWN_HOST\020\010\022\014\n\010IO_ERROR\020\t\022\013\n\007TIMEOUT\020" +
+      "\n\022\020\n\014CHANNEL_FULL\020\013\022\016\n\nOVERLOADED\020\014\022\025\n\021M" +
+      "ESSAGE_TOO_LARGE\020\r*-\n\013Compression\022\010\n\004NON" +
+      "E\020\000\022\007\n\003LZ4\020\001\022\013\n\007DEFLATE\020\002*2\n\010Priority\022\n\n" +
+      "\006NORMAL\020\000\022\017\n\013INTERACTIVE\020\001\022\t\n\005BATCH\020\002B0\n" +
+      "\035com.googlecode.protobuf.nettyB\rNettyRpc",
+      "ProtoH\001"
+    };
+    com.google.protobuf.Descriptors.FileDescriptor.InternalDescriptorAssigner assigner =
+      new com.google.protobuf.Descriptors.FileDescriptor.InternalDescriptorAssigner() {
+        public com.google.protobuf.ExtensionRegistry assignDescriptors(
+            com.google.protobuf.Descriptors.FileDescriptor root) {
+          descriptor = root;
+          internal_static_RpcRequest_descriptor =
+            getDescriptor().getMessageTypes().get(0);
+          internal_static_RpcRequest_fieldAccessorTable = new
+            com.google.protobuf.GeneratedMessage.FieldAccessorTable(
+              internal_static_RpcRequest_descriptor,
+              new java.lang.String[] { "Id", "ServiceName", "MethodName", "IsBlockingService", "RequestMessage", "TimeoutMs", "Compression", "StreamWindow", "ClientStream", "Priority", },
+              com.googlecode.protobuf.netty.NettyRpcProto.RpcRequest.class,
+              com.googlecode.protobuf.netty.NettyRpcProto.RpcRequest.Builder.class);
+          internal_static_RpcResponse_descriptor =
+            getDescriptor().getMessageTypes().get(1);
+          internal_static_RpcResponse_fieldAccessorTable = new
+            com.google.protobuf.GeneratedMessage.FieldAccessorTable(
+              internal_static_RpcResponse_descriptor,
+              new java.lang.String[] { "Id", "ResponseMessage", "ErrorCode", "ErrorMessage", "Compression", "EndOfStream", },
+              com.googlecode.protobuf.netty.NettyRpcProto.RpcResponse.class,
+              com.googlecode.protobuf.netty.NettyRpcProto.RpcResponse.Builder.class);
+          internal_static_RpcBatch_descriptor =
+            getDescriptor().getMessageTypes().get(2);
+          internal_static_RpcBatch_fieldAccessorTable = new
+            com.google.protobuf.GeneratedMessage.FieldAccessorTable(
+              internal_static_RpcBatch_descriptor,
+              new java.lang.String[] { "Request", "Response", },
+              com.googlecode.protobuf.netty.NettyRpcProto.RpcBatch.class,
+              com.googlecode.protobuf.netty.NettyRpcProto.RpcBatch.Builder.class);
+          internal_static_RpcControl_descriptor =
+            getDescriptor().getMessageTypes().get(3);
+          internal_static_RpcControl_fieldAccessorTable = new
+            com.google.protobuf.GeneratedMessage.FieldAccessorTable(
+              internal_static_RpcControl_descriptor,
+              new java.lang.String[] { "Id", "Cancel", "AcceptCompression", "StreamCredit", "StreamMessage", "EndOfStream", "AcceptChunks", "AcceptCancel", },
+              com.googlecode.protobuf.netty.NettyRpcProto.RpcControl.class,
+              com.googlecode.protobuf.netty.NettyRpcProto.RpcControl.Builder.class);
+          internal_static_RpcChunk_descriptor =
+            getDescriptor().getMessageTypes().get(4);
+          internal_static_RpcChunk_fieldAccessorTable = new
+            com.google.protobuf.GeneratedMessage.FieldAccessorTable(
+              internal_static_RpcChunk_descriptor,
+              new java.lang.String[] { "Transfer", "Data", "Last", },
+              com.googlecode.protobuf.netty.NettyRpcProto.RpcChunk.class,
+              com.googlecode.protobuf.netty.NettyRpcProto.RpcChunk.Builder.class);
           return null;
         }
       };
@@ -1,90 +1,312 @@
-/*
- * Copyright (c) 2009 Stephen Tu <stephen_tu@berkeley.edu>
- *
- * Permission is hereby granted, free of charge, to any person obtaining a copy
- * of this software and associated documentation files (the "Software"), to deal
- * in the Software without restriction, including without limitation the rights
- * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
- * copies of the Software, and to permit persons to whom the Software is
- * furnished to do so, subject to the following conditions:
- * 
- * The above copyright notice and this permission notice shall be included in
- * all copies or substantial portions of the Software.
- * 
- * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
- * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
- * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
- * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
- * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
- * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
- * THE SOFTWARE.
- */
-package com.googlecode.protobuf.netty;
-
-import java.net.SocketAddress;
-
-import org.apache.log4j.Logger;
-import org.jboss.netty.bootstrap.ServerBootstrap;
-import org.jboss.netty.channel.ChannelFactory;
-import org.jboss.netty.channel.ChannelPipelineFactory;
-import org.jboss.netty.channel.ChannelUpstreamHandler;
-
-import com.google.protobuf.BlockingService;
-import com.google.protobuf.Service;
-import com.googlecode.protobuf.netty.NettyRpcProto.RpcRequest;
-import org.jboss.netty.channel.group.ChannelGroup;
-import org.jboss.netty.channel.group.DefaultChannelGroup;
-
-public class NettyRpcServer {
-
-	private static final Logger logger = Logger.getLogger(NettyRpcServer.class);
-	
-	private final ServerBootstrap bootstrap;
-    private final ChannelGroup allChannels = new DefaultChannelGroup();
-	private final NettyRpcServerChannelUpstreamHandler handler = new NettyRpcServerChannelUpstreamHandler(allChannels);
-	private final ChannelUpstreamHandlerFactory handlerFactory = new ChannelUpstreamHandlerFactory() {
-		public ChannelUpstreamHandler getChannelUpstreamHandler() {
-			return handler;
-		}
-	};
-	
-	private final ChannelPipelineFactory pipelineFactory = new NettyRpcPipelineFactory(
-			handlerFactory, 
-			RpcRequest.getDefaultInstance());
-	
-	public NettyRpcServer(ChannelFactory channelFactory) {
-		bootstrap = new ServerBootstrap(channelFactory);
-		bootstrap.setPipelineFactory(pipelineFactory);
-	}
-	
-	public void registerService(Service service) {
-		handler.registerService(service);
-	}
-	
-	public void unregisterService(Service service) {
-		handler.unregisterService(service);
-	}
-	
-	public void registerBlockingService(BlockingService service) {
-		handler.registerBlockingService(service);
-	}
-	
-	public void unregisterBlockingService(BlockingService service) {
-		handler.unregisterBlockingService(service);
-	}
-	
-	public void serve() {
-		logger.info("Serving...");
-		bootstrap.bind();
-	}
-	
-	public void serve(SocketAddress sa) {
-		logger.info("Serving on: " + sa);
-		bootstrap.bind(sa);
-	}
-
-    public void shutdown() {
-        allChannels.close().awaitUninterruptibly();
-        bootstrap.releaseExternalResources();
-    }
-}
+/*
+ * Copyright (c) 2009 Stephen Tu <stephen_tu@berkeley.edu>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.protobuf.netty;
+
+import java.lang.reflect.InvocationTargetException;
+import java.net.SocketAddress;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.channel.ChannelFactory;
+import org.jboss.netty.channel.ChannelUpstreamHandler;
+import org.jboss.netty.handler.execution.ExecutionHandler;
+
+import com.google.protobuf.BlockingService;
+import com.google.protobuf.Message;
+import com.google.protobuf.Service;
+import com.google.protobuf.Descriptors.MethodDescriptor;
+import com.googlecode.protobuf.netty.NettyRpcProto.Compression;
+import org.jboss.netty.channel.group.ChannelGroup;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
+
+public class NettyRpcServer {
+
+	private static final Logger logger = Logger.getLogger(NettyRpcServer.class);
+	
+	private final ServerBootstrap bootstrap;
+    private final ChannelGroup allChannels = new DefaultChannelGroup();
+	private final NettyRpcServerCallTracker callTracker = new NettyRpcServerCallTracker();
+	private final NettyRpcServerChannelUpstreamHandler handler = new NettyRpcServerChannelUpstreamHandler(allChannels, callTracker);
+	private final ChannelUpstreamHandlerFactory handlerFactory = new ChannelUpstreamHandlerFactory() {
+		public ChannelUpstreamHandler getChannelUpstreamHandler() {
+			return handler;
+		}
+	};
+	
+	private final NettyRpcPipelineFactory pipelineFactory = new NettyRpcPipelineFactory(
+			handlerFactory, 
+			NettyRpcEnvelopeDecoder.forRequests(),
+			callTracker);
+	
+	private ExecutorService virtualThreadExecutor;
+	
+	public NettyRpcServer(ChannelFactory channelFactory) {
+		bootstrap = new ServerBootstrap(channelFactory);
+		bootstrap.setPipelineFactory(pipelineFactory);
+		// Small frames such as stream credit must not wait for delayed ACKs;
+		// the write coalescer does the batching
+		bootstrap.setOption("child.tcpNoDelay", true);
+		pipelineFactory.setChunkSize(NettyRpcChunker.DEFAULT_CHUNK_SIZE);
+	}
+	
+	public void registerService(Service service) {
+		handler.registerService(service);
+	}
+	
+	public void unregisterService(Service service) {
+		handler.unregisterService(service);
+	}
+	
+	public void registerBlockingService(BlockingService service) {
+		handler.registerBlockingService(service);
+	}
+	
+	public void unregisterBlockingService(BlockingService service) {
+		handler.unregisterBlockingService(service);
+	}
+	
+	/**
+	 * Serves a method whose response is a stream of messages. Streaming
+	 * calls are dispatched like those of a {@link Service}, and count
+	 * against the method's concurrency limit until the stream ends.
+	 * 
+	 * @param requestPrototype the default instance of the method's request
+	 * type
+	 */
+	public <Req extends Message> void registerServerStreamingMethod(MethodDescriptor method, Req requestPrototype, 
+			ServerStreamingMethod<Req, ?> streamingMethod) {
+		handler.registerServerStreamingMethod(method, requestPrototype, streamingMethod);
+	}
+	
+	public void unregisterServerStreamingMethod(MethodDescriptor method) {
+		handler.unregisterServerStreamingMethod(method);
+	}
+	
+	/**
+	 * Serves a method that takes a stream of request messages, and answers
+	 * with a stream of its own or with a single response. The client sends
+	 * at most the stream window of requests ahead of those the method has
+	 * taken, see {@link #setStreamWindow(int)}.
+	 * 
+	 * @param requestPrototype the default instance of the method's request
+	 * type
+	 */
+	public <Req extends Message> void registerBidiStreamingMethod(MethodDescriptor method, Req requestPrototype, 
+			BidiStreamingMethod<Req, ?> streamingMethod) {
+		handler.registerBidiStreamingMethod(method, requestPrototype, streamingMethod);
+	}
+	
+	public void unregisterBidiStreamingMethod(MethodDescriptor method) {
+		handler.unregisterBidiStreamingMethod(method);
+	}
+	
+	/**
+	 * Sets how many request messages a client may send on a client stream
+	 * ahead of those the method has taken. The default is 32. Only affects
+	 * streams started after the call.
+	 */
+	public void setStreamWindow(int messages) {
+		if (messages < 1) {
+			throw new IllegalArgumentException("messages must be positive");
+		}
+		handler.setStreamWindow(messages);
+	}
+	
+	/**
+	 * Runs service methods on the given executor rather than on the Netty
+	 * I/O worker threads, so that a slow method does not stall the other
+	 * connections served by the same worker. Requests from one connection
+	 * are still executed one at a time and in order. Decoding stays on the
+	 * I/O threads. Must be called before {@link #serve()}.
+	 * <p>
+	 * When the executor is busy, connections whose next request is more
+	 * urgent, by {@link NettyRpcController#setPriority(com.googlecode.protobuf.netty.NettyRpcProto.Priority)},
+	 * are served first.
+	 */
+	public void setExecutor(Executor executor) {
+		setExecutor(executor, true);
+	}
+	
+	/**
+	 * Like {@link #setExecutor(Executor)}, but when <code>orderedPerConnection</code>
+	 * is false requests from the same connection may run concurrently and
+	 * complete in any order, and when the executor is busy, more urgent
+	 * requests overtake less urgent ones. Pass a null executor to go back to
+	 * running services on the I/O threads.
+	 */
+	public void setExecutor(Executor executor, boolean orderedPerConnection) {
+		if (executor == null) {
+			pipelineFactory.setExecutionHandler(null);
+		} else if (orderedPerConnection) {
+			pipelineFactory.setExecutionHandler(new ExecutionHandler(
+					new ChannelOrderedExecutor(new PriorityOrderedExecutor(executor))));
+		} else {
+			pipelineFactory.setExecutionHandler(new ExecutionHandler(new PriorityOrderedExecutor(executor)));
+		}
+	}
+	
+	/**
+	 * Runs each BlockingService call on the given executor, independently of
+	 * {@link #setExecutor(Executor)}. Calls from one connection may then
+	 * complete in any order, and when the executor is busy, more urgent
+	 * calls overtake less urgent ones. Pass null to run blocking calls inline
+	 * again.
+	 */
+	public void setBlockingServiceExecutor(Executor executor) {
+		handler.setBlockingExecutor((executor == null) ? null : new PriorityOrderedExecutor(executor));
+	}
+	
+	/**
+	 * Runs each BlockingService call on its own virtual thread, so that
+	 * services doing blocking I/O do not need one platform thread per
+	 * in-flight call. Requires a Java 21 or later runtime.
+	 * 
+	 * @throws UnsupportedOperationException if the runtime has no virtual threads
+	 */
+	public synchronized void useVirtualThreadsForBlockingServices() {
+		if (virtualThreadExecutor == null) {
+			virtualThreadExecutor = newVirtualThreadPerTaskExecutor();
+		}
+		handler.setBlockingExecutor(virtualThreadExecutor);
+	}
+	
+	/**
+	 * Limits how many calls of each method, and of each service, run at
+	 * once. Calls over a limit are answered right away with
+	 * {@link com.googlecode.protobuf.netty.NettyRpcProto.ErrorCode#OVERLOADED},
+	 * before their request is parsed. Each method's limit starts at
+	 * <code>initialLimit</code> and adapts to the latency of the method's
+	 * calls, within <code>minLimit</code> and <code>maxLimit</code>. The
+	 * methods of a service together run at most <code>maxLimit</code> calls
+	 * at once. A streaming call holds its slots until it ends, but how long
+	 * it stays open is not taken as latency. Off by default.
+	 */
+	public void setAdaptiveConcurrencyLimits(int initialLimit, int minLimit, int maxLimit) {
+		handler.setConcurrencyLimits(initialLimit, minLimit, maxLimit);
+	}
+	
+	/**
+	 * Holds responses written from threads other than the I/O thread for up
+	 * to the given time, so that responses completing close together go out
+	 * in a single write. Responses written while a read is being handled are
+	 * always gathered until the read has been dispatched. A zero window (the
+	 * default) writes other responses immediately. Must be called before
+	 * {@link #serve()}.
+	 */
+	public void setWriteCoalescingWindow(long window, TimeUnit unit) {
+		pipelineFactory.setWriteWindow(unit.toNanos(window));
+	}
+	
+	/**
+	 * Compresses response messages of at least <code>minBytes</code> with the
+	 * given codec, for clients that can decode it. Compressed requests are
+	 * decoded whether or not this is set. Must be called before
+	 * {@link #serve()}.
+	 */
+	public void setCompression(Compression codec, int minBytes) {
+		if (minBytes < 0) {
+			throw new IllegalArgumentException("minBytes must not be negative");
+		}
+		pipelineFactory.setCompression(codec, minBytes);
+	}
+	
+	/**
+	 * Sends response frames larger than <code>bytes</code> in pieces of that
+	 * size, interleaved with the frames of other calls, so that a large
+	 * response does not hold up the calls behind it. Only clients that can
+	 * reassemble them get pieces. Requests sent in pieces are reassembled
+	 * either way. Defaults to 64 KB; pass 0 to turn it off. Must be called
+	 * before {@link #serve()}.
+	 */
+	public void setChunkSize(int bytes) {
+		if (bytes != 0 && bytes < NettyRpcChunker.MIN_CHUNK_SIZE) {
+			throw new IllegalArgumentException("bytes must be 0 or at least " + NettyRpcChunker.MIN_CHUNK_SIZE);
+		}
+		pipelineFactory.setChunkSize(bytes);
+	}
+	
+	/**
+	 * Limits how many bytes of requests that arrive in pieces are held for
+	 * each connection until their last piece arrives (256 MB by default).
+	 * Calls whose request would go over fail with
+	 * {@link com.googlecode.protobuf.netty.NettyRpcProto.ErrorCode#MESSAGE_TOO_LARGE}.
+	 * Also limits the size a compressed request may expand to. Must be
+	 * called before {@link #serve()}.
+	 */
+	public void setMaxReassemblyBytes(long bytes) {
+		if (bytes < 1) {
+			throw new IllegalArgumentException("bytes must be positive");
+		}
+		pipelineFactory.setMaxReassemblyBytes(bytes);
+	}
+	
+	/**
+	 * Sets the name this server's metrics are published under in JMX, as
+	 * <code>com.googlecode.protobuf.netty:type=Server,name=NAME,service=...,method=...</code>.
+	 * Each method has an {@link RpcMethodMetricsMXBean} with its call,
+	 * error and in-flight counts, message sizes and latencies. The default
+	 * name is <code>server-N</code>, numbered in order of creation.
+	 */
+	public void setMetricsName(String name) {
+		handler.getMetrics().setName(name);
+	}
+	
+	public void serve() {
+		logger.info("Serving...");
+		allChannels.add(bootstrap.bind());
+	}
+	
+	public void serve(SocketAddress sa) {
+		logger.info("Serving on: " + sa);
+		allChannels.add(bootstrap.bind(sa));
+	}
+
+    public void shutdown() {
+        allChannels.close().awaitUninterruptibly();
+        bootstrap.releaseExternalResources();
+        pipelineFactory.releaseExternalResources();
+        handler.getMetrics().close();
+        synchronized (this) {
+            if (virtualThreadExecutor != null) {
+                virtualThreadExecutor.shutdown();
+            }
+        }
+    }
+    
+	// Looked up reflectively so the library still builds and runs on
+	// runtimes older than Java 21.
+	private static ExecutorService newVirtualThreadPerTaskExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (NoSuchMethodException e) {
+			throw new UnsupportedOperationException("Virtual threads require Java 21 or later");
+		} catch (IllegalAccessException e) {
+			throw new UnsupportedOperationException("Could not create virtual thread executor", e);
+		} catch (InvocationTargetException e) {
+			throw new UnsupportedOperationException("Could not create virtual thread executor", e.getCause());
+		}
+	}
+}
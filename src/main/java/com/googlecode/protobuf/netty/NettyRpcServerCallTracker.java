@@ -0,0 +1,247 @@
+/*
+ * Copyright (c) 2009 Stephen Tu <stephen_tu@berkeley.edu>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.protobuf.netty;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.log4j.Logger;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelLocal;
+import org.jboss.netty.channel.ChannelPipelineCoverage;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+
+import com.googlecode.protobuf.netty.NettyRpcProto.ErrorCode;
+import com.googlecode.protobuf.netty.NettyRpcProto.RpcControl;
+import com.googlecode.protobuf.netty.NettyRpcProto.RpcResponse;
+
+/**
+ * Keeps track of the server calls on each connection that still owe a
+ * response, so that they can be canceled by the client.
+ * <p>
+ * This handler sits in front of any executor, so requests are registered
+ * as soon as they are decoded, and cancel messages are acted on right
+ * away instead of waiting behind the calls they cancel. A canceled call's
+ * controller reports {@link NettyRpcController#isCanceled()} and runs its
+ * <code>notifyOnCancel</code> callback. Clients that ask whether cancel
+ * is acted on are answered here, as they do not cancel calls that do not
+ * stream before that. All calls of a connection are canceled when it
+ * closes. A canceled call stays tracked, and keeps its slots in the
+ * concurrency limits, until the service answers it or drops it: it is
+ * still running until then. A request with the id of a call that is still
+ * running is answered with {@link ErrorCode#BAD_REQUEST_PROTO} and not
+ * passed on, so that the running call stays cancelable. Stream credit is
+ * also handed to streaming calls here, so that it reaches them while the
+ * executor is busy.
+ * <p>
+ * The requests of client streams are queued on their call here, in the
+ * order they are read, and passed on as the call's
+ * {@link NettyRpcServerStream} for the handler to deliver them.
+ */
+@ChannelPipelineCoverage("all")
+class NettyRpcServerCallTracker extends SimpleChannelUpstreamHandler {
+
+	private static final Logger logger = Logger.getLogger(NettyRpcServerCallTracker.class);
+	
+	private final ChannelLocal<ConcurrentMap<Integer, NettyRpcController>> calls = 
+		new ChannelLocal<ConcurrentMap<Integer, NettyRpcController>>();
+	
+	// Set while this thread passes a message on to the handlers, unless an
+	// executor takes over
+	private static final ThreadLocal<Boolean> inline = new ThreadLocal<Boolean>();
+	
+	@Override
+	public void channelOpen(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+		calls.set(e.getChannel(), new ConcurrentHashMap<Integer, NettyRpcController>());
+		super.channelOpen(ctx, e);
+	}
+	
+	@Override
+	public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+		Object message = e.getMessage();
+		if (message instanceof RpcControl) {
+			NettyRpcServerStream stream = handleControl(ctx, e.getChannel(), (RpcControl) message);
+			if (stream == null) {
+				return;
+			}
+			message = stream;
+		} else if (message instanceof RpcRequestEnvelope) {
+			if (!track(ctx, e.getChannel(), (RpcRequestEnvelope) message)) {
+				return;
+			}
+		} else if (message instanceof List) {
+			List<?> requests = (List<?>) message;
+			// Only copied if a request has to be left out
+			List<Object> tracked = null;
+			for (int i = 0; i < requests.size(); i++) {
+				Object request = requests.get(i);
+				if (track(ctx, e.getChannel(), (RpcRequestEnvelope) request)) {
+					if (tracked != null) {
+						tracked.add(request);
+					}
+				} else if (tracked == null) {
+					tracked = new ArrayList<Object>(requests.subList(0, i));
+				}
+			}
+			if (tracked != null) {
+				if (tracked.isEmpty()) {
+					return;
+				}
+				message = tracked;
+			}
+		}
+		inline.set(Boolean.TRUE);
+		try {
+			if (message == e.getMessage()) {
+				ctx.sendUpstream(e);
+			} else {
+				Channels.fireMessageReceived(ctx, message, e.getRemoteAddress());
+			}
+		} finally {
+			inline.remove();
+		}
+	}
+	
+	/**
+	 * Returns true if the current thread is the I/O thread that delivered
+	 * the message being handled. Waiting there for the client would stop
+	 * its messages from being read.
+	 */
+	static boolean isInline() {
+		return inline.get() != null;
+	}
+	
+	@Override
+	public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+		// Nobody is left to read the responses. The calls are completed, and
+		// give back their slots, as the service finishes them.
+		ConcurrentMap<Integer, NettyRpcController> channelCalls = calls.get(e.getChannel());
+		if (channelCalls != null) {
+			for (NettyRpcController controller : channelCalls.values()) {
+				controller.cancelByClient();
+			}
+		}
+		super.channelClosed(ctx, e);
+	}
+	
+	/**
+	 * Marks a call as answered, releases its slots in the concurrency
+	 * limits and records it in the metrics of its method. Only calls that
+	 * do not stream and are answered without an error count towards the
+	 * latency the limits adapt to.
+	 * 
+	 * @param response the answer about to be sent, or null if the call is
+	 * dropped without one
+	 * @return false if the response should not be sent, because the call
+	 * was canceled
+	 */
+	boolean complete(Channel channel, int id, Object response) {
+		ConcurrentMap<Integer, NettyRpcController> channelCalls = calls.get(channel);
+		if (channelCalls == null) {
+			return false;
+		}
+		NettyRpcController controller = channelCalls.remove(id);
+		if (controller == null) {
+			return false;
+		}
+		boolean canceled = controller.isCanceled();
+		// Errors often come back fast, and would drag the latency baseline
+		// of the method down. A stream lasts as long as its caller keeps
+		// it open, which says nothing about how busy the server is.
+		controller.releasePermit(!canceled && response != null && controller.getStream() == null && 
+				RpcMethodMetrics.errorCodeOf(response) == null);
+		if (canceled || response == null) {
+			controller.recordDropped();
+		} else {
+			controller.recordAnswer(response);
+		}
+		return !canceled;
+	}
+	
+	/**
+	 * @return false if the request was answered with an error instead, as
+	 * a call with the same id is still running
+	 */
+	private boolean track(ChannelHandlerContext ctx, Channel channel, RpcRequestEnvelope request) {
+		NettyRpcController controller = NettyRpcServerChannelUpstreamHandler.newController(request);
+		request.setController(controller);
+		ConcurrentMap<Integer, NettyRpcController> channelCalls = calls.get(channel);
+		if (request.hasId() && channelCalls != null) {
+			if (channelCalls.putIfAbsent(request.getId(), controller) != null) {
+				// Keeps the running call cancelable, and its slots and metrics
+				// accounted for
+				logger.warn("Rejecting call " + request.getId() + ", whose id is in use by a running call");
+				Channels.write(ctx, Channels.future(channel), RpcResponse.newBuilder()
+						.setId(request.getId())
+						.setErrorCode(ErrorCode.BAD_REQUEST_PROTO)
+						.setErrorMessage("Call id " + request.getId() + " is in use by a running call")
+						.build());
+				return false;
+			}
+			if (request.isStreaming()) {
+				// Exists before the call is dispatched, to take its requests
+				new NettyRpcServerStream(channel, request, controller, this);
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * @return the stream whose requests should be delivered, if any
+	 */
+	private NettyRpcServerStream handleControl(ChannelHandlerContext ctx, Channel channel, RpcControl control) {
+		ConcurrentMap<Integer, NettyRpcController> channelCalls = calls.get(channel);
+		if (channelCalls == null) {
+			return null;
+		}
+		if (control.getAcceptCancel()) {
+			// Lets the client cancel calls that do not stream
+			Channels.write(ctx, Channels.future(channel), RpcControl.newBuilder().setId(0).setAcceptCancel(true).build());
+		} else if (control.getCancel()) {
+			NettyRpcController controller = channelCalls.get(control.getId());
+			if (controller != null) {
+				logger.debug("Call " + control.getId() + " canceled by client");
+				controller.cancelByClient();
+			}
+		} else if (control.hasStreamCredit()) {
+			NettyRpcController controller = channelCalls.get(control.getId());
+			NettyRpcServerStream stream = (controller == null) ? null : controller.getStream();
+			if (stream != null) {
+				stream.addCredit(control.getStreamCredit());
+			}
+		} else if (control.hasStreamMessage() || control.getEndOfStream()) {
+			NettyRpcController controller = channelCalls.get(control.getId());
+			NettyRpcServerStream stream = (controller == null) ? null : controller.getStream();
+			if (stream != null && stream.received(control)) {
+				return stream;
+			}
+		}
+		return null;
+	}
+	
+}
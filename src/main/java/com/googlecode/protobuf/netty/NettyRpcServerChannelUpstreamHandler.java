@@ -1,234 +1,704 @@
-/*
- * Copyright (c) 2009 Stephen Tu <stephen_tu@berkeley.edu>
- *
- * Permission is hereby granted, free of charge, to any person obtaining a copy
- * of this software and associated documentation files (the "Software"), to deal
- * in the Software without restriction, including without limitation the rights
- * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
- * copies of the Software, and to permit persons to whom the Software is
- * furnished to do so, subject to the following conditions:
- * 
- * The above copyright notice and this permission notice shall be included in
- * all copies or substantial portions of the Software.
- * 
- * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
- * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
- * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
- * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
- * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
- * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
- * THE SOFTWARE.
- */
-package com.googlecode.protobuf.netty;
-
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-
-import org.apache.log4j.Logger;
-import org.jboss.netty.channel.Channel;
-import org.jboss.netty.channel.ChannelHandlerContext;
-import org.jboss.netty.channel.ChannelPipelineCoverage;
-import org.jboss.netty.channel.ExceptionEvent;
-import org.jboss.netty.channel.MessageEvent;
-import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
-
-import com.google.protobuf.BlockingService;
-import com.google.protobuf.ByteString;
-import com.google.protobuf.InvalidProtocolBufferException;
-import com.google.protobuf.Message;
-import com.google.protobuf.RpcCallback;
-import com.google.protobuf.RpcController;
-import com.google.protobuf.Service;
-import com.google.protobuf.ServiceException;
-import com.google.protobuf.Descriptors.MethodDescriptor;
-import com.googlecode.protobuf.netty.NettyRpcProto.ErrorCode;
-import com.googlecode.protobuf.netty.NettyRpcProto.RpcRequest;
-import com.googlecode.protobuf.netty.NettyRpcProto.RpcResponse;
-import com.googlecode.protobuf.netty.exception.InvalidRpcRequestException;
-import com.googlecode.protobuf.netty.exception.NoRequestIdException;
-import com.googlecode.protobuf.netty.exception.NoSuchServiceException;
-import com.googlecode.protobuf.netty.exception.NoSuchServiceMethodException;
-import com.googlecode.protobuf.netty.exception.RpcException;
-import com.googlecode.protobuf.netty.exception.RpcServiceException;
-import org.jboss.netty.channel.ChannelStateEvent;
-import org.jboss.netty.channel.group.ChannelGroup;
-
-@ChannelPipelineCoverage("all")
-class NettyRpcServerChannelUpstreamHandler extends SimpleChannelUpstreamHandler {
-
-	private static final Logger logger = Logger.getLogger(NettyRpcServerChannelUpstreamHandler.class);
-	
-	private final Map<String, Service> serviceMap = new ConcurrentHashMap<String, Service>();
-	private final Map<String, BlockingService> blockingServiceMap = new ConcurrentHashMap<String, BlockingService>();
-
-    private final ChannelGroup allChannels;
-
-    public NettyRpcServerChannelUpstreamHandler(ChannelGroup allChannels) {
-        this.allChannels = allChannels;
-    }
-
-    @Override
-    public void channelOpen(ChannelHandlerContext ctx, ChannelStateEvent e) {
-        // Add all open channels to the global group so that they are
-        // closed on shutdown.
-        allChannels.add(e.getChannel());
-    }
-	
-	@Override
-	public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
-
-		final RpcRequest request = (RpcRequest) e.getMessage();
-		
-		String serviceName = request.getServiceName();
-		String methodName = request.getMethodName();
-		
-		logger.info("Received request for serviceName: " + serviceName + ", method: " + methodName);
-		
-		if (request.getIsBlockingService()) {
-			BlockingService blockingService = blockingServiceMap.get(serviceName);
-			if (blockingService == null) {
-				throw new NoSuchServiceException(request, serviceName);
-			} else if (blockingService.getDescriptorForType().findMethodByName(methodName) == null) {
-				throw new NoSuchServiceMethodException(request, methodName);
-			} else if (!request.hasId()) {
-				// All blocking services need to have a request ID since well, they are
-				// blocking (hence they need a response!)
-				throw new NoRequestIdException();
-			} else {
-				MethodDescriptor methodDescriptor = blockingService.getDescriptorForType().findMethodByName(methodName);
-				Message methodRequest = null;
-				try {
-					methodRequest = buildMessageFromPrototype(
-						blockingService.getRequestPrototype(methodDescriptor),
-						request.getRequestMessage());
-				} catch (InvalidProtocolBufferException ex) {
-					throw new InvalidRpcRequestException(ex, request, "Could not build method request message");
-				}
-				RpcController controller = new NettyRpcController();
-				Message methodResponse = null;
-				try {
-					methodResponse = blockingService.callBlockingMethod(methodDescriptor, controller, methodRequest);
-				} catch (ServiceException ex) {
-					throw new RpcServiceException(ex, request, "BlockingService RPC call threw ServiceException");
-				} catch (Exception ex) {
-					throw new RpcException(ex, request, "BlockingService threw unexpected exception");
-				}
-				if (controller.failed()) {
-					throw new RpcException(request, "BlockingService RPC failed: " + controller.errorText());
-				} else if (methodResponse == null) {
-					throw new RpcException(request, "BlockingService RPC returned null response");
-				} 
-				RpcResponse response = NettyRpcProto.RpcResponse.newBuilder()
-					.setId(request.getId())
-					.setResponseMessage(methodResponse.toByteString())
-					.build();
-				e.getChannel().write(response);
-			}
-		} else {
-			Service service = serviceMap.get(serviceName);
-			if (service == null) {
-				throw new NoSuchServiceException(request, serviceName);
-			} else if (service.getDescriptorForType().findMethodByName(methodName) == null) {
-				throw new NoSuchServiceMethodException(request, methodName);
-			} else {
-				MethodDescriptor methodDescriptor = service.getDescriptorForType().findMethodByName(methodName);
-				Message methodRequest = null;
-				try {
-					methodRequest = buildMessageFromPrototype(
-						service.getRequestPrototype(methodDescriptor),
-						request.getRequestMessage());
-				} catch (InvalidProtocolBufferException ex) {
-					throw new InvalidRpcRequestException(ex, request, "Could not build method request message");
-				}
-				final Channel channel = e.getChannel();
-				final RpcController controller = new NettyRpcController();
-				RpcCallback<Message> callback = !request.hasId() ? null : new RpcCallback<Message>() {
-					public void run(Message methodResponse) {
-						if (methodResponse != null) {
-							channel.write(RpcResponse.newBuilder()
-								.setId(request.getId())
-								.setResponseMessage(methodResponse.toByteString())
-								.build());
-						} else {
-							logger.info("service callback returned null message");
-							RpcResponse.Builder builder = RpcResponse.newBuilder()
-								.setId(request.getId())
-								.setErrorCode(ErrorCode.RPC_ERROR);
-							if (controller.errorText() != null) {
-								builder.setErrorMessage(controller.errorText());
-							}
-							channel.write(builder.build());
-						}
-					}
-				};
-				try {
-					service.callMethod(methodDescriptor, controller, methodRequest, callback);
-				} catch (Exception ex) {
-					throw new RpcException(ex, request, "Service threw unexpected exception");
-				}
-			}
-		}
-	}
-	
-	@Override
-	public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) {
-		logger.warn("exceptionCaught", e.getCause());
-		RpcResponse.Builder responseBuilder = RpcResponse.newBuilder();
-		if (e.getCause() instanceof NoSuchServiceException) {
-			responseBuilder.setErrorCode(ErrorCode.SERVICE_NOT_FOUND);
-		} else if (e.getCause() instanceof NoSuchServiceMethodException) {
-			responseBuilder.setErrorCode(ErrorCode.METHOD_NOT_FOUND);
-		} else if (e.getCause() instanceof InvalidRpcRequestException) {
-			responseBuilder.setErrorCode(ErrorCode.BAD_REQUEST_PROTO);
-		} else if (e.getCause() instanceof RpcServiceException) {
-			responseBuilder.setErrorCode(ErrorCode.RPC_ERROR);
-		} else if (e.getCause() instanceof RpcException) {
-			responseBuilder.setErrorCode(ErrorCode.RPC_FAILED);
-		} else {
-			/* Cannot respond to this exception, because it is not tied
-			 * to a request */
-			logger.info("Cannot respond to handler exception", e.getCause());
-			return;
-		}
-		RpcException ex = (RpcException) e.getCause();
-		if (ex.getRpcRequest() != null && ex.getRpcRequest().hasId()) {
-			responseBuilder.setId(ex.getRpcRequest().getId());
-			responseBuilder.setErrorMessage(ex.getMessage());
-			e.getChannel().write(responseBuilder.build());
-		} else {
-			logger.info("Cannot respond to handler exception", ex);
-		}
-	}
-	
-	private Message buildMessageFromPrototype(Message prototype, ByteString messageToBuild) throws InvalidProtocolBufferException {
-		return prototype.newBuilderForType().mergeFrom(messageToBuild).build();
-	}
-	
-	synchronized void registerService(Service service) {
-		if(serviceMap.containsKey(service.getDescriptorForType().getFullName())) {
-			throw new IllegalArgumentException("Service already registered");
-		}
-		serviceMap.put(service.getDescriptorForType().getFullName(), service);
-	}
-	
-	synchronized void unregisterService(Service service) {
-		if(!serviceMap.containsKey(service.getDescriptorForType().getFullName())) {
-			throw new IllegalArgumentException("Service not already registered");
-		}
-		serviceMap.remove(service.getDescriptorForType().getFullName());
-	}
-	
-	synchronized void registerBlockingService(BlockingService service) {
-		if(blockingServiceMap.containsKey(service.getDescriptorForType().getFullName())) {
-			throw new IllegalArgumentException("BlockingService already registered");
-		}
-		blockingServiceMap.put(service.getDescriptorForType().getFullName(), service);
-	}
-	
-	synchronized void unregisterBlockingService(BlockingService service) {
-		if(!blockingServiceMap.containsKey(service.getDescriptorForType().getFullName())) {
-			throw new IllegalArgumentException("BlockingService not already registered");
-		}
-		blockingServiceMap.remove(service.getDescriptorForType().getFullName());
-	}
-}
+/*
+ * Copyright (c) 2009 Stephen Tu <stephen_tu@berkeley.edu>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.protobuf.netty;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+import org.apache.log4j.Logger;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipelineCoverage;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.DefaultExceptionEvent;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+
+import com.google.protobuf.BlockingService;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+import com.google.protobuf.RpcCallback;
+import com.google.protobuf.RpcController;
+import com.google.protobuf.Service;
+import com.google.protobuf.ServiceException;
+import com.google.protobuf.Descriptors.MethodDescriptor;
+import com.google.protobuf.Descriptors.ServiceDescriptor;
+import com.googlecode.protobuf.netty.NettyRpcProto.ErrorCode;
+import com.googlecode.protobuf.netty.NettyRpcProto.Priority;
+import com.googlecode.protobuf.netty.NettyRpcProto.RpcResponse;
+import com.googlecode.protobuf.netty.exception.InvalidRpcRequestException;
+import com.googlecode.protobuf.netty.exception.NoRequestIdException;
+import com.googlecode.protobuf.netty.exception.NoSuchServiceException;
+import com.googlecode.protobuf.netty.exception.NoSuchServiceMethodException;
+import com.googlecode.protobuf.netty.exception.RpcException;
+import com.googlecode.protobuf.netty.exception.RpcServiceException;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.group.ChannelGroup;
+
+@ChannelPipelineCoverage("all")
+class NettyRpcServerChannelUpstreamHandler extends SimpleChannelUpstreamHandler {
+
+	private static final Logger logger = Logger.getLogger(NettyRpcServerChannelUpstreamHandler.class);
+	
+	// Dispatch tables: service name -> method name -> invoker. The invokers are
+	// resolved once at registration time so the request path never has to scan
+	// service descriptors.
+	private final Map<String, Map<String, ServiceMethodInvoker>> serviceMap = new ConcurrentHashMap<String, Map<String, ServiceMethodInvoker>>();
+	private final Map<String, Map<String, BlockingMethodInvoker>> blockingServiceMap = new ConcurrentHashMap<String, Map<String, BlockingMethodInvoker>>();
+	// Full method name -> invoker
+	private final Map<String, StreamingMethodInvoker> streamingMethods = new ConcurrentHashMap<String, StreamingMethodInvoker>();
+	private final Map<String, BidiStreamingMethodInvoker> bidiStreamingMethods = new ConcurrentHashMap<String, BidiStreamingMethodInvoker>();
+	// Service name -> the limit all its methods share, whatever their kind.
+	// It caps them at maxLimit together, and does not adapt, as its methods
+	// may take very different times. Guarded by this.
+	private final Map<String, AdaptiveConcurrencyLimit> serviceLimits = new HashMap<String, AdaptiveConcurrencyLimit>();
+
+    private final ChannelGroup allChannels;
+    
+	private final NettyRpcServerCallTracker callTracker;
+	
+	private final NettyRpcMetrics metrics = new NettyRpcMetrics("Server");
+	
+	private volatile Executor blockingExecutor;
+	
+	// Requests a client may send ahead on a client stream
+	private volatile int streamWindow = 32;
+	
+	// Concurrency limits of new methods and services; only enforced once
+	// setConcurrencyLimits has been called
+	private volatile boolean limitsEnabled;
+	private volatile int initialLimit = 100;
+	private volatile int minLimit = 1;
+	private volatile int maxLimit = 1000;
+
+    public NettyRpcServerChannelUpstreamHandler(ChannelGroup allChannels, NettyRpcServerCallTracker callTracker) {
+        this.allChannels = allChannels;
+        this.callTracker = callTracker;
+    }
+
+    @Override
+    public void channelOpen(ChannelHandlerContext ctx, ChannelStateEvent e) {
+        // Add all open channels to the global group so that they are
+        // closed on shutdown.
+        allChannels.add(e.getChannel());
+    }
+	
+	@Override
+	public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+		if (e.getMessage() instanceof NettyRpcServerStream) {
+			// Requests of a client stream, queued by the call tracker
+			((NettyRpcServerStream) e.getMessage()).deliverRequests();
+		} else if (e.getMessage() instanceof List) {
+			// The client understands RpcBatch, so replies may be batched too
+			NettyRpcWriteCoalescer coalescer = ctx.getPipeline().get(NettyRpcWriteCoalescer.class);
+			if (coalescer != null) {
+				coalescer.enableBatching();
+			}
+			for (Object request : (List<?>) e.getMessage()) {
+				try {
+					handleRequest(e.getChannel(), (RpcRequestEnvelope) request);
+				} catch (Exception ex) {
+					// Answer the failed call and carry on with the rest of the batch
+					exceptionCaught(ctx, new DefaultExceptionEvent(e.getChannel(), ex));
+				}
+			}
+		} else {
+			handleRequest(e.getChannel(), (RpcRequestEnvelope) e.getMessage());
+		}
+	}
+	
+	private void handleRequest(Channel channel, RpcRequestEnvelope request) throws Exception {
+		try {
+			dispatch(channel, request);
+		} finally {
+			if (!request.hasId() && request.getController() != null) {
+				// Nothing tracks calls that get no answer, so they give back
+				// their slots once they have been handed to the service
+				request.getController().releasePermit(false);
+				request.getController().recordAnswer(null);
+			}
+		}
+	}
+	
+	private void dispatch(final Channel channel, final RpcRequestEnvelope request) throws Exception {
+		String serviceName = request.getServiceName();
+		String methodName = request.getMethodName();
+		
+		if (logger.isDebugEnabled()) {
+			logger.debug("Received request for serviceName: " + serviceName + ", method: " + methodName);
+		}
+		
+		if (isAbandoned(channel, request)) {
+			return;
+		}
+		
+		if (request.isStreaming()) {
+			dispatchStream(channel, request);
+		} else if (request.isBlockingService()) {
+			Map<String, BlockingMethodInvoker> methods = blockingServiceMap.get(serviceName);
+			BlockingMethodInvoker invoker = (methods == null) ? null : methods.get(methodName);
+			if (methods == null) {
+				throw new NoSuchServiceException(request.toRpcRequest(), serviceName);
+			} else if (invoker == null) {
+				throw new NoSuchServiceMethodException(request.toRpcRequest(), methodName);
+			} else if (!request.hasId()) {
+				// All blocking services need to have a request ID since well, they are
+				// blocking (hence they need a response!)
+				throw new NoRequestIdException();
+			} else if (admit(channel, request, invoker)) {
+				Message methodRequest = null;
+				try {
+					methodRequest = invoker.buildRequest(request.getPayload());
+				} catch (InvalidProtocolBufferException ex) {
+					throw new InvalidRpcRequestException(ex, request.toRpcRequest(), "Could not build method request message");
+				}
+				Executor executor = blockingExecutor;
+				if (executor == null) {
+					invokeBlocking(channel, request, invoker, methodRequest);
+				} else {
+					executor.execute(new BlockingInvocation(channel, request, invoker, methodRequest));
+				}
+			}
+		} else {
+			Map<String, ServiceMethodInvoker> methods = serviceMap.get(serviceName);
+			ServiceMethodInvoker invoker = (methods == null) ? null : methods.get(methodName);
+			if (methods == null) {
+				throw new NoSuchServiceException(request.toRpcRequest(), serviceName);
+			} else if (invoker == null) {
+				throw new NoSuchServiceMethodException(request.toRpcRequest(), methodName);
+			} else if (admit(channel, request, invoker)) {
+				Message methodRequest = null;
+				try {
+					methodRequest = invoker.buildRequest(request.getPayload());
+				} catch (InvalidProtocolBufferException ex) {
+					throw new InvalidRpcRequestException(ex, request.toRpcRequest(), "Could not build method request message");
+				}
+				final RpcController controller = controllerFor(request);
+				RpcCallback<Message> callback = !request.hasId() ? null : new RpcCallback<Message>() {
+					public void run(Message methodResponse) {
+						if (methodResponse != null) {
+							respond(channel, request, new RpcResponseEnvelope(request.getId(), methodResponse));
+						} else {
+							logger.info("service callback returned null message");
+							respond(channel, request, new RpcResponseEnvelope(request.getId(), 
+									ErrorCode.RPC_ERROR, controller.errorText()));
+						}
+					}
+				};
+				try {
+					invoker.invoke(controller, methodRequest, callback);
+				} catch (Exception ex) {
+					throw new RpcException(ex, request.toRpcRequest(), "Service threw unexpected exception");
+				}
+			}
+		}
+	}
+	
+	private void dispatchStream(Channel channel, RpcRequestEnvelope request) throws Exception {
+		if (request.isClientStream()) {
+			dispatchBidiStream(channel, request);
+			return;
+		}
+		StreamingMethodInvoker invoker = streamingMethods.get(request.getServiceName() + "." + request.getMethodName());
+		if (invoker == null) {
+			throw new NoSuchServiceMethodException(request.toRpcRequest(), request.getMethodName());
+		} else if (!request.hasId()) {
+			// The responses could not be told apart from those of other calls
+			throw new NoRequestIdException();
+		} else if (admit(channel, request, invoker)) {
+			Message methodRequest = null;
+			try {
+				methodRequest = invoker.buildRequest(request.getPayload());
+			} catch (InvalidProtocolBufferException ex) {
+				throw new InvalidRpcRequestException(ex, request.toRpcRequest(), "Could not build method request message");
+			}
+			NettyRpcController controller = controllerFor(request);
+			NettyRpcServerStream stream = streamFor(channel, request, controller);
+			try {
+				invoker.invoke(controller, methodRequest, stream);
+			} catch (Exception ex) {
+				// Ends the stream, so that nothing more is sent after the error
+				logger.warn("Streaming method " + request.getMethodName() + " threw unexpected exception", ex);
+				stream.fail("Streaming method threw unexpected exception: " + ex);
+			}
+		}
+	}
+	
+	private void dispatchBidiStream(Channel channel, RpcRequestEnvelope request) throws Exception {
+		BidiStreamingMethodInvoker invoker = bidiStreamingMethods.get(request.getServiceName() + "." + request.getMethodName());
+		if (invoker == null) {
+			throw new NoSuchServiceMethodException(request.toRpcRequest(), request.getMethodName());
+		} else if (!request.hasId()) {
+			throw new NoRequestIdException();
+		} else if (admit(channel, request, invoker)) {
+			NettyRpcController controller = controllerFor(request);
+			NettyRpcServerStream stream = streamFor(channel, request, controller);
+			RpcStreamListener<Message> listener;
+			try {
+				listener = invoker.invoke(controller, stream);
+			} catch (Exception ex) {
+				logger.warn("Streaming method " + request.getMethodName() + " threw unexpected exception", ex);
+				stream.fail("Streaming method threw unexpected exception: " + ex);
+				return;
+			}
+			if (listener == null) {
+				stream.fail("Streaming method returned no request listener");
+			} else {
+				stream.receiveRequests(listener, invoker.requestPrototype, streamWindow);
+			}
+		}
+	}
+	
+	/**
+	 * Returns the stream the call tracker made for a streaming call.
+	 */
+	private NettyRpcServerStream streamFor(Channel channel, RpcRequestEnvelope request, NettyRpcController controller) {
+		NettyRpcServerStream stream = controller.getStream();
+		if (stream == null) {
+			stream = new NettyRpcServerStream(channel, request, controller, callTracker);
+		}
+		return stream;
+	}
+	
+	private void invokeBlocking(Channel channel, RpcRequestEnvelope request, BlockingMethodInvoker invoker, Message methodRequest) throws RpcException {
+		RpcController controller = controllerFor(request);
+		Message methodResponse = null;
+		try {
+			methodResponse = invoker.invoke(controller, methodRequest);
+		} catch (ServiceException ex) {
+			throw new RpcServiceException(ex, request.toRpcRequest(), "BlockingService RPC call threw ServiceException");
+		} catch (Exception ex) {
+			throw new RpcException(ex, request.toRpcRequest(), "BlockingService threw unexpected exception");
+		}
+		if (controller.failed()) {
+			throw new RpcException(request.toRpcRequest(), "BlockingService RPC failed: " + controller.errorText());
+		} else if (methodResponse == null) {
+			throw new RpcException(request.toRpcRequest(), "BlockingService RPC returned null response");
+		} 
+		respond(channel, request, new RpcResponseEnvelope(request.getId(), methodResponse));
+	}
+	
+	/**
+	 * Counts the call in the metrics of its method, and takes a slot for it
+	 * in the concurrency limits of the method and its service. If either is
+	 * full, answers the call with {@link ErrorCode#OVERLOADED} instead,
+	 * without parsing its request.
+	 */
+	private boolean admit(Channel channel, RpcRequestEnvelope request, MethodInvoker invoker) {
+		controllerFor(request).startMetrics(invoker.metrics, RpcMethodMetrics.sizeOf(request.getPayload()));
+		if (!limitsEnabled) {
+			return true;
+		}
+		AdaptiveConcurrencyLimit.Permit permit = AdaptiveConcurrencyLimit.Permit.acquire(invoker.serviceLimit, invoker.methodLimit);
+		if (permit != null) {
+			controllerFor(request).setPermit(permit);
+			return true;
+		}
+		// Not logged above debug: rejecting has to stay cheap while overloaded
+		if (logger.isDebugEnabled()) {
+			logger.debug("Rejecting request for serviceName: " + request.getServiceName() + 
+					", method: " + request.getMethodName() + ", concurrency limit reached");
+		}
+		if (request.hasId()) {
+			respond(channel, request.getId(), RpcResponse.newBuilder()
+					.setId(request.getId())
+					.setErrorCode(ErrorCode.OVERLOADED)
+					.setErrorMessage("Server is overloaded: " + invoker.methodLimit.getLimit() + " calls of " + 
+							request.getMethodName() + " allowed at once")
+					.build());
+		}
+		return false;
+	}
+	
+	/**
+	 * Checks whether the caller has stopped waiting for a call, which is then
+	 * dropped without an answer.
+	 */
+	private boolean isAbandoned(Channel channel, RpcRequestEnvelope request) {
+		String reason;
+		if (request.isExpired()) {
+			reason = "expired";
+		} else if (request.getController() != null && request.getController().isCanceled()) {
+			reason = "canceled";
+		} else {
+			return false;
+		}
+		logger.debug("Dropping " + reason + " request for serviceName: " + request.getServiceName() + 
+				", method: " + request.getMethodName());
+		if (request.hasId()) {
+			callTracker.complete(channel, request.getId(), null);
+		}
+		return true;
+	}
+	
+	/**
+	 * Writes the answer to a call, unless the client has canceled it.
+	 */
+	private void respond(Channel channel, int id, Object response) {
+		if (callTracker.complete(channel, id, response)) {
+			channel.write(response);
+		} else {
+			logger.debug("Not answering canceled call " + id);
+		}
+	}
+	
+	/**
+	 * Writes the response envelope of a call, to be ordered by the call's
+	 * priority.
+	 */
+	private void respond(Channel channel, RpcRequestEnvelope request, RpcResponseEnvelope response) {
+		response.setPriority(request.getPriority());
+		respond(channel, request.getId(), response);
+	}
+	
+	private static NettyRpcController controllerFor(RpcRequestEnvelope request) {
+		NettyRpcController controller = request.getController();
+		if (controller == null) {
+			controller = newController(request);
+			request.setController(controller);
+		}
+		return controller;
+	}
+	
+	static NettyRpcController newController(RpcRequestEnvelope request) {
+		NettyRpcController controller = new NettyRpcController();
+		controller.setReceivedNanos(System.nanoTime());
+		if (request.hasTimeout()) {
+			controller.setDeadline(request.getDeadlineNanos());
+		}
+		controller.setPriority(request.getPriority());
+		return controller;
+	}
+	
+	@Override
+	public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) {
+		logger.warn("exceptionCaught", e.getCause());
+		RpcResponse.Builder responseBuilder = RpcResponse.newBuilder();
+		if (e.getCause() instanceof NoSuchServiceException) {
+			responseBuilder.setErrorCode(ErrorCode.SERVICE_NOT_FOUND);
+		} else if (e.getCause() instanceof NoSuchServiceMethodException) {
+			responseBuilder.setErrorCode(ErrorCode.METHOD_NOT_FOUND);
+		} else if (e.getCause() instanceof InvalidRpcRequestException) {
+			responseBuilder.setErrorCode(ErrorCode.BAD_REQUEST_PROTO);
+		} else if (e.getCause() instanceof RpcServiceException) {
+			responseBuilder.setErrorCode(ErrorCode.RPC_ERROR);
+		} else if (e.getCause() instanceof RpcException) {
+			responseBuilder.setErrorCode(ErrorCode.RPC_FAILED);
+		} else {
+			/* Cannot respond to this exception, because it is not tied
+			 * to a request */
+			logger.info("Cannot respond to handler exception", e.getCause());
+			return;
+		}
+		RpcException ex = (RpcException) e.getCause();
+		if (ex.getRpcRequest() != null && ex.getRpcRequest().hasId()) {
+			responseBuilder.setId(ex.getRpcRequest().getId());
+			responseBuilder.setErrorMessage(ex.getMessage());
+			respond(e.getChannel(), ex.getRpcRequest().getId(), responseBuilder.build());
+		} else {
+			logger.info("Cannot respond to handler exception", ex);
+		}
+	}
+	
+	/**
+	 * Runs BlockingService methods on the given executor instead of the
+	 * thread that delivered the request. Pass null to run them inline.
+	 */
+	void setBlockingExecutor(Executor blockingExecutor) {
+		this.blockingExecutor = blockingExecutor;
+	}
+	
+	/**
+	 * Enforces adaptive concurrency limits on every method and service,
+	 * starting over from <code>initialLimit</code>.
+	 */
+	synchronized void setConcurrencyLimits(int initialLimit, int minLimit, int maxLimit) {
+		if (minLimit < 1 || initialLimit < minLimit || maxLimit < initialLimit) {
+			throw new IllegalArgumentException("Need 0 < min <= initial <= max");
+		}
+		this.initialLimit = initialLimit;
+		this.minLimit = minLimit;
+		this.maxLimit = maxLimit;
+		for (Map<String, ServiceMethodInvoker> methods : serviceMap.values()) {
+			for (MethodInvoker invoker : methods.values()) {
+				invoker.configureLimits(initialLimit, minLimit, maxLimit);
+			}
+		}
+		for (Map<String, BlockingMethodInvoker> methods : blockingServiceMap.values()) {
+			for (MethodInvoker invoker : methods.values()) {
+				invoker.configureLimits(initialLimit, minLimit, maxLimit);
+			}
+		}
+		for (MethodInvoker invoker : streamingMethods.values()) {
+			invoker.configureLimits(initialLimit, minLimit, maxLimit);
+		}
+		for (MethodInvoker invoker : bidiStreamingMethods.values()) {
+			invoker.configureLimits(initialLimit, minLimit, maxLimit);
+		}
+		for (AdaptiveConcurrencyLimit serviceLimit : serviceLimits.values()) {
+			serviceLimit.configure(maxLimit, maxLimit, maxLimit);
+		}
+		limitsEnabled = true;
+	}
+	
+	private AdaptiveConcurrencyLimit newLimit() {
+		return new AdaptiveConcurrencyLimit(initialLimit, minLimit, maxLimit);
+	}
+	
+	/**
+	 * Returns the limit of the service, shared by its methods of every kind.
+	 */
+	private AdaptiveConcurrencyLimit serviceLimit(ServiceDescriptor service) {
+		AdaptiveConcurrencyLimit serviceLimit = serviceLimits.get(service.getFullName());
+		if (serviceLimit == null) {
+			serviceLimit = new AdaptiveConcurrencyLimit(maxLimit, maxLimit, maxLimit);
+			serviceLimits.put(service.getFullName(), serviceLimit);
+		}
+		return serviceLimit;
+	}
+	
+	synchronized void registerService(Service service) {
+		ServiceDescriptor descriptor = service.getDescriptorForType();
+		if(serviceMap.containsKey(descriptor.getFullName())) {
+			throw new IllegalArgumentException("Service already registered");
+		}
+		AdaptiveConcurrencyLimit serviceLimit = serviceLimit(descriptor);
+		Map<String, ServiceMethodInvoker> methods = new HashMap<String, ServiceMethodInvoker>();
+		for (MethodDescriptor method : descriptor.getMethods()) {
+			methods.put(method.getName(), new ServiceMethodInvoker(service, method, serviceLimit, newLimit(), 
+					metrics.forMethod(method)));
+		}
+		serviceMap.put(descriptor.getFullName(), Collections.unmodifiableMap(methods));
+	}
+	
+	synchronized void unregisterService(Service service) {
+		if(!serviceMap.containsKey(service.getDescriptorForType().getFullName())) {
+			throw new IllegalArgumentException("Service not already registered");
+		}
+		serviceMap.remove(service.getDescriptorForType().getFullName());
+	}
+	
+	synchronized void registerBlockingService(BlockingService service) {
+		ServiceDescriptor descriptor = service.getDescriptorForType();
+		if(blockingServiceMap.containsKey(descriptor.getFullName())) {
+			throw new IllegalArgumentException("BlockingService already registered");
+		}
+		AdaptiveConcurrencyLimit serviceLimit = serviceLimit(descriptor);
+		Map<String, BlockingMethodInvoker> methods = new HashMap<String, BlockingMethodInvoker>();
+		for (MethodDescriptor method : descriptor.getMethods()) {
+			methods.put(method.getName(), new BlockingMethodInvoker(service, method, serviceLimit, newLimit(), 
+					metrics.forMethod(method)));
+		}
+		blockingServiceMap.put(descriptor.getFullName(), Collections.unmodifiableMap(methods));
+	}
+	
+	synchronized void unregisterBlockingService(BlockingService service) {
+		if(!blockingServiceMap.containsKey(service.getDescriptorForType().getFullName())) {
+			throw new IllegalArgumentException("BlockingService not already registered");
+		}
+		blockingServiceMap.remove(service.getDescriptorForType().getFullName());
+	}
+	
+	synchronized void registerServerStreamingMethod(MethodDescriptor method, Message requestPrototype, 
+			ServerStreamingMethod<?, ?> streamingMethod) {
+		if (streamingMethods.containsKey(method.getFullName())) {
+			throw new IllegalArgumentException("Streaming method already registered");
+		}
+		streamingMethods.put(method.getFullName(), 
+				new StreamingMethodInvoker(method, requestPrototype, streamingMethod, serviceLimit(method.getService()), newLimit(), 
+						metrics.forMethod(method)));
+	}
+	
+	synchronized void unregisterServerStreamingMethod(MethodDescriptor method) {
+		if (streamingMethods.remove(method.getFullName()) == null) {
+			throw new IllegalArgumentException("Streaming method not already registered");
+		}
+	}
+	
+	synchronized void registerBidiStreamingMethod(MethodDescriptor method, Message requestPrototype, 
+			BidiStreamingMethod<?, ?> streamingMethod) {
+		if (bidiStreamingMethods.containsKey(method.getFullName())) {
+			throw new IllegalArgumentException("Streaming method already registered");
+		}
+		bidiStreamingMethods.put(method.getFullName(), 
+				new BidiStreamingMethodInvoker(method, requestPrototype, streamingMethod, serviceLimit(method.getService()), newLimit(), 
+						metrics.forMethod(method)));
+	}
+	
+	synchronized void unregisterBidiStreamingMethod(MethodDescriptor method) {
+		if (bidiStreamingMethods.remove(method.getFullName()) == null) {
+			throw new IllegalArgumentException("Streaming method not already registered");
+		}
+	}
+	
+	NettyRpcMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * Sets how many requests a client may send ahead of those delivered, on
+	 * each client stream.
+	 */
+	void setStreamWindow(int streamWindow) {
+		this.streamWindow = streamWindow;
+	}
+	
+	private class BlockingInvocation implements PriorityOrderedExecutor.PrioritizedTask {
+		
+		private final Channel channel;
+		private final RpcRequestEnvelope request;
+		private final BlockingMethodInvoker invoker;
+		private final Message methodRequest;
+		
+		BlockingInvocation(Channel channel, RpcRequestEnvelope request, BlockingMethodInvoker invoker, Message methodRequest) {
+			this.channel = channel;
+			this.request = request;
+			this.invoker = invoker;
+			this.methodRequest = methodRequest;
+		}
+		
+		public Priority getPriority() {
+			return request.getPriority();
+		}
+		
+		public void run() {
+			// The call may have expired or been canceled while it waited for
+			// an executor thread
+			if (isAbandoned(channel, request)) {
+				return;
+			}
+			try {
+				invokeBlocking(channel, request, invoker, methodRequest);
+			} catch (RpcException ex) {
+				// Route the failure through the pipeline so that it is answered
+				// exactly like one thrown from messageReceived.
+				Channels.fireExceptionCaught(channel, ex);
+			}
+		}
+		
+	}
+	
+	/**
+	 * A pre-resolved method: descriptor and request prototype are looked up
+	 * once when the service is registered. Also holds the concurrency limits
+	 * of the method and of its service, which all its methods share, and the
+	 * method's metrics.
+	 */
+	abstract static class MethodInvoker {
+		
+		protected final MethodDescriptor method;
+		protected final Message requestPrototype;
+		final AdaptiveConcurrencyLimit serviceLimit;
+		final AdaptiveConcurrencyLimit methodLimit;
+		final RpcMethodMetrics metrics;
+		
+		MethodInvoker(MethodDescriptor method, Message requestPrototype, 
+				AdaptiveConcurrencyLimit serviceLimit, AdaptiveConcurrencyLimit methodLimit, RpcMethodMetrics metrics) {
+			this.method = method;
+			this.requestPrototype = requestPrototype;
+			this.serviceLimit = serviceLimit;
+			this.methodLimit = methodLimit;
+			this.metrics = metrics;
+		}
+		
+		void configureLimits(int initialLimit, int minLimit, int maxLimit) {
+			methodLimit.configure(initialLimit, minLimit, maxLimit);
+		}
+		
+		Message buildRequest(ChannelBuffer payload) throws InvalidProtocolBufferException {
+			return NettyRpcEnvelopeDecoder.parseMessage(requestPrototype, payload);
+		}
+		
+	}
+	
+	static final class BlockingMethodInvoker extends MethodInvoker {
+		
+		private final BlockingService service;
+		
+		BlockingMethodInvoker(BlockingService service, MethodDescriptor method, 
+				AdaptiveConcurrencyLimit serviceLimit, AdaptiveConcurrencyLimit methodLimit, RpcMethodMetrics metrics) {
+			super(method, service.getRequestPrototype(method), serviceLimit, methodLimit, metrics);
+			this.service = service;
+		}
+		
+		Message invoke(RpcController controller, Message request) throws ServiceException {
+			return service.callBlockingMethod(method, controller, request);
+		}
+		
+	}
+	
+	static final class ServiceMethodInvoker extends MethodInvoker {
+		
+		private final Service service;
+		
+		ServiceMethodInvoker(Service service, MethodDescriptor method, 
+				AdaptiveConcurrencyLimit serviceLimit, AdaptiveConcurrencyLimit methodLimit, RpcMethodMetrics metrics) {
+			super(method, service.getRequestPrototype(method), serviceLimit, methodLimit, metrics);
+			this.service = service;
+		}
+		
+		void invoke(RpcController controller, Message request, RpcCallback<Message> done) {
+			service.callMethod(method, controller, request, done);
+		}
+		
+	}
+	
+	static final class StreamingMethodInvoker extends MethodInvoker {
+		
+		private final ServerStreamingMethod<Message, Message> streamingMethod;
+		
+		@SuppressWarnings("unchecked")
+		StreamingMethodInvoker(MethodDescriptor method, Message requestPrototype, ServerStreamingMethod<?, ?> streamingMethod, 
+				AdaptiveConcurrencyLimit serviceLimit, AdaptiveConcurrencyLimit methodLimit, RpcMethodMetrics metrics) {
+			super(method, requestPrototype, serviceLimit, methodLimit, metrics);
+			this.streamingMethod = (ServerStreamingMethod<Message, Message>) streamingMethod;
+		}
+		
+		void invoke(NettyRpcController controller, Message request, RpcStreamEmitter<Message> responses) throws Exception {
+			streamingMethod.call(controller, request, responses);
+		}
+		
+	}
+	
+	static final class BidiStreamingMethodInvoker extends MethodInvoker {
+		
+		private final BidiStreamingMethod<Message, Message> streamingMethod;
+		
+		@SuppressWarnings("unchecked")
+		BidiStreamingMethodInvoker(MethodDescriptor method, Message requestPrototype, BidiStreamingMethod<?, ?> streamingMethod, 
+				AdaptiveConcurrencyLimit serviceLimit, AdaptiveConcurrencyLimit methodLimit, RpcMethodMetrics metrics) {
+			super(method, requestPrototype, serviceLimit, methodLimit, metrics);
+			this.streamingMethod = (BidiStreamingMethod<Message, Message>) streamingMethod;
+		}
+		
+		RpcStreamListener<Message> invoke(NettyRpcController controller, RpcStreamEmitter<Message> responses) throws Exception {
+			return streamingMethod.call(controller, responses);
+		}
+		
+	}
+}
@@ -0,0 +1,382 @@
+/*
+ * Copyright (c) 2009 Stephen Tu <stephen_tu@berkeley.edu>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.protobuf.netty;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.jboss.netty.channel.Channel;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+import com.google.protobuf.ServiceException;
+import com.googlecode.protobuf.netty.NettyRpcProto.ErrorCode;
+import com.googlecode.protobuf.netty.NettyRpcProto.Priority;
+import com.googlecode.protobuf.netty.NettyRpcProto.RpcControl;
+
+/**
+ * The responses of a server streaming call. Each message goes out as an
+ * RpcResponse with the call's id, and the stream ends with a response that
+ * has end_of_stream set.
+ * <p>
+ * The client starts the stream with a window of credit, one per message,
+ * and sends more with RpcControl.stream_credit as it consumes messages. So
+ * at most a window of messages are buffered between the two, however fast
+ * the method produces them. A method that emits on the I/O thread cannot
+ * wait for credit, so its messages are held back here instead, up to
+ * another window; a method that emits more than that fails its stream.
+ * <p>
+ * On a bidirectional call the requests flow the same way in the other
+ * direction: the client sends them in RpcControl.stream_message as the
+ * server gives it credit. They are queued here as they are read, and handed
+ * to the method's listener one at a time, wherever the call runs.
+ */
+class NettyRpcServerStream implements RpcStreamEmitter<Message> {
+
+	private static final Logger logger = Logger.getLogger(NettyRpcServerStream.class);
+	
+	// Queued when the client cancels, to fail the request listener in turn
+	private static final RpcControl CANCELED = RpcControl.newBuilder().setId(0).setCancel(true).build();
+	
+	private final Channel channel;
+	private final int id;
+	private final String methodName;
+	private final NettyRpcController controller;
+	private final NettyRpcServerCallTracker callTracker;
+	private final Queue<Runnable> readyListeners = new ConcurrentLinkedQueue<Runnable>();
+	
+	// The request side of a bidirectional call. The listener is set once the
+	// method has been called; requests read before that wait in the queue.
+	private final boolean clientStream;
+	private final Queue<RpcControl> requests = new ConcurrentLinkedQueue<RpcControl>();
+	private final AtomicBoolean delivering = new AtomicBoolean();
+	// Requests the client may still send
+	private final AtomicInteger requestCredit = new AtomicInteger();
+	private volatile RpcStreamListener<Message> requestListener;
+	private Message requestPrototype;
+	private int requestWindow;
+	// Only touched by the thread delivering requests
+	private int consumedRequests;
+	private boolean requestsEnded;
+	
+	// Guarded by this. Messages are written under the lock as well, so that
+	// they keep their order when several threads emit.
+	private int credit;
+	private boolean ended;
+	// Emitted on the I/O thread while there was no credit, sent as credit
+	// arrives. The end of the stream waits for them if complete() was
+	// called in the meantime.
+	private final Queue<Message> held = new ArrayDeque<Message>();
+	private final int maxHeld;
+	private boolean completing;
+	
+	NettyRpcServerStream(Channel channel, RpcRequestEnvelope request, NettyRpcController controller, 
+			NettyRpcServerCallTracker callTracker) {
+		this.channel = channel;
+		this.id = request.getId();
+		this.methodName = request.getServiceName() + "." + request.getMethodName();
+		this.controller = controller;
+		this.callTracker = callTracker;
+		this.credit = request.getStreamWindow();
+		this.maxHeld = Math.max(1, request.getStreamWindow());
+		this.clientStream = request.isClientStream();
+		controller.setStream(this);
+	}
+	
+	Priority getPriority() {
+		return controller.getPriority();
+	}
+	
+	public boolean emit(Message message) {
+		if (message == null) {
+			throw new NullPointerException("message");
+		}
+		synchronized (this) {
+			if (isClosed()) {
+				return false;
+			} else if (NettyRpcServerCallTracker.isInline()) {
+				// Waiting here would stop the credit from being read
+				if (credit <= 0 || !held.isEmpty()) {
+					if (held.size() < maxHeld) {
+						held.add(message);
+						return true;
+					}
+				} else {
+					send(message);
+					return true;
+				}
+			} else {
+				while ((credit <= 0 || !held.isEmpty()) && !isClosed()) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return false;
+					}
+				}
+				if (isClosed()) {
+					return false;
+				}
+				send(message);
+				return true;
+			}
+		}
+		logger.warn("Streaming method " + methodName + " emitted more than " + maxHeld + 
+				" messages on the I/O thread without credit, failing the stream");
+		fail(ErrorCode.RPC_FAILED, "Server emitted more than " + maxHeld + 
+				" messages on the I/O thread without waiting for credit");
+		return false;
+	}
+	
+	// Called with the lock held
+	private void send(Message message) {
+		credit--;
+		RpcResponseEnvelope response = new RpcResponseEnvelope(id, message);
+		response.setPriority(controller.getPriority());
+		RpcMethodMetrics metrics = controller.getMetrics();
+		if (metrics != null) {
+			metrics.addResponseBytes(message.getSerializedSize());
+		}
+		channel.write(response);
+	}
+	
+	public synchronized boolean isReady() {
+		return credit > 0 && held.isEmpty() && !isClosed();
+	}
+	
+	public void notifyOnReady(Runnable task) {
+		readyListeners.add(task);
+		boolean run;
+		synchronized (this) {
+			run = (credit > 0 && held.isEmpty()) || isClosed();
+		}
+		if (run) {
+			runReadyListeners();
+		}
+	}
+	
+	public void complete() {
+		synchronized (this) {
+			if (!held.isEmpty() && !isClosed()) {
+				// Ends once the held messages have gone out
+				completing = true;
+				return;
+			}
+		}
+		end(endOfStream());
+	}
+	
+	private RpcResponseEnvelope endOfStream() {
+		RpcResponseEnvelope last = new RpcResponseEnvelope(id, null, null, null);
+		last.setEndOfStream(true);
+		return last;
+	}
+	
+	public void fail(String reason) {
+		fail(ErrorCode.RPC_FAILED, reason);
+	}
+	
+	void fail(ErrorCode errorCode, String reason) {
+		RpcResponseEnvelope last = new RpcResponseEnvelope(id, errorCode, reason);
+		last.setEndOfStream(true);
+		end(last);
+	}
+	
+	public synchronized boolean isClosed() {
+		return ended || completing || controller.isCanceled() || !channel.isOpen();
+	}
+	
+	/**
+	 * Lets the stream send <code>messages</code> more messages, starting
+	 * with those held back.
+	 */
+	void addCredit(int messages) {
+		boolean finish;
+		synchronized (this) {
+			credit = (int) Math.min(Integer.MAX_VALUE, (long) credit + messages);
+			while (credit > 0 && !held.isEmpty() && !ended) {
+				send(held.poll());
+			}
+			finish = completing && held.isEmpty();
+			notifyAll();
+		}
+		if (finish) {
+			end(endOfStream());
+		}
+		runReadyListeners();
+	}
+	
+	/**
+	 * Wakes up producers after the client canceled the call or went away.
+	 */
+	void canceled() {
+		boolean finish;
+		synchronized (this) {
+			held.clear();
+			finish = completing;
+			notifyAll();
+		}
+		if (finish) {
+			// Nothing is sent, but the call is completed
+			end(endOfStream());
+		}
+		runReadyListeners();
+		if (clientStream) {
+			requests.add(CANCELED);
+			deliverRequests();
+		}
+	}
+	
+	/**
+	 * Starts handing requests to the listener, and gives the client credit
+	 * for its first <code>window</code> requests.
+	 */
+	void receiveRequests(RpcStreamListener<Message> listener, Message prototype, int window) {
+		requestPrototype = prototype;
+		requestWindow = window;
+		requestListener = listener;
+		grantRequestCredit(window);
+		deliverRequests();
+	}
+	
+	/**
+	 * Queues a request message, or the end of the requests, in the order the
+	 * I/O thread reads them. Fails the call if the client has sent more than
+	 * it was given credit for.
+	 * 
+	 * @return true if {@link #deliverRequests()} has something to do
+	 */
+	boolean received(RpcControl control) {
+		if (!clientStream) {
+			logger.debug("Ignoring stream message for call " + id + ", which takes a single request");
+			return false;
+		} else if (control.hasStreamMessage() && requestCredit.decrementAndGet() < 0) {
+			fail(ErrorCode.BAD_REQUEST_DATA, "Client sent more requests than it had credit for");
+			return false;
+		}
+		RpcMethodMetrics metrics = controller.getMetrics();
+		if (metrics != null && control.hasStreamMessage()) {
+			metrics.addRequestBytes(control.getStreamMessage().size());
+		}
+		requests.add(control);
+		return true;
+	}
+	
+	/**
+	 * Hands the queued requests to the listener. Only one thread delivers at
+	 * a time, so the listener sees them in order.
+	 */
+	void deliverRequests() {
+		RpcStreamListener<Message> listener = requestListener;
+		if (listener == null) {
+			return;
+		}
+		while (!requests.isEmpty() && delivering.compareAndSet(false, true)) {
+			try {
+				RpcControl control;
+				while ((control = requests.poll()) != null) {
+					deliver(listener, control);
+				}
+			} finally {
+				delivering.set(false);
+			}
+		}
+	}
+	
+	private void deliver(RpcStreamListener<Message> listener, RpcControl control) {
+		if (requestsEnded) {
+			return;
+		} else if (control == CANCELED) {
+			requestsEnded = true;
+			listener.onFailed(new ServiceException("Stream canceled"));
+			return;
+		} else if (isClosed()) {
+			// The method has ended the call; what is left is dropped
+			return;
+		}
+		try {
+			if (control.hasStreamMessage()) {
+				Message request;
+				try {
+					request = requestPrototype.newBuilderForType().mergeFrom(control.getStreamMessage()).build();
+				} catch (InvalidProtocolBufferException e) {
+					requestsEnded = true;
+					fail(ErrorCode.BAD_REQUEST_PROTO, "Could not parse stream request: " + e.getMessage());
+					return;
+				}
+				listener.onMessage(request);
+				if (++consumedRequests >= Math.max(1, requestWindow / 2)) {
+					grantRequestCredit(consumedRequests);
+					consumedRequests = 0;
+				}
+			}
+			if (control.getEndOfStream()) {
+				requestsEnded = true;
+				listener.onCompleted();
+			}
+		} catch (RuntimeException e) {
+			requestsEnded = true;
+			logger.warn("Stream listener threw an exception", e);
+			fail("Stream listener threw an exception: " + e);
+		}
+	}
+	
+	private void grantRequestCredit(int messages) {
+		if (!isClosed()) {
+			requestCredit.addAndGet(messages);
+			channel.write(RpcControl.newBuilder().setId(id).setStreamCredit(messages).build());
+		}
+	}
+	
+	private void end(RpcResponseEnvelope last) {
+		synchronized (this) {
+			if (ended) {
+				return;
+			}
+			ended = true;
+			held.clear();
+			notifyAll();
+			// Also releases the call's slots in the concurrency limits
+			if (callTracker.complete(channel, id, last)) {
+				last.setPriority(controller.getPriority());
+				channel.write(last);
+			}
+		}
+		runReadyListeners();
+	}
+	
+	private void runReadyListeners() {
+		Runnable task;
+		while ((task = readyListeners.poll()) != null) {
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				logger.warn("Stream ready listener threw an exception", e);
+			}
+		}
+	}
+	
+}
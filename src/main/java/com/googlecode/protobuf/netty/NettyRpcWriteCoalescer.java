@@ -0,0 +1,297 @@
+/*
+ * Copyright (c) 2009 Stephen Tu <stephen_tu@berkeley.edu>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.protobuf.netty;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipelineCoverage;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.DownstreamMessageEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelHandler;
+
+import com.googlecode.protobuf.netty.NettyRpcProto.Priority;
+
+/**
+ * Gathers encoded frames and writes them to the socket together, so that
+ * several small RPC messages cost one system call instead of one each.
+ * <p>
+ * This handler sits at the head of the pipeline. Frames written while the
+ * I/O thread is handling a read (for example responses produced by services
+ * invoked inline) are flushed once all frames of that read have been
+ * dispatched. When a window is configured, frames written from other
+ * threads are held for at most that long before being flushed. Without a
+ * window they are written immediately, unless earlier frames are still
+ * queued. A flush also happens as soon as {@link #MAX_PENDING_BYTES} have
+ * accumulated.
+ * <p>
+ * When batching is enabled, two or more queued requests or responses in a
+ * row are sent as a single RpcBatch frame instead of back to back, so the
+ * peer decodes and dispatches them in one pass. RpcControl frames in between
+ * are written as they are. Batching must only be enabled when the peer
+ * is known to understand RpcBatch.
+ * <p>
+ * Queued requests or responses of calls with a priority, see
+ * {@link PrioritizedWrite}, are written ahead of less urgent ones.
+ */
+@ChannelPipelineCoverage("one")
+class NettyRpcWriteCoalescer extends SimpleChannelHandler {
+
+	static final int MAX_PENDING_BYTES = 64 * 1024;
+	
+	/**
+	 * The write of a request or response frame of a call whose priority is
+	 * not NORMAL.
+	 */
+	static final class PrioritizedWrite extends DownstreamMessageEvent {
+		
+		private final Priority priority;
+		
+		PrioritizedWrite(Channel channel, ChannelFuture future, Object message, SocketAddress remoteAddress, 
+				Priority priority) {
+			super(channel, future, message, remoteAddress);
+			this.priority = priority;
+		}
+		
+		Priority getPriority() {
+			return priority;
+		}
+		
+	}
+	
+	private static final Comparator<MessageEvent> PRIORITY_ORDER = new Comparator<MessageEvent>() {
+		public int compare(MessageEvent a, MessageEvent b) {
+			return rank(a) - rank(b);
+		}
+	};
+	
+	private final long windowNanos;
+	private final ScheduledExecutorService scheduler;
+	private final int batchFieldNumber;
+	
+	private final List<MessageEvent> pending = new ArrayList<MessageEvent>();
+	private int pendingBytes;
+	private boolean inReadPass;
+	private boolean flushScheduled;
+	private boolean batching;
+	private boolean prioritized;
+	
+	/**
+	 * @param windowNanos how long writes from outside a read may be held
+	 * @param scheduler used to flush held writes; only needed if
+	 * <code>windowNanos</code> is positive
+	 * @param batchFieldNumber the RpcBatch field holding the frames this side
+	 * writes
+	 * @param batching whether to start with batching enabled
+	 */
+	NettyRpcWriteCoalescer(long windowNanos, ScheduledExecutorService scheduler, int batchFieldNumber, boolean batching) {
+		if (windowNanos > 0 && scheduler == null) {
+			throw new IllegalArgumentException("Must provide scheduler for a write window");
+		}
+		this.windowNanos = windowNanos;
+		this.scheduler = scheduler;
+		this.batchFieldNumber = batchFieldNumber;
+		this.batching = batching;
+	}
+	
+	/**
+	 * Sends queued frames as RpcBatch frames from now on.
+	 */
+	synchronized void enableBatching() {
+		batching = true;
+	}
+	
+	@Override
+	public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+		synchronized (this) {
+			inReadPass = true;
+		}
+		try {
+			ctx.sendUpstream(e);
+		} finally {
+			synchronized (this) {
+				inReadPass = false;
+			}
+			flush(ctx);
+		}
+	}
+	
+	@Override
+	public void writeRequested(final ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+		if (!(e.getMessage() instanceof ChannelBuffer)) {
+			ctx.sendDownstream(e);
+			return;
+		}
+		synchronized (this) {
+			if (pending.isEmpty() && !inReadPass && windowNanos <= 0) {
+				ctx.sendDownstream(e);
+				return;
+			}
+			pending.add(e);
+			prioritized |= e instanceof PrioritizedWrite;
+			pendingBytes += ((ChannelBuffer) e.getMessage()).readableBytes();
+			if (pendingBytes >= MAX_PENDING_BYTES) {
+				flush(ctx);
+			} else if (!inReadPass && !flushScheduled && windowNanos > 0) {
+				flushScheduled = true;
+				scheduler.schedule(new Runnable() {
+					public void run() {
+						try {
+							flush(ctx);
+						} catch (IOException ex) {
+							Channels.fireExceptionCaught(ctx.getChannel(), ex);
+						}
+					}
+				}, windowNanos, TimeUnit.NANOSECONDS);
+			}
+		}
+	}
+	
+	@Override
+	public void closeRequested(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+		flush(ctx);
+		super.closeRequested(ctx, e);
+	}
+	
+	@Override
+	public void disconnectRequested(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+		flush(ctx);
+		super.disconnectRequested(ctx, e);
+	}
+	
+	@Override
+	public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+		// Pending writes fail with the usual ClosedChannelException
+		flush(ctx);
+		super.channelClosed(ctx, e);
+	}
+	
+	/**
+	 * Writes all queued frames as one gathering write. The lock is held while
+	 * the write is handed downstream so that frames keep their order.
+	 */
+	synchronized void flush(ChannelHandlerContext ctx) throws IOException {
+		flushScheduled = false;
+		if (pending.isEmpty()) {
+			return;
+		}
+		if (pending.size() == 1) {
+			MessageEvent e = pending.remove(0);
+			pendingBytes = 0;
+			prioritized = false;
+			ctx.sendDownstream(e);
+			return;
+		}
+		final MessageEvent[] events = pending.toArray(new MessageEvent[pending.size()]);
+		pending.clear();
+		pendingBytes = 0;
+		if (prioritized) {
+			prioritized = false;
+			orderByPriority(events);
+		}
+		
+		ChannelBuffer[] buffers = new ChannelBuffer[events.length];
+		for (int i = 0; i < events.length; i++) {
+			buffers[i] = (ChannelBuffer) events[i].getMessage();
+		}
+		ChannelFuture future = Channels.future(ctx.getChannel());
+		future.addListener(new ChannelFutureListener() {
+			public void operationComplete(ChannelFuture future) {
+				for (MessageEvent e : events) {
+					if (future.isSuccess()) {
+						e.getFuture().setSuccess();
+					} else {
+						e.getFuture().setFailure(future.getCause());
+					}
+				}
+			}
+		});
+		ChannelBuffer combined = batching ? batch(buffers) : ChannelBuffers.wrappedBuffer(buffers);
+		Channels.write(ctx, future, combined, events[0].getRemoteAddress());
+	}
+	
+	/**
+	 * Moves the frames of more urgent calls ahead within each run of request
+	 * or response frames. The sort is stable, so the responses of one stream
+	 * keep their order. RpcControl and RpcChunk frames stay where they are,
+	 * as they may have to follow a frame of their call.
+	 */
+	private static void orderByPriority(MessageEvent[] events) {
+		int runStart = 0;
+		for (int i = 0; i <= events.length; i++) {
+			if (i < events.length && NettyRpcEnvelopeEncoder.isEnvelopeFrame((ChannelBuffer) events[i].getMessage())) {
+				continue;
+			}
+			if (i - runStart > 1) {
+				Arrays.sort(events, runStart, i, PRIORITY_ORDER);
+			}
+			runStart = i + 1;
+		}
+	}
+	
+	private static int rank(MessageEvent e) {
+		return PriorityOrderedExecutor.rank((e instanceof PrioritizedWrite) ? 
+				((PrioritizedWrite) e).getPriority() : Priority.NORMAL);
+	}
+	
+	/**
+	 * Puts each run of envelope frames into an RpcBatch, keeping the frames'
+	 * order.
+	 */
+	private ChannelBuffer batch(ChannelBuffer[] frames) throws IOException {
+		List<ChannelBuffer> parts = new ArrayList<ChannelBuffer>();
+		int runStart = 0;
+		for (int i = 0; i <= frames.length; i++) {
+			if (i < frames.length && NettyRpcEnvelopeEncoder.isEnvelopeFrame(frames[i])) {
+				continue;
+			}
+			int runLength = i - runStart;
+			if (runLength == 1) {
+				parts.add(frames[runStart]);
+			} else if (runLength > 1) {
+				ChannelBuffer[] run = new ChannelBuffer[runLength];
+				System.arraycopy(frames, runStart, run, 0, runLength);
+				parts.add(NettyRpcEnvelopeEncoder.encodeBatch(run, batchFieldNumber));
+			}
+			if (i < frames.length) {
+				parts.add(frames[i]);
+			}
+			runStart = i + 1;
+		}
+		return ChannelBuffers.wrappedBuffer(parts.toArray(new ChannelBuffer[parts.size()]));
+	}
+	
+}
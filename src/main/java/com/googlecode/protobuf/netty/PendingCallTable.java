@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2009 Stephen Tu <stephen_tu@berkeley.edu>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.protobuf.netty;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Holds the calls of a connection that wait for a response, keyed by call
+ * id, without locks and without boxing the ids.
+ * <p>
+ * Ids are handed out in sequence and use all 31 non-negative bits, so an
+ * id only comes round again after two billion calls, and a late response
+ * to a call that has completed cannot be mistaken for a newer call. Ids
+ * never collide: one that comes round while its call is still pending,
+ * e.g. a stream that has been open all along, is skipped. A call is
+ * stored in the slot <code>id % size</code> of the first of up to
+ * seven rings that has it free. Most connections only ever use the first
+ * ring of 1024 slots; the others are added as more calls are pending at
+ * once, doubling in size up to 65536 slots in all.
+ */
+class PendingCallTable<V> {
+
+	private static final int FIRST_RING_BITS = 10;
+	private static final int MAX_RINGS = 7;
+	private static final int ID_MASK = 0x7FFFFFFF;
+	
+	// Ids tried in turn once all rings have been added
+	private static final int FULL_PROBES = 64;
+	
+	// Mark a slot that is being claimed or freed, so that it does not match
+	// an id while its id and value are out of step
+	private static final Object CLAIMING = new Object();
+	private static final Object FREEING = new Object();
+	
+	private final AtomicReferenceArray<Ring> rings = new AtomicReferenceArray<Ring>(MAX_RINGS);
+	private volatile int ringCount;
+	private final AtomicInteger nextId = new AtomicInteger();
+	
+	PendingCallTable() {
+		rings.set(0, new Ring(0));
+		ringCount = 1;
+	}
+	
+	/**
+	 * Stores the value and returns its id.
+	 * 
+	 * @return -1 if 65536 calls are pending already
+	 */
+	int add(V value) {
+		if (value == null) {
+			throw new NullPointerException("value");
+		}
+		for (int probe = 0; probe < FULL_PROBES; probe++) {
+			int id = newId();
+			if (get(id) != null) {
+				// Still in use since the ids last came round
+				continue;
+			}
+			int count = ringCount;
+			for (int r = 0; r < count; r++) {
+				if (rings.get(r).tryClaim(id, value)) {
+					return id;
+				}
+			}
+			if (count < MAX_RINGS) {
+				// Only one thread wins; the others go on with the ring it added
+				if (rings.compareAndSet(count, null, new Ring(count))) {
+					ringCount = count + 1;
+				}
+				// The new ring is all but empty, so the next id is likely to fit
+				probe--;
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * Returns the value with the given id without removing it, or null if
+	 * there is none.
+	 */
+	@SuppressWarnings("unchecked")
+	V get(int id) {
+		if (id <= 0) {
+			return null;
+		}
+		int count = ringCount;
+		for (int r = 0; r < count; r++) {
+			Object value = rings.get(r).get(id);
+			if (value != null) {
+				return (V) value;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Removes and returns the value with the given id, or null if there is
+	 * none, e.g. because the call has completed already.
+	 */
+	@SuppressWarnings("unchecked")
+	V remove(int id) {
+		if (id <= 0) {
+			return null;
+		}
+		int count = ringCount;
+		for (int r = 0; r < count; r++) {
+			Ring ring = rings.get(r);
+			Object value = ring.get(id);
+			if (value != null) {
+				return ring.remove(id, value) ? (V) value : null;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Removes all values and adds them to the given collection.
+	 */
+	void drainTo(Collection<? super V> values) {
+		int count = ringCount;
+		for (int r = 0; r < count; r++) {
+			Ring ring = rings.get(r);
+			for (int slot = 0; slot <= ring.mask; slot++) {
+				Object value = ring.slots.get(slot);
+				if (value != null && value != CLAIMING && value != FREEING) {
+					V removed = remove(ring.ids.get(slot));
+					if (removed != null) {
+						values.add(removed);
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Returns the next id in sequence, skipping 0, which connection-wide
+	 * control messages use.
+	 */
+	private int newId() {
+		while (true) {
+			int id = nextId.incrementAndGet() & ID_MASK;
+			if (id != 0) {
+				return id;
+			}
+		}
+	}
+	
+	/**
+	 * Makes the next id handed out the one after <code>id</code>, so that
+	 * tests can reach the point where ids come round.
+	 */
+	void skipIdsTo(int id) {
+		nextId.set(id);
+	}
+	
+	private static class Ring {
+		
+		final int mask;
+		final AtomicReferenceArray<Object> slots;
+		final AtomicIntegerArray ids;
+		
+		/**
+		 * Rings 0 and 1 have 1024 slots, each one after that twice as many
+		 * as the one before.
+		 */
+		Ring(int index) {
+			int size = 1 << (FIRST_RING_BITS + Math.max(0, index - 1));
+			this.mask = size - 1;
+			this.slots = new AtomicReferenceArray<Object>(size);
+			this.ids = new AtomicIntegerArray(size);
+		}
+		
+		boolean tryClaim(int id, Object value) {
+			int slot = id & mask;
+			if (slots.get(slot) != null || !slots.compareAndSet(slot, null, CLAIMING)) {
+				return false;
+			}
+			ids.set(slot, id);
+			slots.set(slot, value);
+			return true;
+		}
+		
+		Object get(int id) {
+			int slot = id & mask;
+			Object value = slots.get(slot);
+			if (value == null || value == CLAIMING || value == FREEING || ids.get(slot) != id) {
+				return null;
+			}
+			return value;
+		}
+		
+		boolean remove(int id, Object value) {
+			int slot = id & mask;
+			if (!slots.compareAndSet(slot, value, FREEING)) {
+				return false;
+			}
+			// Another call may have the same value, so check that the slot
+			// still holds this id
+			if (ids.get(slot) != id) {
+				slots.set(slot, value);
+				return false;
+			}
+			slots.set(slot, null);
+			return true;
+		}
+		
+	}
+	
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2009 Stephen Tu <stephen_tu@berkeley.edu>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.protobuf.netty;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.handler.execution.ChannelEventRunnable;
+
+import com.googlecode.protobuf.netty.NettyRpcProto.Priority;
+
+/**
+ * Wraps an arbitrary {@link Executor} so that, when it has more work than
+ * threads, calls run in order of their {@link Priority} rather than in the
+ * order they arrived.
+ * <p>
+ * Tasks wait here in one queue per priority. Each task hands a runner to
+ * the wrapped executor, and the runner runs whichever waiting task should go
+ * next by the time it gets a thread. This works whatever the wrapped
+ * executor's queue and number of threads, and an idle executor still runs
+ * each task right away.
+ * <p>
+ * The priorities take turns by weighted round robin: while all of them have
+ * tasks waiting, each round runs 8 INTERACTIVE, 4 NORMAL and 1 BATCH task,
+ * so that less urgent calls still make progress.
+ * <p>
+ * A task delivering a request has the request's priority. Other channel
+ * events, such as cancellations, are cheap and may end work, so they go
+ * first.
+ */
+class PriorityOrderedExecutor implements Executor {
+
+	// Indexed by rank
+	private static final int[] WEIGHTS = { 8, 4, 1 };
+	
+	/**
+	 * A task that knows the priority of the call it runs.
+	 */
+	interface PrioritizedTask extends Runnable {
+		
+		Priority getPriority();
+		
+	}
+	
+	private final Executor executor;
+	// Guarded by this
+	private final Queue<Runnable>[] queues;
+	private final int[] credits = WEIGHTS.clone();
+	
+	private final Runnable runner = new Runnable() {
+		public void run() {
+			Runnable task = next();
+			if (task != null) {
+				task.run();
+			}
+		}
+	};
+	
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	PriorityOrderedExecutor(Executor executor) {
+		if (executor == null) {
+			throw new IllegalArgumentException("Must provide executor");
+		}
+		this.executor = executor;
+		this.queues = new Queue[WEIGHTS.length];
+		for (int i = 0; i < queues.length; i++) {
+			queues[i] = new ArrayDeque<Runnable>();
+		}
+	}
+	
+	public void execute(Runnable task) {
+		Queue<Runnable> queue = queues[rank(priorityOf(task))];
+		synchronized (this) {
+			queue.add(task);
+		}
+		try {
+			executor.execute(runner);
+		} catch (RuntimeException e) {
+			// The task is not run by anyone
+			synchronized (this) {
+				queue.remove(task);
+			}
+			throw e;
+		}
+	}
+	
+	/**
+	 * @return 0 for the most urgent priority, and higher numbers for less
+	 * urgent ones
+	 */
+	static int rank(Priority priority) {
+		switch (priority) {
+		case INTERACTIVE:
+			return 0;
+		case BATCH:
+			return 2;
+		default:
+			return 1;
+		}
+	}
+	
+	static Priority priorityOf(Runnable task) {
+		if (task instanceof PrioritizedTask) {
+			return ((PrioritizedTask) task).getPriority();
+		} else if (task instanceof ChannelEventRunnable) {
+			ChannelEvent event = ((ChannelEventRunnable) task).getEvent();
+			if (event instanceof MessageEvent) {
+				return priorityOf(((MessageEvent) event).getMessage());
+			}
+			return Priority.INTERACTIVE;
+		}
+		return Priority.NORMAL;
+	}
+	
+	private static Priority priorityOf(Object message) {
+		if (message instanceof RpcRequestEnvelope) {
+			return ((RpcRequestEnvelope) message).getPriority();
+		} else if (message instanceof NettyRpcServerStream) {
+			return ((NettyRpcServerStream) message).getPriority();
+		} else if (message instanceof List) {
+			// A batch runs as one task, as urgently as its most urgent call
+			Priority priority = Priority.BATCH;
+			for (Object element : (List<?>) message) {
+				Priority elementPriority = priorityOf(element);
+				if (rank(elementPriority) < rank(priority)) {
+					priority = elementPriority;
+				}
+			}
+			return priority;
+		}
+		return Priority.INTERACTIVE;
+	}
+	
+	private synchronized Runnable next() {
+		for (int round = 0; round < 2; round++) {
+			for (int i = 0; i < queues.length; i++) {
+				if (credits[i] > 0 && !queues[i].isEmpty()) {
+					credits[i]--;
+					return queues[i].poll();
+				}
+			}
+			// Every priority with tasks waiting has had its share of this
+			// round
+			System.arraycopy(WEIGHTS, 0, credits, 0, WEIGHTS.length);
+		}
+		return null;
+	}
+	
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2009 Stephen Tu <stephen_tu@berkeley.edu>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.protobuf.netty;
+
+import java.util.concurrent.Future;
+
+import com.google.protobuf.Message;
+
+/**
+ * The result of an asynchronous RPC call made through {@link NettyRpcChannel}.
+ * <p>
+ * A call that fails, either because the server returned an error or because
+ * the response could not be read, completes with a
+ * {@link com.google.protobuf.ServiceException} as its cause. Listeners run on
+ * the thread that completes the call, usually a Netty I/O thread, so they
+ * should not block.
+ */
+public interface RpcFuture<T extends Message> extends Future<T> {
+
+	/**
+	 * @return true if the call completed with a response
+	 */
+	boolean isSuccess();
+	
+	/**
+	 * @return the response, or null if the call has not completed successfully
+	 */
+	T getResponse();
+	
+	/**
+	 * @return the reason the call failed, or null if it has not failed
+	 */
+	Throwable getCause();
+	
+	/**
+	 * Adds a listener that is notified when the call completes. If it has
+	 * already completed, the listener is notified immediately.
+	 */
+	void addListener(RpcFutureListener<T> listener);
+	
+	/**
+	 * Removes a listener that has not been notified yet.
+	 */
+	void removeListener(RpcFutureListener<T> listener);
+	
+}
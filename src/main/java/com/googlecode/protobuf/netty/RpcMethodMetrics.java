@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2009 Stephen Tu <stephen_tu@berkeley.edu>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.protobuf.netty;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+import com.googlecode.protobuf.netty.NettyRpcProto.ErrorCode;
+import com.googlecode.protobuf.netty.NettyRpcProto.RpcResponse;
+
+/**
+ * Counts the calls of one method. Recording only adds to striped counters,
+ * so threads recording at once do not contend.
+ */
+class RpcMethodMetrics implements RpcMethodMetricsMXBean {
+
+	private static final ErrorCode[] ERROR_CODES = ErrorCode.values();
+	private static final double MICROS_PER_MILLI = 1000.0;
+	
+	private final String serviceName;
+	private final String methodName;
+	
+	private final LongAdder calls = new LongAdder();
+	private final LongAdder inFlight = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+	private final LongAdder[] errors = new LongAdder[ERROR_CODES.length];
+	// Failures whose ErrorCode is not known, e.g. with a foreign controller
+	private final LongAdder otherErrors = new LongAdder();
+	private final LongAdder requestBytes = new LongAdder();
+	private final LongAdder responseBytes = new LongAdder();
+	private final LatencyHistogram latency = new LatencyHistogram();
+	
+	RpcMethodMetrics(String serviceName, String methodName) {
+		this.serviceName = serviceName;
+		this.methodName = methodName;
+		for (int i = 0; i < errors.length; i++) {
+			errors[i] = new LongAdder();
+		}
+	}
+	
+	void started(long requestBytes) {
+		calls.increment();
+		inFlight.increment();
+		this.requestBytes.add(requestBytes);
+	}
+	
+	void addRequestBytes(long bytes) {
+		requestBytes.add(bytes);
+	}
+	
+	void addResponseBytes(long bytes) {
+		responseBytes.add(bytes);
+	}
+	
+	void succeeded(long startNanos) {
+		finished(startNanos);
+	}
+	
+	/**
+	 * @param errorCode null if not known
+	 */
+	void failed(long startNanos, ErrorCode errorCode) {
+		finished(startNanos);
+		if (errorCode == null) {
+			otherErrors.increment();
+		} else {
+			errors[errorCode.ordinal()].increment();
+		}
+	}
+	
+	void dropped() {
+		inFlight.decrement();
+		dropped.increment();
+	}
+	
+	/**
+	 * Records the answer the server sends to a call: a
+	 * {@link RpcResponseEnvelope}, an error {@link RpcResponse}, or null for
+	 * a call that gets no answer.
+	 */
+	void answered(long startNanos, Object response) {
+		if (response instanceof RpcResponseEnvelope) {
+			RpcResponseEnvelope envelope = (RpcResponseEnvelope) response;
+			if (envelope.getResponseMessage() != null) {
+				responseBytes.add(envelope.getResponseMessage().getSerializedSize());
+			} else if (envelope.getPayload() != null) {
+				responseBytes.add(envelope.getPayload().readableBytes());
+			}
+		}
+		ErrorCode errorCode = errorCodeOf(response);
+		if (errorCode == null) {
+			succeeded(startNanos);
+		} else {
+			failed(startNanos, errorCode);
+		}
+	}
+	
+	/**
+	 * Returns the error a server call is answered with, or null if it
+	 * succeeded.
+	 */
+	static ErrorCode errorCodeOf(Object response) {
+		if (response instanceof RpcResponseEnvelope && ((RpcResponseEnvelope) response).hasErrorCode()) {
+			return ((RpcResponseEnvelope) response).getErrorCode();
+		} else if (response instanceof RpcResponse && ((RpcResponse) response).hasErrorCode()) {
+			return ((RpcResponse) response).getErrorCode();
+		}
+		return null;
+	}
+	
+	private void finished(long startNanos) {
+		inFlight.decrement();
+		latency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+	}
+	
+	static long sizeOf(ChannelBuffer payload) {
+		return (payload == null) ? 0 : payload.readableBytes();
+	}
+	
+	public String getServiceName() {
+		return serviceName;
+	}
+	
+	public String getMethodName() {
+		return methodName;
+	}
+	
+	public long getCalls() {
+		return calls.sum();
+	}
+	
+	public long getInFlight() {
+		return inFlight.sum();
+	}
+	
+	public long getErrors() {
+		long sum = otherErrors.sum();
+		for (LongAdder count : errors) {
+			sum += count.sum();
+		}
+		return sum;
+	}
+	
+	public Map<String, Long> getErrorsByCode() {
+		Map<String, Long> byCode = new TreeMap<String, Long>();
+		for (int i = 0; i < errors.length; i++) {
+			long count = errors[i].sum();
+			if (count > 0) {
+				byCode.put(ERROR_CODES[i].name(), count);
+			}
+		}
+		long other = otherErrors.sum();
+		if (other > 0) {
+			byCode.put("UNKNOWN", other);
+		}
+		return byCode;
+	}
+	
+	public long getDropped() {
+		return dropped.sum();
+	}
+	
+	public long getRequestBytes() {
+		return requestBytes.sum();
+	}
+	
+	public long getResponseBytes() {
+		return responseBytes.sum();
+	}
+	
+	public double getLatencyMeanMillis() {
+		return latency.getMean() / MICROS_PER_MILLI;
+	}
+	
+	public double getLatencyP50Millis() {
+		return latency.getValueAtPercentile(50) / MICROS_PER_MILLI;
+	}
+	
+	public double getLatencyP99Millis() {
+		return latency.getValueAtPercentile(99) / MICROS_PER_MILLI;
+	}
+	
+	public double getLatencyP999Millis() {
+		return latency.getValueAtPercentile(99.9) / MICROS_PER_MILLI;
+	}
+	
+	public double getLatencyMaxMillis() {
+		return latency.getMax() / MICROS_PER_MILLI;
+	}
+	
+	public void resetStatistics() {
+		calls.reset();
+		dropped.reset();
+		for (LongAdder count : errors) {
+			count.reset();
+		}
+		otherErrors.reset();
+		requestBytes.reset();
+		responseBytes.reset();
+		latency.reset();
+	}
+	
+}
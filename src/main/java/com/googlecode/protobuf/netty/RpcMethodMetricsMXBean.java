@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2009 Stephen Tu <stephen_tu@berkeley.edu>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.protobuf.netty;
+
+import java.util.Map;
+
+/**
+ * The metrics of one method of a {@link NettyRpcServer} or
+ * {@link NettyRpcClient}, as published in JMX. Counts start when the
+ * server or client is created; latencies are in milliseconds.
+ */
+public interface RpcMethodMetricsMXBean {
+
+	String getServiceName();
+	
+	String getMethodName();
+	
+	/** Calls made, including those still in flight */
+	long getCalls();
+	
+	/** Calls started but not yet answered */
+	long getInFlight();
+	
+	/** Calls answered with an error */
+	long getErrors();
+	
+	/** Calls answered with an error, by {@link NettyRpcProto.ErrorCode} */
+	Map<String, Long> getErrorsByCode();
+	
+	/**
+	 * Calls that ended without an answer: canceled, dropped after their
+	 * deadline, or cut off by a closed connection
+	 */
+	long getDropped();
+	
+	/** Bytes of request messages */
+	long getRequestBytes();
+	
+	/** Bytes of response messages */
+	long getResponseBytes();
+	
+	double getLatencyMeanMillis();
+	
+	double getLatencyP50Millis();
+	
+	double getLatencyP99Millis();
+	
+	double getLatencyP999Millis();
+	
+	double getLatencyMaxMillis();
+	
+	/**
+	 * Starts counting afresh. The in-flight gauge is kept.
+	 */
+	void resetStatistics();
+	
+}
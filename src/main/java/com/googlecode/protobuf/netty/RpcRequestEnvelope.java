@@ -0,0 +1,260 @@
+/*
+ * Copyright (c) 2009 Stephen Tu <stephen_tu@berkeley.edu>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.protobuf.netty;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Message;
+import com.googlecode.protobuf.netty.NettyRpcProto.Compression;
+import com.googlecode.protobuf.netty.NettyRpcProto.Priority;
+import com.googlecode.protobuf.netty.NettyRpcProto.RpcRequest;
+
+/**
+ * The fields of an {@link RpcRequest}, without an intermediate copy of the
+ * request message. Outbound envelopes hold the request as a {@link Message}
+ * so that {@link NettyRpcEnvelopeEncoder} can serialize it straight into the
+ * frame; inbound envelopes produced by {@link NettyRpcEnvelopeDecoder} hold
+ * a slice of the received frame that is parsed only once the target method
+ * is known.
+ * <p>
+ * Optional fields are set after construction.
+ */
+final class RpcRequestEnvelope {
+
+	private final boolean hasId;
+	private final int id;
+	private final String serviceName;
+	private final String methodName;
+	private final boolean isBlockingService;
+	private final Message requestMessage;
+	private final ChannelBuffer payload;
+	private boolean hasTimeout;
+	private int timeoutMillis;
+	private long deadlineNanos;
+	private NettyRpcController controller;
+	private Compression compression;
+	private int streamWindow;
+	private boolean clientStream;
+	private Priority priority = Priority.NORMAL;
+	
+	RpcRequestEnvelope(boolean hasId, int id, String serviceName, String methodName,
+			boolean isBlockingService, Message requestMessage) {
+		this(hasId, id, serviceName, methodName, isBlockingService, requestMessage, null);
+	}
+	
+	RpcRequestEnvelope(boolean hasId, int id, String serviceName, String methodName,
+			boolean isBlockingService, ChannelBuffer payload) {
+		this(hasId, id, serviceName, methodName, isBlockingService, null, payload);
+	}
+	
+	private RpcRequestEnvelope(boolean hasId, int id, String serviceName, String methodName,
+			boolean isBlockingService, Message requestMessage, ChannelBuffer payload) {
+		this.hasId = hasId;
+		this.id = id;
+		this.serviceName = serviceName;
+		this.methodName = methodName;
+		this.isBlockingService = isBlockingService;
+		this.requestMessage = requestMessage;
+		this.payload = payload;
+	}
+	
+	boolean hasId() {
+		return hasId;
+	}
+	
+	int getId() {
+		return id;
+	}
+	
+	String getServiceName() {
+		return serviceName;
+	}
+	
+	String getMethodName() {
+		return methodName;
+	}
+	
+	boolean isBlockingService() {
+		return isBlockingService;
+	}
+	
+	/**
+	 * Sets the caller's time budget, counted from <code>startNanos</code>, a
+	 * {@link System#nanoTime()} value.
+	 */
+	void setTimeout(int timeoutMillis, long startNanos) {
+		this.hasTimeout = true;
+		this.timeoutMillis = timeoutMillis;
+		this.deadlineNanos = startNanos + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+	}
+	
+	boolean hasTimeout() {
+		return hasTimeout;
+	}
+	
+	int getTimeoutMillis() {
+		return timeoutMillis;
+	}
+	
+	/**
+	 * @return the {@link System#nanoTime()} at which the caller gives up, if
+	 * {@link #hasTimeout()}
+	 */
+	long getDeadlineNanos() {
+		return deadlineNanos;
+	}
+	
+	/**
+	 * @return true if the caller has given up waiting for the response
+	 */
+	boolean isExpired() {
+		return hasTimeout && System.nanoTime() - deadlineNanos >= 0;
+	}
+	
+	/**
+	 * Sets the controller of a call received by the server.
+	 */
+	void setController(NettyRpcController controller) {
+		this.controller = controller;
+	}
+	
+	NettyRpcController getController() {
+		return controller;
+	}
+	
+	/**
+	 * @return how the payload is compressed, or null if it is not
+	 */
+	Compression getCompression() {
+		return compression;
+	}
+	
+	void setCompression(Compression compression) {
+		this.compression = compression;
+	}
+	
+	/**
+	 * Marks the call as one whose responses are streamed, letting the server
+	 * send <code>streamWindow</code> messages before it needs more credit.
+	 */
+	void setStreamWindow(int streamWindow) {
+		this.streamWindow = streamWindow;
+	}
+	
+	boolean isStreaming() {
+		return streamWindow > 0;
+	}
+	
+	int getStreamWindow() {
+		return streamWindow;
+	}
+	
+	/**
+	 * Marks a streaming call whose requests are streamed as well. The
+	 * envelope then carries no request message.
+	 */
+	void setClientStream(boolean clientStream) {
+		this.clientStream = clientStream;
+	}
+	
+	boolean isClientStream() {
+		return clientStream;
+	}
+	
+	void setPriority(Priority priority) {
+		this.priority = priority;
+	}
+	
+	Priority getPriority() {
+		return priority;
+	}
+	
+	/**
+	 * @return a copy of this envelope carrying the given serialized message
+	 * instead, compressed with <code>compression</code> unless that is null
+	 */
+	RpcRequestEnvelope withPayload(ChannelBuffer payload, Compression compression) {
+		RpcRequestEnvelope request = new RpcRequestEnvelope(hasId, id, serviceName, methodName, isBlockingService, payload);
+		request.hasTimeout = hasTimeout;
+		request.timeoutMillis = timeoutMillis;
+		request.deadlineNanos = deadlineNanos;
+		request.controller = controller;
+		request.compression = compression;
+		request.streamWindow = streamWindow;
+		request.clientStream = clientStream;
+		request.priority = priority;
+		return request;
+	}
+	
+	/**
+	 * @return the request message of an outbound envelope, or null
+	 */
+	Message getRequestMessage() {
+		return requestMessage;
+	}
+	
+	/**
+	 * @return the serialized request message of an inbound or compressed
+	 * envelope, or null
+	 */
+	ChannelBuffer getPayload() {
+		return payload;
+	}
+	
+	/**
+	 * Builds the equivalent {@link RpcRequest}. This copies the payload, so it
+	 * is only meant for error reporting.
+	 */
+	RpcRequest toRpcRequest() {
+		RpcRequest.Builder builder = RpcRequest.newBuilder()
+			.setServiceName(serviceName)
+			.setMethodName(methodName)
+			.setIsBlockingService(isBlockingService);
+		if (hasId) {
+			builder.setId(id);
+		}
+		if (hasTimeout) {
+			builder.setTimeoutMs(timeoutMillis);
+		}
+		if (streamWindow > 0) {
+			builder.setStreamWindow(streamWindow);
+		}
+		if (clientStream) {
+			builder.setClientStream(true);
+		}
+		if (priority != Priority.NORMAL) {
+			builder.setPriority(priority);
+		}
+		if (requestMessage != null) {
+			builder.setRequestMessage(requestMessage.toByteString());
+		} else {
+			byte[] bytes = new byte[payload.readableBytes()];
+			payload.getBytes(payload.readerIndex(), bytes);
+			builder.setRequestMessage(ByteString.copyFrom(bytes));
+		}
+		return builder.build();
+	}
+	
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2009 Stephen Tu <stephen_tu@berkeley.edu>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.protobuf.netty;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+import com.google.protobuf.Message;
+import com.googlecode.protobuf.netty.NettyRpcProto.Compression;
+import com.googlecode.protobuf.netty.NettyRpcProto.ErrorCode;
+import com.googlecode.protobuf.netty.NettyRpcProto.Priority;
+
+/**
+ * The fields of an {@link NettyRpcProto.RpcResponse}, without an intermediate
+ * copy of the response message. Outbound envelopes hold the response as a
+ * {@link Message} so that {@link NettyRpcEnvelopeEncoder} can serialize it
+ * straight into the frame; inbound envelopes produced by
+ * {@link NettyRpcEnvelopeDecoder} hold a slice of the received frame that is
+ * parsed directly with the caller's response prototype.
+ */
+final class RpcResponseEnvelope {
+
+	private final int id;
+	private final Message responseMessage;
+	private final ChannelBuffer payload;
+	private final ErrorCode errorCode;
+	private final String errorMessage;
+	private Compression compression;
+	private boolean endOfStream;
+	private Priority priority = Priority.NORMAL;
+	
+	RpcResponseEnvelope(int id, Message responseMessage) {
+		this(id, responseMessage, null, null, null);
+	}
+	
+	RpcResponseEnvelope(int id, ErrorCode errorCode, String errorMessage) {
+		this(id, null, null, errorCode, errorMessage);
+	}
+	
+	RpcResponseEnvelope(int id, ChannelBuffer payload, ErrorCode errorCode, String errorMessage) {
+		this(id, null, payload, errorCode, errorMessage);
+	}
+	
+	private RpcResponseEnvelope(int id, Message responseMessage, ChannelBuffer payload, ErrorCode errorCode, String errorMessage) {
+		this.id = id;
+		this.responseMessage = responseMessage;
+		this.payload = payload;
+		this.errorCode = errorCode;
+		this.errorMessage = errorMessage;
+	}
+	
+	int getId() {
+		return id;
+	}
+	
+	/**
+	 * @return the response message of an outbound envelope, or null
+	 */
+	Message getResponseMessage() {
+		return responseMessage;
+	}
+	
+	/**
+	 * @return the serialized response message of an inbound or compressed
+	 * envelope, or null if the response did not carry one
+	 */
+	ChannelBuffer getPayload() {
+		return payload;
+	}
+	
+	boolean hasErrorCode() {
+		return errorCode != null;
+	}
+	
+	/**
+	 * @return the error code, or null if the call succeeded
+	 */
+	ErrorCode getErrorCode() {
+		return errorCode;
+	}
+	
+	/**
+	 * @return the error message, or null if there is none
+	 */
+	String getErrorMessage() {
+		return errorMessage;
+	}
+	
+	/**
+	 * @return how the payload is compressed, or null if it is not
+	 */
+	Compression getCompression() {
+		return compression;
+	}
+	
+	void setCompression(Compression compression) {
+		this.compression = compression;
+	}
+	
+	/**
+	 * Marks the last response of a streaming call.
+	 */
+	void setEndOfStream(boolean endOfStream) {
+		this.endOfStream = endOfStream;
+	}
+	
+	boolean isEndOfStream() {
+		return endOfStream;
+	}
+	
+	/**
+	 * Sets the priority of the call being answered, which orders the
+	 * response among others waiting to be written. It is not sent.
+	 */
+	void setPriority(Priority priority) {
+		this.priority = priority;
+	}
+	
+	Priority getPriority() {
+		return priority;
+	}
+	
+	/**
+	 * @return a copy of this envelope carrying the given serialized message
+	 * instead, compressed with <code>compression</code> unless that is null
+	 */
+	RpcResponseEnvelope withPayload(ChannelBuffer payload, Compression compression) {
+		RpcResponseEnvelope response = new RpcResponseEnvelope(id, payload, errorCode, errorMessage);
+		response.compression = compression;
+		response.endOfStream = endOfStream;
+		response.priority = priority;
+		return response;
+	}
+	
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2009 Stephen Tu <stephen_tu@berkeley.edu>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.protobuf.netty;
+
+import com.google.protobuf.Message;
+
+/**
+ * Sends the messages of a stream, subject to the receiver's flow control:
+ * the receiver grants credit for a number of messages at a time, and gives
+ * more as it consumes them.
+ * <p>
+ * Producers can either call {@link #emit(Message)} from a thread of their
+ * own, where it waits for credit, or use {@link #isReady()} and
+ * {@link #notifyOnReady(Runnable)} to produce only as fast as the receiver
+ * consumes.
+ */
+public interface RpcStreamEmitter<T extends Message> {
+
+	/**
+	 * Sends a message. Waits while the receiver has no credit left, except
+	 * on a Netty I/O thread, where waiting could stop the credit from
+	 * arriving. There the message is held back until the receiver gives
+	 * credit. A server holds back at most one window of messages; emitting
+	 * more fails the stream, so long streams should be produced from a
+	 * thread of their own or with {@link #notifyOnReady(Runnable)}.
+	 * 
+	 * @return false if the message was not sent, because the stream has
+	 * ended, the receiver canceled it or the connection was lost. The
+	 * producer should stop.
+	 */
+	boolean emit(T message);
+	
+	/**
+	 * Returns true if {@link #emit(Message)} would send without waiting.
+	 */
+	boolean isReady();
+	
+	/**
+	 * Runs the task once the stream is ready for another message, or has
+	 * ended. Runs it right away if that is the case already.
+	 */
+	void notifyOnReady(Runnable task);
+	
+	/**
+	 * Ends the stream successfully. Further messages are not sent.
+	 */
+	void complete();
+	
+	/**
+	 * Ends the stream with an error, which the receiver sees as a
+	 * {@link com.google.protobuf.ServiceException} with the given reason.
+	 * A client failing its request stream cancels the call instead.
+	 */
+	void fail(String reason);
+	
+	/**
+	 * Returns true once the stream has ended, or the receiver has canceled
+	 * it.
+	 */
+	boolean isClosed();
+	
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2009 Stephen Tu <stephen_tu@berkeley.edu>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.protobuf.netty;
+
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import com.google.protobuf.Message;
+import com.google.protobuf.ServiceException;
+
+/**
+ * Iterates over the messages of a response stream, waiting for each to
+ * arrive. Returned by
+ * {@link NettyRpcChannel#callStreamingMethod(com.google.protobuf.Descriptors.MethodDescriptor, com.google.protobuf.RpcController, Message, Message)}.
+ * <p>
+ * The server only gets more credit as messages are taken with
+ * {@link #next()}, so at most the channel's stream window of messages is
+ * buffered. An iterator is meant to be used from one thread.
+ */
+public class RpcStreamIterator<T extends Message> {
+
+	private static final Object END = new Object();
+	
+	// Holds messages, then END or a ServiceException
+	private final BlockingQueue<Object> queue = new LinkedBlockingQueue<Object>();
+	private volatile NettyRpcChannel.StreamCallback<T> call;
+	private Object next;
+	
+	RpcStreamIterator() {
+	}
+	
+	RpcStreamListener<T> listener() {
+		return new RpcStreamListener<T>() {
+			public void onMessage(T message) {
+				queue.add(message);
+			}
+			
+			public void onCompleted() {
+				queue.add(END);
+			}
+			
+			public void onFailed(ServiceException cause) {
+				queue.add(cause);
+			}
+		};
+	}
+	
+	void setCall(NettyRpcChannel.StreamCallback<T> call) {
+		this.call = call;
+	}
+	
+	/**
+	 * Waits for the next message or the end of the stream.
+	 * 
+	 * @return false once the stream has ended
+	 * @throws ServiceException if the stream failed
+	 */
+	public boolean hasNext() throws ServiceException {
+		if (next == null) {
+			try {
+				next = queue.take();
+			} catch (InterruptedException e) {
+				close();
+				Thread.currentThread().interrupt();
+				throw new ServiceException("Interrupted while waiting for the stream");
+			}
+		}
+		if (next instanceof ServiceException) {
+			throw (ServiceException) next;
+		}
+		return next != END;
+	}
+	
+	/**
+	 * Waits for and returns the next message.
+	 * 
+	 * @throws NoSuchElementException if the stream has ended
+	 * @throws ServiceException if the stream failed
+	 */
+	@SuppressWarnings("unchecked")
+	public T next() throws ServiceException {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		T message = (T) next;
+		next = null;
+		call.consumed(1);
+		return message;
+	}
+	
+	/**
+	 * Cancels the stream, unless it has ended already. Call this when
+	 * stopping before the end.
+	 */
+	public void close() {
+		NettyRpcChannel.StreamCallback<T> call = this.call;
+		if (call != null) {
+			call.cancel();
+		}
+	}
+	
+}
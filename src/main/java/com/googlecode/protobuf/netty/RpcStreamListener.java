@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2009 Stephen Tu <stephen_tu@berkeley.edu>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.protobuf.netty;
+
+import java.util.EventListener;
+
+import com.google.protobuf.Message;
+import com.google.protobuf.ServiceException;
+
+/**
+ * Receives the messages of a stream, in order, followed by exactly one call
+ * to {@link #onCompleted()} or {@link #onFailed(ServiceException)}.
+ * <p>
+ * Methods run on the thread that delivers the stream, usually a Netty I/O
+ * thread. The sender gets more credit once {@link #onMessage(Message)}
+ * returns, so a slow listener slows the sender down instead of letting
+ * messages pile up.
+ */
+public interface RpcStreamListener<T extends Message> extends EventListener {
+
+	void onMessage(T message);
+	
+	/**
+	 * Invoked after the last message, when the sender has ended the stream.
+	 */
+	void onCompleted();
+	
+	/**
+	 * Invoked when the stream ends early: because the sender failed it, it
+	 * was canceled, it timed out or the connection was lost.
+	 */
+	void onFailed(ServiceException cause);
+	
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2009 Stephen Tu <stephen_tu@berkeley.edu>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.protobuf.netty;
+
+import com.google.protobuf.Message;
+
+/**
+ * Implements a method whose response is a stream of messages, for methods
+ * that return large results. Registered with
+ * {@link NettyRpcServer#registerServerStreamingMethod(com.google.protobuf.Descriptors.MethodDescriptor, Message, ServerStreamingMethod)}
+ * and called with
+ * {@link NettyRpcChannel#callStreamingMethod(com.google.protobuf.Descriptors.MethodDescriptor, com.google.protobuf.RpcController, Message, Message, RpcStreamListener)}.
+ */
+public interface ServerStreamingMethod<Req extends Message, Resp extends Message> {
+
+	/**
+	 * Starts the call. The method may emit the responses before returning or
+	 * later, from another thread, and must end the stream with
+	 * {@link RpcStreamEmitter#complete()} or
+	 * {@link RpcStreamEmitter#fail(String)}. An exception thrown from here
+	 * fails the stream.
+	 * <p>
+	 * Unless the server has an executor, this runs on the connection's I/O
+	 * thread, so long streams should be produced from a thread of their own.
+	 * Emitting more than twice the client's window there, without waiting
+	 * for credit, fails the stream.
+	 */
+	void call(NettyRpcController controller, Req request, RpcStreamEmitter<Resp> responses) throws Exception;
+	
+}
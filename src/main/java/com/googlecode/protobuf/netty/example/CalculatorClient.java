@@ -22,7 +22,10 @@
 package com.googlecode.protobuf.netty.example;
 
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.BasicConfigurator;
 import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
@@ -30,8 +33,10 @@ import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
 import com.google.protobuf.RpcCallback;
 import com.google.protobuf.RpcController;
 import com.google.protobuf.ServiceException;
+import com.google.protobuf.Descriptors.MethodDescriptor;
 import com.googlecode.protobuf.netty.NettyRpcChannel;
 import com.googlecode.protobuf.netty.NettyRpcClient;
+import com.googlecode.protobuf.netty.RpcFuture;
 import com.googlecode.protobuf.netty.example.Calculator.CalcRequest;
 import com.googlecode.protobuf.netty.example.Calculator.CalcResponse;
 import com.googlecode.protobuf.netty.example.Calculator.CalcService;
@@ -127,6 +132,23 @@ public class CalculatorClient {
 			// Ignore
 		}
 		
+		// Make several asynchronous calls at once, then wait for all of them
+		MethodDescriptor addMethod = CalcService.getDescriptor().findMethodByName("Add");
+		List<RpcFuture<CalcResponse>> futures = new ArrayList<RpcFuture<CalcResponse>>();
+		for (int i = 1; i <= 10; i++) {
+			CalcRequest addRequest = CalcRequest.newBuilder().setOp1(i).setOp2(i).build();
+			futures.add(channel.callMethod(addMethod, channel.newRpcController(), addRequest, CalcResponse.getDefaultInstance()));
+		}
+		try {
+			int sum = 0;
+			for (RpcFuture<CalcResponse> future : futures) {
+				sum += future.get(5, TimeUnit.SECONDS).getResult();
+			}
+			System.out.println("The sum of the answers is: " + sum);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		
 		// Close the channel
 		channel.close();
 		
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2009 Stephen Tu <stephen_tu@berkeley.edu>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.protobuf.netty.example;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+
+import com.google.protobuf.RpcCallback;
+import com.google.protobuf.RpcController;
+import com.google.protobuf.Descriptors.MethodDescriptor;
+import com.googlecode.protobuf.netty.NettyRpcBalancingChannel;
+import com.googlecode.protobuf.netty.NettyRpcClient;
+import com.googlecode.protobuf.netty.NettyRpcServer;
+import com.googlecode.protobuf.netty.RpcFuture;
+import com.googlecode.protobuf.netty.RpcFutureListener;
+import com.googlecode.protobuf.netty.example.Calculator.CalcRequest;
+import com.googlecode.protobuf.netty.example.Calculator.CalcResponse;
+import com.googlecode.protobuf.netty.example.Calculator.CalcService;
+
+/**
+ * Starts several servers in this JVM, each answering after a different
+ * delay, and balances calls over them. Faster servers should end up with
+ * most of the calls.
+ */
+public class LoadBalancingExample {
+
+	private static final int BASE_PORT = 8090;
+	private static final long[] DELAYS_MILLIS = { 1, 5, 20 };
+	private static final int CALLS = 5000;
+	private static final int MAX_OUTSTANDING = 64;
+	
+	public static void main(String[] args) throws Exception {
+		
+		ScheduledExecutorService delayer = Executors.newSingleThreadScheduledExecutor();
+		
+		List<NettyRpcServer> servers = new ArrayList<NettyRpcServer>();
+		List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+		AtomicInteger[] served = new AtomicInteger[DELAYS_MILLIS.length];
+		for (int i = 0; i < DELAYS_MILLIS.length; i++) {
+			NettyRpcServer server = new NettyRpcServer(
+					new NioServerSocketChannelFactory(
+							Executors.newCachedThreadPool(), 
+							Executors.newCachedThreadPool()));
+			served[i] = new AtomicInteger();
+			server.registerService(CalcService.newReflectiveService(
+					new DelayedCalculator(delayer, DELAYS_MILLIS[i], served[i])));
+			InetSocketAddress address = new InetSocketAddress("localhost", BASE_PORT + i);
+			server.serve(address);
+			servers.add(server);
+			addresses.add(address);
+		}
+		
+		NettyRpcClient client = new NettyRpcClient(
+				new NioClientSocketChannelFactory(
+						Executors.newCachedThreadPool(), 
+						Executors.newCachedThreadPool()));
+		NettyRpcBalancingChannel channel = client.blockingConnect(addresses);
+		
+		MethodDescriptor addMethod = CalcService.getDescriptor().findMethodByName("Add");
+		final Semaphore outstanding = new Semaphore(MAX_OUTSTANDING);
+		long start = System.nanoTime();
+		for (int i = 0; i < CALLS; i++) {
+			outstanding.acquire();
+			CalcRequest request = CalcRequest.newBuilder().setOp1(i).setOp2(i).build();
+			channel.callMethod(addMethod, channel.newRpcController(), request, CalcResponse.getDefaultInstance())
+				.addListener(new RpcFutureListener<CalcResponse>() {
+					public void operationComplete(RpcFuture<CalcResponse> future) {
+						outstanding.release();
+					}
+				});
+		}
+		outstanding.acquire(MAX_OUTSTANDING);
+		long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		
+		System.out.println(CALLS + " calls in " + elapsedMillis + "ms");
+		for (int i = 0; i < DELAYS_MILLIS.length; i++) {
+			System.out.println("Server with " + DELAYS_MILLIS[i] + "ms delay served " + served[i].get() + " calls");
+		}
+		
+		channel.close();
+		client.shutdown();
+		for (NettyRpcServer server : servers) {
+			server.shutdown();
+		}
+		delayer.shutdown();
+		
+	}
+	
+	/**
+	 * Answers Add after a fixed delay, without tying up a thread.
+	 */
+	private static class DelayedCalculator extends CalculatorServiceImpl {
+		
+		private final ScheduledExecutorService delayer;
+		private final long delayMillis;
+		private final AtomicInteger served;
+		
+		DelayedCalculator(ScheduledExecutorService delayer, long delayMillis, AtomicInteger served) {
+			this.delayer = delayer;
+			this.delayMillis = delayMillis;
+			this.served = served;
+		}
+		
+		@Override
+		public void add(final RpcController controller, final CalcRequest request,
+				final RpcCallback<CalcResponse> done) {
+			served.incrementAndGet();
+			delayer.schedule(new Runnable() {
+				public void run() {
+					DelayedCalculator.super.add(controller, request, done);
+				}
+			}, delayMillis, TimeUnit.MILLISECONDS);
+		}
+		
+	}
+	
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2009 Stephen Tu <stephen_tu@berkeley.edu>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.protobuf.netty;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.protobuf.ServiceException;
+import com.google.protobuf.Descriptors.MethodDescriptor;
+import com.googlecode.protobuf.netty.example.CalculatorServiceImpl;
+import com.googlecode.protobuf.netty.example.Calculator.CalcRequest;
+import com.googlecode.protobuf.netty.example.Calculator.CalcResponse;
+import com.googlecode.protobuf.netty.example.Calculator.CalcService;
+
+/**
+ * Checks that long streams do not shrink the concurrency limits of the
+ * service they belong to.
+ */
+public class ConcurrencyLimitTest {
+	
+	private static final MethodDescriptor ADD = CalcService.getDescriptor().findMethodByName("Add");
+	private static final MethodDescriptor SUBTRACT = CalcService.getDescriptor().findMethodByName("Subtract");
+	
+	private final ExecutorService producers = Executors.newCachedThreadPool();
+	private NettyRpcServer server;
+	private NettyRpcClient client;
+	private NettyRpcChannel channel;
+	
+	@Before
+	public void setUp() throws IOException {
+		server = new NettyRpcServer(new NioServerSocketChannelFactory(
+				Executors.newCachedThreadPool(), Executors.newCachedThreadPool()));
+		server.setAdaptiveConcurrencyLimits(4, 1, 100);
+		server.registerService(CalcService.newReflectiveService(new CalculatorServiceImpl()));
+		// Streams op1 results, op2 ms apart
+		server.registerServerStreamingMethod(SUBTRACT, CalcRequest.getDefaultInstance(),
+				new ServerStreamingMethod<CalcRequest, CalcResponse>() {
+			public void call(NettyRpcController controller, final CalcRequest request,
+					final RpcStreamEmitter<CalcResponse> emitter) {
+				producers.execute(new Runnable() {
+					public void run() {
+						try {
+							for (int i = 0; i < request.getOp1(); i++) {
+								Thread.sleep(request.getOp2());
+								emitter.emit(CalcResponse.newBuilder().setResult(i).build());
+							}
+							emitter.complete();
+						} catch (InterruptedException e) {
+							emitter.fail(e.toString());
+						}
+					}
+				});
+			}
+		});
+		int port = freePort();
+		server.serve(new InetSocketAddress(port));
+		client = new NettyRpcClient(new NioClientSocketChannelFactory(
+				Executors.newCachedThreadPool(), Executors.newCachedThreadPool()));
+		channel = client.blockingConnect(new InetSocketAddress("localhost", port));
+	}
+	
+	@After
+	public void tearDown() {
+		channel.close();
+		client.shutdown();
+		server.shutdown();
+		producers.shutdownNow();
+	}
+	
+	@Test
+	public void unaryCallsAreAdmittedNextToLongStream() throws Exception {
+		CountDownLatch ended = stream(50, 10);
+		CalcRequest request = CalcRequest.newBuilder().setOp1(1).setOp2(2).build();
+		while (ended.getCount() > 0) {
+			channel.callMethod(ADD, channel.newRpcController(), request, CalcResponse.getDefaultInstance()).get();
+		}
+		assertEquals(4, concurrentCalls(ADD, request, 4));
+	}
+	
+	@Test
+	public void longStreamDoesNotShrinkItsMethodLimit() throws Exception {
+		for (int i = 0; i < 20; i++) {
+			await(stream(1, 0));
+		}
+		await(stream(50, 10));
+		assertEquals(4, concurrentCalls(SUBTRACT, CalcRequest.newBuilder().setOp1(1).setOp2(100).build(), 4));
+	}
+	
+	private CountDownLatch stream(int messages, int intervalMillis) {
+		return stream((NettyRpcController) channel.newRpcController(), 
+				CalcRequest.newBuilder().setOp1(messages).setOp2(intervalMillis).build());
+	}
+	
+	/**
+	 * Returns a latch that is counted down when the stream ends, whichever
+	 * way.
+	 */
+	private CountDownLatch stream(NettyRpcController controller, CalcRequest request) {
+		final CountDownLatch ended = new CountDownLatch(1);
+		channel.callStreamingMethod(SUBTRACT, controller, request, CalcResponse.getDefaultInstance(),
+				new RpcStreamListener<CalcResponse>() {
+			public void onMessage(CalcResponse message) {
+			}
+			public void onCompleted() {
+				ended.countDown();
+			}
+			public void onFailed(ServiceException e) {
+				ended.countDown();
+			}
+		});
+		return ended;
+	}
+	
+	private static void await(CountDownLatch latch) throws InterruptedException {
+		assertTrue("Stream did not end", latch.await(10, TimeUnit.SECONDS));
+	}
+	
+	/**
+	 * Makes <code>count</code> calls at once and returns how many were
+	 * admitted.
+	 */
+	private int concurrentCalls(MethodDescriptor method, CalcRequest request, int count) throws Exception {
+		List<NettyRpcController> controllers = new ArrayList<NettyRpcController>();
+		List<CountDownLatch> ends = new ArrayList<CountDownLatch>();
+		for (int i = 0; i < count; i++) {
+			NettyRpcController controller = (NettyRpcController) channel.newRpcController();
+			controllers.add(controller);
+			if (method == SUBTRACT) {
+				ends.add(stream(controller, request));
+			} else {
+				final CountDownLatch ended = new CountDownLatch(1);
+				channel.callMethod(method, controller, request, CalcResponse.getDefaultInstance())
+						.addListener(new RpcFutureListener<CalcResponse>() {
+					public void operationComplete(RpcFuture<CalcResponse> future) {
+						ended.countDown();
+					}
+				});
+				ends.add(ended);
+			}
+		}
+		int admitted = 0;
+		for (int i = 0; i < count; i++) {
+			await(ends.get(i));
+			if (controllers.get(i).getErrorCode() != NettyRpcProto.ErrorCode.OVERLOADED) {
+				admitted++;
+			}
+		}
+		return admitted;
+	}
+	
+	private static int freePort() throws IOException {
+		ServerSocket socket = new ServerSocket(0);
+		try {
+			return socket.getLocalPort();
+		} finally {
+			socket.close();
+		}
+	}
+	
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2009 Stephen Tu <stephen_tu@berkeley.edu>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.protobuf.netty;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.junit.Test;
+
+import com.googlecode.protobuf.netty.NettyRpcProto.ErrorCode;
+import com.googlecode.protobuf.netty.NettyRpcProto.RpcResponse;
+
+public class NettyRpcServerCallTrackerTest {
+	
+	@Test
+	public void requestWithIdOfRunningCallIsRejected() {
+		DecoderEmbedder<Object> embedder = new DecoderEmbedder<Object>(new NettyRpcServerCallTracker());
+		RpcRequestEnvelope running = request(1);
+		embedder.offer(running);
+		assertSame(running, embedder.poll());
+		
+		// The client's ids came round while the first call was still running
+		embedder.offer(request(1));
+		Object answer = embedder.poll();
+		assertTrue("Expected a rejection, got " + answer, answer instanceof RpcResponse);
+		RpcResponse rejection = (RpcResponse) answer;
+		assertEquals(1, rejection.getId());
+		assertEquals(ErrorCode.BAD_REQUEST_PROTO, rejection.getErrorCode());
+		assertNull(embedder.poll());
+		
+		// The running call can still be canceled
+		embedder.offer(NettyRpcProto.RpcControl.newBuilder().setId(1).setCancel(true).build());
+		assertTrue(running.getController().isCanceled());
+		embedder.finish();
+	}
+	
+	@Test
+	public void idCanBeReusedOnceCallCompletes() {
+		NettyRpcServerCallTracker tracker = new NettyRpcServerCallTracker();
+		DecoderEmbedder<Object> embedder = new DecoderEmbedder<Object>(tracker);
+		RpcRequestEnvelope first = request(1);
+		embedder.offer(first);
+		assertSame(first, embedder.poll());
+		
+		// What the handler does once it has answered the call
+		tracker.complete(embedder.getPipeline().getChannel(), 1, null);
+		RpcRequestEnvelope second = request(1);
+		embedder.offer(second);
+		assertSame(second, embedder.poll());
+		assertFalse(second.getController().isCanceled());
+		embedder.finish();
+	}
+	
+	private static RpcRequestEnvelope request(int id) {
+		return new RpcRequestEnvelope(true, id, "CalcService", "Add", false, ChannelBuffers.EMPTY_BUFFER);
+	}
+	
+}
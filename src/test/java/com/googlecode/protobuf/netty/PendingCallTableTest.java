@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2009 Stephen Tu <stephen_tu@berkeley.edu>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.protobuf.netty;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class PendingCallTableTest {
+	
+	@Test
+	public void idsStartAtOne() {
+		PendingCallTable<String> table = new PendingCallTable<String>();
+		assertEquals(1, table.add("a"));
+		assertEquals(2, table.add("b"));
+		assertEquals("a", table.remove(1));
+		assertNull(table.get(1));
+		assertEquals("b", table.get(2));
+	}
+	
+	@Test
+	public void idStillPendingIsSkippedWhenIdsComeRound() {
+		PendingCallTable<String> table = new PendingCallTable<String>();
+		// A stream that stays open while two billion other calls are made
+		assertEquals(1, table.add("stream"));
+		// Enough calls at once for a second ring, where id 1 has a free slot
+		List<Integer> ids = new ArrayList<Integer>();
+		for (int i = 0; i < 1024; i++) {
+			ids.add(table.add("call"));
+		}
+		for (int id : ids) {
+			assertEquals("call", table.remove(id));
+		}
+		table.skipIdsTo(Integer.MAX_VALUE - 1);
+		assertEquals(Integer.MAX_VALUE, table.add("last"));
+		// 0 is for control messages, and 1 is still pending
+		assertEquals(2, table.add("next"));
+		assertEquals("stream", table.get(1));
+		assertEquals("next", table.get(2));
+		assertEquals("stream", table.remove(1));
+		assertEquals("next", table.remove(2));
+	}
+	
+	@Test
+	public void addFailsWhenFull() {
+		PendingCallTable<String> table = new PendingCallTable<String>();
+		Set<Integer> ids = new HashSet<Integer>();
+		for (int i = 0; i < 65536; i++) {
+			int id = table.add("call");
+			assertTrue(id > 0);
+			assertTrue(ids.add(id));
+		}
+		assertEquals(-1, table.add("one too many"));
+	}
+	
+}